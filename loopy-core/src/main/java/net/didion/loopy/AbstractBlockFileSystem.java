@@ -19,21 +19,38 @@ package net.didion.loopy;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A block file system is segmented into multiple fixed-size blocks. It consists of a set of volume
  * descriptors followed by an index, which points to the file locations.
  */
 public abstract class AbstractBlockFileSystem extends AbstractFileSystem {
+    // number of volume descriptor blocks fetched with one read
+    private static final int DESCRIPTOR_BATCH_SIZE = 16;
+
     private final int blockSize;
     private final int reservedBlocks;
     private VolumeDescriptorSet volumeDescriptorSet;
+    private volatile boolean volumeDescriptorsLoaded = false;
+    private final ReentrantLock loadLock = new ReentrantLock();
+    private volatile ElevatorScheduler scheduler;
 
-    protected AbstractBlockFileSystem(final File file, final boolean readOnly, final int blockSize,
-                                      final int reservedBlocks)
-            throws IOException {
-        super(file, readOnly);
+    /**
+     * Creates a block file system that reads its image from <code>source</code>.
+     *
+     * @param file the file the image is stored in, or null if it is not stored in a file
+     * @param source the source of the image data
+     * @param readOnly must be true
+     * @param blockSize the block size
+     * @param reservedBlocks the number of blocks before the volume descriptors
+     */
+    protected AbstractBlockFileSystem(final File file, final ImageSource source,
+                                      final boolean readOnly, final int blockSize,
+                                      final int reservedBlocks) {
+        super(file, source, readOnly);
 
         if (blockSize <= 0) {
             throw new IllegalArgumentException("'blockSize' must be > 0");
@@ -47,31 +64,90 @@ public abstract class AbstractBlockFileSystem extends AbstractFileSystem {
     }
 
     public Enumeration getEntries() {
+        return enumerate(getRootEntry());
+    }
+
+    /**
+     * Returns the root entry of the file system, loading the volume descriptors if they have not
+     * been loaded yet.
+     *
+     * @return the root entry
+     */
+    protected FileEntry getRootEntry() {
+        ensureOpen();
+        ensureVolumeDescriptors();
+
+        return this.volumeDescriptorSet.getRootEntry();
+    }
+
+    /**
+     * Returns the identifier of the volume contained in this file system.
+     *
+     * @return the volume identifier
+     */
+    public String getVolumeIdentifier() {
         ensureOpen();
+        ensureVolumeDescriptors();
+
+        return this.volumeDescriptorSet.getVolumeIdentifier();
+    }
+
+    /**
+     * Loads the volume descriptors if they have not been loaded yet.
+     */
+    private void ensureVolumeDescriptors() {
+        if (this.volumeDescriptorsLoaded) {
+            return;
+        }
 
-        // load the volume descriptors if necessary
-        if (null == this.volumeDescriptorSet) {
-            try {
+        this.loadLock.lock();
+
+        try {
+            if (!this.volumeDescriptorsLoaded) {
                 loadVolumeDescriptors();
-            }
-            catch (IOException ex) {
-                throw new RuntimeException(ex);
+                this.volumeDescriptorsLoaded = true;
             }
         }
-
-        return enumerate(this.volumeDescriptorSet.getRootEntry());
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        finally {
+            this.loadLock.unlock();
+        }
     }
 
     protected void loadVolumeDescriptors() throws IOException {
-        final byte[] buffer = new byte[this.blockSize];
+        final byte[] buffer = new byte[this.blockSize * DESCRIPTOR_BATCH_SIZE];
 
         this.volumeDescriptorSet = createVolumeDescriptorSet();
 
         // skip the reserved blocks, then read volume descriptor blocks sequentially and add them
-        // to the VolumeDescriptorSet
-        for (int block = this.reservedBlocks;
-             readBlock(block, buffer) && !this.volumeDescriptorSet.deserialize(buffer);
-             block++);
+        // to the VolumeDescriptorSet; there are usually only a few, so they are fetched in batches
+        for (long block = this.reservedBlocks;; ) {
+            final int read = readData(block * this.blockSize, buffer, 0, buffer.length);
+            final int blocks = Math.max(read, 0) / this.blockSize;
+
+            for (int i = 0; i < blocks; i++) {
+                final byte[] descriptor = new byte[this.blockSize];
+
+                System.arraycopy(buffer, i * this.blockSize, descriptor, 0, this.blockSize);
+
+                if (this.volumeDescriptorSet.deserialize(descriptor)) {
+                    return;
+                }
+            }
+
+            // as when reading block by block, a partial block at the end is an error
+            if (read > 0 && read % this.blockSize != 0) {
+                throw new IOException("Could not deserialize a complete block");
+            }
+
+            if (blocks < DESCRIPTOR_BATCH_SIZE) {
+                return;
+            }
+
+            block += blocks;
+        }
     }
 
     /**
@@ -98,7 +174,8 @@ public abstract class AbstractBlockFileSystem extends AbstractFileSystem {
     }
 
     /**
-     * Read file data, starting at the specified position.
+     * Read file data, starting at the specified position. This method does not lock, so it may be
+     * called by any number of threads at once.
      *
      * @param startPos
      * @param buffer
@@ -107,11 +184,53 @@ public abstract class AbstractBlockFileSystem extends AbstractFileSystem {
      * @return the number of bytes read into the buffer
      * @throws IOException
      */
-    protected synchronized int readData(final long startPos, final byte[] buffer, final int offset,
-                                        final int len)
+    protected int readData(final long startPos, final byte[] buffer, final int offset,
+                           final int len)
             throws IOException {
-        seek(startPos);
-        return read(buffer, offset, len);
+        return readData(startPos, ByteBuffer.wrap(buffer, offset, len));
+    }
+
+    /**
+     * Read file data, starting at the specified position, until <code>dst</code> is full or the
+     * end of the file is reached. The position of <code>dst</code> is advanced by the number of
+     * bytes read.
+     *
+     * @param startPos
+     * @param dst
+     * @return the number of bytes read into the buffer, or -1 at the end of the file
+     * @throws IOException
+     */
+    protected int readData(final long startPos, final ByteBuffer dst) throws IOException {
+        final ElevatorScheduler scheduler = this.scheduler;
+
+        if (null != scheduler) {
+            return scheduler.read(startPos, dst);
+        }
+
+        return read(startPos, dst);
+    }
+
+    /**
+     * Installs an I/O scheduler that reorders and merges the reads of concurrent readers, or
+     * removes it if <code>scheduler</code> is null. Scheduling is off by default.
+     *
+     * @param scheduler a scheduler created for this file system, or null
+     */
+    public void setScheduler(final ElevatorScheduler scheduler) {
+        if (null != scheduler && scheduler.getFileSystem() != this) {
+            throw new IllegalArgumentException("Scheduler belongs to a different file system");
+        }
+
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the installed I/O scheduler.
+     *
+     * @return the scheduler, or null if reads are not scheduled
+     */
+    public ElevatorScheduler getScheduler() {
+        return this.scheduler;
     }
 
     protected VolumeDescriptorSet getVolumeDescriptorSet() {
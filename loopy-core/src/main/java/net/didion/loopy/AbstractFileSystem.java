@@ -17,50 +17,278 @@ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
 */
 package net.didion.loopy;
 
-import java.io.RandomAccessFile;
+import net.didion.loopy.management.FileSystemRegistry;
+
 import java.io.File;
 import java.io.IOException;
-import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
- * Implementation of FileSystem that is backed by a {@link RandomAccessFile}.
+ * Implementation of FileSystem that reads its image through an {@link ImageSource}. Images stored
+ * in plain files are read through a {@link net.didion.loopy.source.FileImageSource}, opened by
+ * {@link net.didion.loopy.source.ImageSources}. All reads are positional, so any number of threads
+ * can read concurrently without holding a lock across the I/O.
  */
 public abstract class AbstractFileSystem implements FileSystem {
     /**
-     * Channel to the open file.
+     * Size of the buffer used to copy data to a channel.
+     */
+    protected static final int TRANSFER_SIZE = 256 * 1024;
+
+    /**
+     * Number of threads that run asynchronous reads.
+     */
+    private static final int READ_THREADS =
+            Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Runs asynchronous reads. Reads block on I/O, so they do not run on the common fork/join
+     * pool, where they would starve unrelated computations. Idle threads are stopped.
+     */
+    private static final ThreadPoolExecutor READ_EXECUTOR;
+
+    static {
+        READ_EXECUTOR = new ThreadPoolExecutor(
+                READ_THREADS, READ_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread =
+                                new Thread(r, "loopy-read-" + this.count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        READ_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The file containing the file system image.
+     */
+    private final File file;
+
+    /**
+     * The source of the image data.
+     */
+    private final ImageSource source;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Guards closing the file system. Never held during a read.
+     */
+    private final ReentrantLock closeLock = new ReentrantLock();
+
+    /**
+     * Number of entry streams that have been opened and not yet closed.
+     */
+    private final AtomicInteger openStreams = new AtomicInteger();
+
+    /**
+     * Total number of bytes handed out to readers.
+     */
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    /**
+     * Time of the last read, in milliseconds.
      */
-    private RandomAccessFile channel;
+    private volatile long lastAccessTime;
 
-    protected AbstractFileSystem(final File file, final boolean readOnly) throws IOException {
+    /**
+     * Creates a file system that reads its image from <code>source</code>. The source is closed
+     * when the file system is closed.
+     *
+     * @param file the file the image is stored in, or null if it is not stored in a file
+     * @param source the source of the image data
+     * @param readOnly must be true; otherwise the source is closed
+     */
+    protected AbstractFileSystem(final File file, final ImageSource source,
+                                 final boolean readOnly) {
         if (!readOnly) {
+            try {
+                if (null != source) {
+                    source.close();
+                }
+            }
+            catch (IOException ex) {
+                // ignore
+            }
             throw new IllegalArgumentException("Currrently, only read-only is supported");
         }
-
-        // check that the underlying file is valid
-        if (!file.exists()) {
-            throw new FileNotFoundException("File does not exist: " + file);
+        if (null == source) {
+            throw new IllegalArgumentException("'source' must not be null");
         }
 
-        // open the channel
-        this.channel = new RandomAccessFile(file, "r");
+        this.file = file;
+        this.source = source;
+        this.lastAccessTime = System.currentTimeMillis();
     }
 
     // TODO: close open streams automatically
-    public synchronized void close() throws IOException {
-        if (isClosed()) {
-            return;
-        }
+    public void close() throws IOException {
+        this.closeLock.lock();
 
         try {
-            this.channel.close();
+            if (isClosed()) {
+                return;
+            }
+
+            this.closed = true;
+            this.source.close();
         }
         finally {
-            this.channel = null;
+            this.closeLock.unlock();
+            FileSystemRegistry.unregister(this);
         }
     }
 
     public boolean isClosed() {
-        return (null == this.channel);
+        return this.closed;
+    }
+
+    /**
+     * Returns whether the whole image has been loaded into memory.
+     *
+     * @return true if the image is read from memory
+     */
+    public boolean isInMemory() {
+        return this.source instanceof ResidentImageSource;
+    }
+
+    /**
+     * Returns the file containing the file system image.
+     *
+     * @return the image file, or null if the image is read from a source that is not a file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns the number of entry streams that are currently open.
+     *
+     * @return the number of open streams
+     */
+    public int getOpenStreamCount() {
+        return this.openStreams.get();
+    }
+
+    /**
+     * Returns the total number of bytes of entry data that have been read from this file system.
+     *
+     * @return the number of bytes served
+     */
+    public long getBytesServed() {
+        return this.bytesServed.get();
+    }
+
+    /**
+     * Returns the time of the last read from this file system, in milliseconds. If nothing has
+     * been read yet, this is the time the file system was opened.
+     *
+     * @return the last access time
+     */
+    public long getLastAccessTime() {
+        return this.lastAccessTime;
+    }
+
+    /**
+     * Returns the number of bytes currently held in caches by this file system. The default
+     * implementation does no caching and only counts the image data held in memory by a
+     * {@link ResidentImageSource}.
+     *
+     * @return the cache size, in bytes
+     */
+    public long getCacheSize() {
+        if (this.source instanceof ResidentImageSource) {
+            return ((ResidentImageSource) this.source).getResidentSize();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Discards any cached data held by this file system. The default implementation does nothing.
+     */
+    public void dropCaches() {
+    }
+
+    /**
+     * Closes this file system if no entry streams are open and nothing has been read from it for
+     * at least <code>maxIdleTime</code> milliseconds. The check and the close are done under the
+     * same lock as {@link #streamOpened()}, so no stream can be opened in between.
+     *
+     * @param maxIdleTime the idle time in milliseconds
+     * @return true if the file system was closed by this call
+     * @throws IOException if the file system could not be closed
+     */
+    public boolean closeIfIdle(final long maxIdleTime) throws IOException {
+        this.closeLock.lock();
+
+        try {
+            if (isClosed() || this.openStreams.get() > 0
+                || System.currentTimeMillis() - this.lastAccessTime < maxIdleTime) {
+                return false;
+            }
+
+            close();
+
+            return true;
+        }
+        finally {
+            this.closeLock.unlock();
+        }
+    }
+
+    /**
+     * Called when an entry stream is opened.
+     *
+     * @throws IllegalStateException if the file system has been closed
+     */
+    protected void streamOpened() throws IllegalStateException {
+        this.closeLock.lock();
+
+        try {
+            ensureOpen();
+            this.openStreams.incrementAndGet();
+        }
+        finally {
+            this.closeLock.unlock();
+        }
+    }
+
+    /**
+     * Called when an entry stream is closed.
+     */
+    protected void streamClosed() {
+        this.openStreams.decrementAndGet();
+    }
+
+    /**
+     * Records that <code>bytes</code> bytes of entry data were served to a reader. Reads of
+     * volume descriptors and directories are not counted.
+     *
+     * @param bytes
+     */
+    protected void recordAccess(long bytes) {
+        if (bytes > 0) {
+            this.bytesServed.addAndGet(bytes);
+        }
+        this.lastAccessTime = System.currentTimeMillis();
     }
 
     /**
@@ -75,29 +303,145 @@ public abstract class AbstractFileSystem implements FileSystem {
     }
 
     /**
-     * Moves the pointer in the underlying file to the specified position.
+     * Reads up to <code>length</code> bytes from the specified position in the underlying file
+     * into the specified buffer, starting at the specified offset. The actual number of bytes read
+     * will be less than <code>length</code> if there are not enough available bytes to read, or if
+     * the buffer is not large enough.
      *
      * @param pos
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return the number of bytes read into the buffer, or -1 if <code>pos</code> is at or beyond
+     * the end of the file
      * @throws IOException
      */
-    protected void seek(long pos) throws IOException {
-        ensureOpen();
-        this.channel.seek(pos);
+    protected int read(long pos, byte[] buffer, int offset, int length) throws IOException {
+        return read(pos, ByteBuffer.wrap(buffer, offset, length));
     }
 
     /**
-     * Reads up to <code>length</code> bytes into the specified buffer, starting at the specified
-     * offset. The actual number of bytes read will be less than <code>length</code> if there are
-     * not enough available bytes to read, or if the buffer is not large enough.
+     * Reads bytes from the specified position in the underlying file into <code>dst</code>, until
+     * the buffer is full or the end of the file is reached. The position of <code>dst</code> is
+     * advanced by the number of bytes read.
      *
-     * @param buffer
-     * @param offset
-     * @param length
-     * @return the number of bytes read into the buffer
+     * @param pos
+     * @param dst
+     * @return the number of bytes read into the buffer, or -1 if <code>pos</code> is at or beyond
+     * the end of the file
      * @throws IOException
      */
-    protected int read(byte[] buffer, int offset, int length) throws IOException {
+    protected int read(long pos, ByteBuffer dst) throws IOException {
         ensureOpen();
-        return this.channel.read(buffer, offset, length);
+
+        final int read = this.source.read(pos, dst);
+
+        this.lastAccessTime = System.currentTimeMillis();
+
+        return read;
+    }
+
+    /**
+     * Copies <code>count</code> bytes, starting at the specified position of the underlying file,
+     * to <code>target</code>. Sources that implement {@link TransferableImageSource} copy the data
+     * themselves; all others are read through one large buffer.
+     *
+     * @param pos the position of the first byte to copy
+     * @param count the number of bytes to copy
+     * @param target the channel to write to
+     * @return the number of bytes copied, which is less than <code>count</code> only if the end of
+     * the file was reached
+     * @throws IOException if the file could not be read or the target could not be written
+     */
+    protected long transferTo(final long pos, final long count, final WritableByteChannel target)
+            throws IOException {
+        ensureOpen();
+
+        if (this.source instanceof TransferableImageSource) {
+            final long transferred =
+                    ((TransferableImageSource) this.source).transferTo(pos, count, target);
+
+            this.lastAccessTime = System.currentTimeMillis();
+
+            return transferred;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_SIZE));
+        long transferred = 0;
+
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+
+            if (read(pos + transferred, buffer) <= 0) {
+                break;
+            }
+
+            buffer.flip();
+            transferred += buffer.remaining();
+
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Starts reading bytes from the underlying file into <code>dst</code>, starting at the
+     * specified position. The read does not block the calling thread; the returned future
+     * completes with the number of bytes read, or -1 if <code>pos</code> is at or beyond the end
+     * of the file. The buffer must not be used until the future has completed.
+     * <p/>
+     * Sources that implement {@link AsynchronousImageSource}, such as plain image files, read
+     * without tying up a thread. Other images are read on a thread of the
+     * {@link #getReadExecutor() read executor}, except for images held in memory, which are copied
+     * before this method returns.
+     *
+     * @param pos
+     * @param dst
+     * @return a future that completes with the number of bytes read
+     * @throws IOException if the image could not be read
+     */
+    protected CompletableFuture<Integer> readAsync(final long pos, final ByteBuffer dst)
+            throws IOException {
+        if (isInMemory()) {
+            return CompletableFuture.completedFuture(Integer.valueOf(read(pos, dst)));
+        }
+
+        ensureOpen();
+
+        if (this.source instanceof AsynchronousImageSource) {
+            return ((AsynchronousImageSource) this.source).readAsync(pos, dst).thenApply(
+                    new Function<Integer, Integer>() {
+                        public Integer apply(final Integer read) {
+                            AbstractFileSystem.this.lastAccessTime = System.currentTimeMillis();
+                            return read;
+                        }
+                    });
+        }
+
+        return CompletableFuture.supplyAsync(new Supplier<Integer>() {
+            public Integer get() {
+                try {
+                    return Integer.valueOf(read(pos, dst));
+                }
+                catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, READ_EXECUTOR);
+    }
+
+    /**
+     * Returns the executor that runs blocking reads for {@link #readAsync(long, ByteBuffer)}.
+     * Subclasses use it for other asynchronous work that reads the image, e.g. inflating
+     * compressed data.
+     *
+     * @return the executor
+     */
+    protected static Executor getReadExecutor() {
+        return READ_EXECUTOR;
     }
-}
\ No newline at end of file
+}
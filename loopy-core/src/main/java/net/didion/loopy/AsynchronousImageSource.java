@@ -0,0 +1,41 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An {@link ImageSource} that can read without tying up a thread while the read is in progress,
+ * e.g. through an {@link java.nio.channels.AsynchronousFileChannel}.
+ */
+public interface AsynchronousImageSource extends ImageSource {
+    /**
+     * Starts reading bytes from the specified position of the image into <code>dst</code>, until
+     * the buffer is full or the end of the image is reached. The returned future completes with
+     * the number of bytes read, or -1 if <code>pos</code> is at or beyond the end of the image.
+     * The buffer must not be used until the future has completed.
+     *
+     * @param pos the position within the image
+     * @param dst the buffer to read into
+     * @return a future that completes with the number of bytes read
+     * @throws IOException if the read could not be started
+     */
+    CompletableFuture<Integer> readAsync(long pos, ByteBuffer dst) throws IOException;
+}
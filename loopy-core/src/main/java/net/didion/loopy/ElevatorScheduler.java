@@ -0,0 +1,401 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An elevator-style I/O scheduler for concurrent readers of one file system. Reads from all
+ * threads are queued; once several readers are active, requests are collected for a short window,
+ * sorted by position, and requests whose ranges overlap or nearly touch are merged into a single
+ * read. This keeps storage with expensive seeks (disks, network shares) close to sequential
+ * throughput under heavy mixed load.
+ * <p/>
+ * There is no dispatcher thread: one of the waiting readers performs the I/O for a whole batch
+ * while the others wait, and hands the job to the next waiting reader when it is done. No lock is
+ * held during the I/O. A reader that is on its own is never delayed by the window.
+ * <p/>
+ * Install a scheduler with {@link AbstractBlockFileSystem#setScheduler(ElevatorScheduler)}.
+ */
+public class ElevatorScheduler {
+    /**
+     * Default time to collect requests before dispatching a batch.
+     */
+    public static final long DEFAULT_WINDOW_MICROS = 2000;
+
+    /**
+     * Default for the largest read issued for a merged batch.
+     */
+    public static final int DEFAULT_MAX_READ = 1024 * 1024;
+
+    /**
+     * Default for the largest gap, in bytes, between two requests that are still merged.
+     */
+    public static final int DEFAULT_MAX_GAP = 64 * 1024;
+
+    private static final Comparator POSITION_ORDER = new Comparator() {
+        public int compare(final Object o1, final Object o2) {
+            final long p1 = ((Request) o1).pos;
+            final long p2 = ((Request) o2).pos;
+            return (p1 < p2) ? -1 : ((p1 == p2) ? 0 : 1);
+        }
+    };
+
+    private final AbstractFileSystem fileSystem;
+    private final long windowNanos;
+    private final int maxRead;
+    private final int maxGap;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = this.lock.newCondition();
+    private final Condition completed = this.lock.newCondition();
+
+    // pending requests, guarded by lock
+    private List queue = new ArrayList();
+    private boolean dispatching = false;
+    // size of the previous batch, i.e. how many readers are expected to queue up once several
+    // readers are queued
+    private int expected = 1;
+
+    // scratch buffer for merged reads; only used by the current dispatcher
+    private ByteBuffer scratch;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong readCount = new AtomicLong();
+
+    /**
+     * Creates a scheduler with the default window, read size and gap.
+     *
+     * @param fileSystem the file system whose reads are scheduled
+     */
+    public ElevatorScheduler(final AbstractFileSystem fileSystem) {
+        this(fileSystem, DEFAULT_WINDOW_MICROS, TimeUnit.MICROSECONDS, DEFAULT_MAX_READ,
+             DEFAULT_MAX_GAP);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param fileSystem the file system whose reads are scheduled
+     * @param window how long to collect requests before dispatching a batch
+     * @param unit the unit of <code>window</code>
+     * @param maxRead the largest read issued for a merged batch
+     * @param maxGap the largest gap, in bytes, between two requests that are merged
+     */
+    public ElevatorScheduler(final AbstractFileSystem fileSystem, final long window,
+                             final TimeUnit unit, final int maxRead, final int maxGap) {
+        if (window < 0) {
+            throw new IllegalArgumentException("'window' must be >= 0");
+        }
+        if (maxRead <= 0) {
+            throw new IllegalArgumentException("'maxRead' must be > 0");
+        }
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("'maxGap' must be >= 0");
+        }
+
+        this.fileSystem = fileSystem;
+        this.windowNanos = unit.toNanos(window);
+        this.maxRead = maxRead;
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Returns the file system whose reads are scheduled.
+     *
+     * @return the file system
+     */
+    public AbstractFileSystem getFileSystem() {
+        return this.fileSystem;
+    }
+
+    /**
+     * Returns the number of read requests that have been scheduled.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Returns the number of reads that have been issued to the file system. The difference to
+     * {@link #getRequestCount()} is the number of requests that were served by merged reads.
+     *
+     * @return the number of reads
+     */
+    public long getReadCount() {
+        return this.readCount.get();
+    }
+
+    /**
+     * Reads bytes from the specified position into <code>dst</code>, with the same semantics as
+     * {@link AbstractFileSystem#read(long, ByteBuffer)}. Blocks until the request has been served.
+     *
+     * @param pos
+     * @param dst
+     * @return the number of bytes read, or -1 if <code>pos</code> is at or beyond the end of the
+     * file
+     * @throws IOException
+     */
+    int read(final long pos, final ByteBuffer dst) throws IOException {
+        this.requestCount.incrementAndGet();
+
+        if (dst.remaining() > this.maxRead) {
+            // too large to merge; nothing is gained by queueing it
+            this.readCount.incrementAndGet();
+            return this.fileSystem.read(pos, dst);
+        }
+
+        final Request request = new Request(pos, dst);
+        boolean interrupted = false;
+
+        this.lock.lock();
+
+        try {
+            this.queue.add(request);
+            this.arrived.signal();
+
+            while (!request.done) {
+                if (!this.dispatching) {
+                    dispatch();
+                }
+                else {
+                    // the dispatcher writes into our buffer, so we cannot leave before it is done
+                    this.completed.awaitUninterruptibly();
+                }
+            }
+
+            interrupted = Thread.interrupted();
+        }
+        finally {
+            this.lock.unlock();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (request.error instanceof IOException) {
+            throw (IOException) request.error;
+        }
+        if (request.error instanceof RuntimeException) {
+            throw (RuntimeException) request.error;
+        }
+        if (null != request.error) {
+            throw (Error) request.error;
+        }
+
+        return request.result;
+    }
+
+    /**
+     * Serves one batch of requests. Called with the lock held; the lock is released during the
+     * I/O.
+     */
+    private void dispatch() {
+        this.dispatching = true;
+
+        try {
+            // only wait if other readers are queued right now, so that a reader on its own is
+            // never delayed; then give the readers of the previous batch a chance to queue up,
+            // but stop waiting as soon as as many requests are queued as were served last time
+            if (this.queue.size() > 1) {
+                long remaining = this.windowNanos;
+
+                while (remaining > 0 && this.queue.size() < this.expected) {
+                    try {
+                        remaining = this.arrived.awaitNanos(remaining);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            final List batch = this.queue;
+
+            this.queue = new ArrayList();
+            this.expected = batch.size();
+
+            this.lock.unlock();
+
+            try {
+                serve(batch);
+            }
+            catch (RuntimeException ex) {
+                fail(batch, ex);
+            }
+            catch (Error ex) {
+                fail(batch, ex);
+                throw ex;
+            }
+            finally {
+                this.lock.lock();
+            }
+        }
+        finally {
+            this.dispatching = false;
+            this.completed.signalAll();
+        }
+    }
+
+    /**
+     * Sorts a batch by position and serves it with as few reads as possible.
+     *
+     * @param batch
+     */
+    private void serve(final List batch) {
+        Collections.sort(batch, POSITION_ORDER);
+
+        for (int first = 0; first < batch.size();) {
+            final Request firstRequest = (Request) batch.get(first);
+            long end = firstRequest.end();
+            int last = first + 1;
+
+            for (; last < batch.size(); last++) {
+                final Request next = (Request) batch.get(last);
+                final long nextEnd = Math.max(end, next.end());
+
+                if (next.pos > end + this.maxGap || nextEnd - firstRequest.pos > this.maxRead) {
+                    break;
+                }
+
+                end = nextEnd;
+            }
+
+            if (last - first == 1) {
+                serveSingle(firstRequest);
+            }
+            else {
+                serveMerged(batch.subList(first, last), firstRequest.pos,
+                            (int) (end - firstRequest.pos));
+            }
+
+            first = last;
+        }
+    }
+
+    /**
+     * Completes all requests of a batch that have not been served yet with an error, e.g. if
+     * the file system was closed while the batch was being served.
+     *
+     * @param batch
+     * @param error
+     */
+    private void fail(final List batch, final Throwable error) {
+        for (int i = 0; i < batch.size(); i++) {
+            final Request request = (Request) batch.get(i);
+
+            if (!request.done) {
+                request.error = error;
+                request.done = true;
+            }
+        }
+    }
+
+    private void serveSingle(final Request request) {
+        this.readCount.incrementAndGet();
+
+        try {
+            request.result = this.fileSystem.read(request.pos, request.dst);
+        }
+        catch (IOException ex) {
+            request.error = ex;
+        }
+
+        request.done = true;
+    }
+
+    private void serveMerged(final List requests, final long start, final int length) {
+        if (null == this.scratch) {
+            this.scratch = ByteBuffer.allocateDirect(this.maxRead);
+        }
+
+        this.scratch.clear();
+        this.scratch.limit(length);
+        this.readCount.incrementAndGet();
+
+        int available;
+        IOException error = null;
+
+        try {
+            available = this.fileSystem.read(start, this.scratch);
+        }
+        catch (IOException ex) {
+            available = -1;
+            error = ex;
+        }
+
+        for (int i = 0; i < requests.size(); i++) {
+            final Request request = (Request) requests.get(i);
+
+            if (null != error) {
+                request.error = error;
+            }
+            else {
+                final int offset = (int) (request.pos - start);
+                final int count = Math.min(request.dst.remaining(), available - offset);
+
+                if (count <= 0) {
+                    request.result = -1;
+                }
+                else {
+                    final ByteBuffer slice = this.scratch.duplicate();
+                    slice.limit(offset + count);
+                    slice.position(offset);
+                    request.dst.put(slice);
+                    request.result = count;
+                }
+            }
+
+            request.done = true;
+        }
+    }
+
+    /**
+     * A queued read.
+     */
+    private static class Request {
+        final long pos;
+        final ByteBuffer dst;
+        // written by the dispatcher, read by the requester after it has reacquired the lock
+        int result;
+        Throwable error;
+        boolean done;
+
+        Request(final long pos, final ByteBuffer dst) {
+            this.pos = pos;
+            this.dst = dst;
+        }
+
+        long end() {
+            return this.pos + this.dst.remaining();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the data of entries read in bulk, e.g. by
+ * {@link net.didion.loopy.iso9660.ISO9660FileSystem#readMany}.
+ */
+public interface EntryDataConsumer {
+    /**
+     * Called once for each entry with the complete data of that entry. The buffer is read-only
+     * and only valid for the duration of the call; its contents must be copied if they are needed
+     * afterwards.
+     *
+     * @param entry the entry
+     * @param data the entry data, from position to limit
+     * @throws IOException if the consumer fails; this aborts the bulk read
+     */
+    void consume(FileEntry entry, ByteBuffer data) throws IOException;
+}
@@ -20,6 +20,7 @@ package net.didion.loopy;
 import java.util.Enumeration;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A loopy file system, which is deserialize-only and consists of zero or more entries. The data
@@ -41,6 +42,21 @@ public interface FileSystem {
      */
     InputStream getInputStream(FileEntry entry);
 
+    /**
+     * Reads data of the given entry, starting <code>position</code> bytes into the entry, into
+     * <code>dst</code>. At most <code>dst.remaining()</code> bytes are read, and never more than
+     * remain in the entry; the position of <code>dst</code> is advanced by the number of bytes
+     * read. Direct buffers are filled straight from the underlying file.
+     *
+     * @param entry the FileEntry
+     * @param position the position within the entry data
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 if <code>position</code> is at or beyond the end of
+     * the entry
+     * @throws IOException if there was an error reading the data
+     */
+    int read(FileEntry entry, long position, ByteBuffer dst) throws IOException;
+
     /**
      * Closes this file system. This automatically closes all input streams opened via
      * {@link FileSystem#getInputStream(FileEntry entry)}.
@@ -0,0 +1,58 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of image bytes with positional reads, e.g. a compressed image, an image held in
+ * memory, or a range of another source; see the implementations in
+ * {@link net.didion.loopy.source}. A file system backed by a source reads all of its data
+ * through {@link #read(long, ByteBuffer)}, which must be safe to call from several threads at
+ * once.
+ */
+public interface ImageSource {
+    /**
+     * Reads bytes from the specified position of the image into <code>dst</code>, until the
+     * buffer is full or the end of the image is reached. The position of <code>dst</code> is
+     * advanced by the number of bytes read.
+     *
+     * @param pos the position within the image
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 if <code>pos</code> is at or beyond the end of the
+     * image
+     * @throws IOException if there was an error reading the image
+     */
+    int read(long pos, ByteBuffer dst) throws IOException;
+
+    /**
+     * Returns the size of the image.
+     *
+     * @return the number of bytes in the image
+     * @throws IOException if the size could not be determined
+     */
+    long size() throws IOException;
+
+    /**
+     * Releases all resources held by this source.
+     *
+     * @throws IOException if there was an error closing the source
+     */
+    void close() throws IOException;
+}
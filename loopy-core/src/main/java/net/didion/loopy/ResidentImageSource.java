@@ -0,0 +1,31 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy;
+
+/**
+ * An {@link ImageSource} that holds all or part of its image in memory. The memory it holds is
+ * reported as part of the cache size of the file system that reads from it.
+ */
+public interface ResidentImageSource extends ImageSource {
+    /**
+     * Returns the number of bytes of the image currently held in memory.
+     *
+     * @return the resident size, in bytes
+     */
+    long getResidentSize();
+}
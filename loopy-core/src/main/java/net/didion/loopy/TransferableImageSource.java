@@ -0,0 +1,40 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An {@link ImageSource} that can copy a range of the image to a channel itself, e.g. by letting
+ * the operating system copy file data without passing it through a Java buffer.
+ */
+public interface TransferableImageSource extends ImageSource {
+    /**
+     * Copies <code>count</code> bytes, starting at the specified position of the image, to
+     * <code>target</code>.
+     *
+     * @param pos the position of the first byte to copy
+     * @param count the number of bytes to copy
+     * @param target the channel to write to
+     * @return the number of bytes copied, which is less than <code>count</code> only if the end of
+     * the image was reached
+     * @throws IOException if the image could not be read or the target could not be written
+     */
+    long transferTo(long pos, long count, WritableByteChannel target) throws IOException;
+}
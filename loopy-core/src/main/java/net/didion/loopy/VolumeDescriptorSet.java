@@ -40,4 +40,11 @@ public interface VolumeDescriptorSet {
      * @return the root file entry for the file system
      */
     FileEntry getRootEntry();
+
+    /**
+     * Returns the identifier of the volume.
+     *
+     * @return the volume identifier
+     */
+    String getVolumeIdentifier();
 }
@@ -0,0 +1,563 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import net.didion.loopy.LoopyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Converts an image into a tar or zip archive in one pass, without extracting it first. All
+ * directories are written first, followed by the files in the order in which they are stored in
+ * the image, so the image is read sequentially from start to end.
+ * <p/>
+ * The tar format is POSIX ustar, with pax extended headers for paths that do not fit into a ustar
+ * header. File data is copied with {@link ISO9660FileSystem#transferTo}, so when writing to a
+ * file or socket channel, the data of uncompressed files does not pass through Java buffers.
+ * Files that share an {@link Extent} are written once; the others become hard links to it.
+ * <p/>
+ * Zip archives are written uncompressed ("stored"). Since the CRC of a file is only known once it
+ * has been copied, file entries are followed by a data descriptor, and the archive uses the Zip64
+ * extensions when it grows beyond 4 GB or 65535 entries. Zip has no links, so the data of files
+ * sharing an extent is written for each of them, but its CRC is only computed once. Readers that
+ * use the central directory, such as {@link java.util.zip.ZipFile} and <code>unzip</code>, can
+ * read these archives; readers that only scan the local headers, such as
+ * {@link java.util.zip.ZipInputStream}, cannot.
+ * <p/>
+ * Neither method closes the stream or channel it writes to.
+ */
+public class ArchiveWriter {
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP16_LIMIT = 0xFFFF;
+
+    // zip flags: a data descriptor follows the data, names are UTF-8
+    private static final int ZIP_FLAG_DESCRIPTOR = 1 << 3;
+    private static final int ZIP_FLAG_UTF8 = 1 << 11;
+
+    // version 2.0, or 4.5 for Zip64, made on Unix
+    private static final int ZIP_VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    private static final int ZIP_MADE_BY = (3 << 8) | ZIP64_VERSION;
+
+    private final ISO9660FileSystem fileSystem;
+
+    public ArchiveWriter(final ISO9660FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Writes the image as a tar archive.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the image could not be read or the archive could not be written
+     */
+    public void writeTar(final OutputStream out) throws IOException {
+        writeTar(Channels.newChannel(out));
+        out.flush();
+    }
+
+    /**
+     * Writes the image as a tar archive.
+     *
+     * @param out the channel to write to
+     * @throws IOException if the image could not be read or the archive could not be written
+     */
+    public void writeTar(final WritableByteChannel out) throws IOException {
+        final List directories = new ArrayList();
+        final List groups = new ArrayList();
+
+        collect(directories, groups);
+
+        for (int i = 0; i < directories.size(); i++) {
+            final ISO9660FileEntry entry = (ISO9660FileEntry) directories.get(i);
+
+            writeTarHeader(out, entry.getPath(), null, 0, entry.getLastModifiedTime(), '5');
+        }
+
+        for (int i = 0; i < groups.size(); i++) {
+            final List entries = ((ExtentGroup) groups.get(i)).getEntries();
+            final ISO9660FileEntry primary = (ISO9660FileEntry) entries.get(0);
+            final long size = primary.getSize();
+
+            writeTarHeader(out, primary.getPath(), null, size, primary.getLastModifiedTime(), '0');
+            this.fileSystem.transferTo(primary, out);
+            write(out, ByteBuffer.allocate(getTarPadding(size)));
+
+            for (int j = 1; j < entries.size(); j++) {
+                final ISO9660FileEntry entry = (ISO9660FileEntry) entries.get(j);
+
+                writeTarHeader(out, entry.getPath(), primary.getPath(), 0,
+                               entry.getLastModifiedTime(), '1');
+            }
+        }
+
+        // the archive ends with two zero blocks
+        write(out, ByteBuffer.allocate(2 * TAR_BLOCK_SIZE));
+    }
+
+    /**
+     * Writes the image as an uncompressed zip archive.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the image could not be read or the archive could not be written
+     */
+    public void writeZip(final OutputStream out) throws IOException {
+        writeZip(Channels.newChannel(out));
+        out.flush();
+    }
+
+    /**
+     * Writes the image as an uncompressed zip archive.
+     *
+     * @param out the channel to write to
+     * @throws IOException if the image could not be read or the archive could not be written
+     */
+    public void writeZip(final WritableByteChannel out) throws IOException {
+        final List directories = new ArrayList();
+        final List groups = new ArrayList();
+
+        collect(directories, groups);
+
+        final List records = new ArrayList(directories.size() + groups.size());
+        final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        final CRC32 crc = new CRC32();
+        long pos = 0;
+
+        for (int i = 0; i < directories.size(); i++) {
+            final ZipRecord record = new ZipRecord((ISO9660FileEntry) directories.get(i), pos);
+
+            pos += writeZipLocalHeader(out, record);
+            records.add(record);
+        }
+
+        for (int i = 0; i < groups.size(); i++) {
+            final List entries = ((ExtentGroup) groups.get(i)).getEntries();
+
+            for (int j = 0; j < entries.size(); j++) {
+                final ISO9660FileEntry entry = (ISO9660FileEntry) entries.get(j);
+                final ZipRecord record = new ZipRecord(entry, pos);
+
+                pos += writeZipLocalHeader(out, record);
+
+                if (j == 0) {
+                    // the data is copied through a buffer, since its CRC has to be computed
+                    crc.reset();
+
+                    for (long offset = 0; offset < record.size;) {
+                        buffer.clear();
+
+                        if (this.fileSystem.read(entry, offset, buffer) <= 0) {
+                            throw new LoopyException(
+                                    "Unexpected end of ISO file in " + entry.getPath());
+                        }
+
+                        buffer.flip();
+                        crc.update(buffer.array(), 0, buffer.limit());
+                        offset += buffer.limit();
+                        pos += write(out, buffer);
+                    }
+                }
+                else {
+                    // the same content again, whose CRC is known
+                    pos += this.fileSystem.transferTo(entry, out);
+                }
+
+                record.crc = crc.getValue();
+                pos += writeZipDescriptor(out, record);
+                records.add(record);
+            }
+        }
+
+        final long directoryStart = pos;
+
+        for (int i = 0; i < records.size(); i++) {
+            pos += writeZipCentralHeader(out, (ZipRecord) records.get(i));
+        }
+
+        writeZipEnd(out, records.size(), directoryStart, pos - directoryStart);
+    }
+
+    /**
+     * Collects the directories in enumeration order, which puts every directory after its parent,
+     * and the files grouped by extent, in the order of their data in the image. The root entry is
+     * skipped.
+     */
+    private void collect(final List directories, final List groups) {
+        final List files = new ArrayList();
+
+        for (Enumeration e = this.fileSystem.getEntries(); e.hasMoreElements();) {
+            final ISO9660FileEntry entry = (ISO9660FileEntry) e.nextElement();
+
+            if (null == entry.getParentPath()) {
+                continue;
+            }
+
+            (entry.isDirectory() ? directories : files).add(entry);
+        }
+
+        groups.addAll(ExtentGroup.group(Collections.enumeration(files)));
+    }
+
+    /**
+     * Writes the ustar header of an entry, preceded by a pax header if the path or the link path
+     * does not fit.
+     *
+     * @param linkPath the path of the file a hard link refers to, or null
+     * @param type '0' for a file, '1' for a hard link, '5' for a directory
+     */
+    private void writeTarHeader(final WritableByteChannel out, final String path,
+                                final String linkPath, final long size,
+                                final long lastModifiedTime, final char type)
+            throws IOException {
+        final ByteArrayOutputStream pax = new ByteArrayOutputStream();
+        final byte[] name = getUtf8(path);
+        byte[] prefix = new byte[0];
+        byte[] shortName = name;
+        byte[] shortLink = (null == linkPath) ? new byte[0] : getUtf8(linkPath);
+
+        if (name.length > 100) {
+            final int split = findTarSplit(name);
+
+            if (split > 0) {
+                prefix = copy(name, 0, split);
+                shortName = copy(name, split + 1, name.length - split - 1);
+            }
+            else {
+                pax.write(getPaxRecord("path", path));
+                shortName = copy(name, 0, 100);
+            }
+        }
+
+        if (shortLink.length > 100) {
+            pax.write(getPaxRecord("linkpath", linkPath));
+            shortLink = copy(shortLink, 0, 100);
+        }
+
+        if (pax.size() > 0) {
+            final byte[] records = pax.toByteArray();
+
+            write(out, ByteBuffer.wrap(createTarHeader(
+                    getUtf8("PaxHeader"), new byte[0], new byte[0], records.length, 0, 'x',
+                    0644)));
+            write(out, ByteBuffer.wrap(records));
+            write(out, ByteBuffer.allocate(getTarPadding(records.length)));
+        }
+
+        write(out, ByteBuffer.wrap(createTarHeader(
+                shortName, shortLink, prefix, size, lastModifiedTime / 1000, type,
+                ('5' == type) ? 0755 : 0644)));
+    }
+
+    /**
+     * Layout of a ustar header:
+     * <pre>
+     length  pos  contents
+     ------  ---  --------------------------------------------------------
+     100     0    name
+     8       100  mode, in octal
+     8       108  owner id, in octal
+     8       116  group id, in octal
+     12      124  size, in octal
+     12      136  modification time, in seconds since the epoch, in octal
+     8       148  checksum, in octal
+     1       156  type: '0' for a file, '1' for a hard link, '5' for a directory, 'x' for a pax
+                  header
+     100     157  link name
+     8       257  magic: "ustar", NUL, "00"
+     64      265  owner and group names
+     16      329  device numbers
+     155     345  prefix of the name
+       </pre>
+     */
+    private static byte[] createTarHeader(final byte[] name, final byte[] linkName,
+                                          final byte[] prefix, final long size, final long time,
+                                          final char type, final int mode)
+            throws UnsupportedEncodingException {
+        final byte[] header = new byte[TAR_BLOCK_SIZE];
+
+        System.arraycopy(name, 0, header, 0, name.length);
+        putOctal(header, 100, 8, mode);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, Math.max(0, time));
+        header[156] = (byte) type;
+        System.arraycopy(linkName, 0, header, 157, linkName.length);
+        System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+
+        // the checksum is computed with the checksum field set to spaces
+        long checksum = 8 * ' ';
+
+        for (int i = 0; i < header.length; i++) {
+            checksum += header[i] & 0xFF;
+        }
+
+        putOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+
+        return header;
+    }
+
+    /**
+     * Returns the position of the separator at which a long path can be split into the prefix
+     * and name fields of a ustar header, or -1 if there is none.
+     */
+    private static int findTarSplit(final byte[] name) {
+        for (int i = Math.min(155, name.length - 2); i > 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= 100) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns a pax extended header record. The length at the start of a record counts the digits
+     * of the length itself.
+     */
+    private static byte[] getPaxRecord(final String keyword, final String value)
+            throws UnsupportedEncodingException {
+        final int base = getUtf8(keyword).length + getUtf8(value).length + 3;
+        int length = base + String.valueOf(base).length();
+
+        if (String.valueOf(length).length() > String.valueOf(base).length()) {
+            length = base + String.valueOf(length).length();
+        }
+
+        return getUtf8(length + " " + keyword + "=" + value + "\n");
+    }
+
+    /**
+     * Writes an octal number of <code>length - 1</code> digits followed by a NUL.
+     */
+    private static void putOctal(final byte[] header, final int pos, final int length,
+                                 final long value) {
+        final String octal = Long.toOctalString(value);
+        final int digits = length - 1;
+
+        for (int i = 0; i < digits; i++) {
+            final int index = octal.length() - digits + i;
+            header[pos + i] = (byte) ((index >= 0) ? octal.charAt(index) : '0');
+        }
+
+        header[pos + digits] = 0;
+    }
+
+    private static int getTarPadding(final long size) {
+        final int remainder = (int) (size % TAR_BLOCK_SIZE);
+        return (remainder == 0) ? 0 : TAR_BLOCK_SIZE - remainder;
+    }
+
+    private long writeZipLocalHeader(final WritableByteChannel out, final ZipRecord record)
+            throws IOException {
+        final ByteBuffer header = allocateZip(30 + record.name.length);
+
+        header.putInt(0x04034b50);
+        header.putShort((short) ZIP_VERSION);
+        header.putShort((short) record.getFlags());
+        header.putShort((short) 0);
+        header.putShort((short) record.time);
+        header.putShort((short) record.date);
+
+        // CRC and sizes follow in the data descriptor; directories have none
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putShort((short) record.name.length);
+        header.putShort((short) 0);
+        header.put(record.name);
+        header.flip();
+
+        return write(out, header);
+    }
+
+    private long writeZipDescriptor(final WritableByteChannel out, final ZipRecord record)
+            throws IOException {
+        final ByteBuffer descriptor = allocateZip(16);
+
+        descriptor.putInt(0x08074b50);
+        descriptor.putInt((int) record.crc);
+        descriptor.putInt((int) record.size);
+        descriptor.putInt((int) record.size);
+        descriptor.flip();
+
+        return write(out, descriptor);
+    }
+
+    private long writeZipCentralHeader(final WritableByteChannel out, final ZipRecord record)
+            throws IOException {
+        final boolean zip64 = record.offset >= ZIP32_LIMIT;
+        final ByteBuffer header = allocateZip(46 + record.name.length + (zip64 ? 12 : 0));
+
+        header.putInt(0x02014b50);
+        header.putShort((short) ZIP_MADE_BY);
+        header.putShort((short) (zip64 ? ZIP64_VERSION : ZIP_VERSION));
+        header.putShort((short) record.getFlags());
+        header.putShort((short) 0);
+        header.putShort((short) record.time);
+        header.putShort((short) record.date);
+        header.putInt((int) record.crc);
+        header.putInt((int) record.size);
+        header.putInt((int) record.size);
+        header.putShort((short) record.name.length);
+        header.putShort((short) (zip64 ? 12 : 0));
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+
+        // Unix mode in the high half, MS-DOS directory attribute in the low half
+        header.putInt(record.directory ? (040755 << 16) | 0x10 : 0100644 << 16);
+        header.putInt(zip64 ? (int) ZIP32_LIMIT : (int) record.offset);
+        header.put(record.name);
+
+        if (zip64) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 8);
+            header.putLong(record.offset);
+        }
+
+        header.flip();
+
+        return write(out, header);
+    }
+
+    private void writeZipEnd(final WritableByteChannel out, final int count,
+                             final long directoryStart, final long directorySize)
+            throws IOException {
+        final boolean zip64 = count >= ZIP16_LIMIT || directoryStart >= ZIP32_LIMIT
+                              || directorySize >= ZIP32_LIMIT;
+        final ByteBuffer end = allocateZip(22 + (zip64 ? 56 + 20 : 0));
+
+        if (zip64) {
+            final long recordStart = directoryStart + directorySize;
+
+            end.putInt(0x06064b50);
+            end.putLong(44);
+            end.putShort((short) ZIP_MADE_BY);
+            end.putShort((short) ZIP64_VERSION);
+            end.putInt(0);
+            end.putInt(0);
+            end.putLong(count);
+            end.putLong(count);
+            end.putLong(directorySize);
+            end.putLong(directoryStart);
+
+            // locator
+            end.putInt(0x07064b50);
+            end.putInt(0);
+            end.putLong(recordStart);
+            end.putInt(1);
+        }
+
+        end.putInt(0x06054b50);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(count, ZIP16_LIMIT));
+        end.putShort((short) Math.min(count, ZIP16_LIMIT));
+        end.putInt((int) Math.min(directorySize, ZIP32_LIMIT));
+        end.putInt((int) Math.min(directoryStart, ZIP32_LIMIT));
+        end.putShort((short) 0);
+        end.flip();
+
+        write(out, end);
+    }
+
+    private static ByteBuffer allocateZip(final int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long write(final WritableByteChannel out, final ByteBuffer buffer)
+            throws IOException {
+        final long length = buffer.remaining();
+
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+
+        return length;
+    }
+
+    private static byte[] copy(final byte[] bytes, final int pos, final int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(bytes, pos, copy, 0, length);
+        return copy;
+    }
+
+    private static byte[] getUtf8(final String s) throws UnsupportedEncodingException {
+        return s.getBytes("UTF-8");
+    }
+
+    /**
+     * An entry of the zip central directory.
+     */
+    private static final class ZipRecord {
+        final byte[] name;
+        final boolean directory;
+        final long size;
+        final long offset;
+        final int time;
+        final int date;
+        long crc = 0;
+
+        ZipRecord(final ISO9660FileEntry entry, final long offset)
+                throws UnsupportedEncodingException {
+            this.name = getUtf8(entry.getPath());
+            this.directory = entry.isDirectory();
+            this.size = this.directory ? 0 : entry.getSize();
+            this.offset = offset;
+
+            // MS-DOS date and time, which cannot express dates before 1980
+            final Calendar calendar = Calendar.getInstance();
+
+            calendar.setTimeInMillis(entry.getLastModifiedTime());
+
+            if (calendar.get(Calendar.YEAR) < 1980) {
+                calendar.set(1980, Calendar.JANUARY, 1, 0, 0, 0);
+            }
+
+            this.time = (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                        | (calendar.get(Calendar.MINUTE) << 5)
+                        | (calendar.get(Calendar.SECOND) / 2);
+            this.date = ((calendar.get(Calendar.YEAR) - 1980) << 9)
+                        | ((calendar.get(Calendar.MONTH) + 1) << 5)
+                        | calendar.get(Calendar.DAY_OF_MONTH);
+        }
+
+        int getFlags() {
+            return this.directory ? ZIP_FLAG_UTF8 : ZIP_FLAG_UTF8 | ZIP_FLAG_DESCRIPTOR;
+        }
+    }
+}
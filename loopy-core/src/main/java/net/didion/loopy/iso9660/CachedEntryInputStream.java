@@ -0,0 +1,100 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream that reads an entry's data from a {@link net.didion.loopy.util.ContentCache}, so
+ * reading it does not touch the image. If the entry could not be read into the cache, the stream
+ * reports the error when it is read.
+ */
+class CachedEntryInputStream extends InputStream {
+    private final ByteBuffer content;
+    private final IOException failure;
+    private boolean closed = false;
+
+    CachedEntryInputStream(final ByteBuffer content) {
+        this.content = content;
+        this.failure = null;
+    }
+
+    CachedEntryInputStream(final IOException failure) {
+        this.content = ByteBuffer.allocate(0);
+        this.failure = failure;
+    }
+
+    public int read(final byte b[], final int off, final int len) throws IOException {
+        ensureReadable();
+
+        if (len <= 0) {
+            return 0;
+        }
+        if (!this.content.hasRemaining()) {
+            return -1;
+        }
+
+        final int read = Math.min(len, this.content.remaining());
+
+        this.content.get(b, off, read);
+
+        return read;
+    }
+
+    public int read() throws IOException {
+        ensureReadable();
+
+        return this.content.hasRemaining() ? this.content.get() & 0xff : -1;
+    }
+
+    public long skip(final long n) {
+        ensureOpen();
+
+        final int len = (int) Math.max(0, Math.min(n, this.content.remaining()));
+
+        this.content.position(this.content.position() + len);
+
+        return len;
+    }
+
+    public int available() {
+        ensureOpen();
+
+        return this.content.remaining();
+    }
+
+    public void close() {
+        this.closed = true;
+    }
+
+    private void ensureReadable() throws IOException {
+        ensureOpen();
+
+        if (null != this.failure) {
+            throw this.failure;
+        }
+    }
+
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("stream has been closed");
+        }
+    }
+}
@@ -21,7 +21,8 @@ package net.didion.loopy.iso9660;
 public interface Constants {
     /**
      * ISO sector size. This does not include the 288 bytes reserved for synchronization, header, and EC on
-     * CD-ROMs because this information is not used in .iso files.
+     * CD-ROMs because this information is not used in .iso files. Raw images that do include them
+     * are read through {@link net.didion.loopy.source.RawSectorImageSource}.
      */
     int DEFAULT_BLOCK_SIZE = 2 * 1024;
 
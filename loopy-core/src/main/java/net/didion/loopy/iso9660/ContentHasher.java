@@ -0,0 +1,504 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import net.didion.loopy.FileEntry;
+import net.didion.loopy.LoopyException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Computes digests of all files in an image in a single pass. The files are read in the order in
+ * which they are stored, in large sequential chunks, and every part of a chunk is routed to the
+ * digests of the file it belongs to. Hashing runs on a pool of worker threads, so an image can be
+ * hashed at disk speed with all cores busy, while the updates of each file's digests are still
+ * applied in order.
+ * <p/>
+ * Any algorithm supported by {@link MessageDigest} can be used, as well as {@link #CRC32}.
+ * Files compressed with zisofs are digested by their uncompressed content; they are inflated on
+ * the worker threads after the sequential pass. Files that share an {@link Extent} are digested
+ * once, and the manifest lists each of them with the same digests.
+ */
+public class ContentHasher {
+    /**
+     * Name of the CRC-32 checksum, which is not available through {@link MessageDigest}.
+     */
+    public static final String CRC32 = "CRC32";
+
+    /**
+     * Default size of the chunks in which the image is read.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Default number of chunks that may be in flight at once.
+     */
+    public static final int DEFAULT_CHUNK_COUNT = 8;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Runs the digest updates of {@link #hash()}: one thread per available processor, shared by
+     * all hashers. Idle threads are stopped, so the pool costs nothing between runs.
+     */
+    private static final ThreadPoolExecutor DEFAULT_EXECUTOR;
+
+    static {
+        final int threads = Runtime.getRuntime().availableProcessors();
+
+        DEFAULT_EXECUTOR = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread =
+                                new Thread(r, "loopy-hash-" + this.count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        DEFAULT_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final ISO9660FileSystem fileSystem;
+    private final String[] algorithms;
+    private final int chunkSize;
+    private final int chunkCount;
+
+    /**
+     * Creates a hasher with the default chunk size and count.
+     *
+     * @param fileSystem the image to hash
+     * @param algorithms the names of the algorithms to compute
+     * @throws NoSuchAlgorithmException if one of the algorithms is not available
+     */
+    public ContentHasher(final ISO9660FileSystem fileSystem, final String[] algorithms)
+            throws NoSuchAlgorithmException {
+        this(fileSystem, algorithms, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_COUNT);
+    }
+
+    /**
+     * Creates a hasher. At most <code>chunkSize * chunkCount</code> bytes of buffers are used.
+     *
+     * @param fileSystem the image to hash
+     * @param algorithms the names of the algorithms to compute
+     * @param chunkSize the size of the chunks in which the image is read
+     * @param chunkCount the number of chunks that may be in flight at once
+     * @throws NoSuchAlgorithmException if one of the algorithms is not available
+     */
+    public ContentHasher(final ISO9660FileSystem fileSystem, final String[] algorithms,
+                         final int chunkSize, final int chunkCount)
+            throws NoSuchAlgorithmException {
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("At least one algorithm is required");
+        }
+        if (chunkSize < Constants.DEFAULT_BLOCK_SIZE) {
+            throw new IllegalArgumentException("'chunkSize' must be at least one block");
+        }
+        if (chunkCount <= 0) {
+            throw new IllegalArgumentException("'chunkCount' must be > 0");
+        }
+
+        // fail early on unknown algorithms
+        createHashes(algorithms);
+
+        this.fileSystem = fileSystem;
+        this.algorithms = algorithms.clone();
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Hashes all files, using a shared pool with one worker thread per available processor.
+     *
+     * @return the manifest
+     * @throws IOException if there was an error reading the image
+     */
+    public ContentManifest hash() throws IOException {
+        return hash(DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Hashes all files, running the digest updates on <code>executor</code>.
+     *
+     * @param executor runs the digest updates
+     * @return the manifest
+     * @throws IOException if there was an error reading the image
+     */
+    public ContentManifest hash(final Executor executor) throws IOException {
+        final List groups = ExtentGroup.group(this.fileSystem.getEntries());
+        final List files = new ArrayList(groups.size());
+
+        // files sharing an extent have the same content, so each extent is digested only once;
+        // the groups are in extent order already
+        for (int i = 0; i < groups.size(); i++) {
+            final ExtentGroup group = (ExtentGroup) groups.get(i);
+
+            files.add(new FileState(group, this.fileSystem.getDataPosition(group.getPrimary(), 0),
+                                    newHashes()));
+        }
+
+        final List plain = new ArrayList();
+        final List compressed = new ArrayList();
+
+        for (int i = 0; i < files.size(); i++) {
+            final FileState file = (FileState) files.get(i);
+            (file.entry.isZisofs() ? compressed : plain).add(file);
+        }
+
+        final AtomicReference failure = new AtomicReference();
+
+        try {
+            readAll(plain, executor, failure);
+
+            for (int i = 0; i < compressed.size() && null == failure.get(); i++) {
+                ((FileState) compressed.get(i)).inflate(this.fileSystem, executor, failure);
+            }
+        }
+        finally {
+            // wait for all outstanding updates, even if reading failed
+            for (int i = 0; i < files.size(); i++) {
+                ((FileState) files.get(i)).tail.join();
+            }
+        }
+
+        if (null != failure.get()) {
+            throw new LoopyException("Error computing digests", (Throwable) failure.get());
+        }
+
+        final ContentManifest manifest = new ContentManifest(this.algorithms);
+
+        for (int i = 0; i < files.size(); i++) {
+            final FileState file = (FileState) files.get(i);
+            final List entries = file.group.getEntries();
+
+            for (int j = 0; j < entries.size(); j++) {
+                manifest.add((FileEntry) entries.get(j), file.digests);
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Reads the data of all files in chunks and submits the digest updates.
+     *
+     * @param files the files, sorted by position
+     * @param executor runs the digest updates
+     * @param failure receives the first error raised by an update
+     * @throws IOException
+     */
+    private void readAll(final List files, final Executor executor,
+                         final AtomicReference failure)
+            throws IOException {
+        final BlockingQueue pool = new ArrayBlockingQueue(this.chunkCount);
+
+        for (int i = 0; i < this.chunkCount; i++) {
+            pool.add(ByteBuffer.allocateDirect(this.chunkSize));
+        }
+
+        final List active = new ArrayList();
+        int next = 0;
+        long pos = 0;
+
+        while ((next < files.size() || !active.isEmpty()) && null == failure.get()) {
+            if (active.isEmpty()) {
+                // skip the space between two runs of files
+                pos = ((FileState) files.get(next)).start;
+            }
+
+            // extend the chunk over all files that start in it, up to the chunk size
+            final long limit = pos + this.chunkSize;
+            long end = pos;
+
+            for (int i = 0; i < active.size(); i++) {
+                end = Math.max(end, ((FileState) active.get(i)).end());
+            }
+
+            while (next < files.size()) {
+                final FileState file = (FileState) files.get(next);
+
+                if (file.start >= limit || file.start > end) {
+                    break;
+                }
+
+                end = Math.max(end, file.end());
+                active.add(file);
+                next++;
+            }
+
+            end = Math.min(end, limit);
+
+            final Chunk chunk = new Chunk(takeBuffer(pool), pool);
+
+            chunk.buffer.clear();
+            chunk.buffer.limit((int) (end - pos));
+
+            if (end > pos && this.fileSystem.readContent(pos, chunk.buffer) != end - pos) {
+                chunk.release();
+                throw new LoopyException("Unexpected end of ISO file at position " + pos);
+            }
+
+            for (Iterator it = active.iterator(); it.hasNext();) {
+                final FileState file = (FileState) it.next();
+                final long sliceEnd = Math.min(file.end(), end);
+                final int offset = (int) (file.start + file.done - pos);
+                final ByteBuffer slice = chunk.buffer.duplicate();
+
+                slice.limit((int) (sliceEnd - pos));
+                slice.position(offset);
+
+                file.update(slice, chunk, executor, failure);
+                file.done = sliceEnd - file.start;
+
+                if (file.done == file.entry.getDataLength()) {
+                    file.finish(executor, failure);
+                    it.remove();
+                }
+            }
+
+            chunk.release();
+            pos = end;
+        }
+    }
+
+    private static ByteBuffer takeBuffer(final BlockingQueue pool) throws IOException {
+        try {
+            return (ByteBuffer) pool.take();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        }
+    }
+
+    private Hash[] newHashes() {
+        try {
+            return createHashes(this.algorithms);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // the algorithms were checked by the constructor
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static Hash[] createHashes(final String[] algorithms)
+            throws NoSuchAlgorithmException {
+        final Hash[] hashes = new Hash[algorithms.length];
+
+        for (int i = 0; i < algorithms.length; i++) {
+            if (CRC32.equalsIgnoreCase(algorithms[i])) {
+                hashes[i] = new ChecksumHash();
+            }
+            else {
+                hashes[i] = new DigestHash(MessageDigest.getInstance(algorithms[i]));
+            }
+        }
+
+        return hashes;
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final char[] hex = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * A buffer holding one chunk of the image, returned to the pool once every update that uses
+     * it has run.
+     */
+    private static class Chunk {
+        final ByteBuffer buffer;
+        final BlockingQueue pool;
+        final AtomicInteger references = new AtomicInteger(1);
+
+        Chunk(final ByteBuffer buffer, final BlockingQueue pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        void retain() {
+            this.references.incrementAndGet();
+        }
+
+        void release() {
+            if (this.references.decrementAndGet() == 0) {
+                this.pool.add(this.buffer);
+            }
+        }
+    }
+
+    /**
+     * The progress and digests of one extent, which are shared by all files of its group. Updates
+     * are chained, so they run one after the other even though they may run on different threads.
+     */
+    private static class FileState {
+        final ExtentGroup group;
+        final ISO9660FileEntry entry;
+        final long start;
+        final Hash[] hashes;
+        long done = 0;
+        CompletableFuture tail = CompletableFuture.completedFuture(null);
+        volatile String[] digests;
+
+        FileState(final ExtentGroup group, final long start, final Hash[] hashes) {
+            this.group = group;
+            this.entry = group.getPrimary();
+            this.start = start;
+            this.hashes = hashes;
+        }
+
+        long end() {
+            return this.start + this.entry.getDataLength();
+        }
+
+        /**
+         * Digests the uncompressed content of a zisofs file with one task on
+         * <code>executor</code>.
+         */
+        void inflate(final ISO9660FileSystem fileSystem, final Executor executor,
+                     final AtomicReference failure) {
+            this.tail = this.tail.thenRunAsync(new Runnable() {
+                public void run() {
+                    try {
+                        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                        long pos = 0;
+
+                        while (fileSystem.read(FileState.this.entry, pos, buffer) > 0) {
+                            buffer.flip();
+
+                            for (int i = 0; i < FileState.this.hashes.length; i++) {
+                                FileState.this.hashes[i].update(buffer.duplicate());
+                            }
+
+                            pos += buffer.remaining();
+                            buffer.clear();
+                        }
+                    }
+                    catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            }, executor);
+
+            finish(executor, failure);
+        }
+
+        void update(final ByteBuffer slice, final Chunk chunk, final Executor executor,
+                    final AtomicReference failure) {
+            chunk.retain();
+
+            this.tail = this.tail.thenRunAsync(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < FileState.this.hashes.length; i++) {
+                            FileState.this.hashes[i].update(slice.duplicate());
+                        }
+                    }
+                    catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                    finally {
+                        chunk.release();
+                    }
+                }
+            }, executor);
+        }
+
+        void finish(final Executor executor, final AtomicReference failure) {
+            this.tail = this.tail.thenRunAsync(new Runnable() {
+                public void run() {
+                    try {
+                        final String[] digests = new String[FileState.this.hashes.length];
+
+                        for (int i = 0; i < digests.length; i++) {
+                            digests[i] = toHex(FileState.this.hashes[i].digest());
+                        }
+
+                        FileState.this.digests = digests;
+                    }
+                    catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            }, executor);
+        }
+    }
+
+    private static abstract class Hash {
+        abstract void update(ByteBuffer data);
+
+        abstract byte[] digest();
+    }
+
+    private static class DigestHash extends Hash {
+        private final MessageDigest digest;
+
+        DigestHash(final MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        void update(final ByteBuffer data) {
+            this.digest.update(data);
+        }
+
+        byte[] digest() {
+            return this.digest.digest();
+        }
+    }
+
+    private static class ChecksumHash extends Hash {
+        private final CRC32 crc = new CRC32();
+
+        void update(final ByteBuffer data) {
+            this.crc.update(data);
+        }
+
+        byte[] digest() {
+            final long value = this.crc.getValue();
+            return new byte[] {
+                    (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+            };
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import net.didion.loopy.FileEntry;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The digests of the files of an image, as computed by {@link ContentHasher}. Files are listed in
+ * the order in which they are stored in the image.
+ */
+public class ContentManifest {
+    private final String[] algorithms;
+    private final List entries = new ArrayList();
+
+    ContentManifest(final String[] algorithms) {
+        this.algorithms = algorithms.clone();
+    }
+
+    void add(final FileEntry entry, final String[] digests) {
+        this.entries.add(new Entry(entry, digests));
+    }
+
+    /**
+     * Returns the names of the algorithms, in the order of {@link Entry#getDigests()}.
+     *
+     * @return the algorithm names
+     */
+    public String[] getAlgorithms() {
+        return this.algorithms.clone();
+    }
+
+    /**
+     * Returns the manifest entries.
+     *
+     * @return an unmodifiable list of {@link Entry}
+     */
+    public List getEntries() {
+        return Collections.unmodifiableList(this.entries);
+    }
+
+    /**
+     * Writes the manifest as text. The first line names the algorithms; it is followed by one
+     * line per file, consisting of the hex digests in algorithm order, the size, and the path,
+     * separated by single spaces. The path takes up the rest of the line, so spaces in it are
+     * written as they are; a backslash is written as <code>\\</code>, and line feeds and
+     * carriage returns as <code>\n</code> and <code>\r</code>, so that every file is on one line.
+     *
+     * @param out the writer to write to
+     * @throws IOException
+     */
+    public void write(final Writer out) throws IOException {
+        out.write("#");
+
+        for (int i = 0; i < this.algorithms.length; i++) {
+            out.write(" ");
+            out.write(this.algorithms[i]);
+        }
+
+        out.write(" size path\n");
+
+        for (int i = 0; i < this.entries.size(); i++) {
+            final Entry entry = (Entry) this.entries.get(i);
+
+            for (int j = 0; j < entry.digests.length; j++) {
+                out.write(entry.digests[j]);
+                out.write(" ");
+            }
+
+            out.write(String.valueOf(entry.entry.getSize()));
+            out.write(" ");
+            writePath(out, entry.entry.getPath());
+            out.write("\n");
+        }
+
+        out.flush();
+    }
+
+    private static void writePath(final Writer out, final String path) throws IOException {
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+
+            switch (c) {
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+
+    /**
+     * The digests of one file.
+     */
+    public static class Entry {
+        private final FileEntry entry;
+        private final String[] digests;
+
+        Entry(final FileEntry entry, final String[] digests) {
+            this.entry = entry;
+            this.digests = digests;
+        }
+
+        public FileEntry getEntry() {
+            return this.entry;
+        }
+
+        /**
+         * Returns the hex-encoded digests, in the order of
+         * {@link ContentManifest#getAlgorithms()}.
+         *
+         * @return the digests
+         */
+        public String[] getDigests() {
+            return this.digests.clone();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import java.io.IOException;
+
+/**
+ * Receives the raw directory records of an image, as walked by
+ * {@link ISO9660FileSystem#visitDirectoryRecords}. The fields are passed as they are stored in the
+ * record, and the name and date are passed as positions in the buffer holding the directory, so a
+ * walk over the whole image creates no objects per record. This is intended for consumers that
+ * count files, sum up sizes or build their own index, and do not need {@link ISO9660FileEntry}s.
+ * <p/>
+ * Directories are walked breadth-first, like {@link ISO9660FileSystem#getEntries()}.
+ */
+public interface DirectoryRecordVisitor {
+    /**
+     * Called before the records of a directory are visited, starting with the root directory.
+     * Every other directory is identified by the start block that was passed to
+     * {@link #visitRecord} for its own record.
+     *
+     * @param startBlock the block number where the directory's extent starts
+     * @param length the number of bytes of the directory's extent
+     * @throws IOException if the visitor fails; this aborts the walk
+     */
+    void startDirectory(long startBlock, int length) throws IOException;
+
+    /**
+     * Called for each record of the current directory, except for the "." and ".." records. The
+     * buffer is only valid for the duration of the call; anything that is needed afterwards must
+     * be copied.
+     * <p/>
+     * The name is the file identifier as stored, in the encoding of the volume (UCS-2 for
+     * Joliet), including the version suffix of files, e.g. "README.TXT;1". The date is the
+     * 7-byte recording date: years since 1900, month, day, hour, minute, second, and the offset
+     * from GMT in 15 minute intervals.
+     *
+     * @param startBlock the block number where the extent starts
+     * @param length the number of bytes of the extent; for files compressed with zisofs, this is
+     * the compressed size
+     * @param flags the file flags; 0x02 is set for directories
+     * @param buffer the buffer holding the record
+     * @param nameOffset the position of the name in <code>buffer</code>
+     * @param nameLength the number of bytes of the name
+     * @param dateOffset the position of the recording date in <code>buffer</code>
+     * @return true to visit the records of a directory later; ignored for files
+     * @throws IOException if the visitor fails; this aborts the walk
+     */
+    boolean visitRecord(long startBlock, int length, int flags, byte[] buffer, int nameOffset,
+                        int nameLength, int dateOffset)
+            throws IOException;
+}
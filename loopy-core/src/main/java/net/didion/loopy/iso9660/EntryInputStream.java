@@ -19,11 +19,42 @@ package net.didion.loopy.iso9660;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * InputStream that reads a FileEntry's data.
+ * <p/>
+ * Once a consumer has read {@link #PREFETCH_THRESHOLD} bytes, the stream reads ahead: while the
+ * consumer works through one buffer, the next part of the entry is fetched into a second buffer
+ * with {@link ISO9660FileSystem#fetchAsync}, so that processing and I/O overlap. The read-ahead
+ * window starts at {@link #MIN_WINDOW} bytes. It doubles, up to {@link #MAX_WINDOW}, whenever
+ * the consumer has to wait for a fetch, and it is halved again when the consumer is found to be
+ * slower than the fetches several times in a row. Skipping beyond the buffered data is treated as
+ * random access and stops the read-ahead until the stream is read sequentially again. Images
+ * held in memory are never read ahead.
  */
 class EntryInputStream extends InputStream {
+    /**
+     * Number of bytes that must be read sequentially before the stream starts to read ahead.
+     */
+    static final int PREFETCH_THRESHOLD = 64 * 1024;
+
+    /**
+     * Initial and smallest size of the read-ahead window.
+     */
+    static final int MIN_WINDOW = 64 * 1024;
+
+    /**
+     * Largest size of the read-ahead window.
+     */
+    static final int MAX_WINDOW = 1024 * 1024;
+
+    // number of times in a row a fetch has to be complete before the window shrinks
+    private static final int SHRINK_STREAK = 4;
+
     // entry within the file system
     private ISO9660FileEntry entry;
 
@@ -36,6 +67,22 @@ class EntryInputStream extends InputStream {
     // number of remaining bytes within entry
     private int rem;
 
+    // number of bytes read sequentially since the stream was opened or last skipped
+    private int sequential = 0;
+
+    // read-ahead state: the buffer being consumed, whose position corresponds to pos, the buffer
+    // being fetched, and a spare buffer for the next fetch
+    private ByteBuffer current;
+    private ByteBuffer fetching;
+    private ByteBuffer spare;
+    private CompletableFuture<Integer> pending;
+    private int pendingPos;
+    private int window = MIN_WINDOW;
+    private int readyStreak = 0;
+
+    // buffer for read()
+    private final byte[] single = new byte[1];
+
     EntryInputStream(final ISO9660FileEntry entry, final ISO9660FileSystem fileSystem) {
         this.fileSystem = fileSystem;
         this.entry = entry;
@@ -59,23 +106,42 @@ class EntryInputStream extends InputStream {
             toRead = this.rem;
         }
 
-        int read;
+        if (this.fileSystem.isClosed()) {
+            throw new IOException("ISO file closed.");
+        }
 
-        synchronized (this.fileSystem) {
-            if (this.fileSystem.isClosed()) {
-                throw new IOException("ISO file closed.");
-            }
+        if ((null == this.current || !this.current.hasRemaining()) && null != this.pending) {
+            takeFetched();
+        }
+
+        final int read;
 
+        if (null != this.current && this.current.hasRemaining()) {
+            read = Math.min(toRead, this.current.remaining());
+            this.current.get(b, off, read);
+            // read-ahead data is counted as served only now that the consumer takes it
+            this.fileSystem.entryDataServed(read);
+        }
+        else {
+            // readBytes does positional reads without locking, so no monitor is held during the I/O
             read = this.fileSystem.readBytes(this.entry, this.pos, b, off, toRead);
         }
 
         if (read > 0) {
-            this.pos += len;
-            this.rem -= len;
+            this.pos += read;
+            this.rem -= read;
+            this.sequential += read;
+        }
+        else if (read < 0) {
+            throw new IOException("Unexpected end of ISO file.");
         }
 
         if (this.rem == 0) {
-            close();
+            release();
+        }
+        else if (null == this.pending && this.sequential >= PREFETCH_THRESHOLD
+                 && !this.fileSystem.isInMemory()) {
+            startFetch(this.pos + ((null == this.current) ? 0 : this.current.remaining()));
         }
 
         return read;
@@ -84,10 +150,8 @@ class EntryInputStream extends InputStream {
     public int read() throws IOException {
         ensureOpen();
 
-        final byte[] b = new byte[1];
-
-        if (read(b, 0, 1) == 1) {
-            return b[0] & 0xff;
+        if (read(this.single, 0, 1) == 1) {
+            return this.single[0] & 0xff;
         }
         else {
             return -1;
@@ -99,11 +163,27 @@ class EntryInputStream extends InputStream {
 
         final int len = (n > this.rem) ? this.rem : (int) n;
 
+        if (len <= 0) {
+            return 0;
+        }
+
+        if (null != this.current && len <= this.current.remaining()) {
+            this.current.position(this.current.position() + len);
+        }
+        else {
+            // random access: drop the buffered data and stop reading ahead
+            abandonFetch();
+            this.current = null;
+            this.sequential = 0;
+            this.window = MIN_WINDOW;
+            this.readyStreak = 0;
+        }
+
         this.pos += len;
         this.rem -= len;
 
         if (this.rem == 0) {
-            close();
+            release();
         }
 
         return len;
@@ -120,9 +200,113 @@ class EntryInputStream extends InputStream {
     }
 
     public void close() {
-        this.rem = 0;
+        release();
         this.entry = null;
+    }
+
+    /**
+     * Starts fetching the window of entry data at <code>position</code> into the spare buffer.
+     */
+    private void startFetch(final int position) {
+        final int length = Math.min(this.window, this.entry.getSize() - position);
+
+        if (length <= 0) {
+            return;
+        }
+
+        ByteBuffer buffer = this.spare;
+
+        if (null == buffer || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(this.window);
+        }
+
+        this.spare = null;
+        buffer.clear();
+        buffer.limit(length);
+
+        this.fetching = buffer;
+        this.pendingPos = position;
+        this.pending = this.fileSystem.fetchAsync(this.entry, position, buffer);
+    }
+
+    /**
+     * Waits for the pending fetch, makes its buffer the current one, adapts the window and starts
+     * the next fetch.
+     */
+    private void takeFetched() throws IOException {
+        final boolean ready = this.pending.isDone();
+        final int read;
+
+        try {
+            read = this.pending.join().intValue();
+        }
+        catch (CompletionException ex) {
+            abandonFetch();
+            throw toIOException(ex.getCause());
+        }
+        finally {
+            this.pending = null;
+        }
+
+        if (read <= 0) {
+            this.fetching = null;
+            return;
+        }
+
+        if (!ready) {
+            // the consumer is faster than the fetches, so fetch more at once
+            this.window = Math.min(this.window * 2, MAX_WINDOW);
+            this.readyStreak = 0;
+        }
+        else if (++this.readyStreak >= SHRINK_STREAK) {
+            // the consumer is slower than the fetches, so do not hold more data than necessary
+            this.window = Math.max(this.window / 2, MIN_WINDOW);
+            this.readyStreak = 0;
+        }
+
+        this.spare = this.current;
+        this.current = this.fetching;
+        this.current.flip();
+        this.fetching = null;
+
+        startFetch(this.pendingPos + read);
+    }
+
+    /**
+     * Forgets the pending fetch. Its buffer may still be written to, so it is not reused.
+     */
+    private void abandonFetch() {
+        this.pending = null;
+        this.fetching = null;
+    }
+
+    private static IOException toIOException(final Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof InterruptedException) {
+            return new InterruptedIOException(cause.getMessage());
+        }
+
+        final IOException ex = new IOException("Read-ahead failed");
+        ex.initCause(cause);
+        return ex;
+    }
+
+    /**
+     * Releases the file system once all data has been read. The stream stays open, so that
+     * further reads return -1 rather than failing.
+     */
+    private void release() {
+        if (null != this.fileSystem) {
+            this.fileSystem.entryStreamClosed();
+        }
+
+        this.rem = 0;
         this.fileSystem = null;
+        abandonFetch();
+        this.current = null;
+        this.spare = null;
     }
 
     private void ensureOpen() {
@@ -0,0 +1,94 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+/**
+ * Identifies the data of a file in an image by its start block and its length in the image.
+ * Authoring tools often point several directory records at the same extent to store identical
+ * content only once; the entries of such files have equal extents. Extents are ordered by their
+ * position in the image.
+ *
+ * @see ISO9660FileEntry#getExtent()
+ * @see ExtentGroup
+ */
+public final class Extent implements Comparable {
+    private final long startBlock;
+    private final int length;
+
+    public Extent(final long startBlock, final int length) {
+        this.startBlock = startBlock;
+        this.length = length;
+    }
+
+    /**
+     * Returns the block number where the extent starts.
+     *
+     * @return the start block
+     */
+    public long getStartBlock() {
+        return this.startBlock;
+    }
+
+    /**
+     * Returns the number of bytes of the extent, as returned by
+     * {@link ISO9660FileEntry#getDataLength()}.
+     *
+     * @return the length
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Returns true if the extent holds no data. Empty files cannot share content, even if they
+     * have the same start block.
+     *
+     * @return true if the length is 0
+     */
+    public boolean isEmpty() {
+        return this.length == 0;
+    }
+
+    public int compareTo(final Object obj) {
+        final Extent other = (Extent) obj;
+
+        if (this.startBlock != other.startBlock) {
+            return (this.startBlock < other.startBlock) ? -1 : 1;
+        }
+
+        return (this.length < other.length) ? -1 : ((this.length == other.length) ? 0 : 1);
+    }
+
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof Extent)) {
+            return false;
+        }
+
+        final Extent other = (Extent) obj;
+
+        return this.startBlock == other.startBlock && this.length == other.length;
+    }
+
+    public int hashCode() {
+        return (int) (this.startBlock ^ (this.startBlock >>> 32)) * 31 + this.length;
+    }
+
+    public String toString() {
+        return this.startBlock + "+" + this.length;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files of an image that share one {@link Extent}. Bulk consumers can read the data of each
+ * group once and use it for all of its entries, e.g. by extracting the other entries as hard links
+ * to the first one.
+ */
+public final class ExtentGroup {
+    private static final Comparator EXTENT_ORDER = new Comparator() {
+        public int compare(final Object o1, final Object o2) {
+            return ((ExtentGroup) o1).extent.compareTo(((ExtentGroup) o2).extent);
+        }
+    };
+
+    private final Extent extent;
+    private final List entries = new ArrayList(1);
+
+    private ExtentGroup(final Extent extent) {
+        this.extent = extent;
+    }
+
+    /**
+     * Groups files by their extents. Directories are skipped, and every empty file forms a group
+     * of its own.
+     *
+     * @param entries an enumeration of {@link ISO9660FileEntry}, such as
+     * {@link ISO9660FileSystem#getEntries()}
+     * @return a list of {@link ExtentGroup}, in the order in which the extents are stored in the
+     * image; the entries of each group are in enumeration order
+     */
+    public static List group(final Enumeration entries) {
+        final List groups = new ArrayList();
+        final Map byExtent = new HashMap();
+
+        while (entries.hasMoreElements()) {
+            final ISO9660FileEntry entry = (ISO9660FileEntry) entries.nextElement();
+
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            final Extent extent = entry.getExtent();
+            ExtentGroup group = extent.isEmpty() ? null : (ExtentGroup) byExtent.get(extent);
+
+            if (null == group) {
+                group = new ExtentGroup(extent);
+                groups.add(group);
+
+                if (!extent.isEmpty()) {
+                    byExtent.put(extent, group);
+                }
+            }
+
+            group.entries.add(entry);
+        }
+
+        // the sort is stable, so empty files at the same block stay in enumeration order
+        Collections.sort(groups, EXTENT_ORDER);
+
+        return groups;
+    }
+
+    /**
+     * Returns the extent shared by the entries.
+     *
+     * @return the extent
+     */
+    public Extent getExtent() {
+        return this.extent;
+    }
+
+    /**
+     * Returns the first entry of the group in enumeration order.
+     *
+     * @return the first entry
+     */
+    public ISO9660FileEntry getPrimary() {
+        return (ISO9660FileEntry) this.entries.get(0);
+    }
+
+    /**
+     * Returns the entries of the group.
+     *
+     * @return an unmodifiable list of {@link ISO9660FileEntry}, in enumeration order
+     */
+    public List getEntries() {
+        return Collections.unmodifiableList(this.entries);
+    }
+
+    /**
+     * Returns true if more than one entry refers to the extent.
+     *
+     * @return true if the extent is shared
+     */
+    public boolean isShared() {
+        return this.entries.size() > 1;
+    }
+}
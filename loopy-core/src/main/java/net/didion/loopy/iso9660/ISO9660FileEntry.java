@@ -34,6 +34,10 @@ public final class ISO9660FileEntry implements FileEntry {
     private final int flags;
     private final String identifier;
 
+    // zisofs (Rock Ridge transparent compression) parameters, or -1 if the entry is not compressed
+    private final long uncompressedSize;
+    private final int zisofsBlockShift;
+
     //private final int extAttributeLength;
     //private final int fileUnitSize;
     //private final int interleaveSize;
@@ -65,6 +69,63 @@ public final class ISO9660FileEntry implements FileEntry {
         //this.fileUnitSize = Util.getUInt8(block, offset+27);
         //this.interleaveSize = Util.getUInt8(block, offset+28);
         this.identifier = getFileIdentifier(block, offset, isDirectory());
+
+        final long[] zf = findZisofsEntry(block, offset);
+
+        if (null != zf) {
+            this.uncompressedSize = zf[0];
+            this.zisofsBlockShift = (int) zf[1];
+        }
+        else {
+            this.uncompressedSize = -1;
+            this.zisofsBlockShift = -1;
+        }
+    }
+
+    /**
+     * Looks for a Rock Ridge "ZF" entry in the System Use area of the directory record, which
+     * marks a file compressed with zisofs. Layout of the ZF entry:
+     * <pre>
+     length  pos  contents
+     ------  ---  --------------------------------------------------------
+     2       1    signature: "ZF"
+     1       3    length: 16
+     1       4    version: 1
+     2       5    algorithm: "pz"
+     1       7    header size / 4
+     1       8    log2 of the block size
+     8       9    uncompressed size, as a both endian double word
+     </pre>
+     *
+     * @param block the bytes of the sector containing this file entry
+     * @param offset the offset of this file entry, minus one
+     * @return the uncompressed size and the block size shift, or null if there is no ZF entry
+     */
+    private long[] findZisofsEntry(final byte[] block, final int offset) {
+        final int fidLength = Util.getUInt8(block, offset+33);
+
+        // the System Use area follows the identifier, which is padded to an even length
+        int pos = offset + 34 + fidLength + (((fidLength & 1) == 0) ? 1 : 0);
+        final int end = offset + 1 + this.entryLength;
+
+        while (pos + 4 <= end) {
+            final int length = Util.getUInt8(block, pos+2);
+
+            if (length < 4 || pos + length > end) {
+                break;
+            }
+
+            if (block[pos-1] == 'Z' && block[pos] == 'F' && length >= 16
+                && block[pos+3] == 'p' && block[pos+4] == 'z') {
+                return new long[] {
+                        Util.getUInt32LE(block, pos+8), Util.getUInt8(block, pos+7)
+                };
+            }
+
+            pos += length;
+        }
+
+        return null;
     }
 
     private String getFileIdentifier(final byte[] block, final int offset, final boolean isDir) {
@@ -118,6 +179,16 @@ public final class ISO9660FileEntry implements FileEntry {
         return buf.toString();
     }
 
+    /**
+     * Returns the path of the directory containing this entry, as returned by its
+     * {@link #getPath()}.
+     *
+     * @return the parent path, or null for the root entry
+     */
+    public String getParentPath() {
+        return this.parentPath;
+    }
+
     public long getLastModifiedTime() {
         return this.lastModifiedTime;
     }
@@ -126,10 +197,44 @@ public final class ISO9660FileEntry implements FileEntry {
         return (this.flags & 0x03) != 0;
     }
 
+    /**
+     * Returns the size of the entry data. For files compressed with zisofs, this is the
+     * uncompressed size; see {@link #getDataLength()} for the size stored in the image.
+     *
+     * @return the entry size
+     */
     public int getSize() {
+        return isZisofs() ? (int) this.uncompressedSize : this.dataLength;
+    }
+
+    /**
+     * Returns the number of bytes this entry occupies in the image.
+     *
+     * @return the length of the entry's extent
+     */
+    public int getDataLength() {
         return this.dataLength;
     }
 
+    /**
+     * Returns true if the entry data is compressed with zisofs. Compressed entries are
+     * decompressed transparently when they are read.
+     *
+     * @return true if this entry is compressed
+     */
+    public boolean isZisofs() {
+        return this.uncompressedSize >= 0;
+    }
+
+    /**
+     * Returns log2 of the zisofs block size, or -1 if this entry is not compressed.
+     *
+     * @return the block size shift
+     */
+    int getZisofsBlockShift() {
+        return this.zisofsBlockShift;
+    }
+
     /**
      * Returns the block number where this entry starts.
      *
@@ -139,6 +244,16 @@ public final class ISO9660FileEntry implements FileEntry {
         return this.startSector;
     }
 
+    /**
+     * Returns the extent holding the data of this entry. Entries whose data is stored only once
+     * in the image have equal extents.
+     *
+     * @return the extent
+     */
+    public Extent getExtent() {
+        return new Extent(this.startSector, this.dataLength);
+    }
+
     /**
      * Returns the size this entry takes up in the file table.
      *
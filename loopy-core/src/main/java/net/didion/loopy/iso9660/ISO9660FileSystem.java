@@ -19,16 +19,184 @@ package net.didion.loopy.iso9660;
 
 import net.didion.loopy.FileEntry;
 import net.didion.loopy.AbstractBlockFileSystem;
+import net.didion.loopy.EntryDataConsumer;
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.LoopyException;
 import net.didion.loopy.VolumeDescriptorSet;
+import net.didion.loopy.source.ImageSources;
+import net.didion.loopy.util.BlockCache;
+import net.didion.loopy.util.ContentCache;
+import net.didion.loopy.util.LittleEndian;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import java.util.function.Function;
 
 public class ISO9660FileSystem extends AbstractBlockFileSystem {
+    /**
+     * Default for the largest gap, in bytes, between two extents that {@link #readMany} reads
+     * through rather than issuing a separate read.
+     */
+    public static final int DEFAULT_MAX_GAP = 32 * Constants.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Default for the largest single read issued by {@link #readMany}.
+     */
+    public static final int DEFAULT_MAX_READ = 512 * Constants.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Default for the number of bytes of inflated zisofs blocks that are cached.
+     */
+    public static final long DEFAULT_INFLATE_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Size of the buffer into which {@link #visitDirectoryRecords} reads directories.
+     */
+    public static final int WALK_BUFFER_SIZE = 32 * Constants.DEFAULT_BLOCK_SIZE;
+
+    private static final Comparator EXTENT_ORDER = new Comparator() {
+        public int compare(final Object o1, final Object o2) {
+            final ISO9660FileEntry e1 = (ISO9660FileEntry) o1;
+            final ISO9660FileEntry e2 = (ISO9660FileEntry) o2;
+
+            if (e1.getStartBlock() != e2.getStartBlock()) {
+                return (e1.getStartBlock() < e2.getStartBlock()) ? -1 : 1;
+            }
+
+            return e1.getDataLength() - e2.getDataLength();
+        }
+    };
+
+    private final BlockCache inflateCache = new BlockCache(DEFAULT_INFLATE_CACHE_SIZE);
+    private final ZisofsDecoder zisofs = new ZisofsDecoder(this, this.inflateCache);
+    private volatile ContentCache contentCache = null;
+
+    /**
+     * Creates a file system that reads its image from <code>file</code>. The file may be a cooked
+     * .iso image, a raw dump of 2352-byte sectors such as a .bin file, or the .cue sheet of one.
+     *
+     * @param file the image file
+     * @param readOnly must be true
+     * @throws IOException if the file could not be opened
+     */
     public ISO9660FileSystem(File file, boolean readOnly) throws IOException {
-        super(file, readOnly, Constants.DEFAULT_BLOCK_SIZE, Constants.RESERVED_SECTORS);   
+        super(file, ImageSources.open(file), readOnly, Constants.DEFAULT_BLOCK_SIZE,
+              Constants.RESERVED_SECTORS);
+    }
+
+    /**
+     * Creates a file system that loads the whole image into memory if it is no larger than
+     * <code>maxMemorySize</code>, so that reads do not make any system calls. Larger images are
+     * read from the file.
+     *
+     * @param file the image file
+     * @param readOnly must be true
+     * @param maxMemorySize the size of the largest image to load into memory, in bytes
+     * @param direct whether to load the image into a direct buffer, outside the Java heap
+     * @throws IOException if the file could not be opened or loaded
+     */
+    public ISO9660FileSystem(File file, boolean readOnly, long maxMemorySize, boolean direct)
+            throws IOException {
+        super(file, ImageSources.open(file, maxMemorySize, direct), readOnly,
+              Constants.DEFAULT_BLOCK_SIZE, Constants.RESERVED_SECTORS);
+    }
+
+    /**
+     * Creates a file system that reads its image from <code>source</code>, e.g. a
+     * {@link net.didion.loopy.source.GzipImageSource}.
+     *
+     * @param file the file the image is stored in, or null if it is not stored in a file
+     * @param source the source of the image data
+     * @param readOnly must be true
+     */
+    public ISO9660FileSystem(File file, ImageSource source, boolean readOnly) {
+        super(file, source, readOnly, Constants.DEFAULT_BLOCK_SIZE, Constants.RESERVED_SECTORS);
+    }
+
+    /**
+     * Sets the number of bytes of inflated zisofs blocks to cache. Reading a compressed file at
+     * random positions inflates whole blocks, typically 32 KB, so this should at least hold a few
+     * blocks for each file that is read concurrently.
+     *
+     * @param maxSize the cache size, or 0 to disable caching
+     */
+    public void setInflateCacheSize(final long maxSize) {
+        this.inflateCache.setMaxSize(maxSize);
+    }
+
+    /**
+     * Sets the cache of complete file contents from which {@link #getInputStream} serves small
+     * files. A file is added when a stream of it is first requested, and later streams are read
+     * from the cached bytes without touching the image. Contents are keyed by this file system
+     * and the start block of the file, so one cache may be shared by several file systems. Images
+     * held in memory are never cached. Content caching is off until a cache is set.
+     *
+     * @param cache the cache, or null to disable content caching
+     */
+    public void setContentCache(final ContentCache cache) {
+        final ContentCache old = this.contentCache;
+
+        this.contentCache = cache;
+
+        if (null != old && old != cache) {
+            old.remove(this);
+        }
+    }
+
+    /**
+     * Returns the cache of complete file contents.
+     *
+     * @return the cache, or null if content caching is disabled
+     */
+    public ContentCache getContentCache() {
+        return this.contentCache;
+    }
+
+    public long getCacheSize() {
+        final ContentCache cache = this.contentCache;
+
+        return super.getCacheSize() + this.inflateCache.getSize()
+               + ((null == cache) ? 0 : cache.getSize(this));
+    }
+
+    public void dropCaches() {
+        this.inflateCache.clear();
+
+        final ContentCache cache = this.contentCache;
+
+        if (null != cache) {
+            cache.remove(this);
+        }
+    }
+
+    /**
+     * Closes the image and removes its contents from the content cache, which may be shared.
+     *
+     * @throws IOException if the image could not be closed
+     */
+    public void close() throws IOException {
+        try {
+            super.close();
+        }
+        finally {
+            final ContentCache cache = this.contentCache;
+
+            if (null != cache) {
+                cache.remove(this);
+            }
+        }
     }
 
     public String getEncoding() {
@@ -37,7 +205,77 @@ public class ISO9660FileSystem extends AbstractBlockFileSystem {
 
     public InputStream getInputStream(FileEntry entry) {
         ensureOpen();
-        return new EntryInputStream((ISO9660FileEntry) entry, this);
+
+        final ISO9660FileEntry isoEntry = (ISO9660FileEntry) entry;
+        final ContentCache cache = this.contentCache;
+
+        if (null != cache && !isoEntry.isDirectory() && !isInMemory()
+            && cache.isCacheable(isoEntry.getSize())) {
+            return getCachedInputStream(cache, isoEntry);
+        }
+
+        final InputStream stream = new EntryInputStream(isoEntry, this);
+
+        streamOpened();
+
+        return stream;
+    }
+
+    /**
+     * Returns a stream of the cached content of <code>entry</code>, reading the whole entry and
+     * adding it to the cache first if it is not cached yet.
+     *
+     * @param cache
+     * @param entry
+     * @return the stream; if the entry could not be read, its first read reports the error
+     */
+    private InputStream getCachedInputStream(final ContentCache cache,
+                                             final ISO9660FileEntry entry) {
+        final ByteBuffer cached = cache.get(this, entry.getStartBlock());
+
+        if (null != cached && cached.remaining() == entry.getSize()) {
+            recordAccess(cached.remaining());
+            return new CachedEntryInputStream(cached);
+        }
+
+        // the cache takes the buffer as it is, so it is allocated the way the cache holds contents
+        final ByteBuffer content = cache.isDirect() ? ByteBuffer.allocateDirect(entry.getSize())
+                                                    : ByteBuffer.allocate(entry.getSize());
+
+        try {
+            while (content.hasRemaining()) {
+                if (read(entry, content.position(), content) <= 0) {
+                    throw new IOException("Unexpected end of ISO file.");
+                }
+            }
+        }
+        catch (IOException ex) {
+            return new CachedEntryInputStream(ex);
+        }
+
+        content.flip();
+        cache.put(this, entry.getStartBlock(), content);
+
+        // the image may have been closed, and its contents removed, while this one was read
+        if (isClosed()) {
+            cache.remove(this);
+        }
+
+        return new CachedEntryInputStream(content.asReadOnlyBuffer());
+    }
+
+    /**
+     * Called by {@link EntryInputStream#close()}.
+     */
+    void entryStreamClosed() {
+        streamClosed();
+    }
+
+    /**
+     * Called by {@link EntryInputStream} when it hands read-ahead data to its consumer.
+     */
+    void entryDataServed(final int bytes) {
+        recordAccess(bytes);
     }
 
     byte[] getBytes(ISO9660FileEntry entry) throws IOException {
@@ -45,15 +283,468 @@ public class ISO9660FileSystem extends AbstractBlockFileSystem {
 
         byte[] buf = new byte[size];
 
-        readBytes(entry, 0, buf, 0, size);
+        readEntry(entry, 0, buf, 0, size);
 
         return buf;
     }
 
+    /**
+     * Reads image data for the other classes of this package.
+     *
+     * @param startPos
+     * @param dst
+     * @return the number of bytes read, or -1 at the end of the image
+     * @throws IOException
+     */
+    int readRaw(final long startPos, final ByteBuffer dst) throws IOException {
+        return readData(startPos, dst);
+    }
+
+    /**
+     * Reads the stored data of one or more entries for the other classes of this package,
+     * counting it as served.
+     *
+     * @param startPos
+     * @param dst
+     * @return the number of bytes read, or -1 at the end of the image
+     * @throws IOException
+     */
+    int readContent(final long startPos, final ByteBuffer dst) throws IOException {
+        final int read = readData(startPos, dst);
+
+        recordAccess(read);
+
+        return read;
+    }
+
+    /**
+     * Reads entry data for the other classes of this package, counting it as served.
+     */
     int readBytes(ISO9660FileEntry entry, int entryOffset, byte[] buffer, int bufferOffset, int len)
             throws IOException {
-        long startPos = (entry.getStartBlock() * Constants.DEFAULT_BLOCK_SIZE) + entryOffset;
-        return readData(startPos, buffer, bufferOffset, len);
+        final int read = readEntry(entry, entryOffset, buffer, bufferOffset, len);
+
+        recordAccess(read);
+
+        return read;
+    }
+
+    /**
+     * Reads entry data for the file system itself, e.g. directories, without counting it as
+     * served.
+     */
+    private int readEntry(ISO9660FileEntry entry, int entryOffset, byte[] buffer, int bufferOffset,
+                          int len)
+            throws IOException {
+        if (entry.isZisofs()) {
+            return this.zisofs.read(entry, entryOffset, ByteBuffer.wrap(buffer, bufferOffset, len));
+        }
+
+        return readData(getDataPosition(entry, entryOffset), buffer, bufferOffset, len);
+    }
+
+    public int read(final FileEntry entry, final long position, final ByteBuffer dst)
+            throws IOException {
+        ensureOpen();
+
+        final ByteBuffer view = limit(entry, position, dst);
+
+        if (null == view) {
+            return -1;
+        }
+
+        final ISO9660FileEntry isoEntry = (ISO9660FileEntry) entry;
+        final int read;
+
+        if (isoEntry.isZisofs()) {
+            read = this.zisofs.read(isoEntry, position, view);
+        }
+        else {
+            read = readData(getDataPosition(isoEntry, position), view);
+        }
+
+        if (read > 0) {
+            dst.position(dst.position() + read);
+        }
+
+        recordAccess(read);
+
+        return read;
+    }
+
+    /**
+     * Copies the data of an entry to <code>target</code>. The data of an uncompressed entry is
+     * copied by the operating system where possible, without passing through a Java buffer;
+     * files compressed with zisofs are inflated on the way.
+     *
+     * @param entry the entry to copy
+     * @param target the channel to write to
+     * @return the number of bytes copied, which is the size of the entry
+     * @throws IOException if the image could not be read or the target could not be written
+     */
+    public long transferTo(final FileEntry entry, final WritableByteChannel target)
+            throws IOException {
+        ensureOpen();
+
+        final ISO9660FileEntry isoEntry = (ISO9660FileEntry) entry;
+        final long size = isoEntry.getSize();
+        long transferred;
+
+        if (isoEntry.isZisofs()) {
+            final ByteBuffer buffer = ByteBuffer.allocate(
+                    (int) Math.min(Math.max(size, 1), TRANSFER_SIZE));
+
+            for (transferred = 0; transferred < size;) {
+                buffer.clear();
+
+                if (read(entry, transferred, buffer) <= 0) {
+                    break;
+                }
+
+                buffer.flip();
+                transferred += buffer.remaining();
+
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+        }
+        else {
+            transferred = transferTo(getDataPosition(isoEntry, 0), size, target);
+            recordAccess(transferred);
+        }
+
+        if (transferred != size) {
+            throw new LoopyException("Unexpected end of ISO file in " + entry.getPath());
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Starts reading the data of an entry into <code>dst</code>, beginning <code>offset</code>
+     * bytes into the entry. At most <code>dst.remaining()</code> bytes are read, and never more
+     * than remain in the entry. The calling thread is not blocked; the returned future completes
+     * with the number of bytes read, or -1 if <code>offset</code> is at or beyond the end of the
+     * entry. The position of <code>dst</code> is advanced by the number of bytes read before the
+     * future completes, and the buffer must not be used until then.
+     * <p/>
+     * Compressed entries are inflated on a thread of the executor that runs blocking reads.
+     *
+     * @param entry the entry to read
+     * @param offset the position within the entry data
+     * @param dst the buffer to read into
+     * @return a future that completes with the number of bytes read
+     */
+    public CompletableFuture<Integer> readAsync(final FileEntry entry, final long offset,
+                                                final ByteBuffer dst) {
+        ensureOpen();
+
+        return fetchAsync((ISO9660FileEntry) entry, offset, dst).thenApply(
+                new Function<Integer, Integer>() {
+                    public Integer apply(final Integer read) {
+                        recordAccess(read.intValue());
+                        return read;
+                    }
+                });
+    }
+
+    /**
+     * Does the work of {@link #readAsync(FileEntry, long, ByteBuffer)} without counting the bytes
+     * as served. {@link EntryInputStream} reads ahead with it and counts the data as its consumer
+     * takes it, so that data read ahead and then skipped is not counted.
+     */
+    CompletableFuture<Integer> fetchAsync(final ISO9660FileEntry entry, final long offset,
+                                          final ByteBuffer dst) {
+        final ByteBuffer view = limit(entry, offset, dst);
+
+        if (null == view) {
+            return CompletableFuture.completedFuture(Integer.valueOf(-1));
+        }
+
+        final CompletableFuture<Integer> future;
+
+        if (entry.isZisofs()) {
+            future = CompletableFuture.supplyAsync(new Supplier<Integer>() {
+                public Integer get() {
+                    try {
+                        return Integer.valueOf(ISO9660FileSystem.this.zisofs.read(
+                                entry, offset, view));
+                    }
+                    catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }
+            }, getReadExecutor());
+        }
+        else {
+            try {
+                future = readAsync(getDataPosition(entry, offset), view);
+            }
+            catch (IOException ex) {
+                final CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+                failed.completeExceptionally(ex);
+                return failed;
+            }
+        }
+
+        return future.thenApply(new Function<Integer, Integer>() {
+            public Integer apply(final Integer read) {
+                if (read.intValue() > 0) {
+                    dst.position(dst.position() + read.intValue());
+                }
+                return read;
+            }
+        });
+    }
+
+    /**
+     * Reads the complete data of many entries with as few reads as possible, using
+     * {@link #DEFAULT_MAX_GAP} and {@link #DEFAULT_MAX_READ}.
+     *
+     * @param entries the entries to read
+     * @param consumer receives the data of each entry
+     * @throws IOException if there was an error reading the data, or the consumer failed
+     * @see #readMany(Collection, EntryDataConsumer, int, int)
+     */
+    public void readMany(final Collection entries, final EntryDataConsumer consumer)
+            throws IOException {
+        readMany(entries, consumer, DEFAULT_MAX_GAP, DEFAULT_MAX_READ);
+    }
+
+    /**
+     * Reads the complete data of many entries with as few reads as possible. The entries are
+     * sorted by their location in the image, and entries whose extents are adjacent, or separated
+     * by no more than <code>maxGap</code> bytes, are fetched with one read of up to
+     * <code>maxRead</code> bytes. Each entry's slice of that read is then handed to
+     * <code>consumer</code>, in the order in which the entries are stored in the image. Entries
+     * larger than <code>maxRead</code> are read on their own. Entries compressed with zisofs are
+     * inflated before they are handed to the consumer.
+     * <p/>
+     * This is intended for fetching many small files, e.g. all files of a directory, in what is
+     * usually one sequential read.
+     *
+     * @param entries the entries to read
+     * @param consumer receives the data of each entry
+     * @param maxGap the largest number of unneeded bytes to read between two extents
+     * @param maxRead the largest number of bytes to fetch with one read
+     * @throws IOException if there was an error reading the data, or the consumer failed
+     */
+    public void readMany(final Collection entries, final EntryDataConsumer consumer,
+                         final int maxGap, final int maxRead)
+            throws IOException {
+        ensureOpen();
+
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("'maxGap' must be >= 0");
+        }
+        if (maxRead <= 0) {
+            throw new IllegalArgumentException("'maxRead' must be > 0");
+        }
+
+        final List sorted = new ArrayList(entries);
+
+        Collections.sort(sorted, EXTENT_ORDER);
+
+        ByteBuffer buffer = null;
+
+        for (int first = 0; first < sorted.size();) {
+            final ISO9660FileEntry firstEntry = (ISO9660FileEntry) sorted.get(first);
+            final long runStart = getDataPosition(firstEntry, 0);
+
+            long runEnd = runStart + firstEntry.getDataLength();
+            int last = first + 1;
+
+            // extend the run while the next extent starts close enough to the end of the run,
+            // and the whole run still fits into one read
+            for (; last < sorted.size(); last++) {
+                final ISO9660FileEntry next = (ISO9660FileEntry) sorted.get(last);
+                final long nextStart = getDataPosition(next, 0);
+                final long nextEnd = Math.max(runEnd, nextStart + next.getDataLength());
+
+                if (nextStart > runEnd + maxGap || nextEnd - runStart > maxRead) {
+                    break;
+                }
+
+                runEnd = nextEnd;
+            }
+
+            final int runLength = (int) (runEnd - runStart);
+            final ByteBuffer run;
+
+            if (runLength > maxRead) {
+                // a single entry that is larger than the read size
+                run = ByteBuffer.allocate(runLength);
+            }
+            else {
+                if (null == buffer) {
+                    buffer = ByteBuffer.allocateDirect(maxRead);
+                }
+                run = buffer;
+                run.clear().limit(runLength);
+            }
+
+            if (runLength > 0 && readData(runStart, run) != runLength) {
+                throw new LoopyException(
+                        "Unexpected end of ISO file reading " + firstEntry.getPath());
+            }
+
+            for (int i = first; i < last; i++) {
+                final ISO9660FileEntry entry = (ISO9660FileEntry) sorted.get(i);
+                final int offset = (int) (getDataPosition(entry, 0) - runStart);
+                final ByteBuffer slice = run.duplicate();
+
+                slice.limit(offset + entry.getDataLength()).position(offset);
+
+                if (entry.isZisofs()) {
+                    consumer.consume(entry, ZisofsDecoder.decode(entry, slice).asReadOnlyBuffer());
+                }
+                else {
+                    consumer.consume(entry, slice.slice().asReadOnlyBuffer());
+                }
+
+                recordAccess(entry.getSize());
+            }
+
+            first = last;
+        }
+    }
+
+    /**
+     * Walks all directory records of the image without creating {@link ISO9660FileEntry}s.
+     * Directories are read in chunks of {@link #WALK_BUFFER_SIZE} bytes into one buffer
+     * that is reused for the whole walk, and the records are handed to <code>visitor</code>
+     * straight from that buffer.
+     *
+     * @param visitor receives the records
+     * @throws IOException if there was an error reading the image, a directory record is
+     * malformed, or the visitor failed
+     */
+    public void visitDirectoryRecords(final DirectoryRecordVisitor visitor) throws IOException {
+        final ISO9660FileEntry root = (ISO9660FileEntry) getRootEntry();
+        final int blockSize = Constants.DEFAULT_BLOCK_SIZE;
+        final byte[] buffer = new byte[WALK_BUFFER_SIZE];
+        final ByteBuffer view = ByteBuffer.wrap(buffer);
+
+        // the queue of directories to visit
+        long[] blocks = new long[64];
+        int[] lengths = new int[64];
+        int head = 0;
+        int tail = 1;
+
+        blocks[0] = root.getStartBlock();
+        lengths[0] = root.getDataLength();
+
+        while (head < tail) {
+            final long block = blocks[head];
+            final int length = lengths[head++];
+
+            visitor.startDirectory(block, length);
+
+            // the buffer holds whole blocks, and records never cross a block boundary
+            for (int done = 0; done < length;) {
+                final int n = Math.min(buffer.length, length - done);
+
+                view.clear();
+                view.limit(n);
+
+                if (readData(block * blockSize + done, view) != n) {
+                    throw new LoopyException("Unexpected end of ISO file in directory at block "
+                                             + block);
+                }
+
+                int pos = 0;
+
+                while (pos < n) {
+                    final int recordLength = buffer[pos] & 0xFF;
+
+                    if (recordLength == 0) {
+                        // the rest of the block is padding
+                        pos = (pos / blockSize + 1) * blockSize;
+                        continue;
+                    }
+
+                    final int nameLength = (pos + 32 < n) ? buffer[pos + 32] & 0xFF : 0;
+
+                    if (recordLength < 34 || pos + recordLength > n
+                        || 33 + nameLength > recordLength) {
+                        throw new LoopyException("Malformed directory record in block "
+                                                 + (block + (done + pos) / blockSize));
+                    }
+
+                    final long start = LittleEndian.getUInt32(buffer, pos + 2);
+                    final int dataLength = (int) LittleEndian.getUInt32(buffer, pos + 10);
+                    final int flags = buffer[pos + 25] & 0xFF;
+                    final boolean directory = (flags & 0x02) != 0;
+
+                    // skip the "." and ".." records
+                    final boolean self = directory && nameLength == 1
+                                         && (buffer[pos + 33] == 0 || buffer[pos + 33] == 1);
+
+                    if (!self && visitor.visitRecord(start, dataLength, flags, buffer, pos + 33,
+                                                     nameLength, pos + 18)
+                        && directory) {
+                        if (tail == blocks.length) {
+                            final long[] newBlocks = new long[tail * 2];
+                            final int[] newLengths = new int[tail * 2];
+
+                            System.arraycopy(blocks, 0, newBlocks, 0, tail);
+                            System.arraycopy(lengths, 0, newLengths, 0, tail);
+                            blocks = newBlocks;
+                            lengths = newLengths;
+                        }
+
+                        blocks[tail] = start;
+                        lengths[tail++] = dataLength;
+                    }
+
+                    pos += recordLength;
+                }
+
+                done += n;
+            }
+        }
+    }
+
+    /**
+     * Returns the position in the image of the byte at <code>offset</code> within the entry data.
+     *
+     * @param entry
+     * @param offset
+     * @return the position in the image
+     */
+    long getDataPosition(final ISO9660FileEntry entry, final long offset) {
+        return (entry.getStartBlock() * Constants.DEFAULT_BLOCK_SIZE) + offset;
+    }
+
+    /**
+     * Returns a view of <code>dst</code> that is limited to the entry data remaining after
+     * <code>offset</code>, so that a read into the view cannot run past the end of the entry.
+     *
+     * @param entry
+     * @param offset
+     * @param dst
+     * @return the limited view, or null if <code>offset</code> is at or beyond the end of the entry
+     */
+    private static ByteBuffer limit(final FileEntry entry, final long offset,
+                                    final ByteBuffer dst) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("'offset' must be >= 0");
+        }
+
+        final long rem = entry.getSize() - offset;
+
+        if (rem <= 0) {
+            return null;
+        }
+
+        final ByteBuffer view = dst.duplicate();
+
+        if (view.remaining() > rem) {
+            view.limit(view.position() + (int) rem);
+        }
+
+        return view;
     }
 
     protected Enumeration enumerate(FileEntry rootEntry) {
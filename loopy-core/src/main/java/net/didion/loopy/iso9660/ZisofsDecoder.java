@@ -0,0 +1,315 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.util.BlockCache;
+import net.didion.loopy.util.LittleEndian;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses files stored with zisofs, the transparent compression of Rock Ridge (see
+ * {@link ISO9660FileEntry#isZisofs()}). A compressed file starts with this header:
+ * <pre>
+     length  pos  contents
+     ------  ---  --------------------------------------------------------
+     8       1    magic: 37 E4 53 96 C9 DB D6 07
+     4       9    uncompressed size, as a little endian double word
+     1       13   header size / 4
+     1       14   log2 of the block size
+     2       15   reserved
+   </pre>
+ * The header is followed by a table of <code>n + 1</code> little endian double words, where
+ * <code>n</code> is the number of blocks. Entry <code>i</code> is the offset, from the start of
+ * the file, of the zlib stream of block <code>i</code>; a block whose stream is empty is all
+ * zeroes. Since each block is compressed on its own, any position can be read by inflating only
+ * the blocks that contain it. Inflated blocks are kept in a {@link BlockCache}.
+ */
+final class ZisofsDecoder {
+    private static final byte[] MAGIC = {
+            (byte) 0x37, (byte) 0xE4, (byte) 0x53, (byte) 0x96,
+            (byte) 0xC9, (byte) 0xDB, (byte) 0xD6, (byte) 0x07
+    };
+
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Smallest and largest block size shift allowed by zisofs: blocks of 32, 64 or 128 KB.
+     */
+    static final int MIN_BLOCK_SHIFT = 15;
+    static final int MAX_BLOCK_SHIFT = 17;
+
+    private static final byte[] ZEROES = new byte[1 << MAX_BLOCK_SHIFT];
+
+    private final ISO9660FileSystem fileSystem;
+    private final BlockCache cache;
+
+    ZisofsDecoder(final ISO9660FileSystem fileSystem, final BlockCache cache) {
+        this.fileSystem = fileSystem;
+        this.cache = cache;
+    }
+
+    /**
+     * Reads uncompressed data of a compressed entry, starting at <code>pos</code>, until
+     * <code>dst</code> is full or the end of the entry is reached.
+     *
+     * @param entry the compressed entry
+     * @param pos the position within the uncompressed data
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 if <code>pos</code> is at or beyond the end of the
+     * entry
+     * @throws IOException
+     */
+    int read(final ISO9660FileEntry entry, long pos, final ByteBuffer dst) throws IOException {
+        final long size = entry.getSize();
+
+        if (pos >= size) {
+            return -1;
+        }
+
+        checkBlockShift(entry);
+
+        final int shift = entry.getZisofsBlockShift();
+        final byte[] table = getTable(entry);
+        int read = 0;
+
+        while (dst.hasRemaining() && pos < size) {
+            final int index = (int) (pos >> shift);
+            final int blockOffset = (int) (pos - ((long) index << shift));
+            final int blockLength = getBlockLength(entry, index);
+            final int n = Math.min(dst.remaining(), blockLength - blockOffset);
+            final byte[] block = getBlock(entry, table, index, blockLength);
+
+            dst.put((null == block) ? ZEROES : block, blockOffset, n);
+            pos += n;
+            read += n;
+        }
+
+        return read;
+    }
+
+    /**
+     * Decompresses a complete entry whose compressed data is already in memory.
+     *
+     * @param entry the compressed entry
+     * @param data the compressed data, from position to limit
+     * @return the uncompressed data
+     * @throws IOException if the data is corrupt
+     */
+    static ByteBuffer decode(final ISO9660FileEntry entry, final ByteBuffer data)
+            throws IOException {
+        final byte[] compressed = new byte[data.remaining()];
+
+        checkBlockShift(entry);
+        data.duplicate().get(compressed);
+
+        final int blocks = getBlockCount(entry);
+        final int tableLength = (blocks + 1) * 4;
+
+        checkHeader(entry, compressed, HEADER_SIZE + tableLength);
+
+        final byte[] out = new byte[entry.getSize()];
+
+        for (int i = 0; i < blocks; i++) {
+            final long start = LittleEndian.getUInt32(compressed, HEADER_SIZE + (i * 4));
+            final long end = LittleEndian.getUInt32(compressed, HEADER_SIZE + ((i + 1) * 4));
+
+            if (end > compressed.length || start > end) {
+                throw new LoopyException("Corrupt zisofs block table in " + entry.getPath());
+            }
+
+            if (end > start) {
+                inflate(entry, compressed, (int) start, (int) (end - start), out,
+                        i << entry.getZisofsBlockShift(), getBlockLength(entry, i));
+            }
+        }
+
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * Returns the header and block table of an entry, reading it if it is not cached.
+     */
+    private byte[] getTable(final ISO9660FileEntry entry) throws IOException {
+        final Key key = new Key(entry.getStartBlock(), -1);
+
+        byte[] table = this.cache.get(key);
+
+        if (null == table) {
+            table = new byte[HEADER_SIZE + ((getBlockCount(entry) + 1) * 4)];
+
+            readFully(entry, 0, table, table.length);
+            checkHeader(entry, table, table.length);
+            this.cache.put(key, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * Returns an inflated block, reading and inflating it if it is not cached.
+     *
+     * @return the block, or null if the block is all zeroes
+     */
+    private byte[] getBlock(final ISO9660FileEntry entry, final byte[] table, final int index,
+                            final int blockLength)
+            throws IOException {
+        final long start = LittleEndian.getUInt32(table, HEADER_SIZE + (index * 4));
+        final long end = LittleEndian.getUInt32(table, HEADER_SIZE + ((index + 1) * 4));
+
+        if (end == start) {
+            return null;
+        }
+        if (end < start || end > entry.getDataLength()) {
+            throw new LoopyException("Corrupt zisofs block table in " + entry.getPath());
+        }
+
+        final Key key = new Key(entry.getStartBlock(), index);
+
+        byte[] block = this.cache.get(key);
+
+        if (null == block) {
+            final byte[] compressed = new byte[(int) (end - start)];
+
+            readFully(entry, start, compressed, compressed.length);
+
+            block = new byte[blockLength];
+            inflate(entry, compressed, 0, compressed.length, block, 0, blockLength);
+            this.cache.put(key, block);
+        }
+
+        return block;
+    }
+
+    private void readFully(final ISO9660FileEntry entry, final long offset, final byte[] buffer,
+                           final int length)
+            throws IOException {
+        final int read = this.fileSystem.readRaw(
+                this.fileSystem.getDataPosition(entry, offset), ByteBuffer.wrap(buffer, 0, length));
+
+        if (read != length) {
+            throw new LoopyException("Unexpected end of ISO file reading " + entry.getPath());
+        }
+    }
+
+    /**
+     * Rejects a block size shift from the ZF entry that zisofs does not allow, before it is used
+     * to size any buffer or index into {@link #ZEROES}.
+     */
+    private static void checkBlockShift(final ISO9660FileEntry entry) throws LoopyException {
+        final int shift = entry.getZisofsBlockShift();
+
+        if (shift < MIN_BLOCK_SHIFT || shift > MAX_BLOCK_SHIFT) {
+            throw new LoopyException("Unsupported zisofs block size 2^" + shift + " in "
+                                     + entry.getPath());
+        }
+    }
+
+    private static void checkHeader(final ISO9660FileEntry entry, final byte[] header,
+                                    final int length)
+            throws IOException {
+        if (header.length < length) {
+            throw new LoopyException("Truncated zisofs header in " + entry.getPath());
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new LoopyException("Invalid zisofs header in " + entry.getPath());
+            }
+        }
+
+        if (LittleEndian.getUInt8(header, 12) * 4 != HEADER_SIZE
+            || LittleEndian.getUInt8(header, 13) != entry.getZisofsBlockShift()) {
+            throw new LoopyException("Unsupported zisofs header in " + entry.getPath());
+        }
+    }
+
+    private static void inflate(final ISO9660FileEntry entry, final byte[] in, final int inOffset,
+                                final int inLength, final byte[] out, final int outOffset,
+                                final int outLength)
+            throws IOException {
+        final Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(in, inOffset, inLength);
+
+            int n = 0;
+
+            while (n < outLength && !inflater.finished()) {
+                final int inflated = inflater.inflate(out, outOffset + n, outLength - n);
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                n += inflated;
+            }
+
+            if (n != outLength) {
+                throw new LoopyException("Corrupt zisofs block in " + entry.getPath());
+            }
+        }
+        catch (DataFormatException ex) {
+            throw new LoopyException("Corrupt zisofs block in " + entry.getPath(), ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static int getBlockCount(final ISO9660FileEntry entry) {
+        final int shift = entry.getZisofsBlockShift();
+        return (int) ((entry.getSize() + (1L << shift) - 1) >> shift);
+    }
+
+    private static int getBlockLength(final ISO9660FileEntry entry, final int index) {
+        final int shift = entry.getZisofsBlockShift();
+        return (int) Math.min(1L << shift, entry.getSize() - ((long) index << shift));
+    }
+
+    /**
+     * Cache key of a block of a compressed file; block -1 is the header and block table.
+     */
+    private static final class Key {
+        private final long extent;
+        private final int index;
+
+        Key(final long extent, final int index) {
+            this.extent = extent;
+            this.index = index;
+        }
+
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+
+            return this.extent == other.extent && this.index == other.index;
+        }
+
+        public int hashCode() {
+            return (int) (this.extent ^ (this.extent >>> 32)) * 31 + this.index;
+        }
+    }
+}
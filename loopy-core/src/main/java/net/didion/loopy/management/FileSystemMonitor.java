@@ -0,0 +1,115 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.management;
+
+import net.didion.loopy.AbstractBlockFileSystem;
+import net.didion.loopy.AbstractFileSystem;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+
+/**
+ * Exposes an {@link AbstractFileSystem} to JMX. Instances are created and registered by
+ * {@link FileSystemRegistry}.
+ */
+public class FileSystemMonitor implements FileSystemMonitorMBean {
+    private final AbstractFileSystem fileSystem;
+    private final ObjectName objectName;
+
+    FileSystemMonitor(final AbstractFileSystem fileSystem, final ObjectName objectName) {
+        this.fileSystem = fileSystem;
+        this.objectName = objectName;
+    }
+
+    /**
+     * Returns the monitored file system.
+     *
+     * @return the file system
+     */
+    public AbstractFileSystem getFileSystem() {
+        return this.fileSystem;
+    }
+
+    /**
+     * Returns the name under which this monitor is registered.
+     *
+     * @return the object name
+     */
+    public ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    public String getImagePath() {
+        return String.valueOf(this.fileSystem.getFile());
+    }
+
+    public String getVolumeIdentifier() {
+        if (this.fileSystem.isClosed() || !(this.fileSystem instanceof AbstractBlockFileSystem)) {
+            return null;
+        }
+
+        try {
+            return ((AbstractBlockFileSystem) this.fileSystem).getVolumeIdentifier();
+        }
+        catch (RuntimeException ex) {
+            // the image may have been closed concurrently, or its descriptors are unreadable
+            return null;
+        }
+    }
+
+    public int getOpenStreamCount() {
+        return this.fileSystem.getOpenStreamCount();
+    }
+
+    public long getBytesServed() {
+        return this.fileSystem.getBytesServed();
+    }
+
+    public long getCacheSize() {
+        return this.fileSystem.getCacheSize();
+    }
+
+    public long getIdleTime() {
+        return System.currentTimeMillis() - this.fileSystem.getLastAccessTime();
+    }
+
+    public boolean isClosed() {
+        return this.fileSystem.isClosed();
+    }
+
+    public void dropCaches() {
+        this.fileSystem.dropCaches();
+    }
+
+    public void close() throws IOException {
+        this.fileSystem.close();
+    }
+
+    /**
+     * Closes the file system if it has no open streams and has been idle for at least
+     * <code>maxIdleTime</code> milliseconds.
+     *
+     * @param maxIdleTime the idle time in milliseconds
+     * @return true if the file system was closed
+     * @throws IOException if the file system could not be closed
+     * @see AbstractFileSystem#closeIfIdle(long)
+     */
+    public boolean closeIfIdle(final long maxIdleTime) throws IOException {
+        return this.fileSystem.closeIfIdle(maxIdleTime);
+    }
+}
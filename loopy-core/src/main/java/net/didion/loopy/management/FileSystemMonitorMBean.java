@@ -0,0 +1,86 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.management;
+
+import java.io.IOException;
+
+/**
+ * Management interface for a single open loopy file system.
+ */
+public interface FileSystemMonitorMBean {
+    /**
+     * Returns the path of the image file.
+     *
+     * @return the image path
+     */
+    String getImagePath();
+
+    /**
+     * Returns the identifier of the volume contained in the image, or null if it is not known.
+     *
+     * @return the volume identifier
+     */
+    String getVolumeIdentifier();
+
+    /**
+     * Returns the number of entry streams that are currently open.
+     *
+     * @return the number of open streams
+     */
+    int getOpenStreamCount();
+
+    /**
+     * Returns the total number of bytes that have been served from the image.
+     *
+     * @return the number of bytes served
+     */
+    long getBytesServed();
+
+    /**
+     * Returns the number of bytes currently held in caches for the image.
+     *
+     * @return the cache size, in bytes
+     */
+    long getCacheSize();
+
+    /**
+     * Returns the time since the image was last read, in milliseconds.
+     *
+     * @return the idle time
+     */
+    long getIdleTime();
+
+    /**
+     * Returns whether the file system has been closed.
+     *
+     * @return true if the file system has been closed, otherwise false
+     */
+    boolean isClosed();
+
+    /**
+     * Discards any cached data held for the image.
+     */
+    void dropCaches();
+
+    /**
+     * Closes the file system.
+     *
+     * @throws IOException if there was an error closing the file system
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,215 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.management;
+
+import net.didion.loopy.AbstractFileSystem;
+import net.didion.loopy.LoopyException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registers open loopy file systems with the platform MBean server. Each registered file system is
+ * exposed as a {@link FileSystemMonitorMBean} named
+ * <code>net.didion.loopy:type=FileSystem,id=&lt;n&gt;,name=&lt;name&gt;</code>, and the registry
+ * itself is exposed as <code>net.didion.loopy:type=FileSystemRegistry</code>.
+ * <p/>
+ * File systems are unregistered automatically when they are closed.
+ */
+public class FileSystemRegistry implements FileSystemRegistryMBean {
+    public static final String DOMAIN = "net.didion.loopy";
+
+    private static final Log log = LogFactory.getLog(FileSystemRegistry.class);
+
+    private static final FileSystemRegistry instance = new FileSystemRegistry();
+
+    // AbstractFileSystem -> FileSystemMonitor
+    private final Map monitors = new HashMap();
+
+    private boolean registered = false;
+    private long nextId = 1;
+
+    /**
+     * Returns the shared registry.
+     *
+     * @return the registry
+     */
+    public static FileSystemRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers a file system under the path of its image file.
+     *
+     * @param fileSystem the file system to register
+     * @return the monitor that exposes the file system
+     * @throws LoopyException if the MBean could not be registered
+     */
+    public static FileSystemMonitor register(final AbstractFileSystem fileSystem)
+            throws LoopyException {
+        return register(fileSystem, String.valueOf(fileSystem.getFile()));
+    }
+
+    /**
+     * Registers a file system under the given display name. If the file system is already
+     * registered, its existing monitor is returned.
+     *
+     * @param fileSystem the file system to register
+     * @param name the name under which the file system is shown
+     * @return the monitor that exposes the file system
+     * @throws LoopyException if the MBean could not be registered
+     */
+    public static FileSystemMonitor register(final AbstractFileSystem fileSystem,
+                                             final String name)
+            throws LoopyException {
+        return instance.add(fileSystem, name);
+    }
+
+    /**
+     * Unregisters a file system. Does nothing if the file system is not registered.
+     *
+     * @param fileSystem the file system to unregister
+     */
+    public static void unregister(final AbstractFileSystem fileSystem) {
+        instance.remove(fileSystem);
+    }
+
+    private FileSystemRegistry() {
+    }
+
+    private synchronized FileSystemMonitor add(final AbstractFileSystem fileSystem,
+                                               final String name)
+            throws LoopyException {
+        FileSystemMonitor monitor = (FileSystemMonitor) this.monitors.get(fileSystem);
+
+        if (null != monitor) {
+            return monitor;
+        }
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            if (!this.registered) {
+                server.registerMBean(this, new ObjectName(DOMAIN + ":type=FileSystemRegistry"));
+                this.registered = true;
+            }
+
+            final ObjectName objectName = new ObjectName(
+                    DOMAIN + ":type=FileSystem,id=" + (this.nextId++)
+                    + ",name=" + ObjectName.quote(name));
+
+            monitor = new FileSystemMonitor(fileSystem, objectName);
+            server.registerMBean(monitor, objectName);
+        }
+        catch (JMException ex) {
+            throw new LoopyException("Could not register file system " + name, ex);
+        }
+
+        this.monitors.put(fileSystem, monitor);
+
+        return monitor;
+    }
+
+    private void remove(final AbstractFileSystem fileSystem) {
+        final FileSystemMonitor monitor;
+
+        synchronized (this) {
+            monitor = (FileSystemMonitor) this.monitors.remove(fileSystem);
+        }
+
+        if (null == monitor) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(monitor.getObjectName());
+        }
+        catch (JMException ex) {
+            log.warn("Could not unregister " + monitor.getObjectName(), ex);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the registered monitors.
+     *
+     * @return the registered monitors
+     */
+    public synchronized List getMonitors() {
+        return new ArrayList(this.monitors.values());
+    }
+
+    public int getFileSystemCount() {
+        return getMonitors().size();
+    }
+
+    public long getTotalBytesServed() {
+        long total = 0;
+
+        for (Iterator it = getMonitors().iterator(); it.hasNext();) {
+            total += ((FileSystemMonitor) it.next()).getBytesServed();
+        }
+
+        return total;
+    }
+
+    public long getTotalCacheSize() {
+        long total = 0;
+
+        for (Iterator it = getMonitors().iterator(); it.hasNext();) {
+            total += ((FileSystemMonitor) it.next()).getCacheSize();
+        }
+
+        return total;
+    }
+
+    public void dropCaches() {
+        for (Iterator it = getMonitors().iterator(); it.hasNext();) {
+            ((FileSystemMonitor) it.next()).dropCaches();
+        }
+    }
+
+    public int closeIdle(final long maxIdleTime) {
+        int closed = 0;
+
+        for (Iterator it = getMonitors().iterator(); it.hasNext();) {
+            final FileSystemMonitor monitor = (FileSystemMonitor) it.next();
+
+            try {
+                if (monitor.closeIfIdle(maxIdleTime)) {
+                    closed++;
+                }
+            }
+            catch (IOException ex) {
+                log.warn("Could not close idle file system " + monitor.getImagePath(), ex);
+            }
+        }
+
+        return closed;
+    }
+}
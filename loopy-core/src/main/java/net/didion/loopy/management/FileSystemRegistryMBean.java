@@ -0,0 +1,59 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.management;
+
+/**
+ * Management interface for the set of loopy file systems registered with
+ * {@link FileSystemRegistry}.
+ */
+public interface FileSystemRegistryMBean {
+    /**
+     * Returns the number of registered file systems.
+     *
+     * @return the number of registered file systems
+     */
+    int getFileSystemCount();
+
+    /**
+     * Returns the total number of bytes served by all registered file systems.
+     *
+     * @return the number of bytes served
+     */
+    long getTotalBytesServed();
+
+    /**
+     * Returns the total number of bytes held in caches by all registered file systems.
+     *
+     * @return the cache size, in bytes
+     */
+    long getTotalCacheSize();
+
+    /**
+     * Discards the cached data of all registered file systems.
+     */
+    void dropCaches();
+
+    /**
+     * Closes all registered file systems that have no open streams and have not been read for at
+     * least <code>maxIdleTime</code> milliseconds.
+     *
+     * @param maxIdleTime the idle time, in milliseconds
+     * @return the number of file systems that were closed
+     */
+    int closeIdle(long maxIdleTime);
+}
@@ -0,0 +1,248 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.probe;
+
+import net.didion.loopy.AbstractBlockFileSystem;
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.iso9660.Constants;
+import net.didion.loopy.iso9660.ISO9660FileSystem;
+import net.didion.loopy.source.ImageSources;
+import net.didion.loopy.udf.UDFFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Identifies the format of an image from its volume recognition area, the sectors following the
+ * reserved sectors, which hold the ISO 9660 volume descriptors and the UDF Volume Recognition
+ * Sequence. The whole area is fetched with one read, so classifying a file costs a single small
+ * read, and nothing beyond that read is done for files that are not recognized.
+ * <p/>
+ * When an image carries several trees, the best one is reported: UDF, which can describe files
+ * larger than 4 GB, before Joliet, which has long Unicode names, before the primary ISO 9660
+ * tree.
+ */
+public final class FormatProbe {
+    /**
+     * The image is not in a recognized format.
+     */
+    public static final int UNKNOWN = 0;
+
+    /**
+     * The image is an ISO 9660 image with only a primary volume descriptor.
+     */
+    public static final int ISO9660 = 1;
+
+    /**
+     * The image is an ISO 9660 image with a Joliet supplementary volume descriptor.
+     */
+    public static final int JOLIET = 2;
+
+    /**
+     * The image contains a UDF volume.
+     */
+    public static final int UDF = 3;
+
+    /**
+     * Number of sectors in the volume recognition area that are read by a probe.
+     */
+    public static final int PROBE_SECTORS = 16;
+
+    private static final int SECTOR_SIZE = Constants.DEFAULT_BLOCK_SIZE;
+    private static final long PROBE_POSITION = Constants.RESERVED_BYTES;
+
+    /**
+     * Probes an image file. The file is opened with {@link ImageSources#open(File)}, so raw
+     * sector dumps, CUE sheets and split images are probed like the file systems read them.
+     *
+     * @param file the image
+     * @return the format, one of the constants of this class
+     * @throws IOException if the file could not be read
+     */
+    public static int probe(final File file) throws IOException {
+        final ImageSource source = ImageSources.open(file);
+
+        try {
+            return probe(source);
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Probes an image read through a source, e.g. a compressed image.
+     *
+     * @param source the image
+     * @return the format, one of the constants of this class
+     * @throws IOException if the image could not be read
+     */
+    public static int probe(final ImageSource source) throws IOException {
+        final byte[] area = new byte[PROBE_SECTORS * SECTOR_SIZE];
+        final int read = source.read(PROBE_POSITION, ByteBuffer.wrap(area));
+
+        return probe(area, Math.max(read, 0));
+    }
+
+    /**
+     * Classifies the contents of the volume recognition area.
+     *
+     * @param area the bytes following the reserved sectors
+     * @param length the number of valid bytes in <code>area</code>
+     * @return the format, one of the constants of this class
+     */
+    public static int probe(final byte[] area, final int length) {
+        boolean primary = false;
+        boolean joliet = false;
+        boolean nsr = false;
+
+        for (int pos = 0; pos + SECTOR_SIZE <= length; pos += SECTOR_SIZE) {
+            final String identifier = getAscii(area, pos + 1, 5);
+
+            if ("CD001".equals(identifier)) {
+                final int type = area[pos] & 0xFF;
+
+                if (1 == type) {
+                    primary = true;
+                }
+                else if (2 == type && isJoliet(area, pos)) {
+                    joliet = true;
+                }
+            }
+            else if ("NSR02".equals(identifier) || "NSR03".equals(identifier)) {
+                nsr = true;
+            }
+            else if ("TEA01".equals(identifier)) {
+                break;
+            }
+            else if (!"BEA01".equals(identifier) && !"BOOT2".equals(identifier)
+                     && !"CDW02".equals(identifier)) {
+                // the first sector decides whether this is an image at all
+                break;
+            }
+        }
+
+        if (nsr) {
+            return UDF;
+        }
+        if (primary) {
+            return joliet ? JOLIET : ISO9660;
+        }
+
+        return UNKNOWN;
+    }
+
+    /**
+     * Opens an image file with the file system for its best tree. The file is opened once, with
+     * {@link ImageSources#open(File)}, and the same source is probed and then read by the file
+     * system.
+     *
+     * @param file the image
+     * @return a {@link UDFFileSystem} for UDF images, otherwise an {@link ISO9660FileSystem}
+     * @throws IOException if the file could not be read, or is not in a recognized format
+     */
+    public static AbstractBlockFileSystem open(final File file) throws IOException {
+        final ImageSource source = ImageSources.open(file);
+        final int format;
+
+        try {
+            format = probe(source);
+        }
+        catch (IOException ex) {
+            source.close();
+            throw ex;
+        }
+
+        if (UDF == format) {
+            return new UDFFileSystem(file, source, true);
+        }
+        if (UNKNOWN != format) {
+            return new ISO9660FileSystem(file, source, true);
+        }
+
+        source.close();
+
+        throw new LoopyException("Unrecognized image format: " + file);
+    }
+
+    /**
+     * Opens an image read through a source with the file system for its best tree. If the image
+     * is not recognized, the source is left open.
+     *
+     * @param source the image
+     * @return a {@link UDFFileSystem} for UDF images, otherwise an {@link ISO9660FileSystem}
+     * @throws IOException if the image could not be read, or is not in a recognized format
+     */
+    public static AbstractBlockFileSystem open(final ImageSource source) throws IOException {
+        final int format = probe(source);
+
+        if (UDF == format) {
+            return new UDFFileSystem(null, source, true);
+        }
+        if (UNKNOWN != format) {
+            return new ISO9660FileSystem(null, source, true);
+        }
+
+        throw new LoopyException("Unrecognized image format");
+    }
+
+    /**
+     * Returns a name for a format, e.g. for messages.
+     *
+     * @param format one of the constants of this class
+     * @return the name of the format
+     */
+    public static String getFormatName(final int format) {
+        switch (format) {
+            case ISO9660:
+                return "ISO 9660";
+            case JOLIET:
+                return "Joliet";
+            case UDF:
+                return "UDF";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Returns whether a supplementary volume descriptor announces one of the Joliet UCS-2 levels
+     * in its escape sequences field.
+     */
+    private static boolean isJoliet(final byte[] area, final int pos) {
+        final String escapes = getAscii(area, pos + 88, 32);
+
+        return escapes.indexOf("%/@") >= 0 || escapes.indexOf("%/C") >= 0
+               || escapes.indexOf("%/E") >= 0;
+    }
+
+    private static String getAscii(final byte[] block, final int pos, final int length) {
+        try {
+            return new String(block, pos, length, "US-ASCII");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private FormatProbe() {
+    }
+}
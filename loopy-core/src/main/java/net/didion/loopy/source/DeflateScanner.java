@@ -0,0 +1,467 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Walks the deflate blocks of a gzip file to find the positions at which decompression can be
+ * resumed, as described by RFC 1951 and RFC 1952. {@link java.util.zip.Inflater} cannot report
+ * where one deflate block ends and the next begins, so the block structure is decoded here; the
+ * data itself is only kept for the last 32 KB, which is the window a resumed inflater needs.
+ */
+final class DeflateScanner {
+    private static final int WINDOW_MASK = GzipIndex.WINDOW_SIZE - 1;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+    };
+    private static final int[] DISTANCE_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+    private static final int[] CODE_LENGTH_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    private static final int[] FIXED_LITERALS;
+    private static final int[] FIXED_DISTANCES;
+
+    static {
+        final byte[] lengths = new byte[288];
+
+        for (int i = 0; i < 288; i++) {
+            lengths[i] = (byte) ((i < 144) ? 8 : (i < 256) ? 9 : (i < 280) ? 7 : 8);
+        }
+
+        final byte[] distances = new byte[30];
+
+        for (int i = 0; i < 30; i++) {
+            distances[i] = 5;
+        }
+
+        try {
+            FIXED_LITERALS = buildTable(lengths, 288);
+            FIXED_DISTANCES = buildTable(distances, 30);
+        }
+        catch (ZipException ex) {
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private final InputStream in;
+    private final int span;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int bufferPos = 0;
+    private int bufferLength = 0;
+    private long bytesRead = 0;
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+
+    private final byte[] window = new byte[GzipIndex.WINDOW_SIZE];
+    private long out = 0;
+    private long memberStart = 0;
+    private long lastCheckpoint = 0;
+    private final List checkpoints = new ArrayList();
+
+    /**
+     * Creates a scanner.
+     *
+     * @param in the gzip data
+     * @param span the smallest amount of uncompressed data between two checkpoints
+     */
+    DeflateScanner(final InputStream in, final int span) {
+        this.in = in;
+        this.span = span;
+    }
+
+    /**
+     * Reads the complete gzip data.
+     *
+     * @return the checkpoints, in order
+     * @throws IOException if the data could not be read or is not valid gzip data
+     */
+    List scan() throws IOException {
+        do {
+            readHeader();
+            addCheckpoint(true);
+            inflateMember();
+            readTrailer();
+        }
+        while (peekByte() == 0x1F);
+
+        return this.checkpoints;
+    }
+
+    /**
+     * Returns the number of bytes the gzip data decompresses to.
+     */
+    long getUncompressedSize() {
+        return this.out;
+    }
+
+    private void readHeader() throws IOException {
+        if (bits(8) != 0x1F || bits(8) != 0x8B || bits(8) != 8) {
+            throw new ZipException("Not in gzip format");
+        }
+
+        final int flags = bits(8);
+
+        // modification time, extra flags, operating system
+        skipBytes(6);
+
+        if ((flags & 0x04) != 0) {
+            skipBytes(bits(16));
+        }
+        if ((flags & 0x08) != 0) {
+            while (bits(8) != 0);
+        }
+        if ((flags & 0x10) != 0) {
+            while (bits(8) != 0);
+        }
+        if ((flags & 0x02) != 0) {
+            skipBytes(2);
+        }
+
+        this.memberStart = this.out;
+    }
+
+    private void readTrailer() throws IOException {
+        alignToByte();
+
+        // CRC-32, then the uncompressed size modulo 2^32
+        skipBytes(4);
+
+        final long size = (long) bits(16) | ((long) bits(16) << 16);
+
+        if (size != ((this.out - this.memberStart) & 0xFFFFFFFFL)) {
+            throw new ZipException("Corrupt gzip trailer");
+        }
+    }
+
+    private void inflateMember() throws IOException {
+        boolean last;
+
+        do {
+            if (this.out - this.lastCheckpoint >= this.span) {
+                addCheckpoint(false);
+            }
+
+            last = bits(1) == 1;
+
+            switch (bits(2)) {
+                case 0:
+                    stored();
+                    break;
+                case 1:
+                    codes(FIXED_LITERALS, FIXED_DISTANCES);
+                    break;
+                case 2:
+                    dynamic();
+                    break;
+                default:
+                    throw new ZipException("Invalid deflate block type");
+            }
+        }
+        while (!last);
+    }
+
+    private void addCheckpoint(final boolean isMemberStart) {
+        final int length = (int) Math.min(this.out - this.memberStart, GzipIndex.WINDOW_SIZE);
+        final byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = this.window[(int) (this.out - length + i) & WINDOW_MASK];
+        }
+
+        final long bit = (this.bytesRead << 3) - this.bitCount;
+
+        this.checkpoints.add(new GzipIndex.Checkpoint(
+                this.checkpoints.size(), bit, this.out, data, isMemberStart));
+        this.lastCheckpoint = this.out;
+    }
+
+    private void stored() throws IOException {
+        alignToByte();
+
+        final int length = bits(16);
+
+        if ((length ^ 0xFFFF) != bits(16)) {
+            throw new ZipException("Invalid stored block length");
+        }
+
+        for (int i = 0; i < length; i++) {
+            put(bits(8));
+        }
+    }
+
+    private void dynamic() throws IOException {
+        final int literalCount = bits(5) + 257;
+        final int distanceCount = bits(5) + 1;
+        final int codeLengthCount = bits(4) + 4;
+
+        if (literalCount > 286 || distanceCount > 30) {
+            throw new ZipException("Invalid deflate code counts");
+        }
+
+        final byte[] codeLengths = new byte[19];
+
+        for (int i = 0; i < codeLengthCount; i++) {
+            codeLengths[CODE_LENGTH_ORDER[i]] = (byte) bits(3);
+        }
+
+        final int[] codeLengthTable = buildTable(codeLengths, 19);
+        final byte[] lengths = new byte[literalCount + distanceCount];
+
+        for (int i = 0; i < lengths.length;) {
+            final int symbol = decode(codeLengthTable);
+
+            if (symbol < 16) {
+                lengths[i++] = (byte) symbol;
+                continue;
+            }
+
+            final int repeat;
+            byte value = 0;
+
+            if (symbol == 16) {
+                if (i == 0) {
+                    throw new ZipException("Invalid deflate code lengths");
+                }
+                value = lengths[i - 1];
+                repeat = 3 + bits(2);
+            }
+            else if (symbol == 17) {
+                repeat = 3 + bits(3);
+            }
+            else {
+                repeat = 11 + bits(7);
+            }
+
+            if (i + repeat > lengths.length) {
+                throw new ZipException("Invalid deflate code lengths");
+            }
+
+            for (int j = 0; j < repeat; j++) {
+                lengths[i++] = value;
+            }
+        }
+
+        if (lengths[256] == 0) {
+            throw new ZipException("Missing end-of-block code");
+        }
+
+        final byte[] distances = new byte[distanceCount];
+
+        System.arraycopy(lengths, literalCount, distances, 0, distanceCount);
+        codes(buildTable(lengths, literalCount), buildTable(distances, distanceCount));
+    }
+
+    private void codes(final int[] literals, final int[] distances) throws IOException {
+        for (;;) {
+            int symbol = decode(literals);
+
+            if (symbol < 256) {
+                put(symbol);
+                continue;
+            }
+            if (symbol == 256) {
+                return;
+            }
+
+            symbol -= 257;
+
+            if (symbol >= 29) {
+                throw new ZipException("Invalid deflate length code");
+            }
+
+            final int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+            final int distanceSymbol = decode(distances);
+
+            if (distanceSymbol >= 30) {
+                throw new ZipException("Invalid deflate distance code");
+            }
+
+            final int distance =
+                    DISTANCE_BASE[distanceSymbol] + bits(DISTANCE_EXTRA[distanceSymbol]);
+
+            if (distance > this.out - this.memberStart) {
+                throw new ZipException("Invalid deflate distance");
+            }
+
+            for (int i = 0; i < length; i++) {
+                put(this.window[(int) (this.out - distance) & WINDOW_MASK]);
+            }
+        }
+    }
+
+    private void put(final int b) {
+        this.window[(int) this.out & WINDOW_MASK] = (byte) b;
+        this.out++;
+    }
+
+    /**
+     * Builds a decoding table for a canonical Huffman code. The table is indexed by the next
+     * <code>log2(table.length)</code> bits of input; each element holds the symbol in the upper
+     * bits and the code length in the lower four bits, or 0 for bit patterns that are not a code.
+     */
+    private static int[] buildTable(final byte[] lengths, final int count) throws ZipException {
+        final int[] lengthCount = new int[16];
+        int maxLength = 1;
+
+        for (int i = 0; i < count; i++) {
+            lengthCount[lengths[i]]++;
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+
+        final int[] nextCode = new int[16];
+        int code = 0;
+        int left = 1;
+
+        lengthCount[0] = 0;
+
+        for (int length = 1; length < 16; length++) {
+            left = (left << 1) - lengthCount[length];
+
+            if (left < 0) {
+                throw new ZipException("Over-subscribed deflate code");
+            }
+
+            code = (code + lengthCount[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        final int[] table = new int[1 << maxLength];
+
+        for (int symbol = 0; symbol < count; symbol++) {
+            final int length = lengths[symbol];
+
+            if (length == 0) {
+                continue;
+            }
+
+            // codes are stored starting with their most significant bit
+            final int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+
+            for (int i = reversed; i < table.length; i += 1 << length) {
+                table[i] = (symbol << 4) | length;
+            }
+        }
+
+        return table;
+    }
+
+    private int decode(final int[] table) throws IOException {
+        // the last code of the stream may be shorter than the table width
+        while (this.bitCount < 16 && fill());
+
+        final int entry = table[(int) this.bitBuffer & (table.length - 1)];
+        final int length = entry & 0x0F;
+
+        if (length == 0 || length > this.bitCount) {
+            throw new ZipException("Invalid deflate code");
+        }
+
+        this.bitBuffer >>>= length;
+        this.bitCount -= length;
+
+        return entry >>> 4;
+    }
+
+    private int bits(final int n) throws IOException {
+        while (this.bitCount < n) {
+            if (!fill()) {
+                throw new EOFException("Unexpected end of gzip data");
+            }
+        }
+
+        final int value = (int) (this.bitBuffer & ((1L << n) - 1));
+
+        this.bitBuffer >>>= n;
+        this.bitCount -= n;
+
+        return value;
+    }
+
+    private void skipBytes(final int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            bits(8);
+        }
+    }
+
+    private void alignToByte() {
+        final int n = this.bitCount & 7;
+
+        this.bitBuffer >>>= n;
+        this.bitCount -= n;
+    }
+
+    /**
+     * Returns the next byte without consuming it, or -1 at the end of the input. Only valid on a
+     * byte boundary.
+     */
+    private int peekByte() throws IOException {
+        if (this.bitCount == 0 && !fill()) {
+            return -1;
+        }
+
+        return (int) this.bitBuffer & 0xFF;
+    }
+
+    /**
+     * Moves as many whole bytes of input into the bit buffer as fit, at least one.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        if (this.bufferPos == this.bufferLength) {
+            this.bufferLength = this.in.read(this.buffer);
+            this.bufferPos = 0;
+
+            if (this.bufferLength <= 0) {
+                this.bufferLength = 0;
+                return false;
+            }
+        }
+
+        final int n = Math.min((64 - this.bitCount) >> 3, this.bufferLength - this.bufferPos);
+
+        for (int i = 0; i < n; i++) {
+            this.bitBuffer |= (long) (this.buffer[this.bufferPos++] & 0xFF) << this.bitCount;
+            this.bitCount += 8;
+        }
+
+        this.bytesRead += n;
+
+        return true;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.AsynchronousImageSource;
+import net.didion.loopy.TransferableImageSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An image stored in a plain file. All reads are positional reads on one shared
+ * {@link FileChannel}, so no lock is held while reading. A thread that is interrupted while
+ * reading closes the channel; the channel is then replaced, without locking, so that one
+ * cancelled reader does not close the image for everyone else. Transfers to a channel are left to
+ * {@link FileChannel#transferTo}, which lets the operating system copy the data directly.
+ * Asynchronous reads go through an {@link AsynchronousFileChannel}, opened on first use, so no
+ * thread waits for them.
+ */
+public class FileImageSource implements TransferableImageSource, AsynchronousImageSource {
+    private final File file;
+
+    private final AtomicReference channel;
+
+    private final AtomicReference asyncChannel = new AtomicReference();
+
+    private volatile boolean closed = false;
+
+    public FileImageSource(final File file) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException("File does not exist: " + file);
+        }
+
+        this.file = file;
+        this.channel =
+                new AtomicReference(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public int read(final long pos, final ByteBuffer dst) throws IOException {
+        int read = 0;
+
+        // a single positional read may return fewer bytes than requested
+        while (dst.hasRemaining()) {
+            final FileChannel channel = getChannel();
+            final int n;
+
+            try {
+                n = channel.read(dst, pos + read);
+            }
+            catch (ClosedByInterruptException ex) {
+                reopen(channel);
+                throw ex;
+            }
+            catch (ClosedChannelException ex) {
+                // closed by another reader's interrupt, or by close(); retry on the new channel
+                reopen(channel);
+                continue;
+            }
+
+            if (n < 0) {
+                return (read == 0) ? -1 : read;
+            }
+
+            read += n;
+        }
+
+        return read;
+    }
+
+    public CompletableFuture<Integer> readAsync(final long pos, final ByteBuffer dst)
+            throws IOException {
+        final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        final AsynchronousFileChannel channel = getAsyncChannel();
+
+        // a single read may return fewer bytes than requested; continue from the handler
+        channel.read(dst, pos, null, new CompletionHandler<Integer, Object>() {
+            private int read = 0;
+
+            public void completed(final Integer result, final Object attachment) {
+                final int n = result.intValue();
+
+                if (n < 0) {
+                    future.complete(Integer.valueOf((this.read == 0) ? -1 : this.read));
+                    return;
+                }
+
+                this.read += n;
+
+                if (!dst.hasRemaining()) {
+                    future.complete(Integer.valueOf(this.read));
+                    return;
+                }
+
+                try {
+                    channel.read(dst, pos + this.read, null, this);
+                }
+                catch (RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+
+            public void failed(final Throwable ex, final Object attachment) {
+                future.completeExceptionally(ex);
+            }
+        });
+
+        return future;
+    }
+
+    public long transferTo(final long pos, final long count, final WritableByteChannel target)
+            throws IOException {
+        final long size = size();
+        long transferred = 0;
+
+        // transferTo may copy fewer bytes than requested, e.g. to a socket
+        while ((transferred < count) && (pos + transferred < size)) {
+            final FileChannel channel = getChannel();
+            final long n;
+
+            try {
+                n = channel.transferTo(pos + transferred, count - transferred, target);
+            }
+            catch (ClosedByInterruptException ex) {
+                reopen(channel);
+                throw ex;
+            }
+            catch (ClosedChannelException ex) {
+                if (channel.isOpen()) {
+                    // the target was closed
+                    throw ex;
+                }
+
+                reopen(channel);
+                continue;
+            }
+
+            if (n <= 0) {
+                break;
+            }
+
+            transferred += n;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Returns the current channel.
+     *
+     * @return the channel
+     * @throws IllegalStateException if the source has been closed
+     */
+    protected FileChannel getChannel() {
+        if (this.closed) {
+            throw new IllegalStateException("File has been closed");
+        }
+
+        return (FileChannel) this.channel.get();
+    }
+
+    /**
+     * Replaces a channel that was closed by an interrupted reader. If several readers find the
+     * same channel closed, only the first replacement is installed.
+     *
+     * @param closed the channel that was found to be closed
+     * @throws IOException if the file could not be reopened
+     */
+    protected void reopen(final FileChannel closed) throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("File has been closed");
+        }
+
+        if (this.channel.get() != closed) {
+            return;
+        }
+
+        final FileChannel fresh = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+
+        if (!this.channel.compareAndSet(closed, fresh) || this.closed) {
+            // another reader was faster, or the source was closed meanwhile
+            fresh.close();
+        }
+    }
+
+    /**
+     * Returns the asynchronous channel, opening it if necessary. If several readers open it at
+     * the same time, only the first channel is installed.
+     *
+     * @return the asynchronous channel
+     * @throws IOException if the file could not be opened
+     * @throws IllegalStateException if the source has been closed
+     */
+    protected AsynchronousFileChannel getAsyncChannel() throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("File has been closed");
+        }
+
+        final AsynchronousFileChannel channel = (AsynchronousFileChannel) this.asyncChannel.get();
+
+        if (null != channel) {
+            return channel;
+        }
+
+        final AsynchronousFileChannel fresh =
+                AsynchronousFileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+
+        if (!this.asyncChannel.compareAndSet(null, fresh)) {
+            fresh.close();
+            return (AsynchronousFileChannel) this.asyncChannel.get();
+        }
+
+        if (this.closed) {
+            // closed meanwhile; close() may not have seen the new channel
+            fresh.close();
+            throw new IllegalStateException("File has been closed");
+        }
+
+        return fresh;
+    }
+
+    public long size() throws IOException {
+        return this.file.length();
+    }
+
+    public void close() throws IOException {
+        this.closed = true;
+
+        try {
+            final AsynchronousFileChannel asyncChannel =
+                    (AsynchronousFileChannel) this.asyncChannel.get();
+
+            if (null != asyncChannel) {
+                asyncChannel.close();
+            }
+        }
+        finally {
+            ((FileChannel) this.channel.get()).close();
+        }
+    }
+}
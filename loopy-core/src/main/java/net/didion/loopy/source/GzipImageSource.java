@@ -0,0 +1,449 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.util.BlockCache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An image stored in a gzip file, e.g. <code>image.iso.gz</code>. Any position of the image can be
+ * read without decompressing the file up to that position: reads resume decompression at the
+ * nearest preceding checkpoint of a {@link GzipIndex} and inflate forward from there.
+ * <p/>
+ * The image is decompressed in chunks of {@link #CHUNK_SIZE} bytes, and recently used chunks are
+ * cached. Inflaters are kept positioned after the chunk they produced last, so sequential reads
+ * continue where the previous read stopped instead of returning to a checkpoint.
+ */
+public class GzipImageSource implements ImageSource {
+    /**
+     * Size of the units in which the image is decompressed and cached.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Default number of bytes of decompressed chunks to cache.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static final int INPUT_SIZE = 64 * 1024;
+    private static final int MAX_IDLE_CURSORS = 4;
+
+    private final File file;
+    private final GzipIndex index;
+    private final FileChannel channel;
+    private final BlockCache cache = new BlockCache(DEFAULT_CACHE_SIZE);
+    private final LinkedList idleCursors = new LinkedList();
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean closed = false;
+
+    /**
+     * Opens a gzip file, building its index with {@link GzipIndex#DEFAULT_SPAN}. This reads the
+     * whole file once.
+     *
+     * @param file the gzip file
+     * @throws IOException if the file could not be read or is not a valid gzip file
+     */
+    public GzipImageSource(final File file) throws IOException {
+        this(file, GzipIndex.build(file));
+    }
+
+    /**
+     * Opens a gzip file with an index that was built before.
+     *
+     * @param file the gzip file
+     * @param index the index of <code>file</code>
+     * @throws IOException if the file could not be opened, or the index does not belong to it
+     */
+    public GzipImageSource(final File file, final GzipIndex index) throws IOException {
+        this.file = file;
+        this.index = index;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        if (this.channel.size() != index.getFileSize()) {
+            this.channel.close();
+            throw new LoopyException("Index does not match " + file);
+        }
+    }
+
+    /**
+     * Returns the gzip file.
+     *
+     * @return the gzip file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns the index used to find checkpoints.
+     *
+     * @return the index
+     */
+    public GzipIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Sets the number of bytes of decompressed chunks to cache.
+     *
+     * @param maxSize the cache size, or 0 to disable caching
+     */
+    public void setCacheSize(final long maxSize) {
+        this.cache.setMaxSize(maxSize);
+    }
+
+    public int read(long pos, final ByteBuffer dst) throws IOException {
+        final long size = this.index.getUncompressedSize();
+
+        if (pos >= size) {
+            return -1;
+        }
+
+        int read = 0;
+
+        while (dst.hasRemaining() && pos < size) {
+            final long chunkIndex = pos / CHUNK_SIZE;
+            final byte[] chunk = getChunk(chunkIndex);
+            final int offset = (int) (pos - (chunkIndex * CHUNK_SIZE));
+            final int n = Math.min(dst.remaining(), chunk.length - offset);
+
+            dst.put(chunk, offset, n);
+            pos += n;
+            read += n;
+        }
+
+        return read;
+    }
+
+    public long size() {
+        return this.index.getUncompressedSize();
+    }
+
+    public void close() throws IOException {
+        this.lock.lock();
+
+        try {
+            this.closed = true;
+
+            while (!this.idleCursors.isEmpty()) {
+                ((Cursor) this.idleCursors.removeFirst()).end();
+            }
+        }
+        finally {
+            this.lock.unlock();
+            this.channel.close();
+        }
+    }
+
+    private byte[] getChunk(final long chunkIndex) throws IOException {
+        final Long key = Long.valueOf(chunkIndex);
+
+        byte[] chunk = this.cache.get(key);
+
+        if (null == chunk) {
+            final long start = chunkIndex * CHUNK_SIZE;
+
+            chunk = new byte[(int) Math.min(CHUNK_SIZE, size() - start)];
+
+            Cursor cursor = takeCursor(start);
+
+            try {
+                cursor.skipTo(start);
+                cursor.inflate(chunk);
+            }
+            catch (IOException ex) {
+                cursor.end();
+                cursor = null;
+                throw ex;
+            }
+            finally {
+                if (null != cursor) {
+                    releaseCursor(cursor);
+                }
+            }
+
+            this.cache.put(key, chunk);
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Returns an idle cursor that can reach <code>pos</code> with less work than starting from
+     * the nearest checkpoint, or a new cursor at that checkpoint.
+     */
+    private Cursor takeCursor(final long pos) throws IOException {
+        final GzipIndex.Checkpoint checkpoint = this.index.find(pos);
+
+        this.lock.lock();
+
+        try {
+            if (this.closed) {
+                throw new IllegalStateException("Source has been closed");
+            }
+
+            Cursor best = null;
+
+            for (int i = 0; i < this.idleCursors.size(); i++) {
+                final Cursor cursor = (Cursor) this.idleCursors.get(i);
+
+                if (cursor.out <= pos && cursor.out >= checkpoint.out
+                    && (null == best || cursor.out > best.out)) {
+                    best = cursor;
+                }
+            }
+
+            if (null != best) {
+                this.idleCursors.remove(best);
+                return best;
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+
+        return new Cursor(checkpoint);
+    }
+
+    private void releaseCursor(final Cursor cursor) {
+        Cursor evicted = cursor;
+
+        this.lock.lock();
+
+        try {
+            if (!this.closed) {
+                this.idleCursors.addFirst(cursor);
+                evicted = (this.idleCursors.size() > MAX_IDLE_CURSORS)
+                          ? (Cursor) this.idleCursors.removeLast() : null;
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+
+        if (null != evicted) {
+            evicted.end();
+        }
+    }
+
+    /**
+     * An inflater positioned somewhere in the uncompressed data.
+     * <p/>
+     * A checkpoint may start in the middle of a byte of compressed data, but an {@link Inflater}
+     * can only be given whole bytes. The bits of that byte that precede the checkpoint are
+     * therefore replaced by a small fixed Huffman block of junk literals, whose length is chosen
+     * so that the data after it keeps its original byte alignment; stored blocks later in the
+     * stream depend on that alignment. The junk is inflated and discarded before the window is
+     * set with {@link Inflater#setDictionary}, which zlib allows at any time for raw streams, so
+     * the junk never becomes part of the history that back references see.
+     */
+    private class Cursor {
+        private final byte[] input = new byte[INPUT_SIZE];
+        private GzipIndex.Checkpoint checkpoint;
+        private Inflater inflater;
+        private long in;
+        long out;
+
+        Cursor(final GzipIndex.Checkpoint checkpoint) throws IOException {
+            start(checkpoint);
+        }
+
+        private void start(final GzipIndex.Checkpoint checkpoint) throws IOException {
+            if (null != this.inflater) {
+                this.inflater.end();
+            }
+
+            this.checkpoint = checkpoint;
+            this.inflater = new Inflater(true);
+            this.in = checkpoint.bit >>> 3;
+            this.out = checkpoint.out;
+
+            final int shift = (int) (checkpoint.bit & 7);
+
+            if (0 == shift) {
+                if (checkpoint.window.length > 0) {
+                    this.inflater.setDictionary(checkpoint.window);
+                }
+                return;
+            }
+
+            // a block of 3 header bits, junk 9-bit literals and a 7-bit end-of-block code is
+            // 10 + 9 * junk bits long, which must be congruent to the shift modulo 8
+            final int junk = (shift - 2) & 7;
+            final BitWriter prefix = new BitWriter(3 + (10 + 9 * junk + 8) / 8);
+
+            prefix.bits(0, 1);
+            prefix.bits(1, 2);
+
+            for (int i = 0; i < junk; i++) {
+                // literal 144, the first one with a 9-bit code
+                prefix.code(0x190, 9);
+            }
+
+            prefix.code(0, 7);
+            prefix.bits((readByte(this.in) & 0xFF) >>> shift, 8 - shift);
+            this.in++;
+
+            this.inflater.setInput(prefix.toByteArray());
+
+            try {
+                if (junk > 0 && this.inflater.inflate(new byte[junk]) != junk) {
+                    throw new ZipException("Could not resume gzip data at bit "
+                                           + checkpoint.bit);
+                }
+            }
+            catch (DataFormatException ex) {
+                throw new ZipException(ex.getMessage());
+            }
+
+            this.inflater.setDictionary(checkpoint.window);
+        }
+
+        void skipTo(final long pos) throws IOException {
+            final byte[] scratch = new byte[CHUNK_SIZE];
+
+            while (this.out < pos) {
+                inflate(scratch, (int) Math.min(scratch.length, pos - this.out));
+            }
+        }
+
+        void inflate(final byte[] buffer) throws IOException {
+            inflate(buffer, buffer.length);
+        }
+
+        private void inflate(final byte[] buffer, final int length) throws IOException {
+            int offset = 0;
+
+            while (offset < length) {
+                if (this.inflater.finished()) {
+                    final GzipIndex.Checkpoint next =
+                            GzipImageSource.this.index.nextMember(this.checkpoint);
+
+                    if (null == next || next.out != this.out) {
+                        throw new EOFException("Unexpected end of gzip data");
+                    }
+
+                    start(next);
+                }
+
+                if (this.inflater.needsInput()) {
+                    feed();
+                }
+
+                final int n;
+
+                try {
+                    n = this.inflater.inflate(buffer, offset, length - offset);
+                }
+                catch (DataFormatException ex) {
+                    throw new ZipException(ex.getMessage());
+                }
+
+                if (n == 0 && this.inflater.needsDictionary()) {
+                    throw new ZipException("Unexpected dictionary request");
+                }
+
+                offset += n;
+                this.out += n;
+            }
+        }
+
+        private void feed() throws IOException {
+            int n = 0;
+
+            // fewer bytes than wanted must mean the end of the file
+            while (n < this.input.length) {
+                final int read = GzipImageSource.this.channel.read(
+                        ByteBuffer.wrap(this.input, n, this.input.length - n), this.in + n);
+
+                if (read < 0) {
+                    break;
+                }
+
+                n += read;
+            }
+
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of gzip data");
+            }
+
+            this.inflater.setInput(this.input, 0, n);
+            this.in += n;
+        }
+
+        private byte readByte(final long pos) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(1);
+
+            if (GzipImageSource.this.channel.read(buffer, pos) <= 0) {
+                throw new EOFException("Unexpected end of gzip data");
+            }
+
+            return buffer.get(0);
+        }
+
+        void end() {
+            this.inflater.end();
+        }
+    }
+
+    /**
+     * Packs bits into bytes in deflate order: values starting with their least significant bit,
+     * Huffman codes starting with their most significant bit.
+     */
+    private static final class BitWriter {
+        private final byte[] bytes;
+        private int bitCount = 0;
+
+        BitWriter(final int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void bits(final int value, final int n) {
+            for (int i = 0; i < n; i++, this.bitCount++) {
+                if (((value >>> i) & 1) != 0) {
+                    this.bytes[this.bitCount >>> 3] |= 1 << (this.bitCount & 7);
+                }
+            }
+        }
+
+        void code(final int code, final int length) {
+            bits(Integer.reverse(code) >>> (32 - length), length);
+        }
+
+        byte[] toByteArray() {
+            final byte[] result = new byte[(this.bitCount + 7) >>> 3];
+
+            System.arraycopy(this.bytes, 0, result, 0, result.length);
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.LoopyException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An index of the points at which decompression of a gzip file can be resumed. Each checkpoint
+ * records a position in the compressed data, the corresponding position in the uncompressed data,
+ * and the 32 KB of uncompressed data preceding it, which deflate may refer back to. With
+ * checkpoints every few megabytes, any part of the uncompressed data can be reached by inflating
+ * at most that much.
+ * <p/>
+ * Building an index requires decompressing the whole file once; an index can be saved with
+ * {@link #write(OutputStream)} and loaded again with {@link #read(InputStream)}.
+ */
+public final class GzipIndex {
+    /**
+     * Default amount of uncompressed data between two checkpoints.
+     */
+    public static final int DEFAULT_SPAN = 4 * 1024 * 1024;
+
+    /**
+     * Size of the deflate window.
+     */
+    static final int WINDOW_SIZE = 32 * 1024;
+
+    // "LGZI"
+    private static final int MAGIC = 0x4C475A49;
+    private static final int VERSION = 1;
+
+    private final long fileSize;
+    private final long uncompressedSize;
+    private final Checkpoint[] checkpoints;
+
+    private GzipIndex(final long fileSize, final long uncompressedSize,
+                      final Checkpoint[] checkpoints) {
+        this.fileSize = fileSize;
+        this.uncompressedSize = uncompressedSize;
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Builds the index of a gzip file with {@link #DEFAULT_SPAN}.
+     *
+     * @param file the gzip file
+     * @return the index
+     * @throws IOException if the file could not be read or is not a valid gzip file
+     */
+    public static GzipIndex build(final File file) throws IOException {
+        return build(file, DEFAULT_SPAN);
+    }
+
+    /**
+     * Builds the index of a gzip file. Files consisting of several gzip members are supported.
+     *
+     * @param file the gzip file
+     * @param span the smallest amount of uncompressed data between two checkpoints
+     * @return the index
+     * @throws IOException if the file could not be read or is not a valid gzip file
+     */
+    public static GzipIndex build(final File file, final int span) throws IOException {
+        if (span <= 0) {
+            throw new IllegalArgumentException("'span' must be > 0");
+        }
+
+        final InputStream in = new FileInputStream(file);
+
+        try {
+            final DeflateScanner scanner = new DeflateScanner(in, span);
+            final List checkpoints = scanner.scan();
+
+            return new GzipIndex(file.length(), scanner.getUncompressedSize(),
+                                 (Checkpoint[]) checkpoints.toArray(
+                                         new Checkpoint[checkpoints.size()]));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads an index saved with {@link #write(OutputStream)}.
+     *
+     * @param in the stream to read the index from; it is not closed
+     * @return the index
+     * @throws IOException if the index could not be read
+     */
+    public static GzipIndex read(final InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(
+                new BufferedInputStream(new InflaterInputStream(in)));
+
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new LoopyException("Not a gzip index");
+        }
+
+        final long fileSize = data.readLong();
+        final long uncompressedSize = data.readLong();
+        final Checkpoint[] checkpoints = new Checkpoint[data.readInt()];
+
+        for (int i = 0; i < checkpoints.length; i++) {
+            final long bit = data.readLong();
+            final long out = data.readLong();
+            final boolean memberStart = data.readBoolean();
+            final byte[] window = new byte[data.readInt()];
+
+            data.readFully(window);
+            checkpoints[i] = new Checkpoint(i, bit, out, window, memberStart);
+        }
+
+        return new GzipIndex(fileSize, uncompressedSize, checkpoints);
+    }
+
+    /**
+     * Saves this index. The windows are compressed, so a saved index is usually much smaller than
+     * 32 KB per checkpoint.
+     *
+     * @param out the stream to write the index to; it is not closed
+     * @throws IOException if the index could not be written
+     */
+    public void write(final OutputStream out) throws IOException {
+        final DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+        final DataOutputStream data = new DataOutputStream(deflater);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(this.fileSize);
+        data.writeLong(this.uncompressedSize);
+        data.writeInt(this.checkpoints.length);
+
+        for (int i = 0; i < this.checkpoints.length; i++) {
+            final Checkpoint checkpoint = this.checkpoints[i];
+
+            data.writeLong(checkpoint.bit);
+            data.writeLong(checkpoint.out);
+            data.writeBoolean(checkpoint.memberStart);
+            data.writeInt(checkpoint.window.length);
+            data.write(checkpoint.window);
+        }
+
+        data.flush();
+        deflater.finish();
+    }
+
+    /**
+     * Returns the size of the gzip file this index was built from.
+     *
+     * @return the size of the compressed file
+     */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    /**
+     * Returns the number of bytes the gzip file decompresses to.
+     *
+     * @return the uncompressed size
+     */
+    public long getUncompressedSize() {
+        return this.uncompressedSize;
+    }
+
+    /**
+     * Returns the number of checkpoints in this index.
+     *
+     * @return the number of checkpoints
+     */
+    public int getCheckpointCount() {
+        return this.checkpoints.length;
+    }
+
+    /**
+     * Returns the last checkpoint at or before an uncompressed position.
+     */
+    Checkpoint find(final long pos) {
+        int low = 0;
+        int high = this.checkpoints.length - 1;
+
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+
+            if (this.checkpoints[mid].out <= pos) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+
+        return this.checkpoints[low];
+    }
+
+    /**
+     * Returns the start of the gzip member following the one <code>checkpoint</code> is in, or
+     * null if it is in the last member.
+     */
+    Checkpoint nextMember(final Checkpoint checkpoint) {
+        for (int i = checkpoint.index + 1; i < this.checkpoints.length; i++) {
+            if (this.checkpoints[i].memberStart) {
+                return this.checkpoints[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A point at which decompression can be resumed.
+     */
+    static final class Checkpoint {
+        final int index;
+
+        /**
+         * Position in the compressed data, in bits.
+         */
+        final long bit;
+
+        /**
+         * Position in the uncompressed data.
+         */
+        final long out;
+
+        /**
+         * Uncompressed data preceding {@link #out}, at most {@link GzipIndex#WINDOW_SIZE} bytes.
+         */
+        final byte[] window;
+
+        /**
+         * Whether this is the start of a gzip member, rather than of a deflate block.
+         */
+        final boolean memberStart;
+
+        Checkpoint(final int index, final long bit, final long out, final byte[] window,
+                   final boolean memberStart) {
+            this.index = index;
+            this.bit = bit;
+            this.out = out;
+            this.window = window;
+            this.memberStart = memberStart;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.util.BlockCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An image served over HTTP, e.g. from an S3-compatible object store, read with
+ * <code>Range</code> requests so that only the parts of the image that are actually read are
+ * transferred. Listing an image, for example, only fetches the volume descriptors and
+ * directories.
+ * <p/>
+ * The image is fetched in chunks of {@link #CHUNK_SIZE} bytes, and recently used chunks are
+ * cached. A read that misses the cache fetches all missing chunks it needs with one request,
+ * together with the following {@link #setReadAhead(int) read-ahead} chunks, and threads that need
+ * a chunk that is already being fetched wait for that request instead of issuing their own.
+ */
+public class HttpImageSource implements ImageSource {
+    /**
+     * Size of the units in which the image is fetched and cached.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Default number of bytes of fetched chunks to cache.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default number of chunks fetched beyond the end of a read that misses the cache.
+     */
+    public static final int DEFAULT_READ_AHEAD = 3;
+
+    /**
+     * Default connect and read timeout, in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 30 * 1000;
+
+    private final URL url;
+    private final Map requestProperties;
+    private final long size;
+    private final BlockCache cache = new BlockCache(DEFAULT_CACHE_SIZE);
+
+    /**
+     * Chunks that are being fetched, by chunk index.
+     */
+    private final Map pending = new HashMap();
+    private final ReentrantLock pendingLock = new ReentrantLock();
+
+    private volatile int readAhead = DEFAULT_READ_AHEAD;
+    private volatile int timeout = DEFAULT_TIMEOUT;
+    private volatile boolean closed = false;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+
+    public HttpImageSource(final URL url) throws IOException {
+        this(url, Collections.EMPTY_MAP);
+    }
+
+    /**
+     * Opens an image, sending additional headers with each request, e.g. for authorization. The
+     * first chunk of the image is fetched to learn its size.
+     *
+     * @param url the location of the image
+     * @param requestProperties header values to send, keyed by header name
+     * @throws IOException if the image could not be fetched, or the server does not support range
+     * requests
+     */
+    public HttpImageSource(final URL url, final Map requestProperties) throws IOException {
+        this.url = url;
+        this.requestProperties = new HashMap(requestProperties);
+
+        final HttpURLConnection connection = request(0, CHUNK_SIZE - 1);
+        final InputStream in = connection.getInputStream();
+
+        // closing the response stream rather than disconnecting lets the connection be reused
+        try {
+            this.size = getTotalLength(connection);
+
+            final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, this.size)];
+
+            readFully(in, chunk);
+            this.cache.put(Long.valueOf(0), chunk);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public URL getURL() {
+        return this.url;
+    }
+
+    /**
+     * Sets the number of bytes of fetched chunks to cache.
+     *
+     * @param maxSize the cache size, or 0 to disable caching
+     */
+    public void setCacheSize(final long maxSize) {
+        this.cache.setMaxSize(maxSize);
+    }
+
+    /**
+     * Sets the number of chunks fetched beyond the end of a read that misses the cache.
+     *
+     * @param chunks the number of chunks, or 0 to fetch only what is read
+     */
+    public void setReadAhead(final int chunks) {
+        if (chunks < 0) {
+            throw new IllegalArgumentException("'chunks' must be >= 0");
+        }
+
+        this.readAhead = chunks;
+    }
+
+    /**
+     * Sets the connect and read timeout of requests.
+     *
+     * @param timeout the timeout in milliseconds, or 0 to wait indefinitely
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the number of range requests issued so far.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Returns the number of image bytes transferred so far.
+     *
+     * @return the number of bytes
+     */
+    public long getBytesTransferred() {
+        return this.bytesTransferred.get();
+    }
+
+    public int read(long pos, final ByteBuffer dst) throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("Source has been closed");
+        }
+        if (pos >= this.size) {
+            return -1;
+        }
+
+        final long lastChunk = (Math.min(pos + dst.remaining(), this.size) - 1) / CHUNK_SIZE;
+        int read = 0;
+
+        while (dst.hasRemaining() && pos < this.size) {
+            final long chunkIndex = pos / CHUNK_SIZE;
+            final byte[] chunk = getChunk(chunkIndex, lastChunk);
+            final int offset = (int) (pos - (chunkIndex * CHUNK_SIZE));
+            final int n = Math.min(dst.remaining(), chunk.length - offset);
+
+            dst.put(chunk, offset, n);
+            pos += n;
+            read += n;
+        }
+
+        return read;
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    public void close() {
+        this.closed = true;
+        this.cache.clear();
+    }
+
+    /**
+     * Returns a chunk, fetching it if it is neither cached nor being fetched already.
+     *
+     * @param chunkIndex the chunk to return
+     * @param lastChunk the last chunk needed by the current read
+     */
+    private byte[] getChunk(final long chunkIndex, final long lastChunk) throws IOException {
+        final Long key = Long.valueOf(chunkIndex);
+        final byte[] cached = this.cache.get(key);
+
+        if (null != cached) {
+            return cached;
+        }
+
+        CompletableFuture future;
+        long end = chunkIndex;
+
+        this.pendingLock.lock();
+
+        try {
+            future = (CompletableFuture) this.pending.get(key);
+
+            if (null == future) {
+                // claim the chunk and the missing chunks following it, up to the end of the read
+                // plus the read-ahead
+                final long chunkCount = (this.size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                final long limit = Math.min(chunkCount, lastChunk + 1 + this.readAhead);
+
+                for (end = chunkIndex + 1; end < limit; end++) {
+                    final Long next = Long.valueOf(end);
+
+                    if (this.pending.containsKey(next) || null != this.cache.get(next)) {
+                        break;
+                    }
+                }
+
+                for (long i = chunkIndex; i < end; i++) {
+                    this.pending.put(Long.valueOf(i), new CompletableFuture());
+                }
+            }
+        }
+        finally {
+            this.pendingLock.unlock();
+        }
+
+        if (null != future) {
+            try {
+                return (byte[]) future.join();
+            }
+            catch (CompletionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+
+        return fetch(chunkIndex, end);
+    }
+
+    /**
+     * Fetches the chunks from <code>first</code> up to <code>end</code>, which must have been
+     * claimed in {@link #pending}, with one request, and hands them to the cache and to the
+     * threads waiting for them.
+     *
+     * @return the first chunk
+     */
+    private byte[] fetch(final long first, final long end) throws IOException {
+        final Map chunks = new HashMap();
+        Throwable failure = null;
+
+        // the claimed chunks are released whatever happens, or their waiters would block forever
+        try {
+            final long start = first * CHUNK_SIZE;
+            final HttpURLConnection connection =
+                    request(start, Math.min(end * CHUNK_SIZE, this.size) - 1);
+
+            final InputStream in = connection.getInputStream();
+
+            try {
+                for (long i = first; i < end; i++) {
+                    final long pos = i * CHUNK_SIZE;
+                    final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, this.size - pos)];
+
+                    readFully(in, chunk);
+                    chunks.put(Long.valueOf(i), chunk);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            failure = ex;
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        }
+        catch (Error ex) {
+            failure = ex;
+            throw ex;
+        }
+        finally {
+            complete(first, end, chunks, failure);
+        }
+
+        return (byte[]) chunks.get(Long.valueOf(first));
+    }
+
+    /**
+     * Caches fetched chunks and releases the claims on the chunks of a request.
+     */
+    private void complete(final long first, final long end, final Map chunks,
+                          final Throwable failure) {
+        for (Iterator i = chunks.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry entry = (Map.Entry) i.next();
+
+            this.cache.put(entry.getKey(), (byte[]) entry.getValue());
+        }
+
+        this.pendingLock.lock();
+
+        try {
+            for (long i = first; i < end; i++) {
+                final Long key = Long.valueOf(i);
+                final CompletableFuture future = (CompletableFuture) this.pending.remove(key);
+                final byte[] chunk = (byte[]) chunks.get(key);
+
+                if (null != chunk) {
+                    future.complete(chunk);
+                }
+                else {
+                    future.completeExceptionally(null != failure
+                                                 ? failure
+                                                 : new IOException("Chunk was not fetched"));
+                }
+            }
+        }
+        finally {
+            this.pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Issues a range request for the bytes from <code>start</code> to <code>end</code>, inclusive.
+     *
+     * @return the connection, positioned at the start of the body
+     * @throws IOException if the request failed or the server ignored the range
+     */
+    private HttpURLConnection request(final long start, final long end) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+
+        connection.setConnectTimeout(this.timeout);
+        connection.setReadTimeout(this.timeout);
+
+        for (Iterator i = this.requestProperties.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry entry = (Map.Entry) i.next();
+
+            connection.setRequestProperty((String) entry.getKey(), (String) entry.getValue());
+        }
+
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+
+        final int status = connection.getResponseCode();
+
+        this.requestCount.incrementAndGet();
+
+        if (status != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new LoopyException("Range request for bytes " + start + "-" + end + " of "
+                                     + this.url + " failed with status " + status);
+        }
+
+        final String range = connection.getHeaderField("Content-Range");
+
+        if (null == range || !range.startsWith("bytes " + start + "-")) {
+            connection.disconnect();
+            throw new LoopyException("Unexpected Content-Range for bytes " + start + "-" + end
+                                     + " of " + this.url + ": " + range);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Returns the size of the image from the Content-Range header of a response, e.g.
+     * <code>bytes 0-65535/734003200</code>.
+     */
+    private long getTotalLength(final HttpURLConnection connection) throws IOException {
+        final String range = connection.getHeaderField("Content-Range");
+        final int slash = range.indexOf('/');
+
+        try {
+            return Long.parseLong(range.substring(slash + 1).trim());
+        }
+        catch (NumberFormatException ex) {
+            throw new LoopyException("Image size unknown: " + range);
+        }
+    }
+
+    private void readFully(final InputStream in, final byte[] buffer) throws IOException {
+        int read = 0;
+
+        while (read < buffer.length) {
+            final int n = in.read(buffer, read, buffer.length - read);
+
+            if (n < 0) {
+                throw new IOException("Unexpected end of response from " + this.url);
+            }
+
+            read += n;
+        }
+
+        this.bytesTransferred.addAndGet(read);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.ImageSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Chooses how to read an image file: raw sector dumps and CUE sheets are read through a
+ * {@link RawSectorImageSource}, the first part of a split image through a
+ * {@link MultiPartImageSource}, small images are loaded into memory, all others are read from the
+ * file.
+ */
+public final class ImageSources {
+    private ImageSources() {
+    }
+
+    /**
+     * Opens an image file for reading, without loading it into memory.
+     *
+     * @param file the image file
+     * @return a source over the file
+     * @throws IOException if the file could not be opened
+     */
+    public static ImageSource open(final File file) throws IOException {
+        return open(file, -1, false);
+    }
+
+    /**
+     * Opens an image file for reading. A file ending in <code>.cue</code> is read as a CUE sheet,
+     * and a file that starts with a raw sector is read as a raw dump; both are always mapped. A
+     * file with a numeric suffix, e.g. <code>image.iso.001</code>, that is followed by the next
+     * part is read together with all of its following parts. Otherwise the image is loaded into
+     * memory if the file is no larger than
+     * <code>maxMemorySize</code>; every read is then a copy from memory. Larger images are read
+     * from the file.
+     *
+     * @param file the image file
+     * @param maxMemorySize the size of the largest image to load into memory, in bytes
+     * @param direct whether to load the image into a direct buffer, outside the Java heap
+     * @return a source over the image
+     * @throws IOException if the file could not be opened or loaded
+     */
+    public static ImageSource open(final File file, final long maxMemorySize,
+                                   final boolean direct)
+            throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException("File does not exist: " + file);
+        }
+
+        if (file.getName().toLowerCase().endsWith(".cue")) {
+            return RawSectorImageSource.fromCue(file);
+        }
+
+        if (RawSectorImageSource.isRawImage(file)) {
+            return new RawSectorImageSource(file);
+        }
+
+        if (isNumberedPart(file)) {
+            final File[] parts = MultiPartImageSource.findParts(file);
+
+            if (parts.length > 1) {
+                return new MultiPartImageSource(parts);
+            }
+        }
+
+        if (file.length() <= Math.min(maxMemorySize, Integer.MAX_VALUE)) {
+            return MemoryImageSource.load(file, direct);
+        }
+
+        return new FileImageSource(file);
+    }
+
+    /**
+     * Returns whether the name of a file ends in a dot followed by digits only.
+     */
+    private static boolean isNumberedPart(final File file) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+
+        if (dot < 0 || dot == name.length() - 1) {
+            return false;
+        }
+
+        for (int i = dot + 1; i < name.length(); i++) {
+            final char c = name.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.ResidentImageSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An image held in memory, in a byte array or a (possibly direct or memory-mapped)
+ * {@link ByteBuffer}. The buffer is shared, not copied, and must not be modified while the image
+ * is in use.
+ */
+public class MemoryImageSource implements ResidentImageSource {
+    private volatile ByteBuffer data;
+
+    public MemoryImageSource(final byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Creates a source over the remaining bytes of <code>data</code>. The position and limit of
+     * <code>data</code> are not changed by reads.
+     *
+     * @param data the image
+     */
+    public MemoryImageSource(final ByteBuffer data) {
+        this.data = data.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Loads a whole image file into memory.
+     *
+     * @param file the image
+     * @param direct whether to load the image into a direct buffer, outside the Java heap
+     * @return a source over the loaded image
+     * @throws IOException if the file could not be read, or is larger than 2 GB
+     */
+    public static MemoryImageSource load(final File file, final boolean direct)
+            throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            final long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to load into memory: " + file);
+            }
+
+            final ByteBuffer data = direct
+                                    ? ByteBuffer.allocateDirect((int) size)
+                                    : ByteBuffer.allocate((int) size);
+
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) < 0) {
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+            }
+
+            data.flip();
+
+            return new MemoryImageSource(data);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    public int read(final long pos, final ByteBuffer dst) throws IOException {
+        final ByteBuffer data = this.data;
+
+        if (null == data) {
+            throw new IllegalStateException("Source has been closed");
+        }
+        if (pos < 0) {
+            throw new IllegalArgumentException("Negative position: " + pos);
+        }
+        if (pos >= data.capacity()) {
+            return -1;
+        }
+
+        // each read works on its own view of the shared buffer
+        final ByteBuffer view = data.duplicate();
+        final int start = (int) pos;
+        final int length = Math.min(dst.remaining(), view.capacity() - start);
+
+        view.limit(start + length).position(start);
+        dst.put(view);
+
+        return length;
+    }
+
+    public long size() {
+        final ByteBuffer data = this.data;
+
+        return (null == data) ? 0 : data.capacity();
+    }
+
+    public long getResidentSize() {
+        return size();
+    }
+
+    public void close() {
+        this.data = null;
+    }
+}
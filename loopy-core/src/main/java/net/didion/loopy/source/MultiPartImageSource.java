@@ -0,0 +1,224 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.ImageSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An image split into several parts, e.g. <code>image.iso.001</code>, <code>image.iso.002</code>,
+ * &hellip;, presented as one contiguous image without concatenating the parts first. A read that
+ * crosses the end of a part continues at the start of the next one.
+ */
+public class MultiPartImageSource implements ImageSource {
+    private final ImageSource[] parts;
+
+    /**
+     * Position of the first byte of each part within the image, followed by the size of the
+     * image.
+     */
+    private final long[] starts;
+
+    /**
+     * Creates a source over a list of part files, in order.
+     *
+     * @param files the parts
+     * @throws IOException if a part could not be opened
+     */
+    public MultiPartImageSource(final File[] files) throws IOException {
+        this(open(files));
+    }
+
+    /**
+     * Creates a source over a list of parts, in order. The parts are closed when this source is
+     * closed.
+     *
+     * @param parts the parts
+     * @throws IOException if the size of a part could not be determined
+     */
+    public MultiPartImageSource(final ImageSource[] parts) throws IOException {
+        if (parts.length == 0) {
+            throw new IllegalArgumentException("'parts' must not be empty");
+        }
+
+        this.parts = (ImageSource[]) parts.clone();
+        this.starts = new long[parts.length + 1];
+
+        for (int i = 0; i < parts.length; i++) {
+            this.starts[i + 1] = this.starts[i] + parts[i].size();
+        }
+    }
+
+    /**
+     * Finds the parts of a split image from its first part. The parts must be named with
+     * consecutive numeric suffixes of the same width, e.g. <code>image.iso.001</code>,
+     * <code>image.iso.002</code>; the first missing number ends the list.
+     *
+     * @param first the first part
+     * @return the parts, in order
+     * @throws FileNotFoundException if the first part does not exist or is not numbered
+     */
+    public static File[] findParts(final File first) throws FileNotFoundException {
+        if (!first.exists()) {
+            throw new FileNotFoundException("File does not exist: " + first);
+        }
+
+        final String name = first.getName();
+        final int dot = name.lastIndexOf('.');
+        final String suffix = name.substring(dot + 1);
+
+        if (dot < 0 || suffix.length() == 0) {
+            throw new FileNotFoundException("Not a numbered part: " + first);
+        }
+
+        final int number;
+
+        try {
+            number = Integer.parseInt(suffix);
+        }
+        catch (NumberFormatException ex) {
+            throw new FileNotFoundException("Not a numbered part: " + first);
+        }
+
+        final String base = name.substring(0, dot + 1);
+        final List parts = new ArrayList();
+
+        for (int n = number;; n++) {
+            final StringBuilder next = new StringBuilder(base);
+            final String digits = String.valueOf(n);
+
+            for (int i = digits.length(); i < suffix.length(); i++) {
+                next.append('0');
+            }
+            next.append(digits);
+
+            final File part = new File(first.getParentFile(), next.toString());
+
+            if (!part.exists()) {
+                break;
+            }
+
+            parts.add(part);
+        }
+
+        return (File[]) parts.toArray(new File[parts.size()]);
+    }
+
+    private static ImageSource[] open(final File[] files) throws IOException {
+        final ImageSource[] parts = new ImageSource[files.length];
+
+        try {
+            for (int i = 0; i < files.length; i++) {
+                parts[i] = new FileImageSource(files[i]);
+            }
+        }
+        catch (IOException ex) {
+            for (int i = 0; i < parts.length && null != parts[i]; i++) {
+                parts[i].close();
+            }
+            throw ex;
+        }
+
+        return parts;
+    }
+
+    public int getPartCount() {
+        return this.parts.length;
+    }
+
+    public int read(final long pos, final ByteBuffer dst) throws IOException {
+        if (pos < 0) {
+            throw new IllegalArgumentException("Negative position: " + pos);
+        }
+        if (pos >= size()) {
+            return -1;
+        }
+
+        int read = 0;
+        int part = findPart(pos);
+
+        while (dst.hasRemaining() && part < this.parts.length) {
+            final long offset = pos + read - this.starts[part];
+            final long available = this.starts[part + 1] - this.starts[part] - offset;
+
+            if (available <= 0) {
+                part++;
+                continue;
+            }
+
+            final int limit = dst.limit();
+
+            if (dst.remaining() > available) {
+                dst.limit(dst.position() + (int) available);
+            }
+
+            try {
+                final int n = this.parts[part].read(offset, dst);
+
+                if (n < 0) {
+                    throw new IOException("Part " + part + " is shorter than expected");
+                }
+
+                read += n;
+            }
+            finally {
+                dst.limit(limit);
+            }
+        }
+
+        return read;
+    }
+
+    /**
+     * Returns the index of the part containing <code>pos</code>.
+     */
+    private int findPart(final long pos) {
+        final int i = Arrays.binarySearch(this.starts, pos);
+
+        // an exact match may be the start of an empty part; the read loop skips those
+        return (i >= 0) ? i : -i - 2;
+    }
+
+    public long size() {
+        return this.starts[this.parts.length];
+    }
+
+    public void close() throws IOException {
+        IOException failure = null;
+
+        for (int i = 0; i < this.parts.length; i++) {
+            try {
+                this.parts[i].close();
+            }
+            catch (IOException ex) {
+                failure = ex;
+            }
+        }
+
+        if (null != failure) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.LoopyException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.StringTokenizer;
+
+/**
+ * An image stored as raw 2352-byte CD sectors, e.g. the BIN file of a BIN/CUE pair. The image
+ * presents the 2048 bytes of user data of each sector as one contiguous sequence of cooked
+ * sectors, as in an .iso file, skipping the sync pattern, header, subheader and error correction
+ * bytes. Mode 1 and Mode 2 Form 1 (CD-ROM XA) data tracks are supported:
+ * <pre>
+     mode          user data  EDC covers  EDC at
+     ------------  ---------  ----------  ------
+     Mode 1        16-2063    0-2063      2064
+     Mode 2 Form 1 24-2071    16-2071     2072
+   </pre>
+ * The file is memory-mapped, so user data is copied straight from the mapping into the caller's
+ * buffer, and a long run of sectors costs no more copying than a read from a cooked image. There
+ * is no supported way to unmap a file, so {@link #close()} only drops the mappings, and they are
+ * released when they are garbage collected; until then, some platforms do not allow the file to
+ * be deleted.
+ * <p/>
+ * The error detection code of each sector can optionally be verified as it is read; see
+ * {@link #setVerifyEdc(boolean)}.
+ */
+public class RawSectorImageSource implements ImageSource {
+    /**
+     * Size of a raw sector.
+     */
+    public static final int RAW_SECTOR_SIZE = 2352;
+
+    /**
+     * Size of the user data of a Mode 1 or Mode 2 Form 1 sector.
+     */
+    public static final int USER_DATA_SIZE = 2048;
+
+    /**
+     * Mode 1 sectors.
+     */
+    public static final int MODE1 = 1;
+
+    /**
+     * Mode 2 Form 1 sectors.
+     */
+    public static final int MODE2_FORM1 = 2;
+
+    private static final byte[] SYNC = {
+            (byte) 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x00
+    };
+
+    // sectors per mapping; mappings are limited to 2 GB
+    private static final int SEGMENT_SECTORS = 256 * 1024;
+
+    private static final int[] EDC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int edc = i;
+
+            for (int j = 0; j < 8; j++) {
+                edc = (edc >>> 1) ^ (((edc & 1) != 0) ? 0xD8018001 : 0);
+            }
+
+            EDC_TABLE[i] = edc;
+        }
+    }
+
+    private final File file;
+    private final int mode;
+    private final int dataOffset;
+    private final long sectorCount;
+    // null once closed; a read that races with close() finishes on the mappings it started with
+    private volatile ByteBuffer[] segments;
+    private volatile boolean verifyEdc = false;
+
+    /**
+     * Opens a raw image whose data track starts at the beginning of the file, detecting the
+     * sector mode from the first volume descriptor.
+     *
+     * @param file the raw image
+     * @throws IOException if the file could not be opened or does not contain raw sectors
+     */
+    public RawSectorImageSource(final File file) throws IOException {
+        this(file, 0, 0);
+    }
+
+    /**
+     * Opens a raw image.
+     *
+     * @param file the raw image
+     * @param offset the position of the data track in the file
+     * @param mode {@link #MODE1} or {@link #MODE2_FORM1}, or 0 to detect the mode from the first
+     * volume descriptor
+     * @throws IOException if the file could not be opened or does not contain raw sectors
+     */
+    public RawSectorImageSource(final File file, final long offset, final int mode)
+            throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("'offset' must be >= 0");
+        }
+        if (mode != 0 && mode != MODE1 && mode != MODE2_FORM1) {
+            throw new IllegalArgumentException("Unknown sector mode: " + mode);
+        }
+
+        this.file = file;
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            this.sectorCount = Math.max(0, channel.size() - offset) / RAW_SECTOR_SIZE;
+            this.segments = map(channel, offset, this.sectorCount);
+        }
+        finally {
+            // mappings stay valid after the channel is closed
+            channel.close();
+        }
+
+        this.mode = (0 == mode) ? detectMode() : mode;
+
+        this.dataOffset = (MODE1 == this.mode) ? 16 : 24;
+    }
+
+    /**
+     * Tells whether a file holds raw sectors, i.e. whether it starts with the sync pattern of a
+     * raw sector. Cooked images start with the system area, which is never in this pattern.
+     *
+     * @param file the image file
+     * @return true if the file should be read through a <code>RawSectorImageSource</code>
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isRawImage(final File file) throws IOException {
+        if (file.length() < RAW_SECTOR_SIZE) {
+            return false;
+        }
+
+        final byte[] header = new byte[SYNC.length];
+        final InputStream in = new FileInputStream(file);
+
+        try {
+            int read = 0;
+
+            while (read < header.length) {
+                final int n = in.read(header, read, header.length - read);
+
+                if (n < 0) {
+                    return false;
+                }
+
+                read += n;
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        return hasSync(ByteBuffer.wrap(header), 0);
+    }
+
+    /**
+     * Opens the first data track described by a CUE sheet. Only the <code>FILE</code>,
+     * <code>TRACK</code> and <code>INDEX 01</code> commands are interpreted; the data track must
+     * be of type <code>MODE1/2352</code> or <code>MODE2/2352</code>.
+     *
+     * @param cue the CUE sheet
+     * @return the data track
+     * @throws IOException if the CUE sheet could not be read, or does not describe a raw data
+     * track
+     */
+    public static RawSectorImageSource fromCue(final File cue) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(cue));
+
+        try {
+            String file = null;
+            int mode = 0;
+            String line;
+
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+
+                final String upper = line.toUpperCase();
+
+                if (upper.startsWith("FILE ")) {
+                    file = parseFileName(line.substring(5).trim());
+                }
+                else if (upper.startsWith("TRACK ") && 0 == mode) {
+                    if (upper.endsWith("MODE1/2352")) {
+                        mode = MODE1;
+                    }
+                    else if (upper.endsWith("MODE2/2352")) {
+                        mode = MODE2_FORM1;
+                    }
+                }
+                else if (upper.startsWith("INDEX 01 ") && 0 != mode) {
+                    if (null == file) {
+                        break;
+                    }
+
+                    final long offset = parseTime(line.substring(9).trim()) * RAW_SECTOR_SIZE;
+                    return new RawSectorImageSource(
+                            new File(cue.getAbsoluteFile().getParentFile(), file), offset, mode);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        throw new LoopyException("No raw data track in " + cue);
+    }
+
+    /**
+     * Returns the raw image file.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns the sector mode of the data track.
+     *
+     * @return {@link #MODE1} or {@link #MODE2_FORM1}
+     */
+    public int getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Sets whether the sync pattern and error detection code of each sector are checked when it
+     * is read. A sector that fails the check is reported with a {@link LoopyException}.
+     *
+     * @param verifyEdc true to verify sectors
+     */
+    public void setVerifyEdc(final boolean verifyEdc) {
+        this.verifyEdc = verifyEdc;
+    }
+
+    public int read(final long pos, final ByteBuffer dst) throws IOException {
+        final ByteBuffer[] segments = this.segments;
+
+        if (null == segments) {
+            throw new IllegalStateException("Source has been closed");
+        }
+
+        return read(segments, pos, dst);
+    }
+
+    private int read(final ByteBuffer[] segments, long pos, final ByteBuffer dst)
+            throws IOException {
+        final long size = size();
+
+        if (pos >= size) {
+            return -1;
+        }
+
+        final boolean verify = this.verifyEdc;
+        int read = 0;
+
+        while (dst.hasRemaining() && pos < size) {
+            final long sector = pos / USER_DATA_SIZE;
+            final int offset = (int) (pos - (sector * USER_DATA_SIZE));
+            final int n = Math.min(dst.remaining(), USER_DATA_SIZE - offset);
+            final ByteBuffer segment = segments[(int) (sector / SEGMENT_SECTORS)].duplicate();
+            final int base = (int) (sector % SEGMENT_SECTORS) * RAW_SECTOR_SIZE;
+
+            if (verify) {
+                verify(segment, base, sector);
+            }
+
+            segment.limit(base + this.dataOffset + offset + n);
+            segment.position(base + this.dataOffset + offset);
+            dst.put(segment);
+
+            pos += n;
+            read += n;
+        }
+
+        return read;
+    }
+
+    public long size() {
+        return this.sectorCount * USER_DATA_SIZE;
+    }
+
+    public void close() {
+        this.segments = null;
+    }
+
+    private static ByteBuffer[] map(final FileChannel channel, final long offset,
+                                    final long sectorCount)
+            throws IOException {
+        final ByteBuffer[] segments =
+                new ByteBuffer[(int) ((sectorCount + SEGMENT_SECTORS - 1) / SEGMENT_SECTORS)];
+
+        for (int i = 0; i < segments.length; i++) {
+            final long first = (long) i * SEGMENT_SECTORS;
+            final long count = Math.min(SEGMENT_SECTORS, sectorCount - first);
+
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                      offset + (first * RAW_SECTOR_SIZE),
+                                      count * RAW_SECTOR_SIZE);
+        }
+
+        return segments;
+    }
+
+    /**
+     * Determines the sector mode from the header of the first volume descriptor.
+     */
+    private int detectMode() throws IOException {
+        final long sector = 16;
+
+        if (sector >= this.sectorCount) {
+            throw new LoopyException("Image too small: " + this.file);
+        }
+
+        final ByteBuffer segment = this.segments[0];
+        final int base = (int) sector * RAW_SECTOR_SIZE;
+
+        if (!hasSync(segment, base)) {
+            throw new LoopyException("Not a raw sector image: " + this.file);
+        }
+
+        switch (segment.get(base + 15)) {
+            case 1:
+                return MODE1;
+            case 2:
+                return MODE2_FORM1;
+            default:
+                throw new LoopyException("Unsupported sector mode in " + this.file);
+        }
+    }
+
+    private void verify(final ByteBuffer segment, final int base, final long sector)
+            throws LoopyException {
+        if (!hasSync(segment, base) || segment.get(base + 15) != this.mode) {
+            throw new LoopyException("Invalid header in sector " + sector);
+        }
+
+        final int start;
+        final int end;
+
+        if (MODE1 == this.mode) {
+            start = 0;
+            end = 2064;
+        }
+        else {
+            // form 2 sectors carry 2324 bytes of data and cannot be part of a cooked image
+            if ((segment.get(base + 18) & 0x20) != 0) {
+                throw new LoopyException("Unexpected Mode 2 Form 2 sector " + sector);
+            }
+
+            start = 16;
+            end = 2072;
+        }
+
+        int edc = 0;
+
+        for (int i = base + start; i < base + end; i++) {
+            edc = (edc >>> 8) ^ EDC_TABLE[(edc ^ segment.get(i)) & 0xFF];
+        }
+
+        final int stored = (segment.get(base + end) & 0xFF)
+                           | ((segment.get(base + end + 1) & 0xFF) << 8)
+                           | ((segment.get(base + end + 2) & 0xFF) << 16)
+                           | ((segment.get(base + end + 3) & 0xFF) << 24);
+
+        if (edc != stored) {
+            throw new LoopyException("EDC mismatch in sector " + sector);
+        }
+    }
+
+    private static boolean hasSync(final ByteBuffer segment, final int base) {
+        for (int i = 0; i < SYNC.length; i++) {
+            if (segment.get(base + i) != SYNC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses the file name of a CUE <code>FILE</code> command, which is quoted if it contains
+     * spaces and is followed by the file type.
+     */
+    static String parseFileName(final String spec) {
+        if (spec.startsWith("\"")) {
+            final int end = spec.indexOf('"', 1);
+            return (end > 0) ? spec.substring(1, end) : spec.substring(1);
+        }
+
+        return new StringTokenizer(spec).nextToken();
+    }
+
+    /**
+     * Parses a CUE time, <code>mm:ss:ff</code>, into a number of sectors.
+     */
+    static long parseTime(final String time) throws LoopyException {
+        final StringTokenizer tokens = new StringTokenizer(time, ":");
+
+        try {
+            final long minutes = Long.parseLong(tokens.nextToken());
+            final long seconds = Long.parseLong(tokens.nextToken());
+            final long frames = Long.parseLong(tokens.nextToken());
+
+            return (((minutes * 60) + seconds) * 75) + frames;
+        }
+        catch (RuntimeException ex) {
+            throw new LoopyException("Invalid CUE time: " + time);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import net.didion.loopy.ImageSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A range of bytes of another source, presented as an image of its own. This allows opening an
+ * image stored inside another one, e.g. an .iso file inside an ISO 9660 image, or stored
+ * uncompressed in a zip file, without copying it out first:
+ * <pre>
+     ImageSource outer = new FileImageSource(file);
+     ImageSource inner = new SubImageSource(outer, entry.getStartBlock() * 2048, entry.getSize());
+     FileSystem nested = new ISO9660FileSystem(null, inner, true);
+   </pre>
+ */
+public class SubImageSource implements ImageSource {
+    private final ImageSource parent;
+    private final long offset;
+    private final long length;
+    private final boolean closeParent;
+
+    /**
+     * Creates a source over a range of <code>parent</code> that closes the parent when it is
+     * closed.
+     *
+     * @param parent the source containing the image
+     * @param offset the position of the image within <code>parent</code>
+     * @param length the size of the image
+     */
+    public SubImageSource(final ImageSource parent, final long offset, final long length) {
+        this(parent, offset, length, true);
+    }
+
+    /**
+     * Creates a source over a range of <code>parent</code>.
+     *
+     * @param parent the source containing the image
+     * @param offset the position of the image within <code>parent</code>
+     * @param length the size of the image
+     * @param closeParent whether closing this source closes <code>parent</code>; pass false if
+     * the parent is shared
+     */
+    public SubImageSource(final ImageSource parent, final long offset, final long length,
+                          final boolean closeParent) {
+        if (null == parent) {
+            throw new IllegalArgumentException("'parent' must not be null");
+        }
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: " + offset + "+" + length);
+        }
+
+        this.parent = parent;
+        this.offset = offset;
+        this.length = length;
+        this.closeParent = closeParent;
+    }
+
+    public ImageSource getParent() {
+        return this.parent;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public int read(final long pos, final ByteBuffer dst) throws IOException {
+        if (pos < 0) {
+            throw new IllegalArgumentException("Negative position: " + pos);
+        }
+        if (pos >= this.length) {
+            return -1;
+        }
+
+        final long available = this.length - pos;
+
+        if (dst.remaining() <= available) {
+            return this.parent.read(this.offset + pos, dst);
+        }
+
+        // do not read past the end of the range
+        final int limit = dst.limit();
+
+        dst.limit(dst.position() + (int) available);
+
+        try {
+            return this.parent.read(this.offset + pos, dst);
+        }
+        finally {
+            dst.limit(limit);
+        }
+    }
+
+    public long size() {
+        return this.length;
+    }
+
+    public void close() throws IOException {
+        if (this.closeParent) {
+            this.parent.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.udf;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A breadth-first Enumeration of the entries in a UDF file system. Layout of the parts of a File
+ * Identifier Descriptor (tag 257) that are used:
+ * <pre>
+     length  pos      contents
+     ------  -------  --------------------------------------------------------
+     16      0        descriptor tag
+     1       18       file characteristics: 2 directory, 4 deleted, 8 parent
+     1       19       length of file identifier (L_FI)
+     16      20       ICB of the file, as a long_ad
+     2       36       length of implementation use (L_IU)
+     L_IU    38       implementation use
+     L_FI    38+L_IU  file identifier, then padding to a multiple of 4 bytes
+   </pre>
+ */
+class EntryEnumeration implements Enumeration {
+    private final UDFFileSystem fileSystem;
+    private final List queue;
+
+    public EntryEnumeration(final UDFFileSystem fileSystem, final UDFFileEntry rootEntry) {
+        this.fileSystem = fileSystem;
+        this.queue = new LinkedList();
+        this.queue.add(rootEntry);
+    }
+
+    public boolean hasMoreElements() {
+        return !this.queue.isEmpty();
+    }
+
+    public Object nextElement() {
+        if (!hasMoreElements()) {
+            throw new NoSuchElementException();
+        }
+
+        // pop next entry from the queue
+        final UDFFileEntry entry = (UDFFileEntry) this.queue.remove(0);
+
+        // if the entry is a directory, queue all its children
+        if (entry.isDirectory()) {
+            try {
+                readDirectory(entry);
+            }
+            catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        return entry;
+    }
+
+    private void readDirectory(final UDFFileEntry directory) throws IOException {
+        final byte[] content = this.fileSystem.getBytes(directory);
+
+        int pos = 0;
+
+        while (pos + 38 <= content.length) {
+            Util.checkTag(content, pos, UDFVolumeDescriptorSet.TAG_FILE_IDENTIFIER);
+
+            final int characteristics = content[pos + 18] & 0xFF;
+            final int idLength = content[pos + 19] & 0xFF;
+            final int implementationLength = Util.getUInt16(content, pos + 36);
+
+            // skip deleted entries and the parent entry
+            if ((characteristics & 0x0C) == 0) {
+                final String name = Util.getDChars(
+                        content, pos + 38 + implementationLength, idLength);
+                final InformationControlBlock icb = this.fileSystem.getIcb(
+                        Util.getUInt16(content, pos + 28), Util.getUInt32(content, pos + 24));
+
+                this.queue.add(new UDFFileEntry(directory.getPath(), name, icb));
+            }
+
+            pos += (38 + implementationLength + idLength + 3) & ~3;
+        }
+    }
+}
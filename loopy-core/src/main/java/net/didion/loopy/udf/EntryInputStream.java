@@ -0,0 +1,136 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.udf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream that reads a FileEntry's data.
+ */
+class EntryInputStream extends InputStream {
+    // entry within the file system
+    private UDFFileEntry entry;
+
+    // the parent file system
+    private UDFFileSystem fileSystem;
+
+    // current position within entry data
+    private long pos;
+
+    // number of remaining bytes within entry
+    private long rem;
+
+    EntryInputStream(final UDFFileEntry entry, final UDFFileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+        this.entry = entry;
+        this.pos = 0;
+        this.rem = entry.getLength();
+    }
+
+    public int read(final byte b[], final int off, final int len) throws IOException {
+        ensureOpen();
+
+        if (this.rem == 0) {
+            return -1;
+        }
+        if (len <= 0) {
+            return 0;
+        }
+
+        final int toRead = (int) Math.min(len, this.rem);
+
+        if (this.fileSystem.isClosed()) {
+            throw new IOException("UDF file closed.");
+        }
+
+        final int read = this.fileSystem.read(
+                this.entry, this.pos, ByteBuffer.wrap(b, off, toRead));
+
+        if (read > 0) {
+            this.pos += read;
+            this.rem -= read;
+        }
+        else if (read < 0) {
+            throw new IOException("Unexpected end of UDF file.");
+        }
+
+        if (this.rem == 0) {
+            release();
+        }
+
+        return read;
+    }
+
+    public int read() throws IOException {
+        ensureOpen();
+
+        final byte[] b = new byte[1];
+
+        if (read(b, 0, 1) == 1) {
+            return b[0] & 0xff;
+        }
+        else {
+            return -1;
+        }
+    }
+
+    public long skip(final long n) {
+        ensureOpen();
+
+        final long len = Math.max(0, Math.min(n, this.rem));
+
+        this.pos += len;
+        this.rem -= len;
+
+        if (this.rem == 0) {
+            release();
+        }
+
+        return len;
+    }
+
+    public int available() {
+        return (int) Math.min(this.rem, Integer.MAX_VALUE);
+    }
+
+    public void close() {
+        release();
+        this.entry = null;
+    }
+
+    /**
+     * Releases the file system once all data has been read. The stream stays open, so that
+     * further reads return -1 rather than failing.
+     */
+    private void release() {
+        if (null != this.fileSystem) {
+            this.fileSystem.entryStreamClosed();
+        }
+
+        this.rem = 0;
+        this.fileSystem = null;
+    }
+
+    private void ensureOpen() {
+        if (null == this.entry) {
+            throw new IllegalStateException("stream has been closed");
+        }
+    }
+}
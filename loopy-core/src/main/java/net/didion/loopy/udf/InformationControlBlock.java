@@ -0,0 +1,288 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.udf;
+
+import net.didion.loopy.LoopyException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed File Entry or Extended File Entry: the attributes of a file or directory, and the
+ * allocation descriptors that map its data to extents of the volume. Layout of the parts of a
+ * File Entry (tag 261) that are used; an Extended File Entry (tag 266) has the same ICB tag and
+ * information length, with the other fields at the positions given in parentheses:
+ * <pre>
+     length  pos        contents
+     ------  ---------  --------------------------------------------------------
+     16      0          descriptor tag
+     20      16         ICB tag; file type at 27, flags at 34
+     8       56         information length
+     12      84  (92)   modification time
+     4       168 (208)  length of extended attributes (L_EA)
+     4       172 (212)  length of allocation descriptors (L_AD)
+     L_EA    176 (216)  extended attributes
+     L_AD               allocation descriptors, or the data itself if it is embedded
+   </pre>
+ * The lower three bits of the ICB flags give the type of the allocation descriptors: 0 for
+ * short_ad (8 bytes), 1 for long_ad (16 bytes), 2 for ext_ad (20 bytes) and 3 if the data is
+ * embedded. The upper two bits of the length of a descriptor give the extent type: 0 for
+ * recorded, 1 and 2 for unrecorded extents, which read as zeroes, and 3 for the continuation of
+ * the descriptors in an Allocation Extent Descriptor (tag 258).
+ */
+final class InformationControlBlock {
+    static final int TAG_FILE_ENTRY = 261;
+    static final int TAG_EXTENDED_FILE_ENTRY = 266;
+    static final int TAG_ALLOCATION_EXTENT = 258;
+
+    static final int TYPE_DIRECTORY = 4;
+
+    // bound on Allocation Extent Descriptors, against loops in corrupt images
+    private static final int MAX_CONTINUATIONS = 65536;
+
+    private static final Extent[] NO_EXTENTS = new Extent[0];
+
+    private final int fileType;
+    private final long length;
+    private final long modificationTime;
+    private final byte[] embeddedData;
+    private final Extent[] extents;
+
+    private InformationControlBlock(final int fileType, final long length,
+                                    final long modificationTime, final byte[] embeddedData,
+                                    final Extent[] extents) {
+        this.fileType = fileType;
+        this.length = length;
+        this.modificationTime = modificationTime;
+        this.embeddedData = embeddedData;
+        this.extents = extents;
+    }
+
+    /**
+     * Reads the File Entry or Extended File Entry at the given logical block, including any
+     * continued allocation descriptors.
+     *
+     * @param fileSystem
+     * @param partition the partition reference number
+     * @param block the logical block within the partition
+     * @return the parsed entry
+     * @throws IOException
+     */
+    static InformationControlBlock read(final UDFFileSystem fileSystem, final int partition,
+                                        final long block)
+            throws IOException {
+        final byte[] data = fileSystem.readLogicalBlock(partition, block);
+        final int tag = Util.getTagIdentifier(data, 0);
+        final boolean extended;
+
+        if (TAG_FILE_ENTRY == tag) {
+            extended = false;
+        }
+        else if (TAG_EXTENDED_FILE_ENTRY == tag) {
+            extended = true;
+        }
+        else {
+            throw new LoopyException("No file entry at block " + block + " of partition "
+                                     + partition);
+        }
+
+        final int fileType = data[27] & 0xFF;
+        final int adType = Util.getUInt16(data, 34) & 0x07;
+        final long length = Util.getUInt64(data, 56);
+        final long modificationTime = Util.getTimestamp(data, extended ? 92 : 84);
+        final int eaLength = (int) Util.getUInt32(data, extended ? 208 : 168);
+        final int adLength = (int) Util.getUInt32(data, extended ? 212 : 172);
+        final int adStart = (extended ? 216 : 176) + eaLength;
+
+        if (eaLength < 0 || adLength < 0 || adStart + adLength > data.length) {
+            throw new LoopyException("Corrupt file entry at block " + block);
+        }
+
+        if (3 == adType) {
+            final byte[] embedded = new byte[(int) Math.min(length, adLength)];
+
+            System.arraycopy(data, adStart, embedded, 0, embedded.length);
+
+            return new InformationControlBlock(fileType, length, modificationTime, embedded,
+                                               NO_EXTENTS);
+        }
+
+        final List extents = new ArrayList();
+
+        readExtents(fileSystem, partition, adType, data, adStart, adLength, extents);
+
+        return new InformationControlBlock(fileType, length, modificationTime, null,
+                                           (Extent[]) extents.toArray(new Extent[extents.size()]));
+    }
+
+    private static void readExtents(final UDFFileSystem fileSystem, final int icbPartition,
+                                    final int adType, byte[] data, int pos, int adLength,
+                                    final List extents)
+            throws IOException {
+        final int adSize;
+
+        switch (adType) {
+            case 0:
+                adSize = 8;
+                break;
+            case 1:
+                adSize = 16;
+                break;
+            case 2:
+                adSize = 20;
+                break;
+            default:
+                throw new LoopyException("Unknown allocation descriptor type " + adType);
+        }
+
+        long offset = 0;
+        int continuations = 0;
+        int end = pos + adLength;
+
+        while (pos + adSize <= end) {
+            final long lengthAndType = Util.getUInt32(data, pos);
+            final long length = lengthAndType & 0x3FFFFFFF;
+            final int type = (int) (lengthAndType >>> 30);
+
+            if (0 == length) {
+                break;
+            }
+
+            final long block;
+            final int partition;
+
+            if (0 == adType) {
+                block = Util.getUInt32(data, pos + 4);
+                partition = icbPartition;
+            }
+            else if (1 == adType) {
+                block = Util.getUInt32(data, pos + 4);
+                partition = Util.getUInt16(data, pos + 8);
+            }
+            else {
+                block = Util.getUInt32(data, pos + 12);
+                partition = Util.getUInt16(data, pos + 16);
+            }
+
+            if (3 == type) {
+                // the descriptors continue in an Allocation Extent Descriptor
+                if (++continuations > MAX_CONTINUATIONS) {
+                    throw new LoopyException("Too many allocation extents");
+                }
+
+                data = fileSystem.readLogicalBlock(partition, block);
+                Util.checkTag(data, 0, TAG_ALLOCATION_EXTENT);
+                adLength = (int) Util.getUInt32(data, 20);
+                pos = 24;
+                end = Math.min(pos + adLength, data.length);
+                continue;
+            }
+
+            extents.add(new Extent(partition, block, offset, length, 0 == type));
+            offset += length;
+            pos += adSize;
+        }
+    }
+
+    int getFileType() {
+        return this.fileType;
+    }
+
+    boolean isDirectory() {
+        return TYPE_DIRECTORY == this.fileType;
+    }
+
+    long getLength() {
+        return this.length;
+    }
+
+    long getModificationTime() {
+        return this.modificationTime;
+    }
+
+    /**
+     * Returns the data of the file if it is stored in the entry itself, otherwise null.
+     */
+    byte[] getEmbeddedData() {
+        return this.embeddedData;
+    }
+
+    /**
+     * Returns the index of the extent containing the byte at <code>offset</code> of the data, or
+     * -1 if no extent contains it.
+     */
+    int findExtent(final long offset) {
+        int low = 0;
+        int high = this.extents.length - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final Extent extent = this.extents[mid];
+
+            if (offset < extent.offset) {
+                high = mid - 1;
+            }
+            else if (offset >= extent.offset + extent.length) {
+                low = mid + 1;
+            }
+            else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    int getExtentPartition(final int i) {
+        return this.extents[i].partition;
+    }
+
+    long getExtentBlock(final int i) {
+        return this.extents[i].block;
+    }
+
+    long getExtentOffset(final int i) {
+        return this.extents[i].offset;
+    }
+
+    long getExtentLength(final int i) {
+        return this.extents[i].length;
+    }
+
+    boolean isExtentRecorded(final int i) {
+        return this.extents[i].recorded;
+    }
+
+    private static final class Extent {
+        final int partition;
+        final long block;
+        final long offset;
+        final long length;
+        final boolean recorded;
+
+        Extent(final int partition, final long block, final long offset, final long length,
+               final boolean recorded) {
+            this.partition = partition;
+            this.block = block;
+            this.offset = offset;
+            this.length = length;
+            this.recorded = recorded;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.udf;
+
+import net.didion.loopy.LoopyException;
+
+/**
+ * Maps offsets within a partition to positions in the image. A partition is referenced by its
+ * index in the partition maps of the logical volume, and addressed in logical blocks.
+ */
+abstract class Partition {
+    /**
+     * Returns the position in the image of the byte at <code>offset</code> within the partition.
+     *
+     * @param offset the offset within the partition, in bytes
+     * @return the position in the image
+     * @throws LoopyException if the offset is outside of the partition
+     */
+    abstract long getPosition(long offset) throws LoopyException;
+
+    /**
+     * Returns the number of bytes, starting at <code>offset</code>, that are stored contiguously
+     * in the image.
+     *
+     * @param offset the offset within the partition, in bytes
+     * @return the number of contiguous bytes
+     * @throws LoopyException if the offset is outside of the partition
+     */
+    abstract long getContiguousLength(long offset) throws LoopyException;
+
+    /**
+     * A partition that occupies a contiguous range of sectors (a type 1 partition map). Sparable
+     * partitions are read this way too; their sparing tables only matter on rewritable media
+     * with defective packets.
+     */
+    static final class Physical extends Partition {
+        private final long start;
+
+        /**
+         * @param start the position of the partition in the image
+         */
+        Physical(final long start) {
+            this.start = start;
+        }
+
+        long getPosition(final long offset) {
+            return this.start + offset;
+        }
+
+        long getContiguousLength(final long offset) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The metadata partition of UDF 2.50 and later, whose contents are the data of the metadata
+     * file, which is in turn stored in a physical partition.
+     */
+    static final class Metadata extends Partition {
+        private final Partition physical;
+        private final InformationControlBlock metadataFile;
+        private final int blockSize;
+
+        Metadata(final Partition physical, final InformationControlBlock metadataFile,
+                 final int blockSize) {
+            this.physical = physical;
+            this.metadataFile = metadataFile;
+            this.blockSize = blockSize;
+        }
+
+        long getPosition(final long offset) throws LoopyException {
+            final int i = find(offset);
+
+            return this.physical.getPosition(
+                    (this.metadataFile.getExtentBlock(i) * this.blockSize)
+                    + (offset - this.metadataFile.getExtentOffset(i)));
+        }
+
+        long getContiguousLength(final long offset) throws LoopyException {
+            final int i = find(offset);
+
+            return this.metadataFile.getExtentOffset(i) + this.metadataFile.getExtentLength(i)
+                   - offset;
+        }
+
+        private int find(final long offset) throws LoopyException {
+            final int i = this.metadataFile.findExtent(offset);
+
+            if (i < 0 || !this.metadataFile.isExtentRecorded(i)) {
+                throw new LoopyException("Offset " + offset + " is not in the metadata partition");
+            }
+
+            return i;
+        }
+    }
+}
@@ -19,24 +19,75 @@ package net.didion.loopy.udf;
 
 import net.didion.loopy.FileEntry;
 
-public class UDFFileEntry implements FileEntry {
+/**
+ * Represents a file in a UDF file system.
+ */
+public final class UDFFileEntry implements FileEntry {
+    private final String parentPath;
+    private final String name;
+    private final InformationControlBlock icb;
+
+    /**
+     * Initialize this instance.
+     *
+     * @param parentPath the path of the parent directory, or null for the root directory
+     * @param name the file identifier
+     * @param icb the file's File Entry
+     */
+    UDFFileEntry(final String parentPath, final String name, final InformationControlBlock icb) {
+        this.parentPath = parentPath;
+        this.name = name;
+        this.icb = icb;
+    }
+
     public String getName() {
-        return null;
+        return this.name;
     }
 
     public String getPath() {
-        return null;
+        if (null == this.parentPath) {
+            return "";
+        }
+
+        final StringBuffer buf = new StringBuffer(this.parentPath);
+
+        buf.append(getName());
+
+        if (isDirectory()) {
+            buf.append("/");
+        }
+
+        return buf.toString();
     }
 
     public long getLastModifiedTime() {
-        return 0;
+        return this.icb.getModificationTime();
     }
 
     public boolean isDirectory() {
-        return false;
+        return this.icb.isDirectory();
     }
 
+    /**
+     * Returns the size of the entry data, or {@link Integer#MAX_VALUE} for files of 2 GB or more;
+     * see {@link #getLength()}.
+     *
+     * @return the entry size
+     */
     public int getSize() {
-        return 0;
+        return (int) Math.min(this.icb.getLength(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the size of the entry data. UDF files may be larger than 4 GB.
+     *
+     * @return the entry size
+     */
+    public long getLength() {
+        return this.icb.getLength();
+    }
+
+    InformationControlBlock getIcb() {
+        return this.icb;
     }
-}
\ No newline at end of file
+}
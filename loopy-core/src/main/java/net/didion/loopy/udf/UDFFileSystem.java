@@ -18,33 +18,316 @@ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
 package net.didion.loopy.udf;
 
 import net.didion.loopy.AbstractBlockFileSystem;
-import net.didion.loopy.VolumeDescriptorSet;
 import net.didion.loopy.FileEntry;
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.VolumeDescriptorSet;
 import net.didion.loopy.iso9660.Constants;
+import net.didion.loopy.source.ImageSources;
 
 import java.io.File;
-import java.io.InputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A UDF file system, as found on DVD and Blu-ray images. Unlike the ISO 9660 bridge that such
+ * images often also carry, UDF can describe files larger than 4 GB; see
+ * {@link UDFFileEntry#getLength()}.
+ * <p/>
+ * File data is read extent by extent, as described by the allocation descriptors of each file.
+ * Parsed File Entries, including their allocation descriptors, are cached, so that repeated
+ * lookups and reads of the same files do not read the entries again.
+ */
 public class UDFFileSystem extends AbstractBlockFileSystem {
+    /**
+     * Default number of File Entries to cache.
+     */
+    public static final int DEFAULT_ICB_CACHE_SIZE = 4096;
+
+    private static final byte[] ZEROES = new byte[8192];
+
+    private final int sectorSize;
+    private final ReentrantLock icbLock = new ReentrantLock();
+    private volatile int icbCacheSize = DEFAULT_ICB_CACHE_SIZE;
+
+    private final Map icbCache = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(final Map.Entry eldest) {
+            return size() > UDFFileSystem.this.icbCacheSize;
+        }
+    };
+
     public UDFFileSystem(File file, boolean readOnly) throws IOException {
         this(file, readOnly, Constants.DEFAULT_BLOCK_SIZE);
     }
 
     public UDFFileSystem(File file, boolean readOnly, int sectorSize) throws IOException {
-        super(file, readOnly, sectorSize, Constants.RESERVED_SECTORS);
+        super(file, ImageSources.open(file), readOnly, sectorSize, Constants.RESERVED_SECTORS);
+        this.sectorSize = sectorSize;
+    }
+
+    /**
+     * Creates a file system that reads its image from <code>source</code>.
+     *
+     * @param file the file the image is stored in, or null if it is not stored in a file
+     * @param source the source of the image data
+     * @param readOnly must be true
+     */
+    public UDFFileSystem(File file, ImageSource source, boolean readOnly) {
+        super(file, source, readOnly, Constants.DEFAULT_BLOCK_SIZE, Constants.RESERVED_SECTORS);
+        this.sectorSize = Constants.DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Sets the number of File Entries to cache.
+     *
+     * @param size the number of entries, or 0 to disable caching
+     */
+    public void setIcbCacheSize(final int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("'size' must be >= 0");
+        }
+
+        this.icbLock.lock();
+
+        try {
+            this.icbCacheSize = size;
+
+            while (this.icbCache.size() > size) {
+                this.icbCache.remove(this.icbCache.keySet().iterator().next());
+            }
+        }
+        finally {
+            this.icbLock.unlock();
+        }
+    }
+
+    public void dropCaches() {
+        this.icbLock.lock();
+
+        try {
+            this.icbCache.clear();
+        }
+        finally {
+            this.icbLock.unlock();
+        }
     }
 
     public InputStream getInputStream(FileEntry entry) {
-        return null;
+        ensureOpen();
+
+        final InputStream stream = new EntryInputStream((UDFFileEntry) entry, this);
+
+        streamOpened();
+
+        return stream;
+    }
+
+    /**
+     * Called by {@link EntryInputStream#close()}.
+     */
+    void entryStreamClosed() {
+        streamClosed();
+    }
+
+    public int read(final FileEntry entry, final long position, final ByteBuffer dst)
+            throws IOException {
+        final int read = readEntry((UDFFileEntry) entry, position, dst);
+
+        recordAccess(read);
+
+        return read;
+    }
+
+    /**
+     * Reads the data of an entry, without counting it as served.
+     */
+    private int readEntry(final UDFFileEntry entry, final long position, final ByteBuffer dst)
+            throws IOException {
+        ensureOpen();
+
+        if (position < 0) {
+            throw new IllegalArgumentException("'position' must be >= 0");
+        }
+
+        final InformationControlBlock icb = entry.getIcb();
+        final long rem = icb.getLength() - position;
+
+        if (rem <= 0) {
+            return -1;
+        }
+
+        final ByteBuffer view = dst.duplicate();
+
+        if (view.remaining() > rem) {
+            view.limit(view.position() + (int) rem);
+        }
+
+        final int start = view.position();
+        final byte[] embedded = icb.getEmbeddedData();
+
+        if (null != embedded) {
+            if (position + view.remaining() > embedded.length) {
+                throw new LoopyException("Embedded data of " + entry.getPath() + " is shorter than "
+                                         + "its length " + icb.getLength());
+            }
+
+            view.put(embedded, (int) position, view.remaining());
+        }
+
+        while (view.hasRemaining()) {
+            final long pos = position + (view.position() - start);
+            final int i = icb.findExtent(pos);
+
+            if (i < 0) {
+                throw new LoopyException("No extent for offset " + pos + " of " + entry.getPath());
+            }
+
+            final long offset = (icb.getExtentBlock(i) * getLogicalBlockSize())
+                                + (pos - icb.getExtentOffset(i));
+            int n = (int) Math.min(view.remaining(),
+                                   icb.getExtentOffset(i) + icb.getExtentLength(i) - pos);
+
+            if (!icb.isExtentRecorded(i)) {
+                // allocated but unrecorded extents read as zeroes
+                while (n > 0) {
+                    final int len = Math.min(n, ZEROES.length);
+                    view.put(ZEROES, 0, len);
+                    n -= len;
+                }
+                continue;
+            }
+
+            final Partition partition = getPartition(icb.getExtentPartition(i));
+
+            n = (int) Math.min(n, partition.getContiguousLength(offset));
+
+            final ByteBuffer part = view.duplicate();
+
+            part.limit(part.position() + n);
+
+            if (readData(partition.getPosition(offset), part) != n) {
+                throw new LoopyException("Unexpected end of UDF image reading " + entry.getPath());
+            }
+
+            view.position(view.position() + n);
+        }
+
+        final int read = view.position() - start;
+
+        dst.position(dst.position() + read);
+
+        return read;
+    }
+
+    protected void loadVolumeDescriptors() throws IOException {
+        super.loadVolumeDescriptors();
+
+        if (null == getVolumeDescriptorSet().getRootEntry()) {
+            throw new LoopyException("No UDF volume recognition sequence found");
+        }
     }
 
     protected Enumeration enumerate(FileEntry root) {
-        return null;
+        return new EntryEnumeration(this, (UDFFileEntry) root);
     }
 
     protected VolumeDescriptorSet createVolumeDescriptorSet() {
         return new UDFVolumeDescriptorSet(this);
     }
-}
\ No newline at end of file
+
+    int getSectorSize() {
+        return this.sectorSize;
+    }
+
+    int getLogicalBlockSize() {
+        return ((UDFVolumeDescriptorSet) getVolumeDescriptorSet()).getBlockSize();
+    }
+
+    Partition getPartition(final int reference) throws LoopyException {
+        return ((UDFVolumeDescriptorSet) getVolumeDescriptorSet()).getPartition(reference);
+    }
+
+    /**
+     * Reads a sector, which is addressed from the start of the image.
+     */
+    byte[] readSector(final long sector) throws IOException {
+        final byte[] buffer = new byte[this.sectorSize];
+
+        if (!readBlock(sector, buffer)) {
+            throw new LoopyException("Unexpected end of UDF image at sector " + sector);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Reads a logical block, which is addressed from the start of its partition.
+     */
+    byte[] readLogicalBlock(final int partition, final long block) throws IOException {
+        final int blockSize = getLogicalBlockSize();
+        final byte[] buffer = new byte[blockSize];
+        final long position = getPartition(partition).getPosition(block * blockSize);
+
+        if (readData(position, buffer, 0, blockSize) != blockSize) {
+            throw new LoopyException("Unexpected end of UDF image at block " + block
+                                     + " of partition " + partition);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Returns the File Entry at the given logical block, reading it if it is not cached.
+     */
+    InformationControlBlock getIcb(final int partition, final long block) throws IOException {
+        final Long key = Long.valueOf(((long) partition << 32) | block);
+
+        this.icbLock.lock();
+
+        try {
+            final InformationControlBlock icb = (InformationControlBlock) this.icbCache.get(key);
+
+            if (null != icb) {
+                return icb;
+            }
+        }
+        finally {
+            this.icbLock.unlock();
+        }
+
+        final InformationControlBlock icb = InformationControlBlock.read(this, partition, block);
+
+        this.icbLock.lock();
+
+        try {
+            this.icbCache.put(key, icb);
+        }
+        finally {
+            this.icbLock.unlock();
+        }
+
+        return icb;
+    }
+
+    /**
+     * Returns the complete data of an entry, e.g. of a directory.
+     */
+    byte[] getBytes(final UDFFileEntry entry) throws IOException {
+        if (entry.getLength() > Integer.MAX_VALUE) {
+            throw new LoopyException("Entry too large: " + entry.getPath());
+        }
+
+        final byte[] buffer = new byte[(int) entry.getLength()];
+
+        if (buffer.length > 0 && readEntry(entry, 0, ByteBuffer.wrap(buffer)) != buffer.length) {
+            throw new LoopyException("Unexpected end of UDF image reading " + entry.getPath());
+        }
+
+        return buffer;
+    }
+}
@@ -17,23 +17,307 @@ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
 */
 package net.didion.loopy.udf;
 
-import net.didion.loopy.VolumeDescriptorSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import net.didion.loopy.FileEntry;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.VolumeDescriptorSet;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Reads the volume structure of a UDF file system (ECMA-167, as profiled by OSTA UDF 1.02 to
+ * 2.60). The Volume Recognition Sequence that follows the reserved sectors is passed to
+ * {@link #deserialize(byte[])} one sector at a time, as for ISO 9660; an ISO 9660 bridge volume
+ * may precede it. When the sequence ends, the rest of the volume structure is located from the
+ * Anchor Volume Descriptor Pointer at sector 256:
+ * <pre>
+     descriptor                      tag  used fields
+     ------------------------------  ---  ---------------------------------------------
+     Anchor Volume Descriptor Ptr    2    main Volume Descriptor Sequence extent at 16
+     Volume Descriptor Pointer       3    next extent of the sequence at 20
+     Partition Descriptor            5    partition number at 22, starting sector at 188
+     Logical Volume Descriptor       6    identifier at 84, block size at 212, File Set
+                                          Descriptor location at 248, partition maps at 440
+     Terminating Descriptor          8
+     File Set Descriptor             256  root directory ICB at 400
+   </pre>
+ * Partition maps of type 1 and sparable partitions are read as contiguous sectors. The metadata
+ * partition of UDF 2.50 and later is read through its metadata file, or the metadata mirror
+ * file if the former cannot be read. Virtual partitions, used on incrementally written CD-R
+ * media, are not supported.
+ */
 public class UDFVolumeDescriptorSet implements VolumeDescriptorSet {
-    private UDFFileSystem fs;
+    public static final int TAG_ANCHOR = 2;
+    public static final int TAG_POINTER = 3;
+    public static final int TAG_PARTITION = 5;
+    public static final int TAG_LOGICAL_VOLUME = 6;
+    public static final int TAG_TERMINATOR = 8;
+    public static final int TAG_FILE_SET = 256;
+    public static final int TAG_FILE_IDENTIFIER = 257;
+
+    /**
+     * The sector of the Anchor Volume Descriptor Pointer.
+     */
+    public static final int ANCHOR_SECTOR = 256;
+
+    private static final Log log = LogFactory.getLog(UDFVolumeDescriptorSet.class);
+
+    // bound on Volume Descriptor Pointers, against loops in corrupt images
+    private static final int MAX_SEQUENCE_EXTENTS = 64;
+
+    private final UDFFileSystem fileSystem;
+
+    private boolean hasNsr = false;
+    private String volumeIdentifier;
+    private int blockSize;
+    private Partition[] partitions;
+    private UDFFileEntry rootEntry;
+
+    // starting positions of the partitions, by partition number, in sectors
+    private final Map partitionStarts = new HashMap();
 
-    public UDFVolumeDescriptorSet(UDFFileSystem fs) {
-        this.fs = fs;    
+    public UDFVolumeDescriptorSet(UDFFileSystem fileSystem) {
+        this.fileSystem = fileSystem;
     }
 
-    public boolean deserialize(byte[] descriptorBytes) throws IOException {
-        return false;
+    public boolean deserialize(byte[] descriptor) throws IOException {
+        final String identifier = getAscii(descriptor, 1, 5);
+
+        if ("NSR02".equals(identifier) || "NSR03".equals(identifier)) {
+            log.debug("Found " + identifier + " descriptor");
+            this.hasNsr = true;
+            return false;
+        }
+        if ("TEA01".equals(identifier)) {
+            if (!this.hasNsr) {
+                throw new LoopyException("No UDF NSR descriptor found");
+            }
+
+            loadVolume();
+            return true;
+        }
+        if ("BEA01".equals(identifier) || "CD001".equals(identifier)
+            || "BOOT2".equals(identifier) || "CDW02".equals(identifier)) {
+            return false;
+        }
+
+        throw new LoopyException("No UDF volume recognition sequence found");
     }
 
     public FileEntry getRootEntry() {
-        return null;
+        return this.rootEntry;
+    }
+
+    public String getVolumeIdentifier() {
+        return this.volumeIdentifier;
+    }
+
+    /**
+     * Returns the logical block size of the volume.
+     */
+    int getBlockSize() {
+        return this.blockSize;
+    }
+
+    /**
+     * Returns the partition with the given partition reference number.
+     */
+    Partition getPartition(final int reference) throws LoopyException {
+        if (reference < 0 || reference >= this.partitions.length
+            || null == this.partitions[reference]) {
+            throw new LoopyException("Unknown partition reference " + reference);
+        }
+
+        return this.partitions[reference];
+    }
+
+    private void loadVolume() throws IOException {
+        final byte[] anchor = this.fileSystem.readSector(ANCHOR_SECTOR);
+
+        Util.checkTag(anchor, 0, TAG_ANCHOR);
+
+        final byte[] lvd = readSequence(Util.getUInt32(anchor, 20), Util.getUInt32(anchor, 16));
+
+        this.volumeIdentifier = Util.getDString(lvd, 84, 128);
+        this.blockSize = (int) Util.getUInt32(lvd, 212);
+
+        if (this.blockSize <= 0 || this.blockSize % this.fileSystem.getSectorSize() != 0) {
+            throw new LoopyException("Unsupported logical block size " + this.blockSize);
+        }
+
+        readPartitionMaps(lvd);
+
+        // the File Set Descriptor is located by a long_ad
+        final byte[] fsd = this.fileSystem.readLogicalBlock(
+                Util.getUInt16(lvd, 256), Util.getUInt32(lvd, 252));
+
+        Util.checkTag(fsd, 0, TAG_FILE_SET);
+
+        final InformationControlBlock root =
+                this.fileSystem.getIcb(Util.getUInt16(fsd, 408), Util.getUInt32(fsd, 404));
+
+        this.rootEntry = new UDFFileEntry(null, "", root);
+    }
+
+    /**
+     * Reads the Volume Descriptor Sequence, recording the partition starts.
+     *
+     * @return the Logical Volume Descriptor
+     */
+    private byte[] readSequence(long sector, long length) throws IOException {
+        byte[] lvd = null;
+        int extents = 0;
+
+        this.partitionStarts.clear();
+
+        for (long end = sector + (length / this.fileSystem.getSectorSize()); sector < end;
+             sector++) {
+            final byte[] descriptor = this.fileSystem.readSector(sector);
+            final int tag = Util.getTagIdentifier(descriptor, 0);
+
+            if (TAG_TERMINATOR == tag) {
+                break;
+            }
+
+            switch (tag) {
+                case TAG_POINTER:
+                    if (++extents > MAX_SEQUENCE_EXTENTS) {
+                        throw new LoopyException("Too many volume descriptor extents");
+                    }
+
+                    length = Util.getUInt32(descriptor, 20);
+                    end = Util.getUInt32(descriptor, 24)
+                          + (length / this.fileSystem.getSectorSize());
+                    sector = Util.getUInt32(descriptor, 24) - 1;
+                    break;
+                case TAG_PARTITION:
+                    this.partitionStarts.put(Integer.valueOf(Util.getUInt16(descriptor, 22)),
+                                             Long.valueOf(Util.getUInt32(descriptor, 188)));
+                    break;
+                case TAG_LOGICAL_VOLUME:
+                    lvd = descriptor;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (null == lvd) {
+            throw new LoopyException("No logical volume descriptor found");
+        }
+
+        return lvd;
+    }
+
+    private void readPartitionMaps(final byte[] lvd) throws IOException {
+        final int count = (int) Util.getUInt32(lvd, 268);
+
+        if (count <= 0 || count > 0xFFFF) {
+            throw new LoopyException("Invalid number of partition maps: " + count);
+        }
+
+        this.partitions = new Partition[count];
+
+        // metadata partitions are resolved once all physical partitions are known
+        final int[] metadataNumbers = new int[count];
+        final long[] metadataFiles = new long[count];
+        final long[] metadataMirrors = new long[count];
+        final int[] references = new int[count];
+
+        int pos = 440;
+
+        for (int i = 0; i < count; i++) {
+            if (pos + 2 > lvd.length) {
+                throw new LoopyException("Truncated partition maps");
+            }
+
+            final int type = lvd[pos] & 0xFF;
+            final int mapLength = lvd[pos + 1] & 0xFF;
+
+            metadataNumbers[i] = -1;
+
+            if (1 == type) {
+                final int number = Util.getUInt16(lvd, pos + 4);
+
+                this.partitions[i] = new Partition.Physical(getPartitionStart(number));
+                references[i] = number;
+            }
+            else if (2 == type) {
+                final String identifier = getAscii(lvd, pos + 5, 23);
+                final int number = Util.getUInt16(lvd, pos + 38);
+
+                if (identifier.startsWith("*UDF Metadata Partition")) {
+                    metadataNumbers[i] = number;
+                    metadataFiles[i] = Util.getUInt32(lvd, pos + 40);
+                    metadataMirrors[i] = Util.getUInt32(lvd, pos + 44);
+                }
+                else if (identifier.startsWith("*UDF Sparable Partition")) {
+                    this.partitions[i] = new Partition.Physical(getPartitionStart(number));
+                    references[i] = number;
+                }
+                else {
+                    throw new LoopyException("Unsupported partition type: " + identifier.trim());
+                }
+            }
+            else {
+                throw new LoopyException("Unknown partition map type " + type);
+            }
+
+            pos += mapLength;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (metadataNumbers[i] >= 0) {
+                final int physical = findReference(references, metadataNumbers[i]);
+
+                InformationControlBlock metadataFile;
+
+                try {
+                    metadataFile = this.fileSystem.getIcb(physical, metadataFiles[i]);
+                }
+                catch (LoopyException ex) {
+                    log.warn("Cannot read metadata file, using the mirror: " + ex.getMessage());
+                    metadataFile = this.fileSystem.getIcb(physical, metadataMirrors[i]);
+                }
+
+                this.partitions[i] = new Partition.Metadata(
+                        this.partitions[physical], metadataFile, this.blockSize);
+            }
+        }
+    }
+
+    private long getPartitionStart(final int number) throws LoopyException {
+        final Long start = (Long) this.partitionStarts.get(Integer.valueOf(number));
+
+        if (null == start) {
+            throw new LoopyException("No descriptor for partition " + number);
+        }
+
+        return start.longValue() * this.fileSystem.getSectorSize();
+    }
+
+    private int findReference(final int[] references, final int number)
+            throws LoopyException {
+        for (int i = 0; i < references.length; i++) {
+            if (null != this.partitions[i] && references[i] == number) {
+                return i;
+            }
+        }
+
+        throw new LoopyException("No physical partition " + number);
+    }
+
+    private static String getAscii(final byte[] block, final int pos, final int length) {
+        try {
+            return new String(block, pos, length, "US-ASCII");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,186 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.udf;
+
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.util.LittleEndian;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Helpers for decoding UDF structures. Unlike the byte positions of ISO 9660, the byte positions
+ * of ECMA-167 start at 0, and so do the offsets used here.
+ */
+final class Util {
+    /**
+     * Gets an unsigned 16-bit value LSB first.
+     */
+    static int getUInt16(final byte[] block, final int pos) {
+        return LittleEndian.getUInt16(block, pos);
+    }
+
+    /**
+     * Gets an unsigned 32-bit value LSB first.
+     */
+    static long getUInt32(final byte[] block, final int pos) {
+        return LittleEndian.getUInt32(block, pos);
+    }
+
+    /**
+     * Gets an unsigned 64-bit value LSB first.
+     */
+    static long getUInt64(final byte[] block, final int pos) throws LoopyException {
+        final long value = getUInt32(block, pos) | (getUInt32(block, pos + 4) << 32);
+
+        if (value < 0) {
+            throw new LoopyException("Value out of range");
+        }
+
+        return value;
+    }
+
+    /**
+     * Checks the descriptor tag at <code>pos</code>. Layout of a descriptor tag:
+     * <pre>
+         length  pos  contents
+         ------  ---  --------------------------------------------------------
+         2       0    tag identifier
+         2       2    descriptor version
+         1       4    checksum of bytes 0-3 and 5-15
+         1       5    reserved
+         2       6    tag serial number
+         2       8    descriptor CRC
+         2       10   descriptor CRC length
+         4       12   tag location
+       </pre>
+     *
+     * @param block
+     * @param pos
+     * @param identifier the expected tag identifier
+     * @throws LoopyException if there is no valid descriptor tag with that identifier
+     */
+    static void checkTag(final byte[] block, final int pos, final int identifier)
+            throws LoopyException {
+        if (getTagIdentifier(block, pos) != identifier) {
+            throw new LoopyException("Expected UDF descriptor " + identifier + ", found "
+                                     + getTagIdentifier(block, pos));
+        }
+    }
+
+    /**
+     * Returns the identifier of the descriptor tag at <code>pos</code>, or -1 if the tag checksum
+     * is wrong.
+     */
+    static int getTagIdentifier(final byte[] block, final int pos) {
+        int sum = 0;
+
+        for (int i = 0; i < 16; i++) {
+            if (i != 4) {
+                sum += block[pos + i] & 0xFF;
+            }
+        }
+
+        if ((sum & 0xFF) != (block[pos + 4] & 0xFF)) {
+            return -1;
+        }
+
+        return getUInt16(block, pos);
+    }
+
+    /**
+     * Gets a dstring, a field of <code>length</code> bytes whose last byte is the number of bytes
+     * used.
+     */
+    static String getDString(final byte[] block, final int pos, final int length) {
+        final int used = block[pos + length - 1] & 0xFF;
+
+        return getDChars(block, pos, Math.min(used, length - 1));
+    }
+
+    /**
+     * Gets <code>length</code> bytes of d-characters in the OSTA compressed Unicode encoding. The
+     * first byte is the compression ID: 8 for one byte per character, 16 for two bytes per
+     * character, big endian.
+     */
+    static String getDChars(final byte[] block, final int pos, final int length) {
+        if (length <= 1) {
+            return "";
+        }
+
+        final int compression = block[pos] & 0xFF;
+
+        try {
+            if (16 == compression || 255 == compression) {
+                return new String(block, pos + 1, (length - 1) & ~1, "UTF-16BE");
+            }
+
+            return new String(block, pos + 1, length - 1, "ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Gets a timestamp. Layout of a timestamp:
+     * <pre>
+         length  pos  contents
+         ------  ---  --------------------------------------------------------
+         2       0    type (upper 4 bits) and time zone offset in minutes (lower 12 bits)
+         2       2    year
+         1       4    month
+         1       5    day
+         1       6    hour
+         1       7    minute
+         1       8    second
+         1       9    centiseconds
+         1       10   hundreds of microseconds
+         1       11   microseconds
+       </pre>
+     */
+    static long getTimestamp(final byte[] block, final int pos) {
+        final int typeAndZone = getUInt16(block, pos);
+
+        // sign-extend the 12 bit offset
+        final int zone = (typeAndZone << 20) >> 20;
+
+        final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        cal.clear();
+        cal.set(Calendar.YEAR, (short) getUInt16(block, pos + 2));
+        cal.set(Calendar.MONTH, block[pos + 4] - 1);
+        cal.set(Calendar.DATE, block[pos + 5]);
+        cal.set(Calendar.HOUR_OF_DAY, block[pos + 6]);
+        cal.set(Calendar.MINUTE, block[pos + 7]);
+        cal.set(Calendar.SECOND, block[pos + 8]);
+        cal.set(Calendar.MILLISECOND, (block[pos + 9] * 10) + (block[pos + 10] / 10));
+
+        long time = cal.getTimeInMillis();
+
+        // -2047 means the offset is not specified
+        if ((typeAndZone >>> 12) == 1 && zone != -2047) {
+            time -= zone * 60000L;
+        }
+
+        return time;
+    }
+
+    private Util() {
+    }
+}
@@ -0,0 +1,159 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe least-recently-used cache of byte arrays, bounded by the total number of bytes it
+ * holds. The lock is only held while the map is updated, never while a value is computed.
+ */
+public class BlockCache {
+    private final LinkedHashMap map = new LinkedHashMap(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long maxSize;
+    private long size = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the largest number of bytes to hold
+     */
+    public BlockCache(final long maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the cached value for <code>key</code>.
+     *
+     * @param key
+     * @return the value, or null if it is not cached
+     */
+    public byte[] get(final Object key) {
+        this.lock.lock();
+
+        try {
+            return (byte[]) this.map.get(key);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a value, evicting the least recently used values if the cache is full. Values larger
+     * than the cache are not added.
+     *
+     * @param key
+     * @param value
+     */
+    public void put(final Object key, final byte[] value) {
+        this.lock.lock();
+
+        try {
+            if (value.length > this.maxSize) {
+                return;
+            }
+
+            final byte[] old = (byte[]) this.map.put(key, value);
+
+            if (null != old) {
+                this.size -= old.length;
+            }
+
+            this.size += value.length;
+            evict();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all values.
+     */
+    public void clear() {
+        this.lock.lock();
+
+        try {
+            this.map.clear();
+            this.size = 0;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     *
+     * @return the cache size, in bytes
+     */
+    public long getSize() {
+        this.lock.lock();
+
+        try {
+            return this.size;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest number of bytes the cache holds.
+     *
+     * @return the maximum size, in bytes
+     */
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Changes the largest number of bytes the cache holds, evicting values if necessary. A size
+     * of 0 disables the cache.
+     *
+     * @param maxSize the maximum size, in bytes
+     */
+    public void setMaxSize(final long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("'maxSize' must be >= 0");
+        }
+
+        this.lock.lock();
+
+        try {
+            this.maxSize = maxSize;
+            evict();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void evict() {
+        for (Iterator it = this.map.entrySet().iterator();
+             this.size > this.maxSize && it.hasNext();) {
+            this.size -= ((byte[]) ((Map.Entry) it.next()).getValue()).length;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.util;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe least-recently-used cache of the complete contents of small files, bounded by the
+ * total number of bytes it holds. Contents are held in arrays on the Java heap or, optionally, in
+ * direct buffers outside of it.
+ * <p/>
+ * Contents are keyed by an owner, e.g. a file system, and a position within the owner, e.g. a
+ * start block. One cache can therefore be shared by several images, and still report and drop
+ * the contents of each image separately. Owners are compared by identity.
+ */
+public class ContentCache {
+    /**
+     * Default size of the largest content that is cached.
+     */
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 64 * 1024;
+
+    private final LinkedHashMap map = new LinkedHashMap(16, 0.75f, true);
+    private final Map ownerSizes = new HashMap();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxEntrySize;
+    private final boolean direct;
+    private volatile long maxSize;
+    private long size = 0;
+
+    /**
+     * Creates a cache on the heap for contents of up to {@link #DEFAULT_MAX_ENTRY_SIZE} bytes.
+     *
+     * @param maxSize the largest number of bytes to hold
+     */
+    public ContentCache(final long maxSize) {
+        this(maxSize, DEFAULT_MAX_ENTRY_SIZE, false);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the largest number of bytes to hold
+     * @param maxEntrySize the size of the largest content to cache
+     * @param direct whether to store contents in direct buffers, outside the Java heap
+     */
+    public ContentCache(final long maxSize, final int maxEntrySize, final boolean direct) {
+        if (maxEntrySize < 0) {
+            throw new IllegalArgumentException("'maxEntrySize' must be >= 0");
+        }
+
+        this.maxEntrySize = maxEntrySize;
+        this.direct = direct;
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns true if content of <code>length</code> bytes would be added by
+     * {@link #put(Object, long, ByteBuffer)}.
+     *
+     * @param length the content length
+     * @return true if the content fits
+     */
+    public boolean isCacheable(final long length) {
+        return length > 0 && length <= this.maxEntrySize && length <= this.maxSize;
+    }
+
+    /**
+     * Returns the cached content at <code>position</code> of <code>owner</code>.
+     *
+     * @param owner
+     * @param position
+     * @return a read-only buffer holding the content from position to limit, or null if it is
+     * not cached
+     */
+    public ByteBuffer get(final Object owner, final long position) {
+        final ByteBuffer content;
+
+        this.lock.lock();
+
+        try {
+            content = (ByteBuffer) this.map.get(new Key(owner, position));
+        }
+        finally {
+            this.lock.unlock();
+        }
+
+        return (null == content) ? null : content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds the remaining bytes of <code>content</code>, evicting the least recently used contents
+     * if the cache is full. The cache takes ownership of the bytes, which must not be modified
+     * afterwards; they are only copied if <code>content</code> is not the kind of buffer the cache
+     * holds, see {@link #isDirect()}. The position of <code>content</code> is not changed.
+     *
+     * @param owner
+     * @param position
+     * @param content
+     * @return true if the content was added, false if it is too large
+     */
+    public boolean put(final Object owner, final long position, final ByteBuffer content) {
+        final int length = content.remaining();
+
+        if (!isCacheable(length)) {
+            return false;
+        }
+
+        final ByteBuffer stored;
+
+        if (content.isDirect() == this.direct) {
+            stored = content.slice();
+        }
+        else {
+            // copy outside of the lock
+            stored = this.direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+            stored.put(content.duplicate());
+            stored.flip();
+        }
+
+        this.lock.lock();
+
+        try {
+            final Key key = new Key(owner, position);
+            final ByteBuffer old = (ByteBuffer) this.map.put(key, stored);
+
+            if (null != old) {
+                add(owner, -old.capacity());
+            }
+
+            add(owner, length);
+            evict();
+        }
+        finally {
+            this.lock.unlock();
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes all contents of <code>owner</code>.
+     *
+     * @param owner
+     */
+    public void remove(final Object owner) {
+        this.lock.lock();
+
+        try {
+            if (null == this.ownerSizes.remove(new Key(owner, 0))) {
+                return;
+            }
+
+            for (Iterator it = this.map.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry entry = (Map.Entry) it.next();
+
+                if (((Key) entry.getKey()).owner == owner) {
+                    this.size -= ((ByteBuffer) entry.getValue()).capacity();
+                    it.remove();
+                }
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all contents.
+     */
+    public void clear() {
+        this.lock.lock();
+
+        try {
+            this.map.clear();
+            this.ownerSizes.clear();
+            this.size = 0;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     *
+     * @return the cache size, in bytes
+     */
+    public long getSize() {
+        this.lock.lock();
+
+        try {
+            return this.size;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held for <code>owner</code>.
+     *
+     * @param owner
+     * @return the size of the owner's contents, in bytes
+     */
+    public long getSize(final Object owner) {
+        this.lock.lock();
+
+        try {
+            final long[] ownerSize = (long[]) this.ownerSizes.get(new Key(owner, 0));
+            return (null == ownerSize) ? 0 : ownerSize[0];
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest number of bytes the cache holds.
+     *
+     * @return the maximum size, in bytes
+     */
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Returns the size of the largest content that is cached.
+     *
+     * @return the maximum content size, in bytes
+     */
+    public int getMaxEntrySize() {
+        return this.maxEntrySize;
+    }
+
+    /**
+     * Returns whether contents are stored outside of the Java heap.
+     *
+     * @return true if contents are stored in direct buffers
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * Changes the largest number of bytes the cache holds, evicting contents if necessary. A size
+     * of 0 disables the cache.
+     *
+     * @param maxSize the maximum size, in bytes
+     */
+    public void setMaxSize(final long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("'maxSize' must be >= 0");
+        }
+
+        this.lock.lock();
+
+        try {
+            this.maxSize = maxSize;
+            evict();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds <code>delta</code> bytes to the size of the cache and of <code>owner</code>.
+     */
+    private void add(final Object owner, final long delta) {
+        final Key ownerKey = new Key(owner, 0);
+        long[] ownerSize = (long[]) this.ownerSizes.get(ownerKey);
+
+        if (null == ownerSize) {
+            ownerSize = new long[1];
+            this.ownerSizes.put(ownerKey, ownerSize);
+        }
+
+        ownerSize[0] += delta;
+        this.size += delta;
+
+        if (ownerSize[0] == 0) {
+            this.ownerSizes.remove(ownerKey);
+        }
+    }
+
+    private void evict() {
+        for (Iterator it = this.map.entrySet().iterator();
+             this.size > this.maxSize && it.hasNext();) {
+            final Map.Entry entry = (Map.Entry) it.next();
+
+            it.remove();
+            add(((Key) entry.getKey()).owner, -((ByteBuffer) entry.getValue()).capacity());
+        }
+    }
+
+    /**
+     * A position within an owner. Owners are compared by identity, so that a file system is
+     * never confused with another one that happens to be equal.
+     */
+    private static final class Key {
+        final Object owner;
+        final long position;
+
+        Key(final Object owner, final long position) {
+            this.owner = owner;
+            this.position = position;
+        }
+
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+
+            return this.owner == other.owner && this.position == other.position;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(this.owner) * 31
+                   + (int) (this.position ^ (this.position >>> 32));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy;
+
+import junit.framework.TestCase;
+import net.didion.loopy.iso9660.ISO9660FileSystem;
+import net.didion.loopy.iso9660.IsoImageBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads an image from many threads at once through an {@link ElevatorScheduler} and checks the
+ * bytes every reader gets back, whether its request was served on its own or as part of a merged
+ * read.
+ */
+public class ElevatorSchedulerTest extends TestCase {
+    private static final int THREADS = 16;
+    private static final int READS = 400;
+
+    private byte[] image;
+    private SlowSource source;
+    private ISO9660FileSystem fileSystem;
+
+    protected void setUp() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+        final byte[] data = new byte[2 * 1024 * 1024];
+
+        new Random(1).nextBytes(data);
+        builder.addFile("DATA.BIN", data);
+        builder.addFile("SMALL.TXT", "small\n".getBytes("US-ASCII"));
+
+        this.image = builder.build();
+        this.source = new SlowSource(this.image);
+        this.fileSystem = new ISO9660FileSystem(null, this.source, true);
+    }
+
+    protected void tearDown() throws IOException {
+        this.fileSystem.close();
+    }
+
+    public void testConcurrentReads() throws Throwable {
+        final ElevatorScheduler scheduler = new ElevatorScheduler(this.fileSystem);
+
+        // each read takes a while, so that requests queue up behind the current batch
+        this.source.delayNanos = 200 * 1000;
+
+        run(new Reader() {
+            public void read(final Random random, final int i) throws IOException {
+                final int length = 1 + random.nextInt(16 * 1024);
+                // some reads start near the end and are cut short
+                final long pos = (i % 50 == 0)
+                        ? ElevatorSchedulerTest.this.image.length - random.nextInt(length)
+                        : random.nextInt(ElevatorSchedulerTest.this.image.length);
+                final ByteBuffer dst = (i % 2 == 0)
+                        ? ByteBuffer.allocate(length) : ByteBuffer.allocateDirect(length);
+                final int read = scheduler.read(pos, dst);
+
+                check(pos, dst, read);
+            }
+        });
+
+        assertEquals(THREADS * READS, scheduler.getRequestCount());
+        assertTrue(scheduler.getReadCount() + " reads for " + scheduler.getRequestCount()
+                   + " requests", scheduler.getReadCount() < scheduler.getRequestCount());
+        assertEquals(scheduler.getReadCount(), this.source.reads);
+    }
+
+    public void testEntryReads() throws Throwable {
+        final ElevatorScheduler scheduler = new ElevatorScheduler(this.fileSystem);
+        FileEntry found = null;
+
+        this.fileSystem.setScheduler(scheduler);
+
+        for (Enumeration e = this.fileSystem.getEntries(); e.hasMoreElements();) {
+            final FileEntry next = (FileEntry) e.nextElement();
+
+            if ("DATA.BIN".equals(next.getPath())) {
+                found = next;
+            }
+        }
+
+        final FileEntry entry = found;
+        final ByteBuffer expected = ByteBuffer.allocate((int) entry.getSize());
+
+        this.fileSystem.setScheduler(null);
+        assertEquals(expected.capacity(), this.fileSystem.read(entry, 0, expected));
+        this.fileSystem.setScheduler(scheduler);
+        this.source.delayNanos = 200 * 1000;
+
+        run(new Reader() {
+            public void read(final Random random, final int i) throws IOException {
+                final int pos = random.nextInt((int) entry.getSize());
+                final ByteBuffer dst = (i % 2 == 0)
+                        ? ByteBuffer.allocate(8192) : ByteBuffer.allocateDirect(8192);
+                final int read = ElevatorSchedulerTest.this.fileSystem.read(entry, pos, dst);
+
+                assertEquals(Math.min(8192, (int) entry.getSize() - pos), read);
+
+                for (int k = 0; k < read; k++) {
+                    if (expected.get(pos + k) != dst.get(k)) {
+                        fail("Mismatch at " + (pos + k));
+                    }
+                }
+            }
+        });
+
+        assertTrue(scheduler.getReadCount() < scheduler.getRequestCount());
+    }
+
+    public void testEndOfImage() throws IOException {
+        final ElevatorScheduler scheduler = new ElevatorScheduler(this.fileSystem);
+        final int size = this.image.length;
+        final ByteBuffer dst = ByteBuffer.allocate(1000);
+
+        assertEquals(100, scheduler.read(size - 100, dst));
+        check(size - 100, dst, 100);
+
+        dst.clear();
+        assertEquals(-1, scheduler.read(size, dst));
+        assertEquals(-1, scheduler.read(size + 5000, dst));
+        assertEquals(0, dst.position());
+    }
+
+    public void testLargeRequest() throws IOException {
+        final ElevatorScheduler scheduler =
+                new ElevatorScheduler(this.fileSystem, 0, TimeUnit.MICROSECONDS, 4096, 0);
+        final ByteBuffer dst = ByteBuffer.allocate(10000);
+
+        // larger than a merged read may be, so it is read directly
+        assertEquals(10000, scheduler.read(12345, dst));
+        check(12345, dst, 10000);
+        assertEquals(1, scheduler.getReadCount());
+    }
+
+    public void testReadFailure() throws Throwable {
+        final ElevatorScheduler scheduler = new ElevatorScheduler(this.fileSystem);
+
+        this.source.delayNanos = 200 * 1000;
+        this.source.failing = true;
+
+        run(new Reader() {
+            public void read(final Random random, final int i) {
+                try {
+                    scheduler.read(random.nextInt(ElevatorSchedulerTest.this.image.length),
+                                   ByteBuffer.allocate(100));
+                    fail("Expected an IOException");
+                }
+                catch (IOException ex) {
+                    assertEquals("Test failure", ex.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks the bytes read from <code>pos</code> against the image.
+     */
+    private void check(final long pos, final ByteBuffer dst, final int read) {
+        final int expected = (int) Math.min(dst.capacity(), this.image.length - pos);
+
+        assertEquals((expected <= 0) ? -1 : expected, read);
+        assertEquals(Math.max(read, 0), dst.position());
+
+        for (int k = 0; k < read; k++) {
+            if (this.image[(int) pos + k] != dst.get(k)) {
+                fail("Mismatch at " + (pos + k));
+            }
+        }
+    }
+
+    /**
+     * Runs {@link #READS} reads on each of {@link #THREADS} threads, all started at once, and
+     * rethrows the first failure.
+     */
+    private static void run(final Reader reader) throws Throwable {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List failures = new ArrayList();
+        final Thread[] threads = new Thread[THREADS];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+
+            threads[t] = new Thread() {
+                public void run() {
+                    final Random random = new Random(seed);
+
+                    try {
+                        start.await();
+
+                        for (int i = 0; i < READS; i++) {
+                            reader.read(random, i);
+                        }
+                    }
+                    catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        start.countDown();
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        if (!failures.isEmpty()) {
+            throw (Throwable) failures.get(0);
+        }
+    }
+
+    private interface Reader {
+        void read(Random random, int i) throws IOException;
+    }
+
+    /**
+     * An image in memory whose reads take a while, counted, and fail on request.
+     */
+    private static class SlowSource implements ImageSource {
+        private final byte[] image;
+        volatile long delayNanos = 0;
+        volatile boolean failing = false;
+        volatile int reads = 0;
+
+        SlowSource(final byte[] image) {
+            this.image = image;
+        }
+
+        public int read(final long pos, final ByteBuffer dst) throws IOException {
+            synchronized (this) {
+                this.reads++;
+            }
+
+            if (this.delayNanos > 0) {
+                LockSupport.parkNanos(this.delayNanos);
+            }
+
+            if (this.failing) {
+                throw new IOException("Test failure");
+            }
+            if (pos >= this.image.length) {
+                return -1;
+            }
+
+            final int n = (int) Math.min(dst.remaining(), this.image.length - pos);
+
+            dst.put(this.image, (int) pos, n);
+
+            return n;
+        }
+
+        public long size() {
+            return this.image.length;
+        }
+
+        public void close() {
+        }
+    }
+}
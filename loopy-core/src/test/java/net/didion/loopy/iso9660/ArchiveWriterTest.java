@@ -0,0 +1,357 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Converts a generated image with {@link ArchiveWriter} and reads the archives back: tar archives
+ * with a minimal ustar and pax reader, zip archives with {@link ZipFile}.
+ */
+public class ArchiveWriterTest extends TestCase {
+    private static final int TAR_BLOCK = 512;
+
+    // a file name that fits into neither the ustar name nor the ustar prefix
+    private static final String LONG_NAME = repeat('L', 120) + ".TXT";
+
+    // a path longer than 100 bytes that can be split into prefix and name
+    private static final String LONG_DIRECTORY = repeat('D', 90);
+
+    private final Random random = new Random(1);
+    private final Map expected = new TreeMap();
+    private final Set directories = new TreeSet();
+    private File file;
+
+    protected void tearDown() {
+        if (null != this.file) {
+            this.file.delete();
+        }
+    }
+
+    public void testTar() throws IOException {
+        final ISO9660FileSystem fileSystem = createImage();
+
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            new ArchiveWriter(fileSystem).writeTar(out);
+
+            final Map files = new TreeMap();
+            final Map links = new TreeMap();
+            final Set tarDirectories = new TreeSet();
+
+            readTar(out.toByteArray(), files, links, tarDirectories);
+
+            assertEquals(this.directories, tarDirectories);
+            assertEquals(2, links.size());
+
+            // links refer to a file with the same content, which is stored once
+            for (Iterator i = links.entrySet().iterator(); i.hasNext();) {
+                final Map.Entry link = (Map.Entry) i.next();
+
+                assertTrue(link.getValue() + " not in archive", files.containsKey(link.getValue()));
+                files.put(link.getKey(), files.get(link.getValue()));
+            }
+
+            checkFiles(files);
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    public void testZip() throws IOException {
+        final ISO9660FileSystem fileSystem = createImage();
+
+        this.file = File.createTempFile("loopy", ".zip");
+
+        try {
+            final FileOutputStream out = new FileOutputStream(this.file);
+
+            try {
+                new ArchiveWriter(fileSystem).writeZip(out.getChannel());
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            fileSystem.close();
+        }
+
+        final ZipFile zip = new ZipFile(this.file);
+        final Map files = new TreeMap();
+        final Set zipDirectories = new TreeSet();
+
+        try {
+            for (Enumeration e = zip.entries(); e.hasMoreElements();) {
+                final ZipEntry entry = (ZipEntry) e.nextElement();
+
+                if (entry.isDirectory()) {
+                    zipDirectories.add(entry.getName());
+                    continue;
+                }
+
+                final byte[] data = ISO9660FileSystemTest.readFully(zip.getInputStream(entry));
+                final CRC32 crc = new CRC32();
+
+                crc.update(data, 0, data.length);
+                assertEquals(entry.getName(), ZipEntry.STORED, entry.getMethod());
+                assertEquals(entry.getName(), crc.getValue(), entry.getCrc());
+                files.put(entry.getName(), data);
+            }
+        }
+        finally {
+            zip.close();
+        }
+
+        assertEquals(this.directories, zipDirectories);
+        checkFiles(files);
+    }
+
+    private ISO9660FileSystem createImage() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        add(builder, "README.TXT", data(100));
+        add(builder, "EMPTY.DAT", new byte[0]);
+        add(builder, "DATA/BIG.BIN", data(300 * 1024));
+        add(builder, "DATA/SUB/SMALL.BIN", data(1000));
+        add(builder, LONG_NAME, data(10));
+        add(builder, LONG_DIRECTORY + "/" + LONG_DIRECTORY + "/FILE.TXT", data(20));
+
+        final byte[] compressed = text(100 * 1024);
+
+        builder.addZisofsFile("DATA/PACKED.Z", compressed, 15);
+        this.expected.put("DATA/PACKED.Z", compressed);
+
+        builder.addLink("COPY.BIN", "DATA/SUB/SMALL.BIN");
+        builder.addLink("DATA/COPY.Z", "DATA/PACKED.Z");
+        this.expected.put("COPY.BIN", this.expected.get("DATA/SUB/SMALL.BIN"));
+        this.expected.put("DATA/COPY.Z", compressed);
+
+        builder.addDirectory("EMPTY");
+
+        this.directories.addAll(Arrays.asList(new String[] {
+                "DATA/", "DATA/SUB/", "EMPTY/", LONG_DIRECTORY + "/",
+                LONG_DIRECTORY + "/" + LONG_DIRECTORY + "/"
+        }));
+
+        return ISO9660FileSystemTest.open(new ISO9660FileSystemTest.TestSource(builder.build()));
+    }
+
+    private void add(final IsoImageBuilder builder, final String path, final byte[] data) {
+        builder.addFile(path, data);
+        this.expected.put(path, data);
+    }
+
+    private void checkFiles(final Map files) {
+        assertEquals(this.expected.keySet(), files.keySet());
+
+        for (Iterator i = this.expected.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry entry = (Map.Entry) i.next();
+            final byte[] data = (byte[]) files.get(entry.getKey());
+
+            assertTrue((String) entry.getKey(), Arrays.equals((byte[]) entry.getValue(), data));
+        }
+    }
+
+    /**
+     * Reads a tar archive, checking the header checksums and the end of the archive.
+     */
+    private static void readTar(final byte[] tar, final Map files, final Map links,
+                                final Set directories)
+            throws IOException {
+        String paxPath = null;
+        String paxLinkPath = null;
+        int pos = 0;
+
+        while (true) {
+            assertTrue("Truncated archive", pos + TAR_BLOCK <= tar.length);
+
+            if (isZero(tar, pos, 2 * TAR_BLOCK)) {
+                assertEquals(tar.length, pos + (2 * TAR_BLOCK));
+                return;
+            }
+
+            assertEquals("ustar\00000", new String(tar, pos + 257, 8, "US-ASCII"));
+            assertEquals(getOctal(tar, pos + 148, 8), checksum(tar, pos));
+
+            final char type = (char) tar[pos + 156];
+            final long size = getOctal(tar, pos + 124, 12);
+            final String prefix = getString(tar, pos + 345, 155);
+            String path = getString(tar, pos + 0, 100);
+            String linkPath = getString(tar, pos + 157, 100);
+
+            if (prefix.length() > 0) {
+                path = prefix + "/" + path;
+            }
+
+            pos += TAR_BLOCK;
+
+            final byte[] data = new byte[(int) size];
+
+            System.arraycopy(tar, pos, data, 0, data.length);
+            pos += (int) ((size + TAR_BLOCK - 1) / TAR_BLOCK) * TAR_BLOCK;
+
+            if ('x' == type) {
+                final Map records = parsePax(data);
+
+                paxPath = (String) records.get("path");
+                paxLinkPath = (String) records.get("linkpath");
+                continue;
+            }
+
+            if (null != paxPath) {
+                path = paxPath;
+            }
+            if (null != paxLinkPath) {
+                linkPath = paxLinkPath;
+            }
+
+            paxPath = null;
+            paxLinkPath = null;
+
+            switch (type) {
+                case '0':
+                    files.put(path, data);
+                    break;
+                case '1':
+                    links.put(path, linkPath);
+                    break;
+                case '5':
+                    directories.add(path);
+                    break;
+                default:
+                    fail("Unexpected entry type " + type);
+            }
+        }
+    }
+
+    /**
+     * Parses the records of a pax extended header: "length keyword=value\n".
+     */
+    private static Map parsePax(final byte[] data) throws IOException {
+        final Map records = new TreeMap();
+        int pos = 0;
+
+        while (pos < data.length) {
+            final int space = indexOf(data, pos, ' ');
+            final int length = Integer.parseInt(new String(data, pos, space - pos, "US-ASCII"));
+            final String record = new String(data, space + 1, length - (space - pos) - 2, "UTF-8");
+            final int equals = record.indexOf('=');
+
+            assertEquals('\n', data[pos + length - 1]);
+            records.put(record.substring(0, equals), record.substring(equals + 1));
+            pos += length;
+        }
+
+        return records;
+    }
+
+    private static long checksum(final byte[] tar, final int pos) {
+        long checksum = 0;
+
+        for (int i = 0; i < TAR_BLOCK; i++) {
+            checksum += (i >= 148 && i < 156) ? ' ' : (tar[pos + i] & 0xFF);
+        }
+
+        return checksum;
+    }
+
+    private static long getOctal(final byte[] tar, final int pos, final int length)
+            throws IOException {
+        final String value = getString(tar, pos, length).trim();
+
+        return (0 == value.length()) ? 0 : Long.parseLong(value, 8);
+    }
+
+    private static String getString(final byte[] tar, final int pos, final int length)
+            throws IOException {
+        int end = pos;
+
+        while (end < pos + length && 0 != tar[end]) {
+            end++;
+        }
+
+        return new String(tar, pos, end - pos, "UTF-8");
+    }
+
+    private static int indexOf(final byte[] data, final int from, final char c) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean isZero(final byte[] data, final int pos, final int length) {
+        for (int i = pos; i < Math.min(pos + length, data.length); i++) {
+            if (0 != data[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private byte[] data(final int length) {
+        final byte[] data = new byte[length];
+
+        this.random.nextBytes(data);
+
+        return data;
+    }
+
+    private byte[] text(final int length) throws IOException {
+        final StringBuffer buf = new StringBuffer();
+
+        while (buf.length() < length) {
+            buf.append("line ").append(this.random.nextInt(1000)).append('\n');
+        }
+
+        buf.setLength(length);
+
+        return buf.toString().getBytes("US-ASCII");
+    }
+
+    private static String repeat(final char c, final int count) {
+        final char[] chars = new char[count];
+
+        Arrays.fill(chars, c);
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import net.didion.loopy.FileEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Reads one image from many threads at once: by default 10,000 virtual threads, each reading
+ * whole files from a shared {@link ISO9660FileSystem}, and checks every file against a checksum
+ * computed single-threaded first. Run it with the image as the first argument and, optionally,
+ * the number of threads and the number of files each thread reads:
+ * <pre>
+     java -Djdk.tracePinnedThreads=full net.didion.loopy.iso9660.ConcurrentReadBenchmark image.iso
+   </pre>
+ * With <code>jdk.tracePinnedThreads</code>, the JVM prints a stack trace whenever a virtual thread
+ * blocks while pinned to its carrier, e.g. by doing I/O while holding a monitor; the read path
+ * should never show up there.
+ * <p/>
+ * Virtual threads need Java 21. On older JVMs the same number of platform threads is used
+ * instead, which still exercises concurrent reads but not carrier pinning.
+ */
+public class ConcurrentReadBenchmark {
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: ConcurrentReadBenchmark image [threads [files-per-thread]]");
+            System.exit(1);
+        }
+
+        final int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+        final int filesPerThread = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        final ISO9660FileSystem fileSystem = new ISO9660FileSystem(new File(args[0]), true);
+
+        try {
+            final List files = new ArrayList();
+
+            for (Enumeration e = fileSystem.getEntries(); e.hasMoreElements();) {
+                final FileEntry entry = (FileEntry) e.nextElement();
+
+                if (!entry.isDirectory()) {
+                    files.add(entry);
+                }
+            }
+
+            if (files.isEmpty()) {
+                System.err.println("No files in " + args[0]);
+                System.exit(1);
+            }
+
+            final long[] expected = new long[files.size()];
+
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = checksum(fileSystem, (FileEntry) files.get(i));
+            }
+
+            final ExecutorService executor = newExecutor();
+            final List results = new ArrayList(threads);
+            final long start = System.nanoTime();
+
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+
+                results.add(executor.submit(new Callable() {
+                    public Object call() throws IOException {
+                        long bytes = 0;
+
+                        for (int i = 0; i < filesPerThread; i++) {
+                            final int index = (first + i) % expected.length;
+                            final FileEntry entry = (FileEntry) files.get(index);
+
+                            if (checksum(fileSystem, entry) != expected[index]) {
+                                throw new IOException("Checksum mismatch: " + entry.getPath());
+                            }
+
+                            bytes += entry.getSize();
+                        }
+
+                        return Long.valueOf(bytes);
+                    }
+                }));
+            }
+
+            long bytes = 0;
+
+            for (int i = 0; i < results.size(); i++) {
+                bytes += ((Long) ((Future) results.get(i)).get()).longValue();
+            }
+
+            final long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+            executor.shutdown();
+
+            System.out.println(threads + " threads read " + (threads * filesPerThread)
+                               + " files (" + bytes + " bytes) in " + millis + " ms, "
+                               + (bytes / 1024 * 1000 / millis / 1024) + " MB/s");
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task on Java 21 and later, or a
+     * platform thread per task on older JVMs.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor",
+                                                             new Class[0]);
+
+            System.out.println("Using virtual threads");
+
+            return (ExecutorService) factory.invoke(null, new Object[0]);
+        }
+        catch (NoSuchMethodException ex) {
+            System.out.println("Virtual threads are not available; using platform threads");
+
+            return Executors.newCachedThreadPool();
+        }
+        catch (Exception ex) {
+            throw new IllegalStateException("Could not create a virtual thread executor: " + ex);
+        }
+    }
+
+    private static long checksum(final ISO9660FileSystem fileSystem, final FileEntry entry)
+            throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        final InputStream in = fileSystem.getInputStream(entry);
+
+        try {
+            int n;
+
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import junit.framework.TestCase;
+import net.didion.loopy.FileEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes an image with {@link ContentHasher} and checks every digest against one computed with
+ * {@link MessageDigest} over the stream of the file.
+ */
+public class ContentHasherTest extends TestCase {
+    private static final String[] ALGORITHMS = {"MD5", "SHA-256", ContentHasher.CRC32};
+
+    private ISO9660FileSystem fileSystem;
+
+    protected void setUp() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+        final Random random = new Random(1);
+        final byte[] large = new byte[300 * 1024];
+        final byte[] packed = new byte[200 * 1024];
+
+        random.nextBytes(large);
+        // a zisofs file with a block of zeroes in the middle
+        random.nextBytes(packed);
+        Arrays.fill(packed, 64 * 1024, 96 * 1024, (byte) 0);
+
+        builder.addFile("README.TXT", "read me\n".getBytes("US-ASCII"));
+        builder.addFile("EMPTY.TXT", new byte[0]);
+        builder.addFile("DATA/LARGE.BIN", large);
+        builder.addFile("DATA/ZERO.BIN", new byte[10000]);
+        builder.addZisofsFile("DATA/PACKED.BIN", packed, 15);
+        builder.addLink("COPY/LARGE.BIN", "DATA/LARGE.BIN");
+        builder.addLink("COPY/PACKED.BIN", "DATA/PACKED.BIN");
+        builder.addFile("ODD/A B\\C.TXT", "odd\n".getBytes("US-ASCII"));
+        builder.addFile("ODD/LINE\nBREAK.TXT", "odd\n".getBytes("US-ASCII"));
+
+        this.fileSystem = ISO9660FileSystemTest.open(
+                new ISO9660FileSystemTest.TestSource(builder.build()));
+    }
+
+    protected void tearDown() throws IOException {
+        this.fileSystem.close();
+    }
+
+    public void testHash() throws Exception {
+        check(new ContentHasher(this.fileSystem, ALGORITHMS).hash());
+    }
+
+    public void testSmallChunks() throws Exception {
+        // chunks of one block, one at a time, split every file that is larger than a block
+        check(new ContentHasher(this.fileSystem, ALGORITHMS, 2048, 1).hash());
+        check(new ContentHasher(this.fileSystem, ALGORITHMS, 3 * 2048, 3).hash());
+    }
+
+    public void testCallerThread() throws Exception {
+        final Executor direct = new Executor() {
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        };
+
+        check(new ContentHasher(this.fileSystem, ALGORITHMS, 8 * 2048, 2).hash(direct));
+    }
+
+    public void testSharedExtents() throws Exception {
+        final ContentManifest manifest = new ContentHasher(this.fileSystem, ALGORITHMS).hash();
+        final Map digests = digestsByPath(manifest);
+
+        assertEquals(Arrays.asList((String[]) digests.get("DATA/LARGE.BIN")),
+                     Arrays.asList((String[]) digests.get("COPY/LARGE.BIN")));
+        assertEquals(Arrays.asList((String[]) digests.get("DATA/PACKED.BIN")),
+                     Arrays.asList((String[]) digests.get("COPY/PACKED.BIN")));
+    }
+
+    public void testWrite() throws Exception {
+        final ContentManifest manifest =
+                new ContentHasher(this.fileSystem, new String[] {"MD5"}).hash();
+        final StringWriter out = new StringWriter();
+
+        manifest.write(out);
+
+        final BufferedReader in = new BufferedReader(new StringReader(out.toString()));
+        final Map digests = digestsByPath(manifest);
+        final List paths = new ArrayList();
+
+        assertEquals("# MD5 size path", in.readLine());
+
+        for (String line; null != (line = in.readLine());) {
+            final int first = line.indexOf(' ');
+            final int second = line.indexOf(' ', first + 1);
+            final String path = unescape(line.substring(second + 1));
+            final FileEntry entry = ((ContentManifest.Entry) manifest.getEntries().get(
+                    paths.size())).getEntry();
+
+            assertEquals(entry.getPath(), path);
+            assertEquals(((String[]) digests.get(path))[0], line.substring(0, first));
+            assertEquals(String.valueOf(entry.getSize()), line.substring(first + 1, second));
+            paths.add(path);
+        }
+
+        assertEquals(manifest.getEntries().size(), paths.size());
+        assertTrue(paths.contains("ODD/A B\\C.TXT"));
+        assertTrue(paths.contains("ODD/LINE\nBREAK.TXT"));
+        assertTrue(out.toString().indexOf(" ODD/A B\\\\C.TXT\n") > 0);
+        assertTrue(out.toString().indexOf(" ODD/LINE\\nBREAK.TXT\n") > 0);
+    }
+
+    public void testUnknownAlgorithm() {
+        try {
+            new ContentHasher(this.fileSystem, new String[] {"MD5", "NO-SUCH-DIGEST"});
+            fail("Expected a NoSuchAlgorithmException");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Checks that the manifest lists every file once, with the digests of its content.
+     */
+    private void check(final ContentManifest manifest) throws Exception {
+        assertEquals(Arrays.asList(ALGORITHMS), Arrays.asList(manifest.getAlgorithms()));
+
+        final Map files = new HashMap();
+
+        for (Iterator i = ISO9660FileSystemTest.list(this.fileSystem).values().iterator();
+             i.hasNext();) {
+            final FileEntry entry = (FileEntry) i.next();
+
+            if (!entry.isDirectory()) {
+                files.put(entry.getPath(), entry);
+            }
+        }
+
+        final Map digests = digestsByPath(manifest);
+
+        assertEquals(files.keySet(), digests.keySet());
+        assertEquals(files.size(), manifest.getEntries().size());
+
+        for (Iterator i = files.values().iterator(); i.hasNext();) {
+            final FileEntry entry = (FileEntry) i.next();
+
+            assertEquals(entry.getPath(), Arrays.asList(digest(entry)),
+                         Arrays.asList((String[]) digests.get(entry.getPath())));
+        }
+    }
+
+    /**
+     * Computes the digests of a file from its stream.
+     */
+    private String[] digest(final FileEntry entry) throws Exception {
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+        final MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        final CRC32 crc = new CRC32();
+        final InputStream in = this.fileSystem.getInputStream(entry);
+        final byte[] buffer = new byte[5000];
+        int n;
+
+        try {
+            while ((n = in.read(buffer)) > 0) {
+                md5.update(buffer, 0, n);
+                sha.update(buffer, 0, n);
+                crc.update(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        return new String[] {
+                toHex(md5.digest()), toHex(sha.digest()),
+                String.format("%08x", Long.valueOf(crc.getValue()))
+        };
+    }
+
+    private static Map digestsByPath(final ContentManifest manifest) {
+        final Map digests = new HashMap();
+
+        for (Iterator i = manifest.getEntries().iterator(); i.hasNext();) {
+            final ContentManifest.Entry entry = (ContentManifest.Entry) i.next();
+
+            assertNull(digests.put(entry.getEntry().getPath(), entry.getDigests()));
+        }
+
+        return digests;
+    }
+
+    private static String unescape(final String path) {
+        final StringBuilder unescaped = new StringBuilder();
+
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+
+            if ('\\' == c) {
+                final char next = path.charAt(++i);
+                unescaped.append(('n' == next) ? '\n' : ('r' == next) ? '\r' : next);
+            }
+            else {
+                unescaped.append(c);
+            }
+        }
+
+        return unescaped.toString();
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex.append(String.format("%02x", Integer.valueOf(bytes[i] & 0xFF)));
+        }
+
+        return hex.toString();
+    }
+}
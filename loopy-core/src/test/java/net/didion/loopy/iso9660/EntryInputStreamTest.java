@@ -0,0 +1,272 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import junit.framework.TestCase;
+import net.didion.loopy.FileEntry;
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.source.MemoryImageSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads entries of several megabytes through {@link EntryInputStream}, sequentially and with
+ * skips, and checks the data, the read-ahead window and the number of bytes counted as served.
+ */
+public class EntryInputStreamTest extends TestCase {
+    private static final int SIZE = 10 * 1024 * 1024;
+
+    private byte[] data;
+    private RecordingSource source;
+    private ISO9660FileSystem fileSystem;
+    private FileEntry entry;
+
+    protected void setUp() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        this.data = new byte[SIZE];
+        new Random(1).nextBytes(this.data);
+        builder.addFile("LARGE.BIN", this.data);
+
+        this.source = new RecordingSource(builder.build());
+        this.fileSystem = ISO9660FileSystemTest.open(this.source);
+        this.entry = (FileEntry) ISO9660FileSystemTest.list(this.fileSystem).get("LARGE.BIN");
+        this.source.lengths.clear();
+    }
+
+    protected void tearDown() throws IOException {
+        this.fileSystem.close();
+    }
+
+    public void testSequentialRead() throws IOException {
+        // the consumer always waits for the fetches, so the window grows to its largest size
+        this.source.delayNanos = 1000 * 1000;
+
+        final long served = this.fileSystem.getBytesServed();
+        final InputStream in = this.fileSystem.getInputStream(this.entry);
+
+        assertTrue(Arrays.equals(this.data, ISO9660FileSystemTest.readFully(in)));
+        assertEquals(SIZE, this.fileSystem.getBytesServed() - served);
+        assertEquals(0, this.fileSystem.getOpenStreamCount());
+        assertTrue(this.source.lengths.contains(Integer.valueOf(EntryInputStream.MAX_WINDOW)));
+        assertTrue(this.source.getLargest() <= EntryInputStream.MAX_WINDOW);
+    }
+
+    public void testWindowShrinks() throws IOException {
+        this.source.delayNanos = 1000 * 1000;
+
+        final InputStream in = this.fileSystem.getInputStream(this.entry);
+        final byte[] buffer = new byte[64 * 1024];
+        int pos = 0;
+
+        // a fast consumer makes the window grow...
+        while (pos < 3 * 1024 * 1024) {
+            pos += readAndCheck(in, buffer, pos, buffer.length);
+        }
+
+        assertTrue(this.source.lengths.contains(Integer.valueOf(EntryInputStream.MAX_WINDOW)));
+        this.source.lengths.clear();
+
+        // ...and a slow one, for which every fetch is complete, makes it shrink again
+        while (pos < SIZE) {
+            pos += readAndCheck(in, buffer, pos, buffer.length);
+            LockSupport.parkNanos(2 * 1000 * 1000);
+        }
+
+        assertEquals(-1, in.read());
+        assertTrue(this.source.lengths.contains(
+                Integer.valueOf(EntryInputStream.MAX_WINDOW / 2)));
+        in.close();
+    }
+
+    public void testReadAndSkip() throws IOException {
+        this.source.delayNanos = 100 * 1000;
+
+        final Random random = new Random(2);
+        final long served = this.fileSystem.getBytesServed();
+        final InputStream in = this.fileSystem.getInputStream(this.entry);
+        final byte[] buffer = new byte[256 * 1024];
+        long consumed = 0;
+        int pos = 0;
+
+        while (pos < SIZE) {
+            final int op = random.nextInt(10);
+
+            if (op < 6) {
+                // sequential reads of various sizes, which start and feed the read-ahead
+                final int read = readAndCheck(in, buffer, pos, 1 + random.nextInt(buffer.length));
+
+                pos += read;
+                consumed += read;
+            }
+            else if (op < 7) {
+                final int b = in.read();
+
+                assertEquals("at " + pos, this.data[pos] & 0xff, b);
+                pos++;
+                consumed++;
+            }
+            else if (op < 9) {
+                // skips that mostly stay within the buffered data
+                pos += in.skip(1 + random.nextInt(16 * 1024));
+            }
+            else {
+                // skips past the buffered data, which abandon a pending fetch
+                pos += in.skip(EntryInputStream.MAX_WINDOW + random.nextInt(SIZE / 8));
+            }
+
+            assertEquals(SIZE - pos, in.available());
+        }
+
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+        assertEquals(0, in.skip(1));
+        in.close();
+
+        // only the bytes handed to the consumer are counted, not those read ahead and skipped
+        assertEquals(consumed, this.fileSystem.getBytesServed() - served);
+        assertEquals(0, this.fileSystem.getOpenStreamCount());
+    }
+
+    public void testAbandonedFetch() throws IOException {
+        this.source.delayNanos = 20 * 1000 * 1000;
+
+        final long served = this.fileSystem.getBytesServed();
+        final InputStream in = this.fileSystem.getInputStream(this.entry);
+        final byte[] buffer = new byte[8 * 1024];
+        int pos = 0;
+
+        while (pos < 2 * EntryInputStream.PREFETCH_THRESHOLD) {
+            pos += readAndCheck(in, buffer, pos, buffer.length);
+        }
+
+        // a fetch is pending; closing the stream forgets it and releases the file system
+        in.close();
+
+        assertEquals(pos, this.fileSystem.getBytesServed() - served);
+        assertEquals(0, this.fileSystem.getOpenStreamCount());
+
+        try {
+            in.read();
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    public void testInMemory() throws IOException {
+        // images held in memory are not read ahead, and are counted as they are read
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        builder.addFile("LARGE.BIN", this.data);
+
+        final ISO9660FileSystem fileSystem =
+                ISO9660FileSystemTest.open(new MemoryImageSource(builder.build()));
+        final FileEntry entry = (FileEntry) ISO9660FileSystemTest.list(fileSystem).get("LARGE.BIN");
+
+        try {
+            final long served = fileSystem.getBytesServed();
+
+            assertTrue(Arrays.equals(this.data,
+                                     ISO9660FileSystemTest.readFully(
+                                             fileSystem.getInputStream(entry))));
+            assertEquals(SIZE, fileSystem.getBytesServed() - served);
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * Reads up to <code>length</code> bytes at <code>pos</code> and checks them against the
+     * entry data.
+     */
+    private int readAndCheck(final InputStream in, final byte[] buffer, final int pos,
+                             final int length) throws IOException {
+        final int read = in.read(buffer, 0, length);
+
+        assertTrue("at " + pos, read > 0);
+
+        for (int i = 0; i < read; i++) {
+            if (buffer[i] != this.data[pos + i]) {
+                fail("mismatch at " + (pos + i));
+            }
+        }
+
+        return read;
+    }
+
+    /**
+     * An image in memory that is read like a file, slowly if requested, and that records the
+     * lengths of its reads.
+     */
+    private static class RecordingSource implements ImageSource {
+        private final byte[] image;
+        final List lengths = new ArrayList();
+        volatile long delayNanos = 0;
+
+        RecordingSource(final byte[] image) {
+            this.image = image;
+        }
+
+        public int read(final long pos, final ByteBuffer dst) {
+            synchronized (this.lengths) {
+                this.lengths.add(Integer.valueOf(dst.remaining()));
+            }
+
+            if (this.delayNanos > 0) {
+                LockSupport.parkNanos(this.delayNanos);
+            }
+            if (pos >= this.image.length) {
+                return -1;
+            }
+
+            final int n = (int) Math.min(dst.remaining(), this.image.length - pos);
+
+            dst.put(this.image, (int) pos, n);
+
+            return n;
+        }
+
+        int getLargest() {
+            int largest = 0;
+
+            synchronized (this.lengths) {
+                for (int i = 0; i < this.lengths.size(); i++) {
+                    largest = Math.max(largest, ((Integer) this.lengths.get(i)).intValue());
+                }
+            }
+
+            return largest;
+        }
+
+        public long size() {
+            return this.image.length;
+        }
+
+        public void close() {
+        }
+    }
+}
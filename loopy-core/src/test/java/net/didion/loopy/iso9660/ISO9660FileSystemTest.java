@@ -0,0 +1,378 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import junit.framework.TestCase;
+import net.didion.loopy.FileEntry;
+import net.didion.loopy.ImageSource;
+import net.didion.loopy.util.ContentCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Builds ISO 9660 images with {@link IsoImageBuilder} and checks that {@link ISO9660FileSystem}
+ * lists and reads back the files that were written, with and without a content cache.
+ */
+public class ISO9660FileSystemTest extends TestCase {
+    private final Map expected = new TreeMap();
+    private final Random random = new Random(1);
+    private File file;
+
+    protected void tearDown() {
+        if (null != this.file) {
+            this.file.delete();
+        }
+    }
+
+    public void testReadBack() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        add(builder, "README.TXT", "read me\n".getBytes("US-ASCII"));
+        add(builder, "EMPTY.DAT", new byte[0]);
+        add(builder, "BIG.BIN", data(5 * Constants.DEFAULT_BLOCK_SIZE + 7));
+        add(builder, "A/B/C/DEEP.TXT", data(100));
+        add(builder, "A/ONE.BIN", data(Constants.DEFAULT_BLOCK_SIZE));
+
+        // enough records to fill more than one directory block
+        for (int i = 0; i < 80; i++) {
+            add(builder, "MANY/FILE" + i + ".DAT", data(i * 37));
+        }
+
+        builder.addDirectory("NOTHING");
+
+        final ISO9660FileSystem fileSystem = open(new TestSource(builder.build()));
+
+        try {
+            final Map found = list(fileSystem);
+
+            assertTrue(found.containsKey("NOTHING/"));
+            assertTrue(found.containsKey("A/B/C/"));
+            checkFiles(fileSystem, found);
+            assertEquals(0, fileSystem.getOpenStreamCount());
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    public void testContentCacheIsOptIn() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        add(builder, "SMALL.TXT", data(100));
+
+        final ISO9660FileSystem fileSystem = open(new TestSource(builder.build()));
+
+        try {
+            assertNull(fileSystem.getContentCache());
+            checkFiles(fileSystem, list(fileSystem));
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    public void testContentCache() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        add(builder, "SMALL.TXT", data(3000));
+        add(builder, "LARGE.BIN", data(100 * 1024));
+
+        final TestSource source = new TestSource(builder.build());
+        final ISO9660FileSystem fileSystem = open(source);
+        final ContentCache cache = new ContentCache(1024 * 1024);
+
+        fileSystem.setContentCache(cache);
+
+        final Map found = list(fileSystem);
+        final FileEntry small = (FileEntry) found.get("SMALL.TXT");
+
+        checkFiles(fileSystem, found);
+        assertEquals(3000, cache.getSize(fileSystem));
+
+        // the cached file is read without touching the image, and without holding it open
+        final int reads = source.reads;
+        final InputStream in = fileSystem.getInputStream(small);
+
+        assertEquals(0, fileSystem.getOpenStreamCount());
+        assertTrue(Arrays.equals((byte[]) this.expected.get("SMALL.TXT"), readFully(in)));
+        assertEquals(reads, source.reads);
+
+        try {
+            in.read();
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+
+        fileSystem.close();
+        assertEquals(0, cache.getSize(fileSystem));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testContentCacheReadFailure() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        add(builder, "SMALL.TXT", data(3000));
+
+        final TestSource source = new TestSource(builder.build());
+        final ISO9660FileSystem fileSystem = open(source);
+        final ContentCache cache = new ContentCache(1024 * 1024);
+
+        fileSystem.setContentCache(cache);
+
+        final FileEntry small = (FileEntry) list(fileSystem).get("SMALL.TXT");
+
+        source.failing = true;
+
+        final int reads = source.reads;
+        final InputStream in = fileSystem.getInputStream(small);
+
+        // the failure is reported by the stream, and the file is not read a second time
+        try {
+            in.read(new byte[100]);
+            fail("Expected an IOException");
+        }
+        catch (IOException ex) {
+            assertEquals("Test failure", ex.getMessage());
+        }
+
+        assertEquals(reads + 1, source.reads);
+        assertEquals(0, cache.getSize());
+        fileSystem.close();
+    }
+
+    public void testReadAsync() throws Exception {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        add(builder, "BIG.BIN", data(2 * 1024 * 1024 + 5));
+        add(builder, "SMALL.BIN", data(10));
+
+        final byte[] text = new byte[200 * 1024];
+
+        Arrays.fill(text, (byte) 'a');
+        builder.addZisofsFile("PACKED.TXT", text, 15);
+        this.expected.put("PACKED.TXT", text);
+
+        // a file, so that the image is read through an asynchronous channel
+        this.file = File.createTempFile("loopy", ".iso");
+
+        final FileOutputStream out = new FileOutputStream(this.file);
+
+        try {
+            out.write(builder.build());
+        }
+        finally {
+            out.close();
+        }
+
+        final ISO9660FileSystem fileSystem = new ISO9660FileSystem(this.file, true);
+
+        try {
+            assertFalse(fileSystem.isInMemory());
+
+            final Map found = list(fileSystem);
+            final List futures = new ArrayList();
+            final List buffers = new ArrayList();
+            final List offsets = new ArrayList();
+            final List paths = new ArrayList();
+            long served = 0;
+
+            for (int i = 0; i < 100; i++) {
+                final String path = (String) new ArrayList(this.expected.keySet())
+                        .get(this.random.nextInt(this.expected.size()));
+                final byte[] data = (byte[]) this.expected.get(path);
+                final int offset = this.random.nextInt(data.length);
+                final int length = 1 + this.random.nextInt(64 * 1024);
+                final ByteBuffer dst = (i % 2 == 0)
+                        ? ByteBuffer.allocate(length) : ByteBuffer.allocateDirect(length);
+
+                paths.add(path);
+                offsets.add(Integer.valueOf(offset));
+                buffers.add(dst);
+                futures.add(fileSystem.readAsync((FileEntry) found.get(path), offset, dst));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                final byte[] data = (byte[]) this.expected.get(paths.get(i));
+                final int offset = ((Integer) offsets.get(i)).intValue();
+                final ByteBuffer dst = (ByteBuffer) buffers.get(i);
+                final int read = ((Integer) ((CompletableFuture) futures.get(i)).get()).intValue();
+
+                assertEquals(Math.min(dst.capacity(), data.length - offset), read);
+                assertEquals(read, dst.position());
+
+                for (int k = 0; k < read; k++) {
+                    if (data[offset + k] != dst.get(k)) {
+                        fail(paths.get(i) + ": mismatch at " + (offset + k));
+                    }
+                }
+
+                served += read;
+            }
+
+            assertEquals(served, fileSystem.getBytesServed());
+
+            final FileEntry small = (FileEntry) found.get("SMALL.BIN");
+
+            assertEquals(-1, ((Integer) fileSystem.readAsync(small, 10, ByteBuffer.allocate(1))
+                    .get()).intValue());
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    private void add(final IsoImageBuilder builder, final String path, final byte[] data) {
+        builder.addFile(path, data);
+        this.expected.put(path, data);
+    }
+
+    /**
+     * Reads every expected file in full through a stream and through transferTo, and in parts at
+     * random positions.
+     */
+    private void checkFiles(final ISO9660FileSystem fileSystem, final Map found)
+            throws IOException {
+        for (Iterator i = this.expected.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry next = (Map.Entry) i.next();
+            final String path = (String) next.getKey();
+            final byte[] data = (byte[]) next.getValue();
+            final FileEntry entry = (FileEntry) found.get(path);
+
+            assertNotNull(path, entry);
+            assertEquals(path, data.length, entry.getSize());
+            assertTrue(path, Arrays.equals(data, readFully(fileSystem.getInputStream(entry))));
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            assertEquals(data.length, fileSystem.transferTo(entry, Channels.newChannel(out)));
+            assertTrue(path, Arrays.equals(data, out.toByteArray()));
+
+            for (int j = 0; j < 10 && data.length > 0; j++) {
+                final int pos = this.random.nextInt(data.length);
+                final int length = 1 + this.random.nextInt(data.length - pos);
+                final ByteBuffer dst = ByteBuffer.allocate(length);
+
+                assertEquals(length, fileSystem.read(entry, pos, dst));
+
+                for (int k = 0; k < length; k++) {
+                    if (data[pos + k] != dst.get(k)) {
+                        fail(path + ": mismatch at " + (pos + k));
+                    }
+                }
+            }
+
+            assertEquals(-1, fileSystem.read(entry, data.length, ByteBuffer.allocate(1)));
+        }
+    }
+
+    static ISO9660FileSystem open(final ImageSource source) {
+        return new ISO9660FileSystem(null, source, true);
+    }
+
+    /**
+     * Returns the entries of a file system by path.
+     */
+    static Map list(final ISO9660FileSystem fileSystem) {
+        final Map entries = new TreeMap();
+
+        for (Enumeration e = fileSystem.getEntries(); e.hasMoreElements();) {
+            final FileEntry entry = (FileEntry) e.nextElement();
+
+            entries.put(entry.getPath(), entry);
+        }
+
+        return entries;
+    }
+
+    static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[5000];
+        int n;
+
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+
+        in.close();
+
+        return out.toByteArray();
+    }
+
+    private byte[] data(final int length) {
+        final byte[] data = new byte[length];
+
+        this.random.nextBytes(data);
+
+        return data;
+    }
+
+    /**
+     * An image in memory that is not a {@link net.didion.loopy.ResidentImageSource}, so that it
+     * is treated like a file, and that counts its reads and fails them on request.
+     */
+    static class TestSource implements ImageSource {
+        private final byte[] image;
+        volatile boolean failing = false;
+        volatile int reads = 0;
+
+        TestSource(final byte[] image) {
+            this.image = image;
+        }
+
+        public int read(final long pos, final ByteBuffer dst) throws IOException {
+            this.reads++;
+
+            if (this.failing) {
+                throw new IOException("Test failure");
+            }
+            if (pos >= this.image.length) {
+                return -1;
+            }
+
+            final int n = (int) Math.min(dst.remaining(), this.image.length - pos);
+
+            dst.put(this.image, (int) pos, n);
+
+            return n;
+        }
+
+        public long size() {
+            return this.image.length;
+        }
+
+        public void close() {
+        }
+    }
+}
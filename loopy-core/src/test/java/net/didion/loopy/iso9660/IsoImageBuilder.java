@@ -0,0 +1,487 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import net.didion.loopy.source.RawSectorImageSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+/**
+ * Builds small ISO 9660 images in memory for tests: a primary volume descriptor and a directory
+ * tree, without path tables. Files may be compressed with zisofs, and several paths may share the
+ * data of one file. Layout of the image:
+ * <pre>
+     sectors  contents
+     -------  --------------------------------------------------------
+     0-15     system area, zeroes
+     16       primary volume descriptor
+     17       volume descriptor set terminator
+     20-      directories, depth first, followed by the file data
+   </pre>
+ * The builder is public so that tests of other packages and modules can build images, too.
+ */
+public class IsoImageBuilder {
+    private static final int BLOCK = Constants.DEFAULT_BLOCK_SIZE;
+    private static final int FIRST_BLOCK = 20;
+
+    private static final byte[] ZISOFS_MAGIC = {
+            (byte) 0x37, (byte) 0xE4, (byte) 0x53, (byte) 0x96,
+            (byte) 0xC9, (byte) 0xDB, (byte) 0xD6, (byte) 0x07
+    };
+
+    // 2006-02-28 11:47:00 GMT
+    private static final byte[] DATE = {106, 2, 28, 11, 47, 0, 0};
+
+    private final Directory root = new Directory();
+    private final Map files = new TreeMap();
+
+    /**
+     * Adds a file, creating its parent directories.
+     *
+     * @param path the path of the file, e.g. <code>DIR/FILE.TXT</code>
+     * @param data the content of the file
+     */
+    public void addFile(final String path, final byte[] data) {
+        add(path, new Node(data, data.length, -1));
+    }
+
+    /**
+     * Adds a file compressed with zisofs. Blocks of zeroes are stored as empty blocks.
+     *
+     * @param path the path of the file
+     * @param data the uncompressed content of the file
+     * @param blockShift log2 of the zisofs block size
+     */
+    public void addZisofsFile(final String path, final byte[] data, final int blockShift) {
+        add(path, new Node(zisofs(data, blockShift), data.length, blockShift));
+    }
+
+    /**
+     * Adds a path that shares the data of a file that was added before.
+     *
+     * @param path the path of the new file
+     * @param target the path of the existing file
+     */
+    public void addLink(final String path, final String target) {
+        add(path, (Node) this.files.get(target));
+    }
+
+    /**
+     * Adds an empty directory, creating its parent directories.
+     *
+     * @param path the path of the directory
+     */
+    public void addDirectory(final String path) {
+        getDirectory(path + "/");
+    }
+
+    /**
+     * Lays out the directories and files added so far and returns the image.
+     *
+     * @return the image, a whole number of sectors
+     * @throws UnsupportedEncodingException never
+     */
+    public byte[] build() throws UnsupportedEncodingException {
+        final List directories = new ArrayList();
+        int next = layout(this.root, FIRST_BLOCK, directories);
+
+        // file data follows the directories; links share the block of their target
+        for (Iterator i = this.files.values().iterator(); i.hasNext();) {
+            final Node node = (Node) i.next();
+
+            if (node.block < 0) {
+                node.block = (0 == node.data.length) ? 0 : next;
+                next += blocks(node.data.length);
+            }
+        }
+
+        final byte[] image = new byte[next * BLOCK];
+
+        writeVolumeDescriptors(image, next);
+
+        for (Iterator i = directories.iterator(); i.hasNext();) {
+            final Directory directory = (Directory) i.next();
+            final byte[] records = records(directory);
+
+            System.arraycopy(records, 0, image, directory.block * BLOCK, records.length);
+        }
+
+        for (Iterator i = this.files.values().iterator(); i.hasNext();) {
+            final Node node = (Node) i.next();
+
+            System.arraycopy(node.data, 0, image, node.block * BLOCK, node.data.length);
+        }
+
+        return image;
+    }
+
+    private void add(final String path, final Node node) {
+        final int slash = path.lastIndexOf('/');
+
+        getDirectory(path.substring(0, slash + 1)).children.put(path.substring(slash + 1), node);
+        this.files.put(path, node);
+    }
+
+    private Directory getDirectory(final String path) {
+        Directory directory = this.root;
+
+        for (int start = 0, end; (end = path.indexOf('/', start)) > 0; start = end + 1) {
+            final String name = path.substring(start, end);
+            Directory child = (Directory) directory.children.get(name);
+
+            if (null == child) {
+                child = new Directory();
+                child.parent = directory;
+                directory.children.put(name, child);
+            }
+
+            directory = child;
+        }
+
+        return directory;
+    }
+
+    /**
+     * Assigns blocks to a directory and its subdirectories, depth first.
+     *
+     * @return the next free block
+     */
+    private int layout(final Directory directory, int next, final List directories)
+            throws UnsupportedEncodingException {
+        directory.block = next;
+        directory.size = records(directory).length;
+        directories.add(directory);
+        next += blocks(directory.size);
+
+        for (Iterator i = directory.children.values().iterator(); i.hasNext();) {
+            final Object child = i.next();
+
+            if (child instanceof Directory) {
+                next = layout((Directory) child, next, directories);
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Returns the records of a directory. A record never crosses a block boundary.
+     */
+    private byte[] records(final Directory directory) throws UnsupportedEncodingException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Directory parent = (null == directory.parent) ? directory : directory.parent;
+
+        append(out, record(new byte[] {0}, directory.block, directory.size, true, null));
+        append(out, record(new byte[] {1}, parent.block, parent.size, true, null));
+
+        for (Iterator i = directory.children.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry entry = (Map.Entry) i.next();
+            final String name = (String) entry.getKey();
+
+            if (entry.getValue() instanceof Directory) {
+                final Directory child = (Directory) entry.getValue();
+
+                append(out, record(name.getBytes("US-ASCII"), child.block, child.size, true,
+                                   null));
+            }
+            else {
+                final Node node = (Node) entry.getValue();
+
+                append(out, record((name + ";1").getBytes("US-ASCII"), node.block,
+                                   node.data.length, false, zfEntry(node)));
+            }
+        }
+
+        final int size = blocks(out.size()) * BLOCK;
+
+        out.write(new byte[size - out.size()], 0, size - out.size());
+
+        return out.toByteArray();
+    }
+
+    private static void append(final ByteArrayOutputStream out, final byte[] record) {
+        final int room = BLOCK - (out.size() % BLOCK);
+
+        if (record.length > room) {
+            out.write(new byte[room], 0, room);
+        }
+
+        out.write(record, 0, record.length);
+    }
+
+    private static byte[] record(final byte[] identifier, final int block, final int size,
+                                 final boolean directory, final byte[] systemUse) {
+        final int padding = (identifier.length % 2 == 0) ? 1 : 0;
+        final int suLength = (null == systemUse) ? 0 : systemUse.length;
+        int length = 33 + identifier.length + padding + suLength;
+
+        length += length % 2;
+
+        final byte[] record = new byte[length];
+
+        record[0] = (byte) length;
+        putBoth32(record, 2, block);
+        putBoth32(record, 10, size);
+        System.arraycopy(DATE, 0, record, 18, DATE.length);
+        record[25] = (byte) (directory ? 2 : 0);
+        putBoth16(record, 28, 1);
+        record[32] = (byte) identifier.length;
+        System.arraycopy(identifier, 0, record, 33, identifier.length);
+
+        if (null != systemUse) {
+            System.arraycopy(systemUse, 0, record, 33 + identifier.length + padding, suLength);
+        }
+
+        return record;
+    }
+
+    /**
+     * Returns the Rock Ridge "ZF" entry of a zisofs file, or null if the file is not compressed.
+     */
+    private static byte[] zfEntry(final Node node) {
+        if (node.blockShift < 0) {
+            return null;
+        }
+
+        final byte[] zf = new byte[16];
+
+        zf[0] = 'Z';
+        zf[1] = 'F';
+        zf[2] = 16;
+        zf[3] = 1;
+        zf[4] = 'p';
+        zf[5] = 'z';
+        zf[6] = 4;
+        zf[7] = (byte) node.blockShift;
+        putBoth32(zf, 8, node.size);
+
+        return zf;
+    }
+
+    private void writeVolumeDescriptors(final byte[] image, final int blocks)
+            throws UnsupportedEncodingException {
+        final int pvd = 16 * BLOCK;
+
+        image[pvd] = 1;
+        System.arraycopy("CD001".getBytes("US-ASCII"), 0, image, pvd + 1, 5);
+        image[pvd + 6] = 1;
+        fill(image, pvd + 8, 32, "LOOPY");
+        fill(image, pvd + 40, 32, "TEST_VOLUME");
+        putBoth32(image, pvd + 80, blocks);
+        putBoth16(image, pvd + 120, 1);
+        putBoth16(image, pvd + 124, 1);
+        putBoth16(image, pvd + 128, BLOCK);
+
+        final byte[] root = record(new byte[] {0}, this.root.block, this.root.size, true, null);
+
+        System.arraycopy(root, 0, image, pvd + 156, root.length);
+
+        for (int i = 0; i < 4; i++) {
+            fill(image, pvd + 813 + (17 * i), 16, "2006022811470000");
+        }
+
+        image[pvd + 881] = 1;
+
+        final int terminator = 17 * BLOCK;
+
+        image[terminator] = (byte) 255;
+        System.arraycopy("CD001".getBytes("US-ASCII"), 0, image, terminator + 1, 5);
+        image[terminator + 6] = 1;
+    }
+
+    /**
+     * Compresses data in the zisofs format: a header, a table of block pointers, and the blocks,
+     * each compressed with zlib.
+     */
+    public static byte[] zisofs(final byte[] data, final int blockShift) {
+        final int blockSize = 1 << blockShift;
+        final int blockCount = (data.length + blockSize - 1) / blockSize;
+        final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        final byte[] header = new byte[16 + (4 * (blockCount + 1))];
+        final byte[] buffer = new byte[blockSize + 1024];
+
+        System.arraycopy(ZISOFS_MAGIC, 0, header, 0, ZISOFS_MAGIC.length);
+        putUInt32(header, 8, data.length);
+        header[12] = 4;
+        header[13] = (byte) blockShift;
+
+        for (int i = 0; i < blockCount; i++) {
+            final int start = i * blockSize;
+            final int length = Math.min(blockSize, data.length - start);
+
+            putUInt32(header, 16 + (4 * i), header.length + blocks.size());
+
+            if (!isZero(data, start, length)) {
+                final Deflater deflater = new Deflater();
+
+                deflater.setInput(data, start, length);
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    blocks.write(buffer, 0, deflater.deflate(buffer));
+                }
+
+                deflater.end();
+            }
+        }
+
+        putUInt32(header, 16 + (4 * blockCount), header.length + blocks.size());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write(header, 0, header.length);
+        out.write(blocks.toByteArray(), 0, blocks.size());
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Converts a cooked image into raw 2352-byte sectors, as in the BIN file of a BIN/CUE pair:
+     * each sector gets the sync pattern, a header with its address and mode, for Mode 2 a Form 1
+     * subheader, and a valid error detection code. The error correction bytes are left zero.
+     *
+     * @param image the cooked image, a whole number of 2048-byte sectors
+     * @param mode {@link RawSectorImageSource#MODE1} or {@link RawSectorImageSource#MODE2_FORM1}
+     * @return the raw image
+     */
+    public static byte[] toRawSectors(final byte[] image, final int mode) {
+        final int sectors = image.length / BLOCK;
+        final int dataOffset = (RawSectorImageSource.MODE1 == mode) ? 16 : 24;
+        final int edcStart = (RawSectorImageSource.MODE1 == mode) ? 0 : 16;
+        final int edcEnd = dataOffset + BLOCK;
+        final byte[] raw = new byte[sectors * RawSectorImageSource.RAW_SECTOR_SIZE];
+
+        for (int i = 0; i < sectors; i++) {
+            final int base = i * RawSectorImageSource.RAW_SECTOR_SIZE;
+            // the address of sector i is 00:02:00 plus i frames, in BCD
+            final int address = i + 150;
+
+            raw[base] = 0;
+            Arrays.fill(raw, base + 1, base + 11, (byte) 0xFF);
+            raw[base + 11] = 0;
+            raw[base + 12] = bcd(address / (60 * 75));
+            raw[base + 13] = bcd((address / 75) % 60);
+            raw[base + 14] = bcd(address % 75);
+            raw[base + 15] = (byte) mode;
+
+            if (RawSectorImageSource.MODE2_FORM1 == mode) {
+                // file number, channel, submode (data), coding information; repeated once
+                raw[base + 18] = 0x08;
+                raw[base + 22] = 0x08;
+            }
+
+            System.arraycopy(image, i * BLOCK, raw, base + dataOffset, BLOCK);
+            putUInt32(raw, base + edcEnd, edc(raw, base + edcStart, base + edcEnd));
+        }
+
+        return raw;
+    }
+
+    private static byte bcd(final int value) {
+        return (byte) (((value / 10) << 4) | (value % 10));
+    }
+
+    /**
+     * Computes the CD-ROM error detection code of a range of bytes.
+     */
+    private static long edc(final byte[] data, final int start, final int end) {
+        int edc = 0;
+
+        for (int i = start; i < end; i++) {
+            edc ^= data[i] & 0xFF;
+
+            for (int j = 0; j < 8; j++) {
+                edc = (edc >>> 1) ^ (((edc & 1) != 0) ? 0xD8018001 : 0);
+            }
+        }
+
+        return edc & 0xFFFFFFFFL;
+    }
+
+    private static boolean isZero(final byte[] data, final int start, final int length) {
+        for (int i = start; i < start + length; i++) {
+            if (0 != data[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int blocks(final int size) {
+        return Math.max(1, (size + BLOCK - 1) / BLOCK);
+    }
+
+    private static void fill(final byte[] buffer, final int pos, final int length,
+                             final String value) throws UnsupportedEncodingException {
+        final byte[] bytes = value.getBytes("US-ASCII");
+
+        for (int i = 0; i < length; i++) {
+            buffer[pos + i] = (i < bytes.length) ? bytes[i] : (byte) ' ';
+        }
+    }
+
+    private static void putUInt32(final byte[] buffer, final int pos, final long value) {
+        for (int i = 0; i < 4; i++) {
+            buffer[pos + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static void putBoth16(final byte[] buffer, final int pos, final int value) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >>> 8);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+    }
+
+    private static void putBoth32(final byte[] buffer, final int pos, final long value) {
+        putUInt32(buffer, pos, value);
+
+        for (int i = 0; i < 4; i++) {
+            buffer[pos + 4 + i] = (byte) (value >>> (8 * (3 - i)));
+        }
+    }
+
+    private static class Directory {
+        private final Map children = new TreeMap();
+        private Directory parent;
+        private int block;
+        private int size;
+    }
+
+    private static class Node {
+        private final byte[] data;
+        private final long size;
+        private final int blockShift;
+        private int block = -1;
+
+        private Node(final byte[] data, final long size, final int blockShift) {
+            this.data = data;
+            this.size = size;
+            this.blockShift = blockShift;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.iso9660;
+
+import junit.framework.TestCase;
+import net.didion.loopy.FileEntry;
+import net.didion.loopy.LoopyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Writes files compressed with zisofs into images built with {@link IsoImageBuilder}, and checks
+ * that {@link ISO9660FileSystem} inflates them back through every read path.
+ */
+public class ZisofsDecoderTest extends TestCase {
+    private final Random random = new Random(1);
+
+    public void testBlockSizes() throws IOException {
+        for (int shift = 15; shift <= 17; shift++) {
+            final int blockSize = 1 << shift;
+
+            check(text(3 * blockSize + 1234), shift);
+            check(text(blockSize), shift);
+            check(text(10), shift);
+        }
+    }
+
+    public void testZeroBlocks() throws IOException {
+        // zero blocks are stored as empty blocks, including a partial one at the end
+        final byte[] data = new byte[(5 << 15) + 100];
+        final byte[] text = text(1 << 15);
+
+        System.arraycopy(text, 0, data, 1 << 15, text.length);
+        System.arraycopy(text, 0, data, 3 << 15, 100);
+
+        check(data, 15);
+        check(new byte[1 << 16], 16);
+    }
+
+    public void testIncompressible() throws IOException {
+        final byte[] data = new byte[200 * 1024];
+
+        this.random.nextBytes(data);
+
+        check(data, 15);
+    }
+
+    public void testEmpty() throws IOException {
+        check(new byte[0], 15);
+    }
+
+    public void testUnsupportedBlockSize() throws IOException {
+        checkUnsupported(14);
+        checkUnsupported(18);
+    }
+
+    public void testCorruptBlock() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+        final byte[] data = text(100 * 1024);
+
+        builder.addZisofsFile("CORRUPT.Z", data, 15);
+
+        final byte[] image = builder.build();
+        final byte[] compressed = IsoImageBuilder.zisofs(data, 15);
+        final int start = indexOf(image, compressed);
+
+        // damage the first compressed block, which follows the header and 5 block pointers
+        for (int i = 16 + 20; i < 16 + 40; i++) {
+            image[start + i] = (byte) 0xFF;
+        }
+
+        final ISO9660FileSystem fileSystem =
+                ISO9660FileSystemTest.open(new ISO9660FileSystemTest.TestSource(image));
+
+        try {
+            final FileEntry entry = (FileEntry) ISO9660FileSystemTest.list(fileSystem)
+                    .get("CORRUPT.Z");
+
+            try {
+                fileSystem.read(entry, 0, ByteBuffer.allocate(100));
+                fail("Expected a LoopyException");
+            }
+            catch (LoopyException ex) {
+                // expected
+            }
+
+            // later blocks are not affected
+            final ByteBuffer dst = ByteBuffer.allocate(100);
+
+            assertEquals(100, fileSystem.read(entry, 1 << 15, dst));
+            assertEquals(data[1 << 15], dst.get(0));
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    private void check(final byte[] data, final int shift) throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        builder.addZisofsFile("DIR/FILE.Z", data, shift);
+        builder.addFile("PLAIN.TXT", text(100));
+
+        final ISO9660FileSystem fileSystem =
+                ISO9660FileSystemTest.open(new ISO9660FileSystemTest.TestSource(builder.build()));
+
+        try {
+            final Map entries = ISO9660FileSystemTest.list(fileSystem);
+            final ISO9660FileEntry entry = (ISO9660FileEntry) entries.get("DIR/FILE.Z");
+            final String message = "2^" + shift + ", " + data.length + " bytes";
+
+            assertTrue(message, entry.isZisofs());
+            assertEquals(message, shift, entry.getZisofsBlockShift());
+            assertEquals(message, data.length, entry.getSize());
+            assertTrue(message, Arrays.equals(
+                    data, ISO9660FileSystemTest.readFully(fileSystem.getInputStream(entry))));
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            assertEquals(message, data.length,
+                         fileSystem.transferTo(entry, Channels.newChannel(out)));
+            assertTrue(message, Arrays.equals(data, out.toByteArray()));
+
+            for (int i = 0; i < 20 && data.length > 0; i++) {
+                final int pos = this.random.nextInt(data.length);
+                final int length = 1 + this.random.nextInt(Math.min(data.length - pos, 100000));
+                final ByteBuffer dst = ByteBuffer.allocate(length);
+                final ByteBuffer async = ByteBuffer.allocate(length);
+
+                assertEquals(message, length, fileSystem.read(entry, pos, dst));
+                assertEquals(message, length,
+                             ((Integer) fileSystem.readAsync(entry, pos, async).join()).intValue());
+                assertEquals(message, length, async.position());
+
+                for (int j = 0; j < length; j++) {
+                    if (data[pos + j] != dst.get(j) || data[pos + j] != async.get(j)) {
+                        fail(message + ": mismatch at " + (pos + j));
+                    }
+                }
+            }
+
+            assertEquals(message, -1,
+                         fileSystem.read(entry, data.length, ByteBuffer.allocate(1)));
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    private void checkUnsupported(final int shift) throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        builder.addZisofsFile("BAD.Z", text(100000), shift);
+
+        final ISO9660FileSystem fileSystem =
+                ISO9660FileSystemTest.open(new ISO9660FileSystemTest.TestSource(builder.build()));
+
+        try {
+            final FileEntry entry = (FileEntry) ISO9660FileSystemTest.list(fileSystem).get("BAD.Z");
+
+            try {
+                fileSystem.getInputStream(entry).read();
+                fail("Expected a LoopyException for 2^" + shift);
+            }
+            catch (LoopyException ex) {
+                // expected
+            }
+
+            try {
+                fileSystem.readAsync(entry, 0, ByteBuffer.allocate(100)).join();
+                fail("Expected a LoopyException for 2^" + shift);
+            }
+            catch (CompletionException ex) {
+                assertTrue(ex.getCause() instanceof LoopyException);
+            }
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * Returns compressible data: lines of numbered words.
+     */
+    private byte[] text(final int length) {
+        final StringBuffer buf = new StringBuffer();
+
+        while (buf.length() < length) {
+            buf.append("line ").append(this.random.nextInt(1000)).append(" of zisofs test data\n");
+        }
+
+        buf.setLength(length);
+
+        try {
+            return buf.toString().getBytes("US-ASCII");
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static int indexOf(final byte[] image, final byte[] data) {
+        for (int i = 0; i + data.length <= image.length; i++) {
+            boolean match = true;
+
+            for (int j = 0; j < data.length && match; j++) {
+                match = image[i + j] == data[j];
+            }
+
+            if (match) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Data not found");
+    }
+}
@@ -0,0 +1,251 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.probe;
+
+import junit.framework.TestCase;
+import net.didion.loopy.AbstractBlockFileSystem;
+import net.didion.loopy.FileEntry;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.iso9660.Constants;
+import net.didion.loopy.iso9660.ISO9660FileSystem;
+import net.didion.loopy.iso9660.IsoImageBuilder;
+import net.didion.loopy.source.RawSectorImageSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Classifies hand-made volume recognition areas with {@link FormatProbe#probe(byte[], int)}, and
+ * probes and opens image files in the layouts that {@link net.didion.loopy.source.ImageSources}
+ * understands.
+ */
+public class FormatProbeTest extends TestCase {
+    private static final int SECTOR = Constants.DEFAULT_BLOCK_SIZE;
+
+    private final List files = new ArrayList();
+
+    protected void tearDown() {
+        for (int i = 0; i < this.files.size(); i++) {
+            ((File) this.files.get(i)).delete();
+        }
+    }
+
+    public void testIso9660() {
+        assertEquals(FormatProbe.ISO9660, probe(new String[] {"CD001:1", "CD001:255"}));
+    }
+
+    public void testJoliet() {
+        final byte[] area = area(new String[] {"CD001:1", "CD001:2", "CD001:255"});
+
+        assertEquals(FormatProbe.ISO9660, FormatProbe.probe(area, area.length));
+
+        // UCS-2 level 3 escape sequence in the supplementary volume descriptor
+        area[SECTOR + 88] = '%';
+        area[SECTOR + 89] = '/';
+        area[SECTOR + 90] = 'E';
+
+        assertEquals(FormatProbe.JOLIET, FormatProbe.probe(area, area.length));
+    }
+
+    public void testUdf() {
+        assertEquals(FormatProbe.UDF, probe(new String[] {"BEA01:0", "NSR02:0", "TEA01:0"}));
+        assertEquals(FormatProbe.UDF, probe(new String[] {"BEA01:0", "NSR03:0", "TEA01:0"}));
+
+        // a UDF bridge image carries both trees; UDF wins
+        assertEquals(FormatProbe.UDF, probe(new String[] {
+                "CD001:1", "CD001:255", "BEA01:0", "NSR02:0", "TEA01:0"
+        }));
+    }
+
+    public void testTerminatingExtendedArea() {
+        // descriptors after the end of the volume recognition sequence are ignored
+        assertEquals(FormatProbe.UNKNOWN, probe(new String[] {"BEA01:0", "TEA01:0", "NSR02:0"}));
+        assertEquals(FormatProbe.ISO9660, probe(new String[] {
+                "CD001:1", "CD001:255", "BEA01:0", "TEA01:0", "NSR03:0"
+        }));
+    }
+
+    public void testGarbage() {
+        final byte[] area = new byte[FormatProbe.PROBE_SECTORS * SECTOR];
+
+        assertEquals(FormatProbe.UNKNOWN, FormatProbe.probe(area, area.length));
+
+        new Random(1).nextBytes(area);
+        assertEquals(FormatProbe.UNKNOWN, FormatProbe.probe(area, area.length));
+
+        // a descriptor after an unrecognized sector does not count
+        assertEquals(FormatProbe.UNKNOWN, probe(new String[] {"XXXXX:0", "CD001:1"}));
+
+        // a partial sector is not classified
+        final byte[] iso = area(new String[] {"CD001:1"});
+
+        assertEquals(FormatProbe.UNKNOWN, FormatProbe.probe(iso, SECTOR - 1));
+    }
+
+    public void testProbeFile() throws IOException {
+        final byte[] image = image();
+
+        assertEquals(FormatProbe.ISO9660, FormatProbe.probe(write("image.iso", image)));
+        assertEquals(FormatProbe.UNKNOWN, FormatProbe.probe(write("short.iso", new byte[100])));
+    }
+
+    public void testProbeRawImage() throws IOException {
+        final byte[] image = image();
+        final File bin = write("image.bin",
+                               IsoImageBuilder.toRawSectors(image, RawSectorImageSource.MODE1));
+
+        assertEquals(FormatProbe.ISO9660, FormatProbe.probe(bin));
+        checkOpen(bin);
+
+        final File cue = write("image.cue", ("FILE \"" + bin.getName() + "\" BINARY\n"
+                                             + "  TRACK 01 MODE1/2352\n"
+                                             + "    INDEX 01 00:00:00\n").getBytes("US-ASCII"));
+
+        assertEquals(FormatProbe.ISO9660, FormatProbe.probe(cue));
+        checkOpen(cue);
+    }
+
+    public void testProbeSplitImage() throws IOException {
+        final byte[] image = image();
+        // the first part ends before the volume descriptors
+        final int[] ends = {20000, 40000, image.length};
+        File first = null;
+        int start = 0;
+
+        for (int i = 0; i < ends.length; i++) {
+            final byte[] part = new byte[ends[i] - start];
+
+            System.arraycopy(image, start, part, 0, part.length);
+
+            final File file = write("split.iso.00" + (i + 1), part);
+
+            if (null == first) {
+                first = file;
+            }
+
+            start = ends[i];
+        }
+
+        assertEquals(FormatProbe.ISO9660, FormatProbe.probe(first));
+        checkOpen(first);
+    }
+
+    public void testOpenUnknown() throws IOException {
+        final File file = write("garbage.iso", new byte[40 * SECTOR]);
+
+        try {
+            FormatProbe.open(file);
+            fail("Expected a LoopyException");
+        }
+        catch (LoopyException ex) {
+            // expected
+        }
+    }
+
+    private static int probe(final String[] descriptors) {
+        final byte[] area = area(descriptors);
+
+        return FormatProbe.probe(area, area.length);
+    }
+
+    /**
+     * Builds a volume recognition area with one sector for each descriptor, given as
+     * <code>identifier:type</code>.
+     */
+    private static byte[] area(final String[] descriptors) {
+        final byte[] area = new byte[FormatProbe.PROBE_SECTORS * SECTOR];
+
+        for (int i = 0; i < descriptors.length; i++) {
+            final int colon = descriptors[i].indexOf(':');
+            final String identifier = descriptors[i].substring(0, colon);
+
+            area[i * SECTOR] = (byte) Integer.parseInt(descriptors[i].substring(colon + 1));
+
+            for (int j = 0; j < identifier.length(); j++) {
+                area[(i * SECTOR) + 1 + j] = (byte) identifier.charAt(j);
+            }
+
+            area[(i * SECTOR) + 6] = 1;
+        }
+
+        return area;
+    }
+
+    private static byte[] image() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        builder.addFile("README.TXT", "read me\n".getBytes("US-ASCII"));
+        builder.addFile("DATA/BIG.BIN", new byte[50000]);
+
+        return builder.build();
+    }
+
+    /**
+     * Opens an image through the probe and reads a file from it.
+     */
+    private static void checkOpen(final File file) throws IOException {
+        final AbstractBlockFileSystem fileSystem = FormatProbe.open(file);
+
+        try {
+            assertTrue(fileSystem instanceof ISO9660FileSystem);
+
+            FileEntry readme = null;
+
+            for (Enumeration e = fileSystem.getEntries(); e.hasMoreElements();) {
+                final FileEntry entry = (FileEntry) e.nextElement();
+
+                if ("README.TXT".equals(entry.getPath())) {
+                    readme = entry;
+                }
+            }
+
+            assertNotNull(readme);
+
+            final ByteBuffer dst = ByteBuffer.allocate(100);
+
+            assertEquals(8, fileSystem.read(readme, 0, dst));
+            assertEquals("read me\n", new String(dst.array(), 0, 8, "US-ASCII"));
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    private File write(final String name, final byte[] data) throws IOException {
+        final File dir = new File(System.getProperty("java.io.tmpdir"));
+        final File file = new File(dir, "loopy-probe-" + name);
+        final FileOutputStream out = new FileOutputStream(file);
+
+        this.files.add(file);
+
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        return file;
+    }
+}
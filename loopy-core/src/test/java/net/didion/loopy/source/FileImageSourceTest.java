@@ -0,0 +1,182 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads a temporary file through {@link FileImageSource}, with blocking, asynchronous and
+ * transferring reads.
+ */
+public class FileImageSourceTest extends TestCase {
+    private static final int SIZE = 3 * 1024 * 1024 + 123;
+
+    private final Random random = new Random(1);
+    private byte[] data;
+    private File file;
+    private FileImageSource source;
+
+    protected void setUp() throws IOException {
+        this.data = new byte[SIZE];
+        this.random.nextBytes(this.data);
+        this.file = File.createTempFile("loopy", ".img");
+
+        final FileOutputStream out = new FileOutputStream(this.file);
+
+        try {
+            out.write(this.data);
+        }
+        finally {
+            out.close();
+        }
+
+        this.source = new FileImageSource(this.file);
+    }
+
+    protected void tearDown() throws IOException {
+        this.source.close();
+        this.file.delete();
+    }
+
+    public void testRead() throws IOException {
+        assertEquals(SIZE, this.source.size());
+
+        for (int i = 0; i < 100; i++) {
+            final int pos = this.random.nextInt(SIZE);
+            final ByteBuffer dst = ByteBuffer.allocate(1 + this.random.nextInt(200 * 1024));
+            final int expected = Math.min(dst.capacity(), SIZE - pos);
+
+            assertEquals(expected, this.source.read(pos, dst));
+            check(pos, dst, expected);
+        }
+
+        assertEquals(-1, this.source.read(SIZE, ByteBuffer.allocate(1)));
+    }
+
+    public void testReadAsync() throws Exception {
+        final List futures = new ArrayList();
+        final List buffers = new ArrayList();
+        final int[] positions = new int[200];
+
+        // many reads in flight at once, into heap and direct buffers
+        for (int i = 0; i < positions.length; i++) {
+            final int length = 1 + this.random.nextInt(100 * 1024);
+            final ByteBuffer dst = (i % 2 == 0)
+                    ? ByteBuffer.allocate(length) : ByteBuffer.allocateDirect(length);
+
+            positions[i] = this.random.nextInt(SIZE);
+            buffers.add(dst);
+            futures.add(this.source.readAsync(positions[i], dst));
+        }
+
+        for (int i = 0; i < positions.length; i++) {
+            final ByteBuffer dst = (ByteBuffer) buffers.get(i);
+            final int expected = Math.min(dst.capacity(), SIZE - positions[i]);
+
+            assertEquals(expected, ((Integer) ((CompletableFuture) futures.get(i)).get())
+                    .intValue());
+            check(positions[i], dst, expected);
+        }
+
+        // the whole file, into a buffer larger than the file
+        final ByteBuffer all = ByteBuffer.allocate(SIZE + 100);
+
+        assertEquals(SIZE, ((Integer) this.source.readAsync(0, all).get()).intValue());
+        check(0, all, SIZE);
+
+        assertEquals(-1, ((Integer) this.source.readAsync(SIZE, ByteBuffer.allocate(1)).get())
+                .intValue());
+    }
+
+    public void testTransferTo() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(SIZE - 1000,
+                     this.source.transferTo(1000, SIZE, Channels.newChannel(out)));
+
+        final byte[] expected = new byte[SIZE - 1000];
+
+        System.arraycopy(this.data, 1000, expected, 0, expected.length);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+
+    public void testInterruptedReader() throws IOException {
+        final ByteBuffer dst = ByteBuffer.allocate(1024);
+
+        // an interrupt closes the shared channel; only the interrupted reader fails
+        Thread.currentThread().interrupt();
+
+        try {
+            this.source.read(0, dst);
+            fail("Expected a ClosedByInterruptException");
+        }
+        catch (ClosedByInterruptException ex) {
+            // expected
+        }
+        finally {
+            Thread.interrupted();
+        }
+
+        dst.clear();
+        assertEquals(1024, this.source.read(100, dst));
+        check(100, dst, 1024);
+    }
+
+    public void testClosed() throws IOException {
+        this.source.close();
+
+        try {
+            this.source.read(0, ByteBuffer.allocate(1));
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+
+        try {
+            this.source.readAsync(0, ByteBuffer.allocate(1));
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    private void check(final int pos, final ByteBuffer dst, final int length) {
+        assertEquals(length, dst.position());
+
+        for (int i = 0; i < length; i++) {
+            if (this.data[pos + i] != dst.get(i)) {
+                fail("Mismatch at " + (pos + i));
+            }
+        }
+    }
+}
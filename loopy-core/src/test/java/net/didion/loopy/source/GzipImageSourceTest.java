@@ -0,0 +1,285 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks the checkpoints found by {@link DeflateScanner} and the data read through
+ * {@link GzipImageSource} against what the JDK inflates from the same gzip data.
+ */
+public class GzipImageSourceTest extends TestCase {
+    private static final int SPAN = 64 * 1024;
+
+    private File file;
+
+    protected void tearDown() {
+        if (null != this.file) {
+            this.file.delete();
+        }
+    }
+
+    public void testDefaultCompression() throws IOException {
+        check(gzip(new byte[][] {data(1, 3 * 1024 * 1024)}, Deflater.DEFAULT_COMPRESSION,
+                   Deflater.DEFAULT_STRATEGY));
+    }
+
+    public void testStoredBlocks() throws IOException {
+        check(gzip(new byte[][] {data(2, 512 * 1024)}, Deflater.NO_COMPRESSION,
+                   Deflater.DEFAULT_STRATEGY));
+    }
+
+    public void testHuffmanOnly() throws IOException {
+        check(gzip(new byte[][] {data(3, 1024 * 1024)}, Deflater.BEST_SPEED,
+                   Deflater.HUFFMAN_ONLY));
+    }
+
+    public void testFixedCodes() throws IOException {
+        // short inputs are compressed with the fixed Huffman codes
+        final byte[][] members = new byte[200][];
+
+        for (int i = 0; i < members.length; i++) {
+            members[i] = data(100 + i, 40 + i);
+        }
+
+        check(gzip(members, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY));
+    }
+
+    public void testMultipleMembers() throws IOException {
+        check(gzip(new byte[][] {
+                data(4, 300 * 1024), new byte[0], data(5, 700 * 1024), data(6, 1)
+        }, Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY));
+    }
+
+    public void testEmpty() throws IOException {
+        final byte[] gzip = gzip(new byte[][] {new byte[0]}, Deflater.DEFAULT_COMPRESSION,
+                                 Deflater.DEFAULT_STRATEGY);
+        final GzipIndex index = GzipIndex.build(write(gzip), SPAN);
+
+        assertEquals(0, index.getUncompressedSize());
+        assertEquals(1, index.getCheckpointCount());
+    }
+
+    public void testNotGzip() throws IOException {
+        try {
+            GzipIndex.build(write(data(7, 1000)), SPAN);
+            fail("Expected an exception");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testSavedIndex() throws IOException {
+        final byte[] gzip = gzip(new byte[][] {data(8, 1024 * 1024)},
+                                 Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        final File file = write(gzip);
+        final GzipIndex index = GzipIndex.build(file, SPAN);
+        final ByteArrayOutputStream saved = new ByteArrayOutputStream();
+
+        index.write(saved);
+
+        final GzipIndex loaded = GzipIndex.read(new ByteArrayInputStream(saved.toByteArray()));
+
+        assertEquals(index.getFileSize(), loaded.getFileSize());
+        assertEquals(index.getUncompressedSize(), loaded.getUncompressedSize());
+        assertEquals(index.getCheckpointCount(), loaded.getCheckpointCount());
+
+        final GzipImageSource source = new GzipImageSource(file, loaded);
+
+        try {
+            checkReads(source, gunzip(gzip));
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Checks that every checkpoint holds the data preceding it, that inflating from each
+     * checkpoint up to the next one produces the same data as {@link GZIPInputStream}, and that
+     * reads at random positions do too.
+     */
+    private void check(final byte[] gzip) throws IOException {
+        final byte[] expected = gunzip(gzip);
+        final DeflateScanner scanner = new DeflateScanner(new ByteArrayInputStream(gzip), SPAN);
+        final List checkpoints = scanner.scan();
+
+        assertEquals(expected.length, scanner.getUncompressedSize());
+        assertTrue(checkpoints.size() >= expected.length / (2 * SPAN));
+
+        for (int i = 0; i < checkpoints.size(); i++) {
+            final GzipIndex.Checkpoint checkpoint = (GzipIndex.Checkpoint) checkpoints.get(i);
+            final int out = (int) checkpoint.out;
+
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, out - checkpoint.window.length,
+                                                        out),
+                                     checkpoint.window));
+        }
+
+        final GzipIndex index = GzipIndex.build(write(gzip), SPAN);
+
+        assertEquals(checkpoints.size(), index.getCheckpointCount());
+
+        // read backwards from checkpoint to checkpoint, without a cache, so that every span is
+        // inflated by a cursor started at its own checkpoint
+        GzipImageSource source = new GzipImageSource(this.file, index);
+
+        try {
+            source.setCacheSize(0);
+
+            for (int i = checkpoints.size() - 1; i >= 0; i--) {
+                final int start = (int) ((GzipIndex.Checkpoint) checkpoints.get(i)).out;
+                final int end = (i + 1 < checkpoints.size())
+                                ? (int) ((GzipIndex.Checkpoint) checkpoints.get(i + 1)).out
+                                : expected.length;
+                final ByteBuffer dst = ByteBuffer.allocate(end - start);
+
+                if (end > start) {
+                    assertEquals(end - start, source.read(start, dst));
+                }
+                assertTrue("span at " + start,
+                           Arrays.equals(Arrays.copyOfRange(expected, start, end), dst.array()));
+            }
+        }
+        finally {
+            source.close();
+        }
+
+        source = new GzipImageSource(this.file, index);
+
+        try {
+            assertEquals(expected.length, source.size());
+            checkReads(source, expected);
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    private static void checkReads(final GzipImageSource source, final byte[] expected)
+            throws IOException {
+        final Random random = new Random(expected.length);
+
+        for (int i = 0; i < 200; i++) {
+            final int pos = (expected.length == 0) ? 0 : random.nextInt(expected.length);
+            final int length = Math.min(random.nextInt(3 * GzipImageSource.CHUNK_SIZE),
+                                        expected.length - pos);
+            final ByteBuffer dst = ByteBuffer.allocate(length);
+
+            assertEquals((length == 0) ? -1 : length, source.read(pos, dst));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, pos, pos + length),
+                                     dst.array()));
+        }
+
+        assertEquals(-1, source.read(expected.length, ByteBuffer.allocate(1)));
+    }
+
+    private File write(final byte[] data) throws IOException {
+        this.file = File.createTempFile("loopy", ".gz");
+
+        final OutputStream out = new FileOutputStream(this.file);
+
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        return this.file;
+    }
+
+    /**
+     * Returns compressible data: runs of words, repeated phrases and random bytes.
+     */
+    private static byte[] data(final long seed, final int length) {
+        final Random random = new Random(seed);
+        final byte[] data = new byte[length];
+        int i = 0;
+
+        while (i < length) {
+            final int kind = random.nextInt(3);
+            final int run = Math.min(length - i, 1 + random.nextInt(2000));
+
+            for (int j = 0; j < run; j++, i++) {
+                if (kind == 0) {
+                    data[i] = (byte) ('a' + random.nextInt(6));
+                }
+                else if (kind == 1 && i >= 300) {
+                    data[i] = data[i - 300];
+                }
+                else {
+                    data[i] = (byte) random.nextInt();
+                }
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Compresses each part into its own gzip member.
+     */
+    private static byte[] gzip(final byte[][] members, final int level, final int strategy)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < members.length; i++) {
+            final GZIPOutputStream gzip = new GZIPOutputStream(out) {
+                {
+                    this.def.setLevel(level);
+                    this.def.setStrategy(strategy);
+                }
+            };
+
+            gzip.write(members[i]);
+            gzip.finish();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(final byte[] gzip) throws IOException {
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+}
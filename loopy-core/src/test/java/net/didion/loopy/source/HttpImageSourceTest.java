@@ -0,0 +1,259 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import net.didion.loopy.LoopyException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads an image through {@link HttpImageSource} from an in-process HTTP server that answers
+ * range requests, and checks the data and the requests it takes against the served image.
+ */
+public class HttpImageSourceTest extends TestCase {
+    private static final int CHUNK = HttpImageSource.CHUNK_SIZE;
+
+    private final byte[] image = data(1, (16 * CHUNK) + 123);
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean rangeSupported = true;
+    private volatile boolean failing = false;
+
+    private HttpServer server;
+    private URL url;
+
+    protected void setUp() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/image", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        this.server.setExecutor(Executors.newFixedThreadPool(8));
+        this.server.start();
+        this.url = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/image");
+    }
+
+    protected void tearDown() {
+        this.server.stop(0);
+    }
+
+    public void testSequentialReads() throws IOException {
+        final HttpImageSource source = new HttpImageSource(this.url);
+
+        assertEquals(this.image.length, source.size());
+
+        final byte[] read = new byte[this.image.length];
+        final ByteBuffer dst = ByteBuffer.wrap(read);
+
+        while (dst.hasRemaining()) {
+            dst.limit(Math.min(dst.position() + 10000, read.length));
+            assertTrue(source.read(dst.position(), dst) > 0);
+            dst.limit(read.length);
+        }
+
+        assertTrue(Arrays.equals(this.image, read));
+        assertEquals(-1, source.read(this.image.length, ByteBuffer.allocate(1)));
+        assertEquals(this.image.length, source.getBytesTransferred());
+    }
+
+    public void testRandomReadsWithoutCache() throws IOException {
+        final HttpImageSource source = new HttpImageSource(this.url);
+
+        source.setCacheSize(0);
+        source.setReadAhead(0);
+        checkReads(source, new Random(2), 200);
+    }
+
+    public void testReadAhead() throws IOException {
+        final HttpImageSource source = new HttpImageSource(this.url);
+
+        source.setReadAhead(3);
+        assertEquals(1, source.getRequestCount());
+
+        // one request fetches chunk 2 and the three chunks following it
+        check(source, (2 * CHUNK) + 10, 100);
+        assertEquals(2, source.getRequestCount());
+        check(source, (3 * CHUNK) - 50, 2 * CHUNK);
+        assertEquals(2, source.getRequestCount());
+
+        // a read that ends at the last chunk is not extended beyond the end of the image
+        check(source, this.image.length - 10, 10);
+        assertEquals(3, source.getRequestCount());
+        assertEquals(this.requests.get(), source.getRequestCount());
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final HttpImageSource source = new HttpImageSource(this.url);
+        final List failures = Collections.synchronizedList(new ArrayList());
+        final Thread[] threads = new Thread[16];
+
+        source.setCacheSize(4 * CHUNK);
+
+        for (int i = 0; i < threads.length; i++) {
+            final long seed = 100 + i;
+
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        checkReads(source, new Random(seed), 100);
+                    }
+                    catch (Throwable ex) {
+                        failures.add(ex);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        assertEquals(failures.toString(), 0, failures.size());
+    }
+
+    public void testRangeNotSupported() throws IOException {
+        this.rangeSupported = false;
+
+        try {
+            new HttpImageSource(this.url);
+            fail("Expected a LoopyException");
+        }
+        catch (LoopyException ex) {
+            // expected
+        }
+    }
+
+    public void testFailedRequest() throws IOException {
+        final HttpImageSource source = new HttpImageSource(this.url);
+
+        this.failing = true;
+
+        try {
+            source.read(5 * CHUNK, ByteBuffer.allocate(100));
+            fail("Expected a LoopyException");
+        }
+        catch (LoopyException ex) {
+            // expected
+        }
+
+        // the failed chunks were released, so they are fetched again
+        this.failing = false;
+        check(source, 5 * CHUNK, 100);
+    }
+
+    public void testClosed() throws IOException {
+        final HttpImageSource source = new HttpImageSource(this.url);
+
+        source.close();
+
+        try {
+            source.read(0, ByteBuffer.allocate(1));
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    private void checkReads(final HttpImageSource source, final Random random, final int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            final int pos = random.nextInt(this.image.length);
+            final int length = 1 + random.nextInt(Math.min(3 * CHUNK, this.image.length - pos));
+
+            check(source, pos, length);
+        }
+    }
+
+    private void check(final HttpImageSource source, final int pos, final int length)
+            throws IOException {
+        final ByteBuffer dst = ByteBuffer.allocate(length);
+
+        assertEquals(length, source.read(pos, dst));
+
+        for (int i = 0; i < length; i++) {
+            if (this.image[pos + i] != dst.get(i)) {
+                fail("Mismatch at " + (pos + i));
+            }
+        }
+    }
+
+    /**
+     * Answers a request for <code>bytes=start-end</code> the way an object store does.
+     */
+    private void serve(final HttpExchange exchange) throws IOException {
+        this.requests.incrementAndGet();
+
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        int start = 0;
+        int end = this.image.length - 1;
+
+        if (this.failing) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+
+        if (this.rangeSupported && null != range && range.startsWith("bytes=")) {
+            final int dash = range.indexOf('-');
+
+            start = Integer.parseInt(range.substring(6, dash));
+            end = Math.min(Integer.parseInt(range.substring(dash + 1)), end);
+            exchange.getResponseHeaders().set("Content-Range",
+                                              "bytes " + start + "-" + end + "/"
+                                              + this.image.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        }
+        else {
+            exchange.sendResponseHeaders(200, this.image.length);
+        }
+
+        final OutputStream out = exchange.getResponseBody();
+
+        try {
+            out.write(this.image, start, end - start + 1);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static byte[] data(final long seed, final int length) {
+        final byte[] data = new byte[length];
+
+        new Random(seed).nextBytes(data);
+
+        return data;
+    }
+}
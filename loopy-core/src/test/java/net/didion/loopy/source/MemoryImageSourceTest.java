@@ -0,0 +1,182 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import junit.framework.TestCase;
+
+import net.didion.loopy.ImageSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Reads images held in byte arrays, heap buffers and direct buffers through
+ * {@link MemoryImageSource}, and images loaded into memory from files.
+ */
+public class MemoryImageSourceTest extends TestCase {
+    private static final int SIZE = 100 * 1024 + 7;
+
+    private final Random random = new Random(1);
+    private byte[] data;
+
+    protected void setUp() {
+        this.data = new byte[SIZE];
+        this.random.nextBytes(this.data);
+    }
+
+    public void testArray() throws IOException {
+        check(new MemoryImageSource(this.data), 0);
+    }
+
+    public void testDirectBuffer() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE);
+
+        buffer.put(this.data).flip();
+        check(new MemoryImageSource(buffer), 0);
+    }
+
+    public void testBufferRange() throws IOException {
+        // only the remaining bytes of the buffer are the image
+        final ByteBuffer buffer = ByteBuffer.wrap(this.data);
+
+        buffer.position(1000).limit(SIZE - 1000);
+
+        final MemoryImageSource source = new MemoryImageSource(buffer);
+
+        assertEquals(SIZE - 2000, source.size());
+        check(source, 1000);
+
+        // reads do not move the caller's buffer
+        assertEquals(1000, buffer.position());
+        assertEquals(SIZE - 1000, buffer.limit());
+    }
+
+    public void testLoad() throws IOException {
+        final File file = write();
+
+        try {
+            final MemoryImageSource heap = MemoryImageSource.load(file, false);
+            final MemoryImageSource direct = MemoryImageSource.load(file, true);
+
+            assertEquals(SIZE, heap.size());
+            check(heap, 0);
+            check(direct, 0);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testOpenInMemory() throws IOException {
+        final File file = write();
+
+        try {
+            // only images no larger than the limit are loaded
+            final ImageSource small = ImageSources.open(file, SIZE, true);
+            final ImageSource large = ImageSources.open(file, SIZE - 1, true);
+            final ImageSource plain = ImageSources.open(file);
+
+            assertTrue(small instanceof MemoryImageSource);
+            assertTrue(large instanceof FileImageSource);
+            assertTrue(plain instanceof FileImageSource);
+            check((MemoryImageSource) small, 0);
+
+            small.close();
+            large.close();
+            plain.close();
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void testClose() throws IOException {
+        final MemoryImageSource source = new MemoryImageSource(this.data);
+
+        source.close();
+        assertEquals(0, source.size());
+
+        try {
+            source.read(0, ByteBuffer.allocate(1));
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    private File write() throws IOException {
+        final File file = File.createTempFile("loopy", ".img");
+        final FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(this.data);
+        }
+        finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Reads at random positions, into heap and direct buffers, and at and over the end.
+     *
+     * @param offset the position of the image in {@link #data}
+     */
+    private void check(final MemoryImageSource source, final int offset) throws IOException {
+        final int size = (int) source.size();
+
+        assertEquals(size, source.getResidentSize());
+
+        for (int i = 0; i < 100; i++) {
+            final int pos = this.random.nextInt(size);
+            final int length = 1 + this.random.nextInt(size / 4);
+            final ByteBuffer dst = (i % 2 == 0)
+                    ? ByteBuffer.allocate(length) : ByteBuffer.allocateDirect(length);
+            final int expected = Math.min(length, size - pos);
+
+            assertEquals(expected, source.read(pos, dst));
+            assertEquals(expected, dst.position());
+
+            for (int j = 0; j < expected; j++) {
+                if (this.data[offset + pos + j] != dst.get(j)) {
+                    fail("mismatch at " + (pos + j));
+                }
+            }
+        }
+
+        final ByteBuffer tail = ByteBuffer.allocate(100);
+
+        assertEquals(10, source.read(size - 10, tail));
+        assertEquals(this.data[offset + size - 1], tail.get(9));
+        assertEquals(-1, source.read(size, ByteBuffer.allocate(1)));
+        assertEquals(0, source.read(0, ByteBuffer.allocate(0)));
+
+        try {
+            source.read(-1, ByteBuffer.allocate(1));
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import junit.framework.TestCase;
+import net.didion.loopy.ImageSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads an image split into parts of different sizes through {@link MultiPartImageSource}, with
+ * reads that cross the boundaries between parts and the end of the image.
+ */
+public class MultiPartImageSourceTest extends TestCase {
+    // an empty part in the middle, and a last part shorter than the others
+    private static final int[] SIZES = {4096, 4096, 0, 4096, 1000};
+
+    private final Random random = new Random(1);
+    private final List files = new ArrayList();
+    private byte[] data;
+    private int size;
+
+    protected void setUp() {
+        for (int i = 0; i < SIZES.length; i++) {
+            this.size += SIZES[i];
+        }
+
+        this.data = new byte[this.size];
+        this.random.nextBytes(this.data);
+    }
+
+    protected void tearDown() {
+        for (int i = 0; i < this.files.size(); i++) {
+            ((File) this.files.get(i)).delete();
+        }
+    }
+
+    public void testRead() throws IOException {
+        final MultiPartImageSource source = new MultiPartImageSource(split());
+
+        assertEquals(SIZES.length, source.getPartCount());
+        assertEquals(this.size, source.size());
+
+        for (int i = 0; i < 200; i++) {
+            final int pos = this.random.nextInt(this.size);
+            final ByteBuffer dst = ByteBuffer.allocate(1 + this.random.nextInt(this.size));
+            final int expected = Math.min(dst.capacity(), this.size - pos);
+
+            assertEquals(expected, source.read(pos, dst));
+            check(pos, dst, expected);
+        }
+    }
+
+    public void testReadAcrossParts() throws IOException {
+        final MultiPartImageSource source = new MultiPartImageSource(split());
+
+        // from the end of the first part into the second
+        read(source, 4000, 200, 200);
+        // exactly the second part
+        read(source, 4096, 4096, 4096);
+        // over the empty part, from the second part into the fourth
+        read(source, 8000, 200, 200);
+        // from the start of the fourth part, which follows the empty one
+        read(source, 8192, 100, 100);
+        // from the first part through all others
+        read(source, 10, this.size, this.size - 10);
+    }
+
+    public void testReadAtEnd() throws IOException {
+        final MultiPartImageSource source = new MultiPartImageSource(split());
+
+        // a read over the end is cut short at the end of the short last part
+        read(source, this.size - 500, 1000, 500);
+        read(source, this.size - 1, 1, 1);
+        assertEquals(-1, source.read(this.size, ByteBuffer.allocate(1)));
+        assertEquals(-1, source.read(this.size + 100, ByteBuffer.allocate(1)));
+
+        try {
+            source.read(-1, ByteBuffer.allocate(1));
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testShortPart() throws IOException {
+        // a part that claims more data than it has
+        final ImageSource[] parts = split();
+
+        parts[1] = new MemoryImageSource(new byte[100]) {
+            public long size() {
+                return 4096;
+            }
+        };
+
+        try {
+            new MultiPartImageSource(parts).read(0, ByteBuffer.allocate(this.size));
+            fail("Expected an IOException");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testFiles() throws IOException {
+        final File first = write("split.iso.001", 0, 2);
+
+        write("split.iso.002", 2, 4);
+        write("split.iso.003", 4, SIZES.length);
+        // not a continuation: the number after a gap
+        write("split.iso.005", 0, 1);
+
+        final File[] parts = MultiPartImageSource.findParts(first);
+
+        assertEquals(3, parts.length);
+        assertEquals("loopy-split.iso.003", parts[2].getName());
+
+        final MultiPartImageSource source = new MultiPartImageSource(parts);
+
+        try {
+            assertEquals(this.size, source.size());
+            read(source, 0, this.size, this.size);
+            read(source, 4000, 5000, 5000);
+        }
+        finally {
+            source.close();
+        }
+
+        // the parts may start at any number, and the width of the number is kept
+        final File ninth = write("wide.iso.009", 0, 2);
+
+        write("wide.iso.010", 2, SIZES.length);
+        assertEquals("loopy-wide.iso.010", MultiPartImageSource.findParts(ninth)[1].getName());
+    }
+
+    public void testNotNumbered() throws IOException {
+        try {
+            MultiPartImageSource.findParts(write("split.iso", 0, 1));
+            fail("Expected a FileNotFoundException");
+        }
+        catch (FileNotFoundException ex) {
+            // expected
+        }
+
+        try {
+            MultiPartImageSource.findParts(new File("does-not-exist.iso.001"));
+            fail("Expected a FileNotFoundException");
+        }
+        catch (FileNotFoundException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Reads <code>length</code> bytes at <code>pos</code> and checks that <code>expected</code>
+     * bytes of the image are returned.
+     */
+    private void read(final ImageSource source, final int pos, final int length,
+                      final int expected) throws IOException {
+        final ByteBuffer dst = ByteBuffer.allocate(length);
+
+        assertEquals(expected, source.read(pos, dst));
+        check(pos, dst, expected);
+    }
+
+    private void check(final int pos, final ByteBuffer dst, final int length) {
+        assertEquals(length, dst.position());
+
+        for (int i = 0; i < length; i++) {
+            if (this.data[pos + i] != dst.get(i)) {
+                fail("mismatch at " + (pos + i));
+            }
+        }
+    }
+
+    /**
+     * Splits the image into parts in memory.
+     */
+    private ImageSource[] split() {
+        final ImageSource[] parts = new ImageSource[SIZES.length];
+
+        for (int i = 0; i < SIZES.length; i++) {
+            parts[i] = new MemoryImageSource(ByteBuffer.wrap(this.data, start(i), SIZES[i]));
+        }
+
+        return parts;
+    }
+
+    /**
+     * Writes the parts <code>from</code> up to <code>to</code> to one file.
+     */
+    private File write(final String name, final int from, final int to) throws IOException {
+        final File file = new File(System.getProperty("java.io.tmpdir"), "loopy-" + name);
+        final FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(this.data, start(from), start(to) - start(from));
+        }
+        finally {
+            out.close();
+        }
+
+        this.files.add(file);
+
+        return file;
+    }
+
+    private static int start(final int part) {
+        int start = 0;
+
+        for (int i = 0; i < part; i++) {
+            start += SIZES[i];
+        }
+
+        return start;
+    }
+}
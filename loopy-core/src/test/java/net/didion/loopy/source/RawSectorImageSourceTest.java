@@ -0,0 +1,301 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import junit.framework.TestCase;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.iso9660.IsoImageBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads images converted to raw sectors by {@link IsoImageBuilder#toRawSectors} through
+ * {@link RawSectorImageSource}, and checks that the user data of each sector maps back to the
+ * cooked image.
+ */
+public class RawSectorImageSourceTest extends TestCase {
+    private static final int RAW = RawSectorImageSource.RAW_SECTOR_SIZE;
+
+    private final Random random = new Random(1);
+    private final List files = new ArrayList();
+    private byte[] image;
+
+    protected void setUp() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+        final byte[] data = new byte[100 * 1024];
+
+        this.random.nextBytes(data);
+        builder.addFile("README.TXT", "read me\n".getBytes("US-ASCII"));
+        builder.addFile("DATA.BIN", data);
+
+        this.image = builder.build();
+    }
+
+    protected void tearDown() {
+        for (int i = 0; i < this.files.size(); i++) {
+            ((File) this.files.get(i)).delete();
+        }
+    }
+
+    public void testMode1() throws IOException {
+        check(RawSectorImageSource.MODE1);
+    }
+
+    public void testMode2Form1() throws IOException {
+        check(RawSectorImageSource.MODE2_FORM1);
+    }
+
+    public void testOffset() throws IOException {
+        // a pregap of two sectors before the data track
+        final byte[] raw = IsoImageBuilder.toRawSectors(this.image, RawSectorImageSource.MODE1);
+        final byte[] padded = new byte[(2 * RAW) + raw.length];
+
+        System.arraycopy(raw, 0, padded, 2 * RAW, raw.length);
+
+        final RawSectorImageSource source =
+                new RawSectorImageSource(write("pregap.bin", padded), 2 * RAW, 0);
+
+        try {
+            assertEquals(RawSectorImageSource.MODE1, source.getMode());
+            assertEquals(this.image.length, source.size());
+            checkReads(source);
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    public void testVerifyEdc() throws IOException {
+        final byte[] raw = IsoImageBuilder.toRawSectors(this.image, RawSectorImageSource.MODE1);
+        // corrupt one byte of the user data of sector 20
+        final int pos = (20 * RAW) + 16 + 100;
+
+        raw[pos] ^= 0x01;
+
+        final RawSectorImageSource source = new RawSectorImageSource(write("bad.bin", raw));
+
+        try {
+            final ByteBuffer dst = ByteBuffer.allocate(4096);
+
+            // unverified, the damaged data is returned as it is
+            assertEquals(dst.capacity(), source.read(19 * 2048, dst));
+            assertEquals(this.image[(20 * 2048) + 100] ^ 0x01, dst.get(2048 + 100));
+
+            source.setVerifyEdc(true);
+
+            // the sectors before the damage are fine...
+            dst.clear();
+            assertEquals(dst.capacity(), source.read(18 * 2048, dst));
+
+            // ...but a read that touches it fails
+            dst.clear();
+
+            try {
+                source.read(19 * 2048, dst);
+                fail("Expected a LoopyException");
+            }
+            catch (LoopyException ex) {
+                // expected
+            }
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    public void testIsRawImage() throws IOException {
+        final byte[] raw = IsoImageBuilder.toRawSectors(this.image, RawSectorImageSource.MODE1);
+
+        assertTrue(RawSectorImageSource.isRawImage(write("image.bin", raw)));
+        assertFalse(RawSectorImageSource.isRawImage(write("image.iso", this.image)));
+
+        final byte[] sync = new byte[RAW - 1];
+
+        System.arraycopy(raw, 0, sync, 0, sync.length);
+        assertFalse(RawSectorImageSource.isRawImage(write("short.bin", sync)));
+    }
+
+    public void testNotRaw() throws IOException {
+        try {
+            new RawSectorImageSource(write("image.iso", this.image));
+            fail("Expected a LoopyException");
+        }
+        catch (LoopyException ex) {
+            // expected
+        }
+    }
+
+    public void testFromCue() throws IOException {
+        final byte[] raw =
+                IsoImageBuilder.toRawSectors(this.image, RawSectorImageSource.MODE2_FORM1);
+        final byte[] padded = new byte[(2 * RAW) + raw.length];
+
+        System.arraycopy(raw, 0, padded, 2 * RAW, raw.length);
+
+        final File bin = write("my image.bin", padded);
+        final File cue = write("image.cue", ("REM a comment\n"
+                                             + "FILE \"" + bin.getName() + "\" BINARY\n"
+                                             + "  TRACK 01 MODE2/2352\n"
+                                             + "    INDEX 00 00:00:00\n"
+                                             + "    INDEX 01 00:00:02\n"
+                                             + "  TRACK 02 AUDIO\n"
+                                             + "    INDEX 01 10:00:00\n")
+                .getBytes("US-ASCII"));
+        final RawSectorImageSource source = RawSectorImageSource.fromCue(cue);
+
+        try {
+            assertEquals(bin.getName(), source.getFile().getName());
+            assertEquals(RawSectorImageSource.MODE2_FORM1, source.getMode());
+            assertEquals(this.image.length, source.size());
+            checkReads(source);
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    public void testFromCueWithoutDataTrack() throws IOException {
+        final File cue = write("audio.cue", ("FILE audio.bin BINARY\n"
+                                             + "  TRACK 01 AUDIO\n"
+                                             + "    INDEX 01 00:00:00\n").getBytes("US-ASCII"));
+
+        try {
+            RawSectorImageSource.fromCue(cue);
+            fail("Expected a LoopyException");
+        }
+        catch (LoopyException ex) {
+            // expected
+        }
+    }
+
+    public void testParseFileName() {
+        assertEquals("my image.bin", RawSectorImageSource.parseFileName("\"my image.bin\" BINARY"));
+        assertEquals("image.bin", RawSectorImageSource.parseFileName("image.bin BINARY"));
+        assertEquals("image.bin", RawSectorImageSource.parseFileName("\"image.bin"));
+    }
+
+    public void testParseTime() throws LoopyException {
+        assertEquals(0, RawSectorImageSource.parseTime("00:00:00"));
+        assertEquals(2, RawSectorImageSource.parseTime("00:00:02"));
+        assertEquals((((1 * 60) + 2) * 75) + 3, RawSectorImageSource.parseTime("01:02:03"));
+
+        try {
+            RawSectorImageSource.parseTime("01:02");
+            fail("Expected a LoopyException");
+        }
+        catch (LoopyException ex) {
+            // expected
+        }
+    }
+
+    public void testClosed() throws IOException {
+        final RawSectorImageSource source = new RawSectorImageSource(
+                write("image.bin",
+                      IsoImageBuilder.toRawSectors(this.image, RawSectorImageSource.MODE1)));
+
+        source.close();
+        // closing twice does no harm
+        source.close();
+
+        try {
+            source.read(0, ByteBuffer.allocate(1));
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    private void check(final int mode) throws IOException {
+        final File bin = write("image.bin", IsoImageBuilder.toRawSectors(this.image, mode));
+        final RawSectorImageSource source = new RawSectorImageSource(bin);
+
+        try {
+            assertEquals(mode, source.getMode());
+            assertEquals(bin, source.getFile());
+            assertEquals(this.image.length, source.size());
+            checkReads(source);
+
+            // every sector passes verification
+            source.setVerifyEdc(true);
+
+            final ByteBuffer all = ByteBuffer.allocateDirect(this.image.length);
+
+            assertEquals(this.image.length, source.read(0, all));
+            checkData(0, all, this.image.length);
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Reads at random positions, across sector boundaries and over the end of the image.
+     */
+    private void checkReads(final RawSectorImageSource source) throws IOException {
+        final int size = this.image.length;
+
+        for (int i = 0; i < 100; i++) {
+            final int pos = this.random.nextInt(size);
+            final ByteBuffer dst = ByteBuffer.allocate(1 + this.random.nextInt(3 * 2048));
+            final int expected = Math.min(dst.capacity(), size - pos);
+
+            assertEquals(expected, source.read(pos, dst));
+            checkData(pos, dst, expected);
+        }
+
+        final ByteBuffer tail = ByteBuffer.allocate(4096);
+
+        assertEquals(1000, source.read(size - 1000, tail));
+        checkData(size - 1000, tail, 1000);
+        assertEquals(-1, source.read(size, ByteBuffer.allocate(1)));
+    }
+
+    private void checkData(final int pos, final ByteBuffer dst, final int length) {
+        assertEquals(length, dst.position());
+
+        for (int i = 0; i < length; i++) {
+            if (this.image[pos + i] != dst.get(i)) {
+                fail("mismatch at " + (pos + i));
+            }
+        }
+    }
+
+    private File write(final String name, final byte[] data) throws IOException {
+        final File dir = new File(System.getProperty("java.io.tmpdir"));
+        final File file = new File(dir, "loopy-raw-" + name);
+        final FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        this.files.add(file);
+
+        return file;
+    }
+}
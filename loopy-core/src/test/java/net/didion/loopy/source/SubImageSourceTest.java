@@ -0,0 +1,127 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.source;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Reads a range of a {@link MemoryImageSource} through {@link SubImageSource}.
+ */
+public class SubImageSourceTest extends TestCase {
+    private static final int OFFSET = 3000;
+    private static final int LENGTH = 10000;
+
+    private final Random random = new Random(1);
+    private byte[] data;
+    private CountingSource parent;
+    private SubImageSource source;
+
+    protected void setUp() {
+        this.data = new byte[20000];
+        this.random.nextBytes(this.data);
+        this.parent = new CountingSource(this.data);
+        this.source = new SubImageSource(this.parent, OFFSET, LENGTH);
+    }
+
+    public void testRead() throws IOException {
+        assertEquals(LENGTH, this.source.size());
+        assertSame(this.parent, this.source.getParent());
+        assertEquals(OFFSET, this.source.getOffset());
+
+        for (int i = 0; i < 100; i++) {
+            final int pos = this.random.nextInt(LENGTH);
+            final ByteBuffer dst = ByteBuffer.allocate(1 + this.random.nextInt(LENGTH));
+            final int expected = Math.min(dst.capacity(), LENGTH - pos);
+
+            assertEquals(expected, this.source.read(pos, dst));
+            check(pos, dst, expected);
+        }
+    }
+
+    public void testReadAtEnd() throws IOException {
+        // a read over the end of the range stops there, and the limit of the buffer is kept
+        final ByteBuffer dst = ByteBuffer.allocate(500);
+
+        dst.position(10);
+        assertEquals(100, this.source.read(LENGTH - 100, dst));
+        assertEquals(110, dst.position());
+        assertEquals(500, dst.limit());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(this.data[OFFSET + LENGTH - 100 + i], dst.get(10 + i));
+        }
+
+        assertEquals(-1, this.source.read(LENGTH, ByteBuffer.allocate(1)));
+        assertEquals(-1, this.source.read(LENGTH + 1000, ByteBuffer.allocate(1)));
+
+        try {
+            this.source.read(-1, ByteBuffer.allocate(1));
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testInvalidRange() {
+        try {
+            new SubImageSource(this.parent, -1, 10);
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testClose() throws IOException {
+        new SubImageSource(this.parent, 0, 10, false).close();
+        assertEquals(0, this.parent.closed);
+
+        this.source.close();
+        assertEquals(1, this.parent.closed);
+    }
+
+    private void check(final int pos, final ByteBuffer dst, final int length) {
+        assertEquals(length, dst.position());
+
+        for (int i = 0; i < length; i++) {
+            if (this.data[OFFSET + pos + i] != dst.get(i)) {
+                fail("mismatch at " + (pos + i));
+            }
+        }
+    }
+
+    /**
+     * A source in memory that counts how often it is closed.
+     */
+    private static class CountingSource extends MemoryImageSource {
+        int closed = 0;
+
+        CountingSource(final byte[] data) {
+            super(data);
+        }
+
+        public void close() {
+            this.closed++;
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.udf;
+
+import junit.framework.TestCase;
+import net.didion.loopy.FileEntry;
+import net.didion.loopy.LoopyException;
+import net.didion.loopy.source.MemoryImageSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Builds small UDF 1.02 images and checks that {@link UDFFileSystem} lists the files that were
+ * written and reads back their data, whether it is embedded in the File Entry, recorded in one or
+ * more extents, continued in an Allocation Extent Descriptor, or not recorded at all.
+ */
+public class UDFFileSystemTest extends TestCase {
+    private static final int SECTOR = 2048;
+
+    // sector of the start of the partition
+    private static final int PARTITION_START = 300;
+
+    private final Map sectors = new HashMap();
+    private final Map expected = new TreeMap();
+    private int nextBlock = 1;
+
+    public void testReadBack() throws IOException {
+        final Random random = new Random(1);
+        final int root = allocate();
+        final int sub = allocate();
+
+        final Map subFiles = new TreeMap();
+
+        subFiles.put("nested.txt", file("sub/nested.txt", "nested file\n".getBytes("US-ASCII")));
+        subFiles.put("empty", file("sub/empty", new byte[0]));
+        directory(sub, root, subFiles, new HashMap());
+
+        final Map files = new TreeMap();
+
+        files.put("small.txt", embedded("small.txt", "embedded data\n".getBytes("US-ASCII")));
+        files.put("data.bin", file("data.bin", data(random, 20000)));
+        files.put("split.bin", split("split.bin", data(random, (3 * SECTOR) + 123)));
+        files.put("continued.bin", continued("continued.bin", data(random, (7 * SECTOR) + 10)));
+        files.put("sparse.bin", sparse("sparse.bin", data(random, 4096), 3 * SECTOR,
+                                       data(random, 100)));
+        files.put("\u540d\u524d.txt", file("\u540d\u524d.txt", "unicode\n".getBytes("US-ASCII")));
+        directory(root, root, files, map("sub", sub));
+
+        final UDFFileSystem fileSystem = open(root, "LOOPY_UDF");
+
+        try {
+            assertEquals("LOOPY_UDF", fileSystem.getVolumeIdentifier());
+
+            final Map found = new TreeMap();
+
+            for (Enumeration e = fileSystem.getEntries(); e.hasMoreElements();) {
+                final UDFFileEntry entry = (UDFFileEntry) e.nextElement();
+
+                if (!entry.isDirectory()) {
+                    found.put(entry.getPath(), entry);
+                }
+            }
+
+            assertEquals(this.expected.keySet(), found.keySet());
+
+            for (Iterator i = this.expected.entrySet().iterator(); i.hasNext();) {
+                final Map.Entry next = (Map.Entry) i.next();
+                final byte[] data = (byte[]) next.getValue();
+                final UDFFileEntry entry = (UDFFileEntry) found.get(next.getKey());
+
+                assertEquals(entry.getPath(), data.length, entry.getLength());
+                assertTrue(entry.getPath(),
+                           Arrays.equals(data, readFully(fileSystem.getInputStream(entry))));
+                checkReads(fileSystem, entry, data, random);
+            }
+
+            assertEquals(0, fileSystem.getOpenStreamCount());
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    public void testTruncatedEmbeddedData() throws IOException {
+        final int root = allocate();
+        final int file = allocate();
+
+        // the entry claims more data than it embeds
+        putBlock(file, fileEntry(file, 5, 100, 3, new byte[10]));
+        directory(root, root, map("short.txt", Integer.valueOf(file)), new HashMap());
+
+        final UDFFileSystem fileSystem = open(root, "TRUNCATED");
+
+        try {
+            final Enumeration e = fileSystem.getEntries();
+            FileEntry entry = null;
+
+            while (e.hasMoreElements()) {
+                entry = (FileEntry) e.nextElement();
+            }
+
+            assertEquals("short.txt", entry.getPath());
+
+            try {
+                fileSystem.read(entry, 0, ByteBuffer.allocate(100));
+                fail("Expected a LoopyException");
+            }
+            catch (LoopyException ex) {
+                // expected
+            }
+        }
+        finally {
+            fileSystem.close();
+        }
+    }
+
+    public void testNotUdf() throws IOException {
+        try {
+            new UDFFileSystem(null, new MemoryImageSource(new byte[300 * SECTOR]), true)
+                    .getEntries();
+            fail("Expected an exception");
+        }
+        catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof LoopyException);
+        }
+    }
+
+    private static void checkReads(final UDFFileSystem fileSystem, final UDFFileEntry entry,
+                                   final byte[] data, final Random random)
+            throws IOException {
+        for (int i = 0; i < 20 && data.length > 0; i++) {
+            final int pos = random.nextInt(data.length);
+            final int length = 1 + random.nextInt(data.length - pos);
+            final ByteBuffer dst = ByteBuffer.allocate(length);
+
+            assertEquals(length, fileSystem.read(entry, pos, dst));
+            assertTrue(entry.getPath() + " at " + pos,
+                       Arrays.equals(copy(data, pos, length), dst.array()));
+        }
+
+        assertEquals(-1, fileSystem.read(entry, data.length, ByteBuffer.allocate(1)));
+    }
+
+    private UDFFileSystem open(final int root, final String volumeIdentifier) throws IOException {
+        // volume recognition sequence
+        putSector(16, ascii("\0BEA01\1"));
+        putSector(17, ascii("\0NSR02\1"));
+        putSector(18, ascii("\0TEA01\1"));
+
+        // volume descriptor sequence: partition, logical volume, terminator
+        final byte[] pd = new byte[512];
+        putUInt16(pd, 22, 0);
+        putUInt32(pd, 188, PARTITION_START);
+        putUInt32(pd, 192, this.nextBlock);
+        putSector(32, tag(5, 32, pd));
+
+        final byte[] lvd = new byte[512];
+        dstring(lvd, 84, 128, volumeIdentifier);
+        putUInt32(lvd, 212, SECTOR);
+        longAd(lvd, 248, SECTOR, 0, 0);
+        putUInt32(lvd, 264, 6);
+        putUInt32(lvd, 268, 1);
+        lvd[440] = 1;
+        lvd[441] = 6;
+        putUInt16(lvd, 442, 1);
+        putUInt16(lvd, 444, 0);
+        putSector(34, tag(6, 34, lvd));
+        putSector(35, tag(8, 35, new byte[16]));
+
+        final byte[] anchor = new byte[512];
+        putUInt32(anchor, 16, 16 * SECTOR);
+        putUInt32(anchor, 20, 32);
+        putSector(256, tag(2, 256, anchor));
+
+        // file set descriptor at block 0 of the partition
+        final byte[] fsd = new byte[512];
+        longAd(fsd, 400, SECTOR, root, 0);
+        putBlock(0, tag(256, 0, fsd));
+
+        final byte[] image = new byte[(PARTITION_START + this.nextBlock) * SECTOR];
+
+        for (Iterator i = this.sectors.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry entry = (Map.Entry) i.next();
+            final byte[] sector = (byte[]) entry.getValue();
+
+            System.arraycopy(sector, 0, image, ((Integer) entry.getKey()).intValue() * SECTOR,
+                             sector.length);
+        }
+
+        return new UDFFileSystem(null, new MemoryImageSource(image), true);
+    }
+
+    /**
+     * Writes a directory of files and subdirectories, given by name and File Entry block.
+     */
+    private void directory(final int block, final int parent, final Map files,
+                           final Map directories)
+            throws UnsupportedEncodingException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        writeFid(content, null, parent, 0x0A);
+
+        for (Iterator i = directories.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry entry = (Map.Entry) i.next();
+
+            writeFid(content, (String) entry.getKey(), ((Integer) entry.getValue()).intValue(),
+                     0x02);
+        }
+
+        for (Iterator i = files.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry entry = (Map.Entry) i.next();
+
+            writeFid(content, (String) entry.getKey(), ((Integer) entry.getValue()).intValue(),
+                     0);
+        }
+
+        final byte[] data = content.toByteArray();
+        final int start = writeData(data);
+
+        putBlock(block, fileEntry(block, 4, data.length, 0, shortAd(data.length, start, 0)));
+    }
+
+    private Integer file(final String path, final byte[] data) {
+        final int block = allocate();
+        final byte[] ads =
+                (0 == data.length) ? new byte[0] : shortAd(data.length, writeData(data), 0);
+
+        this.expected.put(path, data);
+        putBlock(block, fileEntry(block, 5, data.length, 0, ads));
+
+        return Integer.valueOf(block);
+    }
+
+    private Integer embedded(final String path, final byte[] data) {
+        final int block = allocate();
+
+        this.expected.put(path, data);
+        putBlock(block, fileEntry(block, 5, data.length, 3, data));
+
+        return Integer.valueOf(block);
+    }
+
+    /**
+     * Writes a file in extents of one block, separated by unused blocks, described by long_ads.
+     */
+    private Integer split(final String path, final byte[] data) {
+        final int block = allocate();
+        final ByteArrayOutputStream ads = new ByteArrayOutputStream();
+
+        for (int pos = 0; pos < data.length; pos += SECTOR) {
+            final int length = Math.min(SECTOR, data.length - pos);
+            final byte[] ad = new byte[16];
+
+            longAd(ad, 0, length, writeData(copy(data, pos, length)), 0);
+            ads.write(ad, 0, ad.length);
+            allocate();
+        }
+
+        this.expected.put(path, data);
+        putBlock(block, fileEntry(block, 5, data.length, 1, ads.toByteArray()));
+
+        return Integer.valueOf(block);
+    }
+
+    /**
+     * Writes a file whose short_ads continue in an Allocation Extent Descriptor after the second
+     * extent.
+     */
+    private Integer continued(final String path, final byte[] data) {
+        final int block = allocate();
+        final int aed = allocate();
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+
+        for (int pos = 0; pos < data.length; pos += SECTOR) {
+            final int length = Math.min(SECTOR, data.length - pos);
+            final byte[] ad = shortAd(length, writeData(copy(data, pos, length)), 0);
+
+            allocate();
+            (pos < 2 * SECTOR ? first : rest).write(ad, 0, ad.length);
+        }
+
+        final byte[] continuation = shortAd(SECTOR, aed, 3);
+        final byte[] descriptor = new byte[24 + rest.size()];
+
+        first.write(continuation, 0, continuation.length);
+        putUInt32(descriptor, 20, rest.size());
+        System.arraycopy(rest.toByteArray(), 0, descriptor, 24, rest.size());
+        putBlock(aed, tag(258, aed, descriptor));
+
+        this.expected.put(path, data);
+        putBlock(block, fileEntry(block, 5, data.length, 0, first.toByteArray()));
+
+        return Integer.valueOf(block);
+    }
+
+    /**
+     * Writes a file with an allocated but unrecorded extent between two recorded ones.
+     */
+    private Integer sparse(final String path, final byte[] head, final int gap,
+                           final byte[] tail) {
+        final int block = allocate();
+        final ByteArrayOutputStream ads = new ByteArrayOutputStream();
+        final byte[] data = new byte[head.length + gap + tail.length];
+
+        ads.write(shortAd(head.length, writeData(head), 0), 0, 8);
+        ads.write(shortAd(gap, 0, 1), 0, 8);
+        ads.write(shortAd(tail.length, writeData(tail), 0), 0, 8);
+        System.arraycopy(head, 0, data, 0, head.length);
+        System.arraycopy(tail, 0, data, head.length + gap, tail.length);
+
+        this.expected.put(path, data);
+        putBlock(block, fileEntry(block, 5, data.length, 0, ads.toByteArray()));
+
+        return Integer.valueOf(block);
+    }
+
+    private int allocate() {
+        return this.nextBlock++;
+    }
+
+    private int writeData(final byte[] data) {
+        final int start = this.nextBlock;
+
+        for (int pos = 0; pos < data.length; pos += SECTOR) {
+            putBlock(allocate(), copy(data, pos, Math.min(SECTOR, data.length - pos)));
+        }
+
+        return start;
+    }
+
+    private void putBlock(final int block, final byte[] data) {
+        putSector(PARTITION_START + block, data);
+    }
+
+    private void putSector(final int sector, final byte[] data) {
+        this.sectors.put(Integer.valueOf(sector), data);
+    }
+
+    /**
+     * Returns a File Entry of the given file type (4 directory, 5 file) and allocation
+     * descriptor type (0 short, 1 long, 3 embedded).
+     */
+    private static byte[] fileEntry(final int block, final int fileType, final long length,
+                                    final int adType, final byte[] ads) {
+        final byte[] entry = new byte[176 + ads.length];
+
+        putUInt16(entry, 20, 4);
+        putUInt16(entry, 24, 1);
+        entry[27] = (byte) fileType;
+        putUInt16(entry, 34, adType);
+        putUInt16(entry, 48, 1);
+        putUInt32(entry, 56, length);
+        putUInt32(entry, 60, length >>> 32);
+
+        // 2006-02-28 11:47:00 UTC
+        putUInt16(entry, 84, 0x1000);
+        putUInt16(entry, 86, 2006);
+        entry[88] = 2;
+        entry[89] = 28;
+        entry[90] = 11;
+        entry[91] = 47;
+
+        putUInt32(entry, 172, ads.length);
+        System.arraycopy(ads, 0, entry, 176, ads.length);
+
+        return tag(261, block, entry);
+    }
+
+    private static void writeFid(final ByteArrayOutputStream out, final String name,
+                                 final int block, final int characteristics)
+            throws UnsupportedEncodingException {
+        final byte[] identifier = (null == name) ? new byte[0] : dchars(name);
+        final byte[] fid = new byte[(38 + identifier.length + 3) & ~3];
+
+        putUInt16(fid, 16, 1);
+        fid[18] = (byte) characteristics;
+        fid[19] = (byte) identifier.length;
+        longAd(fid, 20, SECTOR, block, 0);
+        System.arraycopy(identifier, 0, fid, 38, identifier.length);
+        tag(257, 0, fid);
+        out.write(fid, 0, fid.length);
+    }
+
+    /**
+     * Fills in the descriptor tag at the start of <code>descriptor</code>.
+     */
+    private static byte[] tag(final int identifier, final int location, final byte[] descriptor) {
+        putUInt16(descriptor, 0, identifier);
+        putUInt16(descriptor, 2, 2);
+        putUInt32(descriptor, 12, location);
+
+        int sum = 0;
+
+        for (int i = 0; i < 16; i++) {
+            if (i != 4) {
+                sum += descriptor[i] & 0xFF;
+            }
+        }
+
+        descriptor[4] = (byte) sum;
+
+        return descriptor;
+    }
+
+    private static byte[] shortAd(final long length, final int block, final int type) {
+        final byte[] ad = new byte[8];
+
+        putUInt32(ad, 0, length | ((long) type << 30));
+        putUInt32(ad, 4, block);
+
+        return ad;
+    }
+
+    private static void longAd(final byte[] buffer, final int pos, final long length,
+                               final int block, final int partition) {
+        putUInt32(buffer, pos, length);
+        putUInt32(buffer, pos + 4, block);
+        putUInt16(buffer, pos + 8, partition);
+    }
+
+    /**
+     * Encodes a name as OSTA compressed Unicode, with one byte per character if possible.
+     */
+    private static byte[] dchars(final String name) throws UnsupportedEncodingException {
+        boolean wide = false;
+
+        for (int i = 0; i < name.length(); i++) {
+            wide |= name.charAt(i) > 0xFF;
+        }
+
+        final byte[] chars = name.getBytes(wide ? "UTF-16BE" : "ISO-8859-1");
+        final byte[] dchars = new byte[chars.length + 1];
+
+        dchars[0] = (byte) (wide ? 16 : 8);
+        System.arraycopy(chars, 0, dchars, 1, chars.length);
+
+        return dchars;
+    }
+
+    private static void dstring(final byte[] buffer, final int pos, final int length,
+                                final String value) throws UnsupportedEncodingException {
+        final byte[] chars = dchars(value);
+
+        System.arraycopy(chars, 0, buffer, pos, chars.length);
+        buffer[pos + length - 1] = (byte) chars.length;
+    }
+
+    private static void putUInt16(final byte[] buffer, final int pos, final int value) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putUInt32(final byte[] buffer, final int pos, final long value) {
+        for (int i = 0; i < 4; i++) {
+            buffer[pos + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static byte[] ascii(final String value) throws UnsupportedEncodingException {
+        return value.getBytes("ISO-8859-1");
+    }
+
+    private static Map map(final String name, final int block) {
+        return map(name, Integer.valueOf(block));
+    }
+
+    private static Map map(final String name, final Integer block) {
+        final Map map = new HashMap();
+
+        map.put(name, block);
+
+        return map;
+    }
+
+    private static byte[] data(final Random random, final int length) {
+        final byte[] data = new byte[length];
+
+        random.nextBytes(data);
+
+        return data;
+    }
+
+    private static byte[] copy(final byte[] data, final int pos, final int length) {
+        final byte[] copy = new byte[length];
+
+        System.arraycopy(data, pos, copy, 0, length);
+
+        return copy;
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[5000];
+        int n;
+
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+
+        in.close();
+
+        return out.toByteArray();
+    }
+}
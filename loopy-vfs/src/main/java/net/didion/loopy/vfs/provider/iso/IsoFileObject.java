@@ -20,19 +20,31 @@ package net.didion.loopy.vfs.provider.iso;
 import org.apache.commons.vfs.provider.AbstractFileObject;
 import org.apache.commons.vfs.FileType;
 import org.apache.commons.vfs.FileName;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.NameScope;
+import org.apache.commons.vfs.RandomAccessContent;
+import org.apache.commons.vfs.util.RandomAccessMode;
 import net.didion.loopy.iso9660.ISO9660FileEntry;
 
 import java.io.InputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * Implementation of {@link org.apache.commons.vfs.FileObject} for ISO9660 (.iso) files.
  */
 public class IsoFileObject extends AbstractFileObject {
+    private static final String[] NO_CHILDREN = new String[0];
+
     private ISO9660FileEntry entry;
     private FileType type;
-    private final Set children;
+
+    /**
+     * The encoded base names of the children, sorted once the index has been built. Only the first
+     * {@link #childCount} elements are used while the index is being built.
+     */
+    private String[] children = NO_CHILDREN;
+    private int childCount = 0;
 
     /**
      * Creates an IsoFileObject without a ISO9660FileEntry. The entry must be set before calling
@@ -44,23 +56,19 @@ public class IsoFileObject extends AbstractFileObject {
     IsoFileObject(final FileName name, final IsoFileSystem fs) {
         super(name, fs);
         this.type = FileType.IMAGINARY;
-        this.children = new HashSet();
     }
 
     IsoFileObject(final FileName name, final ISO9660FileEntry entry, final IsoFileSystem fs) {
         super(name, fs);
         setIsoEntry(entry);
-        this.children = new HashSet();
     }
 
     /**
-     * Sets the ISO9660FileEntry that backs this FileObject. This method is package-private because
-     * IsoFileSystem pre-creates some directory entries when building the file index, and it needs
-     * to set the backing entry after the fact.
+     * Sets the ISO9660FileEntry that backs this FileObject.
      *
      * @param entry
      */
-    void setIsoEntry(final ISO9660FileEntry entry) {
+    private void setIsoEntry(final ISO9660FileEntry entry) {
         if (null != this.entry) {
             throw new RuntimeException("Cannot change the underlying entry once it has been set");
         }
@@ -76,10 +84,44 @@ public class IsoFileObject extends AbstractFileObject {
      * Attaches a child to this file. The parent IsoFileSystem calls this method when building the
      * file index.
      *
-     * @param childName
+     * @param childName the encoded base name of the child
      */
-    void attachChild(final FileName childName) {
-        this.children.add(childName.getBaseName());
+    void attachChild(final String childName) {
+        if (this.childCount == this.children.length) {
+            final String[] children = new String[Math.max(8, this.childCount * 2)];
+
+            System.arraycopy(this.children, 0, children, 0, this.childCount);
+            this.children = children;
+        }
+
+        this.children[this.childCount++] = childName;
+    }
+
+    /**
+     * Trims and sorts the children once all of them have been attached. Names that occur more
+     * than once, e.g. several versions of a file, are listed once.
+     */
+    void sortChildren() {
+        if (this.childCount == 0) {
+            this.children = NO_CHILDREN;
+            return;
+        }
+
+        Arrays.sort(this.children, 0, this.childCount);
+
+        int count = 1;
+
+        for (int i = 1; i < this.childCount; i++) {
+            if (!this.children[i].equals(this.children[count - 1])) {
+                this.children[count++] = this.children[i];
+            }
+        }
+
+        final String[] children = new String[count];
+
+        System.arraycopy(this.children, 0, children, 0, count);
+        this.children = children;
+        this.childCount = count;
     }
 
     /**
@@ -93,8 +135,26 @@ public class IsoFileObject extends AbstractFileObject {
         return this.type;
     }
 
+    /**
+     * Returns the sorted names of the children. The array is shared and must not be modified.
+     */
     protected String[] doListChildren() {
-        return (String[]) this.children.toArray(new String[this.children.size()]);
+        return this.children;
+    }
+
+    /**
+     * Finds a child by its encoded base name with a binary search of the sorted names, instead of
+     * resolving all children.
+     */
+    public FileObject getChild(final String name) throws FileSystemException {
+        if (Arrays.binarySearch(this.children, name) < 0) {
+            return null;
+        }
+
+        final FileName childName = getFileSystem().getFileSystemManager().resolveName(
+                getName(), name, NameScope.CHILD);
+
+        return getFileSystem().resolveFile(childName);
     }
 
     protected long doGetContentSize() {
@@ -108,4 +168,9 @@ public class IsoFileObject extends AbstractFileObject {
     protected InputStream doGetInputStream() throws Exception {
         return ((IsoFileSystem) getFileSystem()).getInputStream(this.entry);
     }
+
+    protected RandomAccessContent doGetRandomAccessContent(final RandomAccessMode mode)
+            throws Exception {
+        return new IsoRandomAccessContent((IsoFileSystem) getFileSystem(), this.entry, mode);
+    }
 }
\ No newline at end of file
@@ -39,6 +39,7 @@ public class IsoFileProvider extends AbstractLayeredFileProvider {
             Capability.GET_LAST_MODIFIED,
             Capability.GET_TYPE,
             Capability.LIST_CHILDREN,
+            Capability.RANDOM_ACCESS_READ,
             Capability.READ_CONTENT,
             Capability.URI,
             Capability.VIRTUAL
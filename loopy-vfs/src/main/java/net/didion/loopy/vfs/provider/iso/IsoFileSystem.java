@@ -22,9 +22,14 @@ import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemOptions;
 import org.apache.commons.vfs.Selectors;
 import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileSystemManager;
+import org.apache.commons.vfs.FileType;
 import org.apache.commons.vfs.VfsLog;
 import net.didion.loopy.iso9660.ISO9660FileEntry;
 import net.didion.loopy.iso9660.ISO9660FileSystem;
+import net.didion.loopy.management.FileSystemRegistry;
+import org.apache.commons.vfs.impl.DefaultFileSystemManager;
+import org.apache.commons.vfs.provider.AbstractFileName;
 import org.apache.commons.vfs.provider.AbstractFileSystem;
 import org.apache.commons.vfs.provider.UriParser;
 import org.apache.commons.logging.Log;
@@ -33,10 +38,12 @@ import org.apache.commons.logging.LogFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Implementation of {@link org.apache.commons.vfs.FileSystem} for ISO9660 (.iso) files.
@@ -47,8 +54,15 @@ import java.util.Enumeration;
 public class IsoFileSystem extends AbstractFileSystem {
     private static final Log log = LogFactory.getLog(IsoFileSystem.class);
 
+    private File file;
     private ISO9660FileSystem fileSystem;
 
+    /**
+     * Every file and directory in the image, keyed by the path of its FileName. Holding the
+     * objects here also keeps them from being collected while the file system is in use.
+     */
+    private final Map index = new HashMap();
+
     public IsoFileSystem(final FileName rootName, final FileObject parentLayer,
                          final FileSystemOptions fileSystemOptions)
             throws FileSystemException {
@@ -58,74 +72,113 @@ public class IsoFileSystem extends AbstractFileSystem {
     public void init() throws FileSystemException {
         super.init();
 
-        final File file = getParentLayer().getFileSystem().
+        this.file = getParentLayer().getFileSystem().
                 replicateFile(getParentLayer(), Selectors.SELECT_SELF);
 
-        try {
-            this.fileSystem = new ISO9660FileSystem(file, true);
-        }
-        catch (IOException ex) {
-            throw new FileSystemException("vfs.provider.iso/open-iso-file.error", file, ex);
-        }
+        openIsoFileSystem();
+
+        // Build the index from the directory structure. Entries are enumerated breadth-first, so
+        // the directory containing an entry has always been indexed before the entry itself;
+        // each name is resolved relative to its directory's FileName.
+        final Map directories = new HashMap();
 
-        // Build the index
-        final List strongRef = new ArrayList(100);
-        
         final Enumeration entries = this.fileSystem.getEntries();
 
         while (entries.hasMoreElements()) {
             final ISO9660FileEntry entry = (ISO9660FileEntry) entries.nextElement();
 
-            String name = entry.getPath();
+            final IsoFileObject fileObj;
 
-            // skip entries without names (should only be one - the root entry)
-            if ("".equals(name)) {
-                continue;
+            if (null == entry.getParentPath()) {
+                // the root entry
+                fileObj = new IsoFileObject(getRootName(), entry, this);
             }
+            else {
+                final IsoFileObject parent =
+                        (IsoFileObject) directories.get(entry.getParentPath());
 
-            final FileName filename = getFileSystemManager().
-                    resolveName(getRootName(), UriParser.encode(name));
+                if (null == parent) {
+                    throw new FileSystemException("vfs.provider.iso/missing-parent.error",
+                                                  entry.getPath());
+                }
 
-            // Create the file
-            IsoFileObject fileObj;
+                final String baseName = UriParser.encode(entry.getName());
+                final FileName filename = createChildName(parent.getName(), baseName,
+                                                          entry.isDirectory());
 
-            if (entry.isDirectory() && getFileFromCache(filename) != null) {
-                fileObj = (IsoFileObject) getFileFromCache(filename);
-                fileObj.setIsoEntry(entry);
-                continue;
+                fileObj = new IsoFileObject(filename, entry, this);
+                parent.attachChild(baseName);
             }
 
-            fileObj = new IsoFileObject(filename, entry, this);
             putFileToCache(fileObj);
-            strongRef.add(fileObj);
-            fileObj.holdObject(strongRef);
+            this.index.put(fileObj.getName().getPath(), fileObj);
 
-            // Make sure all ancestors exist
-            IsoFileObject parent;
+            if (entry.isDirectory()) {
+                directories.put(entry.getPath(), fileObj);
+            }
+        }
 
-            for (FileName parentName = filename.getParent(); parentName != null;
-                 fileObj = parent, parentName = parentName.getParent()) {
+        for (Iterator i = directories.values().iterator(); i.hasNext();) {
+            ((IsoFileObject) i.next()).sortChildren();
+        }
+    }
 
-                // Locate the parent
-                parent = (IsoFileObject) getFileFromCache(parentName);
+    /**
+     * Creates the name of a child of an indexed directory by appending the encoded base name to
+     * the directory's path, without parsing or normalizing the whole path again.
+     *
+     * @param parentName the name of the directory
+     * @param baseName the encoded name of the child
+     * @param directory whether the child is a directory
+     * @return the name of the child
+     */
+    private FileName createChildName(final FileName parentName, final String baseName,
+                                     final boolean directory) {
+        final String parentPath = parentName.getPath();
+        final StringBuffer path = new StringBuffer(parentPath.length() + baseName.length() + 1);
 
-                if (parent == null) {
-                    parent = new IsoFileObject(parentName, this);
-                    putFileToCache(parent);
-                    strongRef.add(parent);
-                    parent.holdObject(strongRef);
-                }
+        path.append(parentPath);
 
-                // Attach child to parent
-                parent.attachChild(fileObj.getName());
-            }
+        if (!FileName.ROOT_PATH.equals(parentPath)) {
+            path.append(FileName.SEPARATOR_CHAR);
         }
+
+        path.append(baseName);
+
+        return ((AbstractFileName) parentName).createName(
+                path.toString(), directory ? FileType.FOLDER : FileType.FILE);
     }
 
     protected void addCapabilities(final Collection caps) {
         caps.addAll(IsoFileProvider.capabilities);
     }
 
+    /**
+     * Looks up a file in the index built by {@link #init()}, which holds every path in the .iso
+     * file. A path that is not in the index does not exist, so it is answered with an IMAGINARY
+     * file without any I/O, and the file is not cached, so that probing for missing files does
+     * not fill the cache. The index is not modified after {@link #init()}, so lookups do not
+     * lock.
+     *
+     * @param name
+     * @return the file
+     * @throws FileSystemException if the name belongs to a different file system
+     */
+    public FileObject resolveFile(final FileName name) throws FileSystemException {
+        if (!getRootName().getRootURI().equals(name.getRootURI())) {
+            // let the superclass report the mismatch
+            return super.resolveFile(name);
+        }
+
+        final FileObject file = (FileObject) this.index.get(name.getPath());
+
+        if (null != file) {
+            return file;
+        }
+
+        return decorateFileObject(new IsoFileObject(name, this));
+    }
+
     /**
      * Since this method is only called for files that don't actually exist in the .iso file,
      * it always returns IMAGINARY files. Any attempt to access their content results in an
@@ -165,8 +218,72 @@ public class IsoFileSystem extends AbstractFileSystem {
      *
      * @param entry
      * @return
+     * @throws FileSystemException if the .iso file has been closed
      */
-    InputStream getInputStream(final ISO9660FileEntry entry) {
-        return this.fileSystem.getInputStream(entry);
+    InputStream getInputStream(final ISO9660FileEntry entry) throws FileSystemException {
+        return getIsoFileSystem().getInputStream(entry);
+    }
+
+    /**
+     * Reads the data of the specified ISO9660FileEntry, starting <code>position</code> bytes into
+     * the entry. Called by {@link IsoRandomAccessContent}.
+     *
+     * @param entry
+     * @param position
+     * @param dst
+     * @return the number of bytes read, or -1 if <code>position</code> is at or beyond the end of
+     * the entry
+     * @throws IOException if the .iso file could not be read or has been closed
+     */
+    int read(final ISO9660FileEntry entry, final long position, final ByteBuffer dst)
+            throws IOException {
+        return getIsoFileSystem().read(entry, position, dst);
+    }
+
+    /**
+     * Returns the underlying ISO9660FileSystem. If it has been closed from outside, e.g. as an
+     * idle image via JMX, it is not reopened behind the caller's back: this file system is
+     * closed and removed from its manager, so that the next lookup of the .iso file through the
+     * manager opens it again, and an exception is thrown.
+     *
+     * @return the open ISO9660FileSystem
+     * @throws FileSystemException if the .iso file has been closed
+     */
+    synchronized ISO9660FileSystem getIsoFileSystem() throws FileSystemException {
+        final ISO9660FileSystem fileSystem = this.fileSystem;
+
+        if (null == fileSystem || fileSystem.isClosed()) {
+            final FileSystemManager manager = getFileSystemManager();
+
+            if (manager instanceof DefaultFileSystemManager) {
+                ((DefaultFileSystemManager) manager).closeFileSystem(this);
+            }
+
+            throw new FileSystemException("vfs.provider.iso/closed-iso-file.error", this.file);
+        }
+
+        return fileSystem;
+    }
+
+    /**
+     * Opens the replicated .iso file and registers it for monitoring.
+     *
+     * @throws FileSystemException if the .iso file could not be opened
+     */
+    private void openIsoFileSystem() throws FileSystemException {
+        try {
+            this.fileSystem = new ISO9660FileSystem(this.file, true);
+        }
+        catch (IOException ex) {
+            throw new FileSystemException("vfs.provider.iso/open-iso-file.error", this.file, ex);
+        }
+
+        try {
+            FileSystemRegistry.register(this.fileSystem, getRootName().getURI());
+        }
+        catch (IOException ex) {
+            VfsLog.warn(getLogger(), log,
+                        "vfs.provider.iso/register-iso-file.error :" + this.fileSystem, ex);
+        }
     }
 }
\ No newline at end of file
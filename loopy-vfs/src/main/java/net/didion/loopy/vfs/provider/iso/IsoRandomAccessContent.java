@@ -0,0 +1,261 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.vfs.provider.iso;
+
+import org.apache.commons.vfs.provider.AbstractRandomAccessContent;
+import org.apache.commons.vfs.util.RandomAccessMode;
+import net.didion.loopy.iso9660.ISO9660FileEntry;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Implementation of {@link org.apache.commons.vfs.RandomAccessContent} for files in ISO9660
+ * (.iso) files. Every read is a positional read at the current file pointer, so seeking only
+ * moves the pointer. Small reads, e.g. by the {@link java.io.DataInput} methods, are served from a
+ * buffer of one block.
+ */
+class IsoRandomAccessContent extends AbstractRandomAccessContent {
+    private static final int BUFFER_SIZE = 2048;
+
+    private final IsoFileSystem fileSystem;
+    private final ISO9660FileEntry entry;
+    private final long length;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private long filePointer = 0;
+    private long bufferStart = 0;
+    private int bufferLength = 0;
+    private boolean closed = false;
+
+    /**
+     * Reads from the file pointer and advances it.
+     */
+    private final InputStream input = new InputStream() {
+        public int read() throws IOException {
+            return IsoRandomAccessContent.this.read();
+        }
+
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return IsoRandomAccessContent.this.read(b, off, len);
+        }
+
+        public long skip(final long n) throws IOException {
+            final long skipped = Math.max(0, Math.min(n, length() - getFilePointer()));
+
+            seek(getFilePointer() + skipped);
+
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, length() - getFilePointer());
+        }
+    };
+
+    private final DataInputStream dataInput = new DataInputStream(this.input);
+
+    IsoRandomAccessContent(final IsoFileSystem fileSystem, final ISO9660FileEntry entry,
+                           final RandomAccessMode mode) {
+        super(mode);
+        this.fileSystem = fileSystem;
+        this.entry = entry;
+        this.length = entry.getSize();
+    }
+
+    public long getFilePointer() throws IOException {
+        ensureOpen();
+        return this.filePointer;
+    }
+
+    public void seek(final long pos) throws IOException {
+        ensureOpen();
+
+        if (pos < 0) {
+            throw new IOException("Negative seek offset: " + pos);
+        }
+
+        this.filePointer = pos;
+    }
+
+    public long length() throws IOException {
+        ensureOpen();
+        return this.length;
+    }
+
+    public void close() throws IOException {
+        this.closed = true;
+    }
+
+    /**
+     * Returns a stream that reads from the file pointer and advances it.
+     */
+    public InputStream getInputStream() throws IOException {
+        ensureOpen();
+        return this.input;
+    }
+
+    /**
+     * Reads the byte at the file pointer from the buffer and advances the pointer.
+     *
+     * @return the byte, or -1 at the end of the file
+     */
+    private int read() throws IOException {
+        ensureOpen();
+
+        if (this.filePointer >= this.length) {
+            return -1;
+        }
+
+        final int b = this.buffer[getBufferOffset()] & 0xFF;
+
+        this.filePointer++;
+
+        return b;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes at the file pointer and advances it.
+     *
+     * @return the number of bytes read, or -1 at the end of the file
+     */
+    private int read(final byte[] b, final int off, final int len) throws IOException {
+        ensureOpen();
+
+        if (len == 0) {
+            return 0;
+        }
+        if (this.filePointer >= this.length) {
+            return -1;
+        }
+
+        int read;
+
+        if (len >= BUFFER_SIZE) {
+            // large reads go straight into the caller's array
+            read = this.fileSystem.read(this.entry, this.filePointer, ByteBuffer.wrap(b, off, len));
+        }
+        else {
+            final int offset = getBufferOffset();
+
+            read = Math.min(len, this.bufferLength - offset);
+            System.arraycopy(this.buffer, offset, b, off, read);
+        }
+
+        if (read > 0) {
+            this.filePointer += read;
+        }
+
+        return read;
+    }
+
+    /**
+     * Returns the position of the file pointer in the buffer, filling the buffer if it does not
+     * hold the byte at the file pointer.
+     */
+    private int getBufferOffset() throws IOException {
+        if (this.filePointer < this.bufferStart
+            || this.filePointer >= this.bufferStart + this.bufferLength) {
+            fillBuffer();
+        }
+
+        return (int) (this.filePointer - this.bufferStart);
+    }
+
+    /**
+     * Fills the buffer with the block-aligned data around the file pointer.
+     */
+    private void fillBuffer() throws IOException {
+        this.bufferStart = this.filePointer - (this.filePointer % BUFFER_SIZE);
+        this.bufferLength = 0;
+
+        final int read = this.fileSystem.read(this.entry, this.bufferStart,
+                                              ByteBuffer.wrap(this.buffer));
+
+        if (read <= 0) {
+            throw new EOFException("Unexpected end of file: " + this.entry.getPath());
+        }
+
+        this.bufferLength = read;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Random access content has been closed");
+        }
+    }
+
+    public int skipBytes(final int n) throws IOException {
+        return (int) this.input.skip(n);
+    }
+
+    public void readFully(final byte[] b) throws IOException {
+        this.dataInput.readFully(b);
+    }
+
+    public void readFully(final byte[] b, final int off, final int len) throws IOException {
+        this.dataInput.readFully(b, off, len);
+    }
+
+    public boolean readBoolean() throws IOException {
+        return this.dataInput.readBoolean();
+    }
+
+    public byte readByte() throws IOException {
+        return this.dataInput.readByte();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return this.dataInput.readUnsignedByte();
+    }
+
+    public short readShort() throws IOException {
+        return this.dataInput.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return this.dataInput.readUnsignedShort();
+    }
+
+    public char readChar() throws IOException {
+        return this.dataInput.readChar();
+    }
+
+    public int readInt() throws IOException {
+        return this.dataInput.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return this.dataInput.readLong();
+    }
+
+    public float readFloat() throws IOException {
+        return this.dataInput.readFloat();
+    }
+
+    public double readDouble() throws IOException {
+        return this.dataInput.readDouble();
+    }
+
+    public String readUTF() throws IOException {
+        return this.dataInput.readUTF();
+    }
+}
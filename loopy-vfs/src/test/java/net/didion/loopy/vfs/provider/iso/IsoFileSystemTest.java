@@ -0,0 +1,305 @@
+/*
+Copyright (C) 2006-2007 loopy project (http://loopy.sourceforge.net)
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package net.didion.loopy.vfs.provider.iso;
+
+import junit.framework.TestCase;
+import net.didion.loopy.iso9660.IsoImageBuilder;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileType;
+import org.apache.commons.vfs.RandomAccessContent;
+import org.apache.commons.vfs.impl.DefaultFileSystemManager;
+import org.apache.commons.vfs.provider.UriParser;
+import org.apache.commons.vfs.provider.local.DefaultLocalFileProvider;
+import org.apache.commons.vfs.util.RandomAccessMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Opens an image built by {@link IsoImageBuilder} through a file system manager with the iso
+ * provider, and resolves, lists and reads its files.
+ */
+public class IsoFileSystemTest extends TestCase {
+    private final Random random = new Random(1);
+    private File file;
+    private DefaultFileSystemManager manager;
+    private FileObject root;
+    private byte[] readme;
+    private byte[] guide;
+    private byte[] percent;
+    private byte[] large;
+
+    protected void setUp() throws IOException {
+        final IsoImageBuilder builder = new IsoImageBuilder();
+
+        this.readme = "read me\n".getBytes("US-ASCII");
+        this.guide = data(5000);
+        this.percent = data(10);
+        // spans several blocks and ends in the middle of one
+        this.large = data((3 * 2048) + 100);
+
+        builder.addFile("README.TXT", this.readme);
+        builder.addFile("DOCS/GUIDE.TXT", this.guide);
+        builder.addFile("DOCS/100%.TXT", this.percent);
+        builder.addFile("DOCS/A B.TXT", this.readme);
+        builder.addFile("DATA/LARGE.BIN", this.large);
+        builder.addDirectory("EMPTY");
+
+        this.file = File.createTempFile("loopy-vfs", ".iso");
+
+        final FileOutputStream out = new FileOutputStream(this.file);
+
+        try {
+            out.write(builder.build());
+        }
+        finally {
+            out.close();
+        }
+
+        this.manager = new DefaultFileSystemManager();
+        this.manager.addProvider("file", new DefaultLocalFileProvider());
+        this.manager.addProvider("iso", new IsoFileProvider());
+        this.manager.init();
+        this.root = this.manager.createFileSystem(
+                "iso", this.manager.resolveFile(this.file.getAbsolutePath()));
+    }
+
+    protected void tearDown() {
+        this.manager.close();
+        this.file.delete();
+    }
+
+    public void testList() throws IOException {
+        assertEquals(FileType.FOLDER, this.root.getType());
+        assertEquals(new String[] {"DATA", "DOCS", "EMPTY", "README.TXT"},
+                     this.root.getChildren());
+
+        // base names are encoded, as in every FileName
+        final FileObject docs = this.root.resolveFile("DOCS");
+
+        assertEquals(new String[] {"100%25.TXT", "A B.TXT", "GUIDE.TXT"}, docs.getChildren());
+        assertEquals(0, this.root.resolveFile("EMPTY").getChildren().length);
+        assertEquals(FileType.FOLDER, this.root.resolveFile("EMPTY").getType());
+        assertSame(this.root, docs.getParent());
+    }
+
+    public void testRead() throws IOException {
+        check(this.readme, this.root.resolveFile("README.TXT"));
+        check(this.guide, this.root.resolveFile("DOCS/GUIDE.TXT"));
+        check(this.percent, this.root.resolveFile("DOCS/100%25.TXT"));
+        check(this.readme, this.root.resolveFile("DOCS/A B.TXT"));
+        check(this.large, this.root.resolveFile("DATA/LARGE.BIN"));
+    }
+
+    public void testResolveFile() throws IOException {
+        // every path is in the index built by init(), so it resolves to the same object
+        final FileObject guide = this.root.resolveFile("DOCS/GUIDE.TXT");
+
+        assertEquals(FileType.FILE, guide.getType());
+        assertSame(guide, this.root.resolveFile("DOCS/GUIDE.TXT"));
+        assertSame(guide, this.root.getFileSystem().resolveFile("/DOCS/GUIDE.TXT"));
+        assertSame(guide, this.root.resolveFile("DOCS").getChildren()[2]);
+        assertSame(this.root, this.root.getFileSystem().resolveFile("/"));
+        assertEquals(this.guide.length, guide.getContent().getSize());
+    }
+
+    public void testResolveMissingFile() throws IOException {
+        final FileObject missing = this.root.resolveFile("DOCS/MISSING.TXT");
+
+        assertFalse(missing.exists());
+        assertEquals(FileType.IMAGINARY, missing.getType());
+        // missing files are not cached
+        assertNotSame(missing, this.root.resolveFile("DOCS/MISSING.TXT"));
+
+        try {
+            missing.getContent().getInputStream();
+            fail("Expected a FileSystemException");
+        }
+        catch (FileSystemException ex) {
+            // expected
+        }
+    }
+
+    public void testResolveOtherRoot() throws IOException {
+        final FileObject local = this.manager.resolveFile(this.file.getAbsolutePath());
+
+        try {
+            ((IsoFileSystem) this.root.getFileSystem()).resolveFile(local.getName());
+            fail("Expected a FileSystemException");
+        }
+        catch (FileSystemException ex) {
+            // expected
+        }
+    }
+
+    public void testGetChild() throws IOException {
+        final FileObject docs = this.root.resolveFile("DOCS");
+
+        // children are looked up by their encoded base names
+        final FileObject percent = docs.getChild("100%25.TXT");
+
+        assertNotNull(percent);
+        assertEquals("100%25.TXT", percent.getName().getBaseName());
+        assertEquals("100%.TXT", UriParser.decode(percent.getName().getBaseName()));
+        check(this.percent, percent);
+        assertSame(percent, this.root.resolveFile("DOCS/100%25.TXT"));
+
+        final FileObject space = docs.getChild("A B.TXT");
+
+        assertNotNull(space);
+        check(this.readme, space);
+
+        assertNull(docs.getChild("MISSING.TXT"));
+        assertNull(docs.getChild("README.TXT"));
+        assertNull(this.root.resolveFile("README.TXT").getChild("X"));
+    }
+
+    public void testRandomAccess() throws IOException {
+        final FileObject large = this.root.resolveFile("DATA/LARGE.BIN");
+        final RandomAccessContent content =
+                large.getContent().getRandomAccessContent(RandomAccessMode.READ);
+        final int length = this.large.length;
+
+        try {
+            assertEquals(length, content.length());
+
+            // small reads across a block boundary are served from the block buffer
+            content.seek(2040);
+
+            final byte[] small = new byte[20];
+
+            content.readFully(small);
+            checkRange(2040, small, small.length);
+            assertEquals(2060, content.getFilePointer());
+
+            content.seek(4094);
+            assertEquals(toInt(4094), content.readInt());
+
+            // seeking backwards
+            content.seek(10);
+            assertEquals(this.large[10], content.readByte());
+
+            // large reads go straight to the image
+            final byte[] big = new byte[5000];
+
+            content.seek(1000);
+            content.readFully(big);
+            checkRange(1000, big, big.length);
+
+            // the stream reads from the file pointer up to the end
+            content.seek(length - 150);
+
+            final InputStream in = content.getInputStream();
+            final byte[] tail = new byte[300];
+            int read = 0;
+            int n;
+
+            assertEquals(150, in.available());
+
+            // a read may stop at the end of the buffered block
+            while ((n = in.read(tail, read, tail.length - read)) > 0) {
+                read += n;
+            }
+
+            assertEquals(150, read);
+            checkRange(length - 150, tail, 150);
+            assertEquals(length, content.getFilePointer());
+            assertEquals(-1, in.read());
+
+            content.seek(length + 10);
+
+            try {
+                content.readByte();
+                fail("Expected an EOFException");
+            }
+            catch (EOFException ex) {
+                // expected
+            }
+        }
+        finally {
+            content.close();
+        }
+
+        try {
+            content.getFilePointer();
+            fail("Expected an IOException");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private void check(final byte[] expected, final FileObject file) throws IOException {
+        assertEquals(FileType.FILE, file.getType());
+        assertEquals(expected.length, file.getContent().getSize());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final InputStream in = file.getContent().getInputStream();
+        final byte[] buffer = new byte[1000];
+        int n;
+
+        try {
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        assertTrue(file.getName().getPath(), Arrays.equals(expected, out.toByteArray()));
+    }
+
+    private void checkRange(final int pos, final byte[] data, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (this.large[pos + i] != data[i]) {
+                fail("mismatch at " + (pos + i));
+            }
+        }
+    }
+
+    private static void assertEquals(final String[] names, final FileObject[] files) {
+        final String[] actual = new String[files.length];
+
+        for (int i = 0; i < files.length; i++) {
+            actual[i] = files[i].getName().getBaseName();
+        }
+
+        assertEquals(Arrays.asList(names), Arrays.asList(actual));
+    }
+
+    private int toInt(final int pos) {
+        return ((this.large[pos] & 0xFF) << 24) | ((this.large[pos + 1] & 0xFF) << 16)
+               | ((this.large[pos + 2] & 0xFF) << 8) | (this.large[pos + 3] & 0xFF);
+    }
+
+    private byte[] data(final int length) {
+        final byte[] data = new byte[length];
+
+        this.random.nextBytes(data);
+
+        return data;
+    }
+}